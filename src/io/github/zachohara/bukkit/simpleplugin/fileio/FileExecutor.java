@@ -0,0 +1,210 @@
+/* Copyright (C) 2017 Zach Ohara
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.zachohara.bukkit.simpleplugin.fileio;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The {@code FileExecutor} class owns the background threads that are used for file
+ * input and output, so that slow disk operations do not have to run on the main server
+ * thread. All of the threads are daemon threads, so they never prevent the server from
+ * shutting down.
+ *
+ * @author Zach Ohara
+ */
+public final class FileExecutor {
+
+	/**
+	 * The number of threads that are used for background file operations.
+	 */
+	private static final int THREAD_COUNT = 2;
+
+	/**
+	 * The largest number of threads that are used to load and save files while plugins
+	 * are being enabled and disabled.
+	 */
+	private static final int MAX_BULK_THREAD_COUNT = 8;
+
+	/**
+	 * The executor that runs all background file operations.
+	 */
+	private static ScheduledExecutorService executor;
+
+	/**
+	 * The pool that runs groups of file operations in parallel.
+	 */
+	private static ForkJoinPool parallelPool;
+
+	/**
+	 * The executor that loads and saves whole files while plugins are being enabled and
+	 * disabled, shared by every plugin.
+	 */
+	private static ExecutorService bulkExecutor;
+
+	static {
+		FileExecutor.executor = Executors.newScheduledThreadPool(FileExecutor.THREAD_COUNT,
+				FileExecutor.newThreadFactory("SimplePlugin File IO"));
+		final AtomicInteger workerCount = new AtomicInteger();
+		FileExecutor.parallelPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+				new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+
+					@Override
+					public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+						ForkJoinWorkerThread thread =
+								ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+						thread.setName("SimplePlugin Parallel IO #" + workerCount.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+
+				}, null, false);
+		// Loading and saving is mostly spent waiting for the disk, so use at least two threads
+		int bulkThreads = Math.min(FileExecutor.MAX_BULK_THREAD_COUNT,
+				Math.max(2, Runtime.getRuntime().availableProcessors()));
+		FileExecutor.bulkExecutor = Executors.newFixedThreadPool(bulkThreads,
+				FileExecutor.newThreadFactory("SimplePlugin Bulk IO"));
+	}
+
+	/**
+	 * The {@code FileExecutor} class should not be instantiable.
+	 */
+	private FileExecutor() {
+
+	}
+
+	/**
+	 * Runs the given task on a background thread as soon as possible.
+	 *
+	 * @param task the task to run.
+	 * @return a {@code Future} representing the pending completion of the task.
+	 */
+	public static Future<?> submit(Runnable task) {
+		return FileExecutor.executor.submit(task);
+	}
+
+	/**
+	 * Loads a file on one of a bounded number of background threads that are shared by
+	 * every plugin, so that the files of all plugins are loaded in parallel.
+	 *
+	 * @param <T> the result type of the task.
+	 * @param task the task that loads the file.
+	 * @return a {@code Future} representing the pending result of the task.
+	 */
+	public static <T> Future<T> submitLoad(Callable<T> task) {
+		return FileExecutor.bulkExecutor.submit(task);
+	}
+
+	/**
+	 * Saves and closes a file on one of the bounded number of background threads that are
+	 * shared by every plugin, so that the files of all plugins are saved in parallel while
+	 * the server shuts down.
+	 *
+	 * @param task the task that closes the file.
+	 * @return a {@code Future} representing the pending completion of the task.
+	 */
+	public static Future<?> submitClose(Runnable task) {
+		return FileExecutor.bulkExecutor.submit(task);
+	}
+
+	/**
+	 * Runs the given task on a background thread after the given delay.
+	 *
+	 * @param task the task to run.
+	 * @param delay the time to wait before running the task.
+	 * @param unit the unit of the delay.
+	 * @return a {@code ScheduledFuture} representing the pending completion of the task.
+	 */
+	public static ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+		return FileExecutor.executor.schedule(task, delay, unit);
+	}
+
+	/**
+	 * Runs every given task in parallel, and waits for all of them to finish. Every task
+	 * is run even if some of them fail.
+	 *
+	 * @param <T> the result type of the tasks.
+	 * @param tasks the tasks to run.
+	 * @return the results of the tasks, in the same order as the tasks.
+	 * @throws IOException if any task failed; the failures of any other tasks are added
+	 * as suppressed exceptions.
+	 */
+	public static <T> List<T> invokeAll(Collection<? extends Callable<T>> tasks)
+			throws IOException {
+		List<Future<T>> futures = FileExecutor.parallelPool.invokeAll(tasks);
+		List<T> results = new ArrayList<T>(futures.size());
+		IOException failure = null;
+		for (Future<T> future : futures) {
+			try {
+				results.add(future.get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			} catch (ExecutionException e) {
+				IOException cause = (e.getCause() instanceof IOException)
+						? (IOException) e.getCause() : new IOException(e.getCause());
+				if (failure == null) {
+					failure = cause;
+				} else {
+					failure.addSuppressed(cause);
+				}
+				results.add(null);
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		return results;
+	}
+
+	/**
+	 * Creates a {@code ThreadFactory} that makes numbered daemon threads with the given
+	 * name.
+	 *
+	 * @param name the name to give to every created thread.
+	 * @return the new {@code ThreadFactory}.
+	 */
+	public static ThreadFactory newThreadFactory(final String name) {
+		final AtomicInteger count = new AtomicInteger();
+		return new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, name + " #" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+
+		};
+	}
+
+}
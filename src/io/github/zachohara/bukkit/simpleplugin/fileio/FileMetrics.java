@@ -0,0 +1,303 @@
+/* Copyright (C) 2017 Zach Ohara
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.zachohara.bukkit.simpleplugin.fileio;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A {@code FileMetrics} is a snapshot of what a {@code PluginDataFile} has cost the
+ * server: the time spent loading and saving it, the bytes read and written for it, the
+ * space it takes up on the disk, and the number of entries and estimated memory of its
+ * data.
+ *
+ * @author Zach Ohara
+ * @see PluginDataFile#getMetrics()
+ */
+public final class FileMetrics {
+
+	/**
+	 * The name of the plugin that owns the file.
+	 */
+	private final String pluginName;
+
+	/**
+	 * The name of the file.
+	 */
+	private final String fileName;
+
+	/**
+	 * The time spent loading the file, in nanoseconds.
+	 */
+	private final long loadNanos;
+
+	/**
+	 * The number of times that the file has been saved.
+	 */
+	private final long saveCount;
+
+	/**
+	 * The total time spent saving the file, in nanoseconds.
+	 */
+	private final long saveNanos;
+
+	/**
+	 * The number of bytes read from the disk for the file.
+	 */
+	private final long bytesRead;
+
+	/**
+	 * The number of bytes written to the disk for the file.
+	 */
+	private final long bytesWritten;
+
+	/**
+	 * The number of bytes that the file takes up on the disk.
+	 */
+	private final long storedBytes;
+
+	/**
+	 * The number of entries in the data of the file, or {@code -1} if it is not known.
+	 */
+	private final int entryCount;
+
+	/**
+	 * The estimated size of the data of the file in memory, or {@code -1} if it is not
+	 * known.
+	 */
+	private final long heapBytes;
+
+	/**
+	 * Constructs a new {@code FileMetrics} from the current state of the given file.
+	 *
+	 * @param pluginName the name of the plugin that owns the file.
+	 * @param file the file to measure.
+	 */
+	FileMetrics(String pluginName, PluginDataFile file) {
+		this.pluginName = pluginName;
+		this.fileName = file.toString();
+		this.loadNanos = file.getLoadNanos();
+		this.saveCount = file.getSaveCount();
+		this.saveNanos = file.getSaveNanos();
+		this.bytesRead = file.getBytesRead();
+		this.bytesWritten = file.getBytesWritten();
+		this.storedBytes = file.getStoredBytes();
+		this.entryCount = file.getEntryCount();
+		this.heapBytes = file.getEstimatedHeapBytes();
+	}
+
+	/**
+	 * Returns the name of the plugin that owns the file.
+	 *
+	 * @return the name of the plugin.
+	 */
+	public String getPluginName() {
+		return this.pluginName;
+	}
+
+	/**
+	 * Returns the name of the file.
+	 *
+	 * @return the name of the file.
+	 */
+	public String getFileName() {
+		return this.fileName;
+	}
+
+	/**
+	 * Returns the time spent loading the file, in nanoseconds.
+	 *
+	 * @return the load time.
+	 */
+	public long getLoadNanos() {
+		return this.loadNanos;
+	}
+
+	/**
+	 * Returns the number of times that the file has been saved.
+	 *
+	 * @return the number of saves.
+	 */
+	public long getSaveCount() {
+		return this.saveCount;
+	}
+
+	/**
+	 * Returns the total time spent saving the file, in nanoseconds.
+	 *
+	 * @return the save time.
+	 */
+	public long getSaveNanos() {
+		return this.saveNanos;
+	}
+
+	/**
+	 * Returns the number of bytes read from the disk for the file.
+	 *
+	 * @return the number of bytes read.
+	 */
+	public long getBytesRead() {
+		return this.bytesRead;
+	}
+
+	/**
+	 * Returns the number of bytes written to the disk for the file.
+	 *
+	 * @return the number of bytes written.
+	 */
+	public long getBytesWritten() {
+		return this.bytesWritten;
+	}
+
+	/**
+	 * Returns the number of bytes that the file takes up on the disk.
+	 *
+	 * @return the size of the file.
+	 */
+	public long getStoredBytes() {
+		return this.storedBytes;
+	}
+
+	/**
+	 * Returns the number of entries in the data of the file.
+	 *
+	 * @return the number of entries, or {@code -1} if it is not known.
+	 */
+	public int getEntryCount() {
+		return this.entryCount;
+	}
+
+	/**
+	 * Returns the estimated size of the data of the file in memory.
+	 *
+	 * @return the estimated memory, in bytes, or {@code -1} if it is not known.
+	 */
+	public long getEstimatedHeapBytes() {
+		return this.heapBytes;
+	}
+
+	/**
+	 * Returns how much the file costs by the given measure.
+	 *
+	 * @param cost the measure of cost.
+	 * @return the cost of the file.
+	 */
+	public long getCost(FileMetrics.Cost cost) {
+		switch (cost) {
+			case LOAD:
+				return this.loadNanos;
+			case SAVE:
+				return this.saveNanos;
+			case DISK:
+				return this.storedBytes;
+			case HEAP:
+				return this.heapBytes;
+			default:
+				throw new UnsupportedOperationException(
+						"An unexpected value of FileMetrics.Cost was found.");
+		}
+	}
+
+	/**
+	 * Sorts the given list of metrics from the most to the least costly file, by the given
+	 * measure of cost.
+	 *
+	 * @param metrics the metrics to sort.
+	 * @param cost the measure of cost to sort by.
+	 */
+	public static void sortByCost(List<FileMetrics> metrics, final FileMetrics.Cost cost) {
+		Collections.sort(metrics, new Comparator<FileMetrics>() {
+
+			@Override
+			public int compare(FileMetrics first, FileMetrics second) {
+				return Long.compare(second.getCost(cost), first.getCost(cost));
+			}
+
+		});
+	}
+
+	@Override
+	public String toString() {
+		return "[" + this.pluginName + "] " + this.fileName + ": load "
+				+ FileMetrics.formatNanos(this.loadNanos) + ", " + this.saveCount + " saves in "
+				+ FileMetrics.formatNanos(this.saveNanos) + ", "
+				+ FileMetrics.formatBytes(this.storedBytes) + " on disk, "
+				+ (this.entryCount < 0 ? "" : this.entryCount + " entries, ")
+				+ (this.heapBytes < 0 ? "unknown" : "~" + FileMetrics.formatBytes(this.heapBytes))
+				+ " in memory, " + FileMetrics.formatBytes(this.bytesRead) + " read, "
+				+ FileMetrics.formatBytes(this.bytesWritten) + " written";
+	}
+
+	/**
+	 * Formats the given time for display, in milliseconds.
+	 *
+	 * @param nanos the time, in nanoseconds.
+	 * @return the formatted time.
+	 */
+	public static String formatNanos(long nanos) {
+		return String.format("%.1f ms", nanos / 1e6);
+	}
+
+	/**
+	 * Formats the given number of bytes for display, in the largest unit that keeps the
+	 * number at least {@code 1}.
+	 *
+	 * @param bytes the number of bytes.
+	 * @return the formatted size.
+	 */
+	public static String formatBytes(long bytes) {
+		if (bytes < 1024) {
+			return bytes + " B";
+		}
+		String units = "KMGT";
+		double size = bytes;
+		int unit = -1;
+		while (size >= 1024 && unit < units.length() - 1) {
+			size /= 1024;
+			unit++;
+		}
+		return String.format("%.1f %siB", size, units.charAt(unit));
+	}
+
+	/**
+	 * The measures by which the cost of a file can be compared.
+	 */
+	public static enum Cost {
+
+		/**
+		 * The time spent loading the file, which delays the server starting.
+		 */
+		LOAD,
+
+		/**
+		 * The time spent saving the file, which delays the server shutting down.
+		 */
+		SAVE,
+
+		/**
+		 * The space that the file takes up on the disk.
+		 */
+		DISK,
+
+		/**
+		 * The estimated memory that the data of the file takes up.
+		 */
+		HEAP
+	}
+
+}
@@ -0,0 +1,70 @@
+/* Copyright (C) 2017 Zach Ohara
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.zachohara.bukkit.simpleplugin.fileio;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The {@code FileUtil} class outlines some useful static methods for safely writing data
+ * files to the disk.
+ *
+ * @author Zach Ohara
+ */
+public final class FileUtil {
+
+	/**
+	 * The {@code FileUtil} class should not be instantiable.
+	 */
+	private FileUtil() {
+
+	}
+
+	/**
+	 * Gets the temporary file that should be used while writing a new version of the given
+	 * file. The temporary file is kept in the same folder as the real file, so that it can
+	 * later be moved over the real file in a single step.
+	 *
+	 * @param target the file that will eventually be replaced.
+	 * @return the temporary file to write to.
+	 */
+	public static File getTempFile(File target) {
+		return new File(target.getParentFile(), target.getName() + ".tmp");
+	}
+
+	/**
+	 * Moves the given source file over the given target file. If the file system supports
+	 * it, the move is atomic, so the target file will always contain either the complete
+	 * old version or the complete new version, even if the server crashes during the move.
+	 *
+	 * @param source the newly written file.
+	 * @param target the file that should be replaced.
+	 * @throws IOException if the file could not be moved.
+	 */
+	public static void replaceFile(File source, File target) throws IOException {
+		try {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+}
@@ -18,41 +18,165 @@ package io.github.zachohara.bukkit.simpleplugin.fileio;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import io.github.zachohara.bukkit.simpleplugin.plugin.SimplePlugin;
 
 public abstract class PluginDataFile {
 	
+	/**
+	 * The plugin that owns this file.
+	 */
+	private SimplePlugin owner;
+
 	/**
 	 * The {@code File} representing the file path.
 	 */
 	private File filepath;
+
+	/**
+	 * The lock that is held while the loaded contents of the file are being applied.
+	 */
+	private final Object loadLock = new Object();
+
+	/**
+	 * The background read of the file, or {@code null} if the file was loaded during
+	 * construction.
+	 */
+	private volatile Future<Object> pendingLoad;
+
+	/**
+	 * {@code true} once the file has been completely loaded, whether or not the load
+	 * succeeded.
+	 */
+	private volatile boolean loaded;
+
+	/**
+	 * {@code true} while the thread that holds the load lock is applying the loaded
+	 * contents, so that the accessors it calls do not wait for the load again.
+	 */
+	private boolean applying;
+
+	/**
+	 * The contents that were read in the background, before they are applied.
+	 */
+	private Object readContents;
+
+	/**
+	 * The time spent reading the file, in nanoseconds.
+	 */
+	private volatile long readNanos;
+
+	/**
+	 * The time spent reading the file and applying its contents, in nanoseconds.
+	 */
+	private volatile long loadNanos;
+
+	/**
+	 * The value of {@code System.nanoTime()} when the file was read.
+	 */
+	private volatile long readFinishTime;
+
+	/**
+	 * The longest time that an accessor waits for a background load, in nanoseconds.
+	 */
+	private volatile long loadWaitLimit = Long.MAX_VALUE;
+
+	/**
+	 * The time spent saving and closing the file, in nanoseconds.
+	 */
+	private volatile long closeNanos;
+
+	/**
+	 * {@code true} if the file was saved and closed without an error.
+	 */
+	private volatile boolean closeSucceeded;
+
+	/**
+	 * The number of bytes that have been read from the disk for this file.
+	 */
+	private final AtomicLong bytesRead = new AtomicLong();
+
+	/**
+	 * The number of bytes that have been written to the disk for this file.
+	 */
+	private final AtomicLong bytesWritten = new AtomicLong();
+
+	/**
+	 * The number of times that this file has been saved.
+	 */
+	private final AtomicLong saveCount = new AtomicLong();
+
+	/**
+	 * The time spent saving this file, in nanoseconds.
+	 */
+	private final AtomicLong saveNanos = new AtomicLong();
 	
 	/**
 	 * Constructs a new {@code PluginDataFile} with the given filename
-	 * and that will belong to the given plugin.
+	 * and that will belong to the given plugin. If the plugin loads its
+	 * files asynchronously, and this file supports it, the file is read
+	 * on a background thread and this constructor returns immediately.
 	 *
 	 * @param owner the plugin that owns the file.
 	 * @param filename the name of the file.
+	 * @see SimplePlugin#useAsyncFileLoading(boolean)
 	 */
 	public PluginDataFile(SimplePlugin owner, String filename) {
 		owner.registerPluginFile(this);
+		this.owner = owner;
 		this.filepath = new File(owner.getDataFolder(), filename);
-		this.createFile(owner.getLogger());
-		loadFile(owner.getLogger());
+		if (owner.getUseAsyncFileLoading() && this.supportsAsyncLoad()) {
+			this.pendingLoad = FileExecutor.submitLoad(new Callable<Object>() {
+
+				@Override
+				public Object call() throws IOException {
+					return PluginDataFile.this.readInBackground();
+				}
+
+			});
+		} else {
+			long start = System.nanoTime();
+			this.applying = true;
+			try {
+				this.createFile(owner.getLogger());
+				this.loadFile(owner.getLogger(), start);
+			} finally {
+				this.readFinishTime = System.nanoTime();
+				this.applying = false;
+				this.loaded = true;
+			}
+		}
 	}
 	
 	protected File getFile() {
 		return this.filepath;
 	}
 
+	/**
+	 * Returns the plugin that owns this file.
+	 *
+	 * @return the plugin that owns this file.
+	 */
+	protected SimplePlugin getOwner() {
+		return this.owner;
+	}
+
 	/**
 	 * Creates a new file if and only if the required file does not exist.
 	 *
 	 * @param outputLog the log to output results to.
 	 */
 	private void createFile(Logger outputLog) {
+		if (!this.usesOwnFile()) {
+			return;
+		}
 		this.filepath.getParentFile().mkdirs();
 		try {
 			if (this.filepath.createNewFile()) {
@@ -68,16 +192,356 @@ public abstract class PluginDataFile {
 	 * Load the file, and log the results.
 	 *
 	 * @param outputLog the log to output results to.
+	 * @param start the value of {@code System.nanoTime()} when loading began.
 	 */
-	private final void loadFile(Logger outputLog) {
+	private final void loadFile(Logger outputLog, long start) {
 		try {
 			this.attemptLoad();
-			outputLog.info("File sucessfully loaded: " + this.filepath);
+			this.loadNanos = this.readNanos + System.nanoTime() - start;
+			outputLog.info("File sucessfully loaded: " + this.filepath + " ("
+					+ TimeUnit.NANOSECONDS.toMillis(this.loadNanos) + " ms)");
 		} catch (IOException e) {
+			this.loadNanos = this.readNanos + System.nanoTime() - start;
 			outputLog.warning("File data could not be read: " + this.filepath);
 			outputLog.warning("Was the plugin just updated? Or the file just created?");
 		}
 	}
+
+	/**
+	 * Creates the file if it does not exist, and reads its contents. This is run on a
+	 * background thread when the file is loaded asynchronously.
+	 *
+	 * @return the contents of the file.
+	 * @throws IOException if the file could not be read.
+	 */
+	private Object readInBackground() throws IOException {
+		long start = System.nanoTime();
+		try {
+			this.createFile(this.owner.getLogger());
+			return this.readContents();
+		} finally {
+			this.readFinishTime = System.nanoTime();
+			this.readNanos = this.readFinishTime - start;
+		}
+	}
+
+	/**
+	 * Waits until this file has been loaded. If the file is being read in the background,
+	 * this waits for the read to finish, and then applies its contents on the calling
+	 * thread. Every accessor of a subclass does this before it uses the data of the file,
+	 * so plugins only need to call this method to control when the wait happens.
+	 */
+	public final void awaitLoad() {
+		this.waitForLoad(Long.MAX_VALUE);
+	}
+
+	/**
+	 * Waits until this file has been loaded, for no longer than the time set by
+	 * {@link #setLoadWaitLimit(long, TimeUnit)}. Every accessor of a subclass that
+	 * supports asynchronous loading must call this method before it uses the data of the
+	 * file.
+	 *
+	 * @throws IllegalStateException if the file is still being read after the time limit.
+	 */
+	protected final void ensureLoaded() {
+		this.waitForLoad(this.loadWaitLimit);
+	}
+
+	/**
+	 * Waits until this file has been loaded, for no longer than the given time.
+	 *
+	 * @param limit the longest time to wait for the background read, in nanoseconds.
+	 * @throws IllegalStateException if the file is still being read after the given time.
+	 */
+	private void waitForLoad(long limit) {
+		Future<Object> load = this.pendingLoad;
+		if (this.loaded || load == null) {
+			return;
+		}
+		Object contents;
+		try {
+			contents = load.get(limit, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while loading " + this.filepath, e);
+		} catch (TimeoutException e) {
+			throw new IllegalStateException("The file is still being loaded: " + this.filepath);
+		} catch (ExecutionException e) {
+			// Passed on to the subclass by readContents
+			contents = null;
+		}
+		synchronized (this.loadLock) {
+			if (this.loaded || this.applying) {
+				return;
+			}
+			this.readContents = contents;
+			long start = System.nanoTime();
+			this.applying = true;
+			try {
+				this.loadFile(this.owner.getLogger(), start);
+			} finally {
+				this.readContents = null;
+				this.applying = false;
+				this.loaded = true;
+			}
+		}
+	}
+
+	/**
+	 * Determines if this file is ready to be used without waiting for the disk. This is
+	 * {@code true} once the file has been read, even if its contents have not yet been
+	 * applied.
+	 *
+	 * @return {@code true} if the file has been read; {@code false} if it is still being
+	 * read.
+	 */
+	public boolean isLoaded() {
+		Future<Object> load = this.pendingLoad;
+		return this.loaded || load == null || load.isDone();
+	}
+
+	/**
+	 * Returns the background read of this file, which completes once the file has been
+	 * read.
+	 *
+	 * @return the background read, or {@code null} if the file was loaded during
+	 * construction.
+	 */
+	public Future<?> getLoadFuture() {
+		return this.pendingLoad;
+	}
+
+	/**
+	 * Sets the longest time that an accessor waits for this file to be read in the
+	 * background. An accessor that waits longer throws an {@code IllegalStateException}
+	 * instead, so a limit of {@code 0} makes accessors fail fast until the file is ready.
+	 * By default, accessors wait as long as necessary.
+	 *
+	 * @param time the longest time to wait.
+	 * @param unit the unit of the time.
+	 */
+	public void setLoadWaitLimit(long time, TimeUnit unit) {
+		this.loadWaitLimit = unit.toNanos(time);
+	}
+
+	/**
+	 * Returns the time spent loading this file, including the time spent reading it in the
+	 * background, in nanoseconds.
+	 *
+	 * @return the time spent loading, or {@code 0} if the file has not been loaded yet.
+	 */
+	public long getLoadNanos() {
+		return this.loadNanos;
+	}
+
+	/**
+	 * Returns the value of {@code System.nanoTime()} when this file finished being read.
+	 *
+	 * @return the time the file was read, or {@code 0} if it has not been read yet.
+	 */
+	public long getReadFinishTime() {
+		return this.readFinishTime;
+	}
+
+	/**
+	 * Returns the time spent saving and closing this file, in nanoseconds.
+	 *
+	 * @return the time spent closing, or {@code 0} if the file has not been closed yet.
+	 */
+	public long getCloseNanos() {
+		return this.closeNanos;
+	}
+
+	/**
+	 * Determines if this file was saved and closed without an error.
+	 *
+	 * @return {@code true} if the file was closed successfully; {@code false} if it has
+	 * not been closed, or if an error occurred.
+	 */
+	public boolean isCloseSucceeded() {
+		return this.closeSucceeded;
+	}
+
+	/**
+	 * Returns the number of bytes that have been read from the disk for this file,
+	 * including every file read after it was loaded.
+	 *
+	 * @return the number of bytes read.
+	 */
+	public long getBytesRead() {
+		return this.bytesRead.get();
+	}
+
+	/**
+	 * Returns the number of bytes that have been written to the disk for this file.
+	 *
+	 * @return the number of bytes written.
+	 */
+	public long getBytesWritten() {
+		return this.bytesWritten.get();
+	}
+
+	/**
+	 * Returns the number of times that this file has been saved, whether in the background
+	 * or when it was closed.
+	 *
+	 * @return the number of saves.
+	 */
+	public long getSaveCount() {
+		return this.saveCount.get();
+	}
+
+	/**
+	 * Returns the total time spent saving this file, in nanoseconds.
+	 *
+	 * @return the time spent saving.
+	 */
+	public long getSaveNanos() {
+		return this.saveNanos.get();
+	}
+
+	/**
+	 * Returns the number of entries in the data of this file, such as the number of
+	 * mappings in a map or the number of elements in a list. By default, this method
+	 * returns {@code -1}.
+	 *
+	 * @return the number of entries, or {@code -1} if the data is not a collection.
+	 */
+	public int getEntryCount() {
+		return -1;
+	}
+
+	/**
+	 * Returns an estimate of the number of bytes of memory that the data of this file
+	 * takes up. This may take time in proportion to the number of entries that are
+	 * sampled, so it should not be called often. By default, this method returns
+	 * {@code -1}.
+	 *
+	 * @return the estimated size of the data in memory, in bytes, or {@code -1} if it is
+	 * not known.
+	 */
+	public long getEstimatedHeapBytes() {
+		return -1;
+	}
+
+	/**
+	 * Returns a snapshot of the load time, save time, disk usage and memory usage of this
+	 * file.
+	 *
+	 * @return the metrics of this file.
+	 */
+	public FileMetrics getMetrics() {
+		return new FileMetrics(this.owner.getName(), this);
+	}
+
+	/**
+	 * Records that the given number of bytes were read from the disk for this file. This
+	 * may be called from any thread.
+	 *
+	 * @param bytes the number of bytes read.
+	 */
+	protected final void recordRead(long bytes) {
+		this.bytesRead.addAndGet(bytes);
+	}
+
+	/**
+	 * Records that the given number of bytes were written to the disk for this file. This
+	 * may be called from any thread.
+	 *
+	 * @param bytes the number of bytes written.
+	 */
+	protected final void recordWrite(long bytes) {
+		this.bytesWritten.addAndGet(bytes);
+	}
+
+	/**
+	 * Records that this file was saved, and how long the save took. This may be called
+	 * from any thread.
+	 *
+	 * @param nanos the time taken by the save, in nanoseconds.
+	 */
+	protected final void recordSave(long nanos) {
+		this.saveCount.incrementAndGet();
+		this.saveNanos.addAndGet(nanos);
+	}
+
+	/**
+	 * Returns the number of bytes that this file takes up on the disk. Subclasses that
+	 * store their data in more than one file should override this method to include every
+	 * file.
+	 *
+	 * @return the size of the file, in bytes.
+	 */
+	public long getStoredBytes() {
+		return this.filepath.length();
+	}
+
+	/**
+	 * Determines if this file can be read on a background thread while the plugin is being
+	 * enabled. A subclass that returns {@code true} must read its file only in
+	 * {@link #readContents()}, which may run before the subclass constructor has finished,
+	 * and must call {@link #ensureLoaded()} in every accessor. By default, this method
+	 * returns {@code false}, and the file is always loaded during construction.
+	 *
+	 * @return {@code true} if the file can be loaded asynchronously; {@code false}
+	 * otherwise.
+	 */
+	protected boolean supportsAsyncLoad() {
+		return false;
+	}
+
+	/**
+	 * Determines if the data of this file is kept in the file itself, so that the file
+	 * should be created if it does not exist. This is called during construction, so it
+	 * must not use any field of the subclass. By default, this method returns
+	 * {@code true}.
+	 *
+	 * @return {@code true} if the file should be created; {@code false} if the data is
+	 * kept elsewhere.
+	 */
+	protected boolean usesOwnFile() {
+		return true;
+	}
+
+	/**
+	 * Reads the contents of the file. When the file is loaded asynchronously, this is run
+	 * on a background thread, and may run before the constructor of the subclass has
+	 * finished, so it must not use any field of the subclass. By default, this method
+	 * returns {@code null}.
+	 *
+	 * @return the contents of the file.
+	 * @throws IOException if the file could not be read.
+	 */
+	protected Object readContents() throws IOException {
+		return null;
+	}
+
+	/**
+	 * Returns the contents of the file, for use by {@link #attemptLoad()}. If the file was
+	 * read in the background, the contents that were read are returned, or the error that
+	 * occurred is thrown; otherwise, the file is read now.
+	 *
+	 * @return the contents of the file.
+	 * @throws IOException if the file could not be read.
+	 */
+	protected final Object getLoadedContents() throws IOException {
+		Future<Object> load = this.pendingLoad;
+		if (load == null) {
+			return this.readContents();
+		}
+		try {
+			load.get();
+			return this.readContents;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while loading " + this.filepath, e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
 	
 	/**
 	 * Safely close the file in order to shut down the server.
@@ -85,10 +549,15 @@ public abstract class PluginDataFile {
 	 * @param outputLog the log to output results to.
 	 */
 	public final void closeFile(Logger outputLog) {
+		this.waitForLoad(Long.MAX_VALUE);
+		long start = System.nanoTime();
 		try {
 			this.attemptClose();
+			this.closeNanos = System.nanoTime() - start;
+			this.closeSucceeded = true;
 			outputLog.info("File successfully saved and closed: " + this.filepath);
 		} catch (IOException e) {
+			this.closeNanos = System.nanoTime() - start;
 			outputLog.warning("Error saving file: " + this.filepath);
 			outputLog.warning("Details below:");
 			e.printStackTrace();
@@ -98,7 +567,8 @@ public abstract class PluginDataFile {
 	/**
 	 * Attempt to load the file. Subclass implementations of this method
 	 * should always call {@code super.attemptLoad()} before their own
-	 * procedures.
+	 * procedures. When the file is loaded asynchronously, this is called
+	 * after the file has been read, by the first thread that waits for it.
 	 *
 	 * @throws IOException
 	 */
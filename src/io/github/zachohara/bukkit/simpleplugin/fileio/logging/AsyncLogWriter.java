@@ -0,0 +1,507 @@
+/* Copyright (C) 2017 Zach Ohara
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.zachohara.bukkit.simpleplugin.fileio.logging;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.github.zachohara.bukkit.simpleplugin.fileio.FileExecutor;
+
+/**
+ * An {@code AsyncLogWriter} writes the lines of a {@code PluginLogFile} on a background
+ * thread. Callers place each line in a bounded ring buffer without taking a lock, and a
+ * single writer thread removes them in order, formats them, and writes them to the file in
+ * batches. A batch is written when it holds enough lines, when its oldest line has waited
+ * for the flush interval, or when a flush is requested.
+ *
+ * @author Zach Ohara
+ */
+class AsyncLogWriter {
+
+	/**
+	 * The number of nanoseconds that a caller waits before checking again for room in a
+	 * full buffer, when the overflow policy is {@code BLOCK}.
+	 */
+	private static final long BLOCK_WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+	/**
+	 * The factory that creates the writer threads.
+	 */
+	private static final ThreadFactory THREAD_FACTORY =
+			FileExecutor.newThreadFactory("SimplePlugin Log Writer");
+
+	/**
+	 * The log file that owns this writer.
+	 */
+	private final PluginLogFile log;
+
+	/**
+	 * The channel that lines are written to.
+	 */
+	private final FileChannel channel;
+
+	/**
+	 * The logger that write errors are reported to.
+	 */
+	private final Logger logger;
+
+	/**
+	 * The sequence number that each slot of the buffer expects next. A slot is ready to be
+	 * written by a caller when its sequence equals the caller's position, and is ready to be
+	 * read by the writer thread when its sequence is one greater than the writer's position.
+	 */
+	private final AtomicLongArray sequences;
+
+	/**
+	 * The time at which each buffered line was logged, in milliseconds since the epoch.
+	 */
+	private final long[] times;
+
+	/**
+	 * The text of each buffered line.
+	 */
+	private final String[] messages;
+
+	/**
+	 * The mask that turns a position into an index in the buffer.
+	 */
+	private final int mask;
+
+	/**
+	 * The position at which the next line will be placed in the buffer.
+	 */
+	private final AtomicLong tail;
+
+	/**
+	 * The position of the next line that the writer thread will remove from the buffer.
+	 * This is only changed by the writer thread.
+	 */
+	private volatile long head;
+
+	/**
+	 * The position up to which every line has been written to the file.
+	 */
+	private volatile long written;
+
+	/**
+	 * The position up to which a caller is waiting for lines to be written.
+	 */
+	private volatile long flushTarget;
+
+	/**
+	 * Guards waiting for lines to be written.
+	 */
+	private final Object flushLock;
+
+	/**
+	 * The number of lines that were discarded because the buffer was full.
+	 */
+	private final AtomicLong droppedCount;
+
+	/**
+	 * The number of discarded lines that have not been reported in the file yet.
+	 */
+	private final AtomicLong unreportedCount;
+
+	/**
+	 * The thread that writes lines to the file.
+	 */
+	private final Thread thread;
+
+	/**
+	 * Whether the writer thread may be parked waiting for more lines.
+	 */
+	private volatile boolean waiting;
+
+	/**
+	 * Whether this writer is closing, so the writer thread should write every remaining line
+	 * and stop.
+	 */
+	private volatile boolean closing;
+
+	/**
+	 * The first error encountered while writing, or {@code null} if there has been none.
+	 */
+	private volatile IOException error;
+
+	/**
+	 * Constructs and starts a new {@code AsyncLogWriter}.
+	 *
+	 * @param log the log file that owns the writer.
+	 * @param channel the channel to write lines to.
+	 * @param capacity the number of lines that the buffer can hold. This is rounded up to a
+	 * power of two.
+	 * @param logger the logger to report write errors to.
+	 */
+	public AsyncLogWriter(PluginLogFile log, FileChannel channel, int capacity, Logger logger) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		this.log = log;
+		this.channel = channel;
+		this.logger = logger;
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			this.sequences.set(i, i);
+		}
+		this.times = new long[size];
+		this.messages = new String[size];
+		this.mask = size - 1;
+		this.tail = new AtomicLong();
+		this.flushLock = new Object();
+		this.droppedCount = new AtomicLong();
+		this.unreportedCount = new AtomicLong();
+		this.thread = AsyncLogWriter.THREAD_FACTORY.newThread(new Runnable() {
+
+			@Override
+			public void run() {
+				AsyncLogWriter.this.writeLines();
+			}
+
+		});
+		this.thread.start();
+	}
+
+	/**
+	 * Places a line in the buffer to be written. If the buffer is full, the overflow policy
+	 * of the log file decides whether the caller waits for room or the line is discarded.
+	 * <p>
+	 * A line that is logged while this writer is being closed may arrive after the writer
+	 * thread has written its last batch. The caller then waits for the writer thread to
+	 * stop, and writes the line to the file itself, so that the line is neither lost nor
+	 * written before the lines that were buffered ahead of it.
+	 *
+	 * @param time the time at which the line was logged, in milliseconds since the epoch.
+	 * @param message the text of the line.
+	 * @return {@code true} if the line was placed in the buffer or written, or
+	 * {@code false} if it was discarded.
+	 */
+	public boolean append(long time, String message) {
+		long position;
+		while ((position = this.offer(time, message)) < 0) {
+			if (this.closing) {
+				this.awaitStopped();
+				this.log.writeLine(time, message);
+				return true;
+			}
+			PluginLogFile.OverflowPolicy policy = this.log.getOverflowPolicy();
+			if (policy != PluginLogFile.OverflowPolicy.BLOCK) {
+				this.droppedCount.incrementAndGet();
+				if (policy == PluginLogFile.OverflowPolicy.COUNT) {
+					this.unreportedCount.incrementAndGet();
+				}
+				return false;
+			}
+			LockSupport.unpark(this.thread);
+			LockSupport.parkNanos(this, AsyncLogWriter.BLOCK_WAIT_NANOS);
+		}
+		if (this.closing) {
+			// The writer thread only stops once it has removed every line claimed before it
+			// last read the tail, so any line at or after its final head was never written
+			this.awaitStopped();
+			if (position >= this.head) {
+				this.log.writeLine(time, message);
+			}
+			return true;
+		}
+		if (this.waiting && this.tail.get() - this.head >= this.log.getBatchSize()) {
+			LockSupport.unpark(this.thread);
+		}
+		return true;
+	}
+
+	/**
+	 * Attempts to place a line in the buffer without waiting.
+	 *
+	 * @param time the time at which the line was logged.
+	 * @param message the text of the line.
+	 * @return the position of the line in the buffer, or {@code -1} if the buffer was
+	 * full.
+	 */
+	private long offer(long time, String message) {
+		while (true) {
+			long position = this.tail.get();
+			int index = (int) position & this.mask;
+			long difference = this.sequences.get(index) - position;
+			if (difference == 0) {
+				if (this.tail.compareAndSet(position, position + 1)) {
+					this.times[index] = time;
+					this.messages[index] = message;
+					// Publishes the line to the writer thread
+					this.sequences.set(index, position + 1);
+					return position;
+				}
+			} else if (difference < 0) {
+				return -1;
+			}
+		}
+	}
+
+	/**
+	 * Waits until every line that was placed in the buffer before this call has been
+	 * written to the file.
+	 *
+	 * @throws IOException if a line could not be written.
+	 */
+	public void flush() throws IOException {
+		long target = this.tail.get();
+		synchronized (this.flushLock) {
+			if (target > this.flushTarget) {
+				this.flushTarget = target;
+			}
+		}
+		LockSupport.unpark(this.thread);
+		this.awaitWritten(target);
+	}
+
+	/**
+	 * Writes every line that remains in the buffer, in order, and stops the writer thread.
+	 * The channel is not closed.
+	 *
+	 * @throws IOException if a line could not be written.
+	 */
+	public void close() throws IOException {
+		this.closing = true;
+		LockSupport.unpark(this.thread);
+		this.awaitStopped();
+		if (this.error != null) {
+			throw this.error;
+		}
+	}
+
+	/**
+	 * Waits until the writer thread has stopped. This must only be called once this writer
+	 * is closing.
+	 */
+	private void awaitStopped() {
+		boolean interrupted = false;
+		while (this.thread.isAlive()) {
+			try {
+				this.thread.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Returns the number of lines that were discarded because the buffer was full.
+	 *
+	 * @return the number of discarded lines.
+	 */
+	public long getDroppedCount() {
+		return this.droppedCount.get();
+	}
+
+	/**
+	 * Returns the number of lines that are waiting in the buffer.
+	 *
+	 * @return the number of buffered lines.
+	 */
+	public int getPendingCount() {
+		return (int) Math.max(0, this.tail.get() - this.head);
+	}
+
+	/**
+	 * Waits until every line before the given position has been written, or the writer
+	 * thread has stopped.
+	 *
+	 * @param target the position to wait for.
+	 * @throws IOException if a line could not be written.
+	 */
+	private void awaitWritten(long target) throws IOException {
+		boolean interrupted = false;
+		synchronized (this.flushLock) {
+			while (this.written < target && this.thread.isAlive()) {
+				try {
+					this.flushLock.wait(100);
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		if (this.error != null) {
+			throw this.error;
+		}
+	}
+
+	/**
+	 * Removes lines from the buffer and writes them to the file until this writer is
+	 * closed. This is run by the writer thread.
+	 */
+	private void writeLines() {
+		StringBuilder batch = new StringBuilder();
+		LineFormatter formatter = new LineFormatter();
+		int batchLines = 0;
+		long batchStart = 0;
+		while (true) {
+			boolean closing = this.closing;
+			long unreported = this.unreportedCount.getAndSet(0);
+			if (unreported > 0) {
+				formatter.append(batch, System.currentTimeMillis(), unreported
+						+ " log lines were dropped because the log buffer was full");
+				batchLines++;
+			}
+			int removed = this.removeLines(batch, formatter);
+			if (batchLines == 0 && (removed > 0 || unreported > 0)) {
+				batchStart = System.nanoTime();
+			}
+			batchLines += removed;
+			long position = this.head;
+			long intervalNanos = TimeUnit.MILLISECONDS.toNanos(this.log.getFlushInterval());
+			boolean flushDue = position >= this.flushTarget && this.flushTarget > this.written;
+			if (closing || flushDue || batchLines >= this.log.getBatchSize()
+					|| (batchLines > 0 && System.nanoTime() - batchStart >= intervalNanos)) {
+				if (batchLines > 0) {
+					this.writeBatch(batch);
+					batch.setLength(0);
+					batchLines = 0;
+				}
+				synchronized (this.flushLock) {
+					this.written = position;
+					this.flushLock.notifyAll();
+				}
+			}
+			if (closing && position == this.tail.get() && this.unreportedCount.get() == 0) {
+				return;
+			}
+			if (removed == 0) {
+				if (position != this.tail.get()) {
+					// A caller has claimed a slot but has not filled it yet
+					Thread.yield();
+					continue;
+				}
+				long waitNanos = intervalNanos;
+				if (batchLines > 0) {
+					waitNanos = Math.max(1, batchStart + intervalNanos - System.nanoTime());
+				}
+				this.waiting = true;
+				if (this.head == this.tail.get() && !this.closing
+						&& this.flushTarget <= this.written) {
+					LockSupport.parkNanos(this, waitNanos);
+				}
+				this.waiting = false;
+			}
+		}
+	}
+
+	/**
+	 * Removes every line that is ready from the buffer, and appends it to the given batch.
+	 *
+	 * @param batch the batch to append lines to.
+	 * @param formatter the formatter for the lines.
+	 * @return the number of lines removed.
+	 */
+	private int removeLines(StringBuilder batch, LineFormatter formatter) {
+		long position = this.head;
+		int removed = 0;
+		while (true) {
+			int index = (int) position & this.mask;
+			if (this.sequences.get(index) != position + 1) {
+				break;
+			}
+			formatter.append(batch, this.times[index], this.messages[index]);
+			this.messages[index] = null;
+			// Hands the slot back to the callers for the next pass around the buffer
+			this.sequences.set(index, position + this.mask + 1);
+			position++;
+			removed++;
+		}
+		this.head = position;
+		return removed;
+	}
+
+	/**
+	 * Writes a batch of formatted lines to the file. If the batch cannot be written, the
+	 * error is reported and kept, and the lines are discarded.
+	 *
+	 * @param batch the lines to write.
+	 */
+	private void writeBatch(StringBuilder batch) {
+		ByteBuffer bytes = StandardCharsets.UTF_8.encode(CharBuffer.wrap(batch));
+		int length = bytes.remaining();
+		try {
+			while (bytes.hasRemaining()) {
+				this.channel.write(bytes);
+			}
+			this.log.linesWritten(length);
+		} catch (IOException e) {
+			if (this.error == null) {
+				this.error = e;
+				this.logger.log(Level.WARNING, "Error writing to log file: " + this.log, e);
+			}
+		}
+	}
+
+	/**
+	 * A {@code LineFormatter} adds timestamps to the lines of a log. It is only used by one
+	 * thread, and reuses the timestamp of the previous line when it falls in the same
+	 * second.
+	 */
+	private static class LineFormatter {
+
+		/**
+		 * The second of the previous timestamp, or {@code Long.MIN_VALUE} if there has been
+		 * none.
+		 */
+		private long second;
+
+		/**
+		 * The previous timestamp.
+		 */
+		private String timestamp;
+
+		/**
+		 * Constructs a new {@code LineFormatter}.
+		 */
+		public LineFormatter() {
+			this.second = Long.MIN_VALUE;
+		}
+
+		/**
+		 * Appends a line of the log to the given batch.
+		 *
+		 * @param batch the batch to append to.
+		 * @param time the time at which the line was logged.
+		 * @param message the text of the line.
+		 */
+		public void append(StringBuilder batch, long time, String message) {
+			long lineSecond = Math.floorDiv(time, 1000);
+			if (lineSecond != this.second) {
+				this.second = lineSecond;
+				this.timestamp = PluginLogFile.formatTimestamp(time);
+			}
+			batch.append(this.timestamp).append(' ').append(message).append(PluginLogFile.LINE_END);
+		}
+
+	}
+
+}
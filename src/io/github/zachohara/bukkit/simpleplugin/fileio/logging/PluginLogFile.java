@@ -16,44 +16,414 @@
 
 package io.github.zachohara.bukkit.simpleplugin.fileio.logging;
 
-import java.io.FileWriter;
 import java.io.IOException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.logging.Level;
 
 import io.github.zachohara.bukkit.simpleplugin.fileio.PluginDataFile;
 import io.github.zachohara.bukkit.simpleplugin.plugin.SimplePlugin;
 
+/**
+ * A {@code PluginLogFile} is a text file that timestamped lines are appended to.
+ * <p>
+ * By default, each line is written to the file by the thread that logs it. A log that is
+ * written often can instead use asynchronous writing, so that logging a line only places
+ * it in a buffer, and a background thread writes the buffered lines to the file in
+ * batches.
+ *
+ * @author Zach Ohara
+ */
 public class PluginLogFile extends PluginDataFile {
-	
-	private FileWriter writer;
-	
-	private static DateFormat timestampFormat = new SimpleDateFormat("[dd/MM/yy HH:mm:ss]");
-	
+
+	/**
+	 * The default number of lines that the buffer of an asynchronous log can hold.
+	 */
+	public static final int DEFAULT_BUFFER_CAPACITY = 8192;
+
+	/**
+	 * The default number of buffered lines that causes an asynchronous log to write to
+	 * the file.
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 256;
+
+	/**
+	 * The default number of milliseconds that a line of an asynchronous log may wait in
+	 * the buffer before it is written to the file.
+	 */
+	public static final long DEFAULT_FLUSH_INTERVAL = 200;
+
+	/**
+	 * The characters that end each line of the log.
+	 */
+	static final String LINE_END = "\r\n";
+
+	/**
+	 * The format of the timestamp at the start of each line. Unlike a
+	 * {@code SimpleDateFormat}, this can be shared between threads.
+	 */
+	private static final DateTimeFormatter TIMESTAMP_FORMAT =
+			DateTimeFormatter.ofPattern("'['dd/MM/yy HH:mm:ss']'");
+
+	/**
+	 * The channel that lines are written to. This is set while the file is loaded, which
+	 * may happen before the fields of this class are initialized, so it has no initial
+	 * value.
+	 */
+	private FileChannel channel;
+
+	/**
+	 * The writer that writes buffered lines in the background, or {@code null} if lines
+	 * are written by the threads that log them.
+	 */
+	private volatile AsyncLogWriter asyncWriter;
+
+	/**
+	 * The number of lines that the buffer of an asynchronous writer can hold.
+	 */
+	private volatile int bufferCapacity;
+
+	/**
+	 * The number of buffered lines that causes them to be written to the file.
+	 */
+	private volatile int batchSize;
+
+	/**
+	 * The number of milliseconds that a buffered line may wait before it is written.
+	 */
+	private volatile long flushInterval;
+
+	/**
+	 * What happens to a line that is logged while the buffer is full.
+	 */
+	private volatile OverflowPolicy overflowPolicy;
+
+	/**
+	 * The number of lines that were discarded by writers that have since been closed.
+	 */
+	private long closedDroppedCount;
+
+	/**
+	 * Constructs a new {@code PluginLogFile}.
+	 *
+	 * @param owner the plugin that owns the log.
+	 * @param filename the name of the file, relative to the plugin's data folder.
+	 */
 	public PluginLogFile(SimplePlugin owner, String filename) {
 		super(owner, filename);
+		this.bufferCapacity = PluginLogFile.DEFAULT_BUFFER_CAPACITY;
+		this.batchSize = PluginLogFile.DEFAULT_BATCH_SIZE;
+		this.flushInterval = PluginLogFile.DEFAULT_FLUSH_INTERVAL;
+		this.overflowPolicy = OverflowPolicy.BLOCK;
 	}
-	
+
+	/**
+	 * Appends a line to the log, starting with the current time. If the log uses
+	 * asynchronous writing, the line is written later by a background thread.
+	 *
+	 * @param message the text of the line.
+	 */
 	public void logInfo(String message) {
-		String line = PluginLogFile.timestampFormat.format(new Date()) + " " + message + "\r\n";
+		this.ensureLoaded();
+		long time = System.currentTimeMillis();
+		AsyncLogWriter writer = this.asyncWriter;
+		if (writer != null) {
+			writer.append(time, message);
+		} else {
+			this.writeLine(time, message);
+		}
+	}
+
+	/**
+	 * Writes a line to the file on the calling thread. This is used when the log does not
+	 * use asynchronous writing, and for lines that arrive while the background writer is
+	 * being stopped.
+	 *
+	 * @param time the time at which the line was logged, in milliseconds since the epoch.
+	 * @param message the text of the line.
+	 */
+	void writeLine(long time, String message) {
+		String line = PluginLogFile.formatTimestamp(time) + " " + message + PluginLogFile.LINE_END;
+		ByteBuffer bytes = StandardCharsets.UTF_8.encode(line);
+		int length = bytes.remaining();
 		try {
-			this.writer.append(line);
+			synchronized (this.channel) {
+				while (bytes.hasRemaining()) {
+					this.channel.write(bytes);
+				}
+			}
+			this.recordWrite(length);
 		} catch (IOException e) {
-			e.printStackTrace();
+			this.getOwner().getLogger().log(Level.WARNING, "Error writing to log file: " + this, e);
+		}
+	}
+
+	/**
+	 * Sets whether this log writes its lines on a background thread. Logging a line then
+	 * only places it in a bounded buffer without taking a lock, and a single background
+	 * thread writes the buffered lines to the file in order, in batches. A batch is written
+	 * when it reaches the batch size, when its oldest line has waited for the flush
+	 * interval, when {@link #flush()} is called, and when the file is closed.
+	 * <p>
+	 * This should be set before the log is shared with other threads. Turning it off writes
+	 * every buffered line and stops the background thread. Lines that have not been written
+	 * yet are lost if the server crashes.
+	 *
+	 * @param useAsyncWriting {@code true} if lines should be written on a background
+	 * thread; {@code false} otherwise.
+	 */
+	public synchronized void useAsyncWriting(boolean useAsyncWriting) {
+		this.ensureLoaded();
+		if (useAsyncWriting && this.asyncWriter == null) {
+			this.asyncWriter = new AsyncLogWriter(this, this.channel, this.bufferCapacity,
+					this.getOwner().getLogger());
+		} else if (!useAsyncWriting && this.asyncWriter != null) {
+			try {
+				this.stopAsyncWriter();
+			} catch (IOException e) {
+				this.getOwner().getLogger().log(Level.WARNING,
+						"Error writing to log file: " + this, e);
+			}
+		}
+	}
+
+	/**
+	 * Returns whether this log writes its lines on a background thread.
+	 *
+	 * @return {@code true} if lines are written on a background thread; {@code false}
+	 * otherwise.
+	 * @see #useAsyncWriting(boolean)
+	 */
+	public boolean getUseAsyncWriting() {
+		return this.asyncWriter != null;
+	}
+
+	/**
+	 * Sets the number of lines that the buffer can hold when this log uses asynchronous
+	 * writing. The capacity is rounded up to a power of two, and takes effect the next
+	 * time asynchronous writing is turned on.
+	 *
+	 * @param capacity the number of lines that the buffer can hold.
+	 */
+	public void setBufferCapacity(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("The buffer must hold at least one line");
 		}
+		this.bufferCapacity = capacity;
 	}
-	
+
+	/**
+	 * Returns the number of lines that the buffer can hold when this log uses asynchronous
+	 * writing.
+	 *
+	 * @return the capacity of the buffer.
+	 */
+	public int getBufferCapacity() {
+		return this.bufferCapacity;
+	}
+
+	/**
+	 * Sets the number of buffered lines that causes them to be written to the file when
+	 * this log uses asynchronous writing. Larger batches need fewer writes, but keep more
+	 * lines in memory.
+	 *
+	 * @param batchSize the number of lines in a batch.
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("A batch must hold at least one line");
+		}
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Returns the number of buffered lines that causes them to be written to the file.
+	 *
+	 * @return the number of lines in a batch.
+	 */
+	public int getBatchSize() {
+		return this.batchSize;
+	}
+
+	/**
+	 * Sets the number of milliseconds that a line may wait in the buffer before it is
+	 * written to the file, when this log uses asynchronous writing. A longer interval
+	 * lets more lines share a single write, but more lines may be lost if the server
+	 * crashes.
+	 *
+	 * @param millis the flush interval, in milliseconds.
+	 */
+	public void setFlushInterval(long millis) {
+		if (millis < 1) {
+			throw new IllegalArgumentException("The flush interval must be positive");
+		}
+		this.flushInterval = millis;
+	}
+
+	/**
+	 * Returns the number of milliseconds that a line may wait in the buffer before it is
+	 * written to the file.
+	 *
+	 * @return the flush interval, in milliseconds.
+	 */
+	public long getFlushInterval() {
+		return this.flushInterval;
+	}
+
+	/**
+	 * Sets what happens to a line that is logged while the buffer is full, when this log
+	 * uses asynchronous writing.
+	 *
+	 * @param overflowPolicy the overflow policy.
+	 */
+	public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		if (overflowPolicy == null) {
+			throw new NullPointerException();
+		}
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	/**
+	 * Returns what happens to a line that is logged while the buffer is full.
+	 *
+	 * @return the overflow policy.
+	 */
+	public OverflowPolicy getOverflowPolicy() {
+		return this.overflowPolicy;
+	}
+
+	/**
+	 * Returns the number of lines that were discarded because the buffer was full.
+	 *
+	 * @return the number of discarded lines.
+	 */
+	public synchronized long getDroppedCount() {
+		AsyncLogWriter writer = this.asyncWriter;
+		return this.closedDroppedCount + (writer == null ? 0 : writer.getDroppedCount());
+	}
+
+	/**
+	 * Returns the number of lines that are waiting in the buffer to be written.
+	 *
+	 * @return the number of buffered lines, or {@code 0} if this log does not use
+	 * asynchronous writing.
+	 */
+	public int getPendingCount() {
+		AsyncLogWriter writer = this.asyncWriter;
+		return writer == null ? 0 : writer.getPendingCount();
+	}
+
+	/**
+	 * Waits until every line that was logged before this call has been written to the
+	 * file. This returns immediately if this log does not use asynchronous writing.
+	 *
+	 * @throws IOException if a line could not be written.
+	 */
+	public void flush() throws IOException {
+		AsyncLogWriter writer = this.asyncWriter;
+		if (writer != null) {
+			writer.flush();
+		}
+	}
+
+	/**
+	 * Records that the background writer has written some bytes to the file.
+	 *
+	 * @param bytes the number of bytes written.
+	 */
+	void linesWritten(long bytes) {
+		this.recordWrite(bytes);
+	}
+
+	/**
+	 * Writes every buffered line and stops the background writer.
+	 *
+	 * @throws IOException if a line could not be written.
+	 */
+	private synchronized void stopAsyncWriter() throws IOException {
+		AsyncLogWriter writer = this.asyncWriter;
+		if (writer != null) {
+			this.asyncWriter = null;
+			try {
+				writer.close();
+			} finally {
+				this.closedDroppedCount += writer.getDroppedCount();
+			}
+		}
+	}
+
+	@Override
+	protected boolean supportsAsyncLoad() {
+		return true;
+	}
+
 	@Override
 	protected void attemptLoad() throws IOException {
 		super.attemptLoad();
-		this.writer = new FileWriter(this.getFile(), true);
+		this.channel = FileChannel.open(this.getFile().toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND);
 	}
-	
+
+	/**
+	 * Writes every buffered line in the order it was logged, and closes the file. Closing
+	 * a log that is already closed has no effect.
+	 *
+	 * @throws IOException if a line could not be written or the file could not be closed.
+	 */
 	@Override
 	protected void attemptClose() throws IOException {
-		this.writer.close();
+		if (this.channel.isOpen()) {
+			try {
+				this.stopAsyncWriter();
+				this.channel.force(false);
+			} finally {
+				this.channel.close();
+			}
+		}
 		super.attemptClose();
 	}
-	
+
+	/**
+	 * Formats the timestamp at the start of a line.
+	 *
+	 * @param time the time at which the line was logged, in milliseconds since the epoch.
+	 * @return the timestamp.
+	 */
+	static String formatTimestamp(long time) {
+		return PluginLogFile.TIMESTAMP_FORMAT.format(
+				Instant.ofEpochMilli(time).atZone(ZoneId.systemDefault()));
+	}
+
+	/**
+	 * An {@code OverflowPolicy} decides what happens to a line that is logged while the
+	 * buffer of an asynchronous log is full.
+	 */
+	public static enum OverflowPolicy {
+
+		/**
+		 * The logging thread waits until the background thread makes room for the line.
+		 * No lines are lost, but a thread that logs faster than the disk can write is
+		 * slowed down.
+		 */
+		BLOCK,
+
+		/**
+		 * The line is discarded. The number of discarded lines is available from
+		 * {@link PluginLogFile#getDroppedCount()}.
+		 */
+		DROP,
+
+		/**
+		 * The line is discarded, and the log records how many lines were discarded in a
+		 * line of its own once there is room again, so the gap is visible in the file.
+		 */
+		COUNT;
+
+	}
+
 }
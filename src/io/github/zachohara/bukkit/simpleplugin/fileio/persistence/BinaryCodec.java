@@ -0,0 +1,984 @@
+/* Copyright (C) 2017 Zach Ohara
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.zachohara.bukkit.simpleplugin.fileio.persistence;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+
+import io.github.zachohara.bukkit.simpleplugin.serializable.SerializableLocation;
+
+/**
+ * The {@code BinaryCodec} stores payloads in a compact binary format. Common types are
+ * written directly: {@code null}, booleans, numbers, characters, strings, UUIDs, byte
+ * arrays, {@code SerializableLocation}s, and the standard list, set and map classes.
+ * Integers, longs, and all sizes are written as variable-length numbers, so small values
+ * take a single byte.
+ * <p>
+ * When every element of a collection (or every key or value of a map) has the same type,
+ * the type is written once for the whole collection instead of once per element. Any
+ * other object is written with Java's standard serialization, so every
+ * {@code Serializable} object can still be stored.
+ * <p>
+ * Every value is written on its own, so that each element can be read without the rest
+ * of the payload. An object that is referenced more than once in a payload is therefore
+ * written once for each reference, and is read back as separate copies that no longer
+ * share changes. This applies both to the objects that are written with Java's
+ * serialization and to the lists, sets and maps written by this codec. A payload that
+ * relies on shared references should be written with the
+ * {@link JavaSerializationCodec}, which keeps them.
+ *
+ * @author Zach Ohara
+ */
+public class BinaryCodec implements PayloadCodec {
+
+	/**
+	 * The identifier of this codec.
+	 */
+	public static final byte ID = 2;
+
+	/**
+	 * The shared instance of this codec.
+	 */
+	public static final BinaryCodec INSTANCE = new BinaryCodec();
+
+	// @formatter:off
+	private static final int NULL = 0;
+	private static final int BOOLEAN = 1;
+	private static final int BYTE = 2;
+	private static final int SHORT = 3;
+	private static final int INT = 4;
+	private static final int LONG = 5;
+	private static final int FLOAT = 6;
+	private static final int DOUBLE = 7;
+	private static final int CHAR = 8;
+	private static final int STRING = 9;
+	private static final int UUID_TYPE = 10;
+	private static final int LOCATION = 11;
+	private static final int BYTE_ARRAY = 12;
+	private static final int ARRAY_LIST = 13;
+	private static final int LINKED_LIST = 14;
+	private static final int HASH_SET = 15;
+	private static final int LINKED_HASH_SET = 16;
+	private static final int TREE_SET = 17;
+	private static final int HASH_MAP = 18;
+	private static final int LINKED_HASH_MAP = 19;
+	private static final int TREE_MAP = 20;
+	private static final int SERIALIZED = 21;
+	private static final int UUID_KEYED_MAP = 22;
+	private static final int MIXED = 127;
+	// @formatter:on
+
+	/**
+	 * The codec that reads objects that were written with Java's standard serialization.
+	 */
+	private final JavaSerializationCodec serialization;
+
+	/**
+	 * The number of bytes used for the size of a map that is written by
+	 * {@link #writeMapStart(DataOutputStream, boolean)}.
+	 */
+	public static final int STREAMED_SIZE_BYTES = 5;
+
+	/**
+	 * Constructs a new {@code BinaryCodec}.
+	 */
+	public BinaryCodec() {
+		this(JavaSerializationCodec.INSTANCE);
+	}
+
+	/**
+	 * Constructs a new {@code BinaryCodec} that reads objects written with Java's
+	 * standard serialization with the given codec, which may use legacy classes.
+	 *
+	 * @param serialization the codec to read serialized objects with.
+	 */
+	public BinaryCodec(JavaSerializationCodec serialization) {
+		this.serialization = serialization;
+	}
+
+	@Override
+	public byte getId() {
+		return BinaryCodec.ID;
+	}
+
+	@Override
+	public void encode(Object value, OutputStream out) throws IOException {
+		DataOutputStream dataOut = new DataOutputStream(out);
+		this.writeValue(dataOut, value);
+		dataOut.flush();
+	}
+
+	@Override
+	public Object decode(InputStream in) throws IOException {
+		return this.readValue(new DataInputStream(in));
+	}
+
+	/**
+	 * Writes the given object, preceded by its type.
+	 *
+	 * @param out the stream to write to.
+	 * @param value the object to write.
+	 * @throws IOException if the object could not be written.
+	 */
+	public void writeValue(DataOutputStream out, Object value) throws IOException {
+		int type = BinaryCodec.typeOf(value);
+		out.writeByte(type);
+		this.writeBody(out, type, value);
+	}
+
+	/**
+	 * Reads an object that was written by {@link #writeValue(DataOutputStream, Object)}.
+	 *
+	 * @param in the stream to read from.
+	 * @return the object that was read.
+	 * @throws IOException if the object could not be read.
+	 */
+	public Object readValue(DataInputStream in) throws IOException {
+		return this.readBody(in, in.readUnsignedByte());
+	}
+
+	/**
+	 * Writes the given object without its type.
+	 *
+	 * @param out the stream to write to.
+	 * @param type the type of the object.
+	 * @param value the object to write.
+	 * @throws IOException if the object could not be written.
+	 */
+	private void writeBody(DataOutputStream out, int type, Object value) throws IOException {
+		switch (type) {
+			case NULL:
+				break;
+			case BOOLEAN:
+				out.writeBoolean((Boolean) value);
+				break;
+			case BYTE:
+				out.writeByte((Byte) value);
+				break;
+			case SHORT:
+				out.writeShort((Short) value);
+				break;
+			case INT:
+				BinaryCodec.writeVarLong(out, BinaryCodec.zigzag((Integer) value));
+				break;
+			case LONG:
+				BinaryCodec.writeVarLong(out, BinaryCodec.zigzag((Long) value));
+				break;
+			case FLOAT:
+				out.writeFloat((Float) value);
+				break;
+			case DOUBLE:
+				out.writeDouble((Double) value);
+				break;
+			case CHAR:
+				out.writeChar((Character) value);
+				break;
+			case STRING:
+				BinaryCodec.writeString(out, (String) value);
+				break;
+			case UUID_TYPE:
+				BinaryCodec.writeUUID(out, (UUID) value);
+				break;
+			case LOCATION:
+				this.writeLocation(out, (SerializableLocation) value);
+				break;
+			case BYTE_ARRAY:
+				byte[] bytes = (byte[]) value;
+				BinaryCodec.writeVarLong(out, bytes.length);
+				out.write(bytes);
+				break;
+			case ARRAY_LIST:
+			case LINKED_LIST:
+			case HASH_SET:
+			case LINKED_HASH_SET:
+			case TREE_SET:
+				this.writeCollection(out, (Collection<?>) value);
+				break;
+			case HASH_MAP:
+			case LINKED_HASH_MAP:
+			case TREE_MAP:
+				this.writeMap(out, (Map<?, ?>) value);
+				break;
+			case UUID_KEYED_MAP:
+				this.writeUUIDKeyedMap(out, (UUIDKeyedMap<?>) value);
+				break;
+			default:
+				byte[] serialized = BinaryCodec.serialize(value);
+				BinaryCodec.writeVarLong(out, serialized.length);
+				out.write(serialized);
+				break;
+		}
+	}
+
+	/**
+	 * Reads an object of the given type.
+	 *
+	 * @param in the stream to read from.
+	 * @param type the type of the object.
+	 * @return the object that was read.
+	 * @throws IOException if the object could not be read.
+	 */
+	private Object readBody(DataInputStream in, int type) throws IOException {
+		switch (type) {
+			case NULL:
+				return null;
+			case BOOLEAN:
+				return in.readBoolean();
+			case BYTE:
+				return in.readByte();
+			case SHORT:
+				return in.readShort();
+			case INT:
+				return (int) BinaryCodec.unzigzag(BinaryCodec.readVarLong(in));
+			case LONG:
+				return BinaryCodec.unzigzag(BinaryCodec.readVarLong(in));
+			case FLOAT:
+				return in.readFloat();
+			case DOUBLE:
+				return in.readDouble();
+			case CHAR:
+				return in.readChar();
+			case STRING:
+				return BinaryCodec.readString(in);
+			case UUID_TYPE:
+				return BinaryCodec.readUUID(in);
+			case LOCATION:
+				return this.readLocation(in);
+			case BYTE_ARRAY:
+				byte[] bytes = new byte[BinaryCodec.readLength(in)];
+				in.readFully(bytes);
+				return bytes;
+			case ARRAY_LIST: {
+				int size = BinaryCodec.readLength(in);
+				return this.readElements(in, size, new ArrayList<Object>(size));
+			}
+			case LINKED_LIST:
+				return this.readElements(in, BinaryCodec.readLength(in), new LinkedList<Object>());
+			case HASH_SET: {
+				int size = BinaryCodec.readLength(in);
+				return this.readElements(in, size, new HashSet<Object>(BinaryCodec.capacityFor(size)));
+			}
+			case LINKED_HASH_SET: {
+				int size = BinaryCodec.readLength(in);
+				return this.readElements(in, size,
+						new LinkedHashSet<Object>(BinaryCodec.capacityFor(size)));
+			}
+			case TREE_SET:
+				return this.readElements(in, BinaryCodec.readLength(in), new TreeSet<Object>());
+			case HASH_MAP: {
+				int size = BinaryCodec.readLength(in);
+				return this.readEntries(in, size,
+						new HashMap<Object, Object>(BinaryCodec.capacityFor(size)));
+			}
+			case LINKED_HASH_MAP: {
+				int size = BinaryCodec.readLength(in);
+				return this.readEntries(in, size,
+						new LinkedHashMap<Object, Object>(BinaryCodec.capacityFor(size)));
+			}
+			case TREE_MAP:
+				return this.readEntries(in, BinaryCodec.readLength(in), new TreeMap<Object, Object>());
+			case UUID_KEYED_MAP: {
+				int size = BinaryCodec.readLength(in);
+				final UUIDKeyedMap<Object> map = new UUIDKeyedMap<Object>(size);
+				this.readUUIDKeyedEntries(in, size, new EntryVisitor() {
+
+					@Override
+					public void visit(Object key, Object value) {
+						UUID uuid = (UUID) key;
+						map.put(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), value);
+					}
+
+				});
+				return map;
+			}
+			case SERIALIZED:
+				byte[] serialized = new byte[BinaryCodec.readLength(in)];
+				in.readFully(serialized);
+				return this.deserialize(serialized);
+			default:
+				throw new IOException("Unknown type in binary data: " + type);
+		}
+	}
+
+	/**
+	 * Writes the elements of a collection. If every element has the same type, the type
+	 * is written only once.
+	 *
+	 * @param out the stream to write to.
+	 * @param elements the collection to write.
+	 * @throws IOException if the collection could not be written.
+	 */
+	private void writeCollection(DataOutputStream out, Collection<?> elements)
+			throws IOException {
+		BinaryCodec.writeVarLong(out, elements.size());
+		int type = BinaryCodec.commonTypeOf(elements);
+		out.writeByte(type);
+		for (Object element : elements) {
+			this.writeElement(out, type, element);
+		}
+	}
+
+	/**
+	 * Writes the entries of a map. If every key, or every value, has the same type, that
+	 * type is written only once.
+	 *
+	 * @param out the stream to write to.
+	 * @param map the map to write.
+	 * @throws IOException if the map could not be written.
+	 */
+	private void writeMap(DataOutputStream out, Map<?, ?> map) throws IOException {
+		BinaryCodec.writeVarLong(out, map.size());
+		int keyType = BinaryCodec.commonTypeOf(map.keySet());
+		int valueType = BinaryCodec.commonTypeOf(map.values());
+		out.writeByte(keyType);
+		out.writeByte(valueType);
+		for (Map.Entry<?, ?> entry : map.entrySet()) {
+			this.writeElement(out, keyType, entry.getKey());
+			this.writeElement(out, valueType, entry.getValue());
+		}
+	}
+
+	/**
+	 * Writes the entries of a map with UUID keys. Every key is written as two longs, and
+	 * if every value has the same type, that type is written only once.
+	 *
+	 * @param out the stream to write to.
+	 * @param map the map to write.
+	 * @throws IOException if the map could not be written.
+	 */
+	private void writeUUIDKeyedMap(DataOutputStream out, UUIDKeyedMap<?> map)
+			throws IOException {
+		BinaryCodec.writeVarLong(out, map.size());
+		int valueType = BinaryCodec.commonTypeOf(map.values());
+		out.writeByte(valueType);
+		for (int slot = 0; slot < map.capacity(); slot++) {
+			if (map.isUsed(slot)) {
+				out.writeLong(map.mostBitsAt(slot));
+				out.writeLong(map.leastBitsAt(slot));
+				this.writeElement(out, valueType, map.valueAt(slot));
+			}
+		}
+	}
+
+	/**
+	 * Writes the start of a map whose size is not known yet, so that its entries can be
+	 * written one at a time with {@link #writeMapEntry(DataOutputStream, boolean, Object,
+	 * Object)}. The size is written as a placeholder of {@link #STREAMED_SIZE_BYTES}
+	 * bytes, one byte after the start of the map, and must be filled in with
+	 * {@link #encodeStreamedSize(int)} once every entry has been written.
+	 *
+	 * @param out the stream to write to.
+	 * @param uuidKeys {@code true} if the keys of the map are {@code UUID}s;
+	 * {@code false} if they are strings.
+	 * @throws IOException if the map could not be written.
+	 */
+	public void writeMapStart(DataOutputStream out, boolean uuidKeys) throws IOException {
+		out.writeByte(uuidKeys ? BinaryCodec.UUID_KEYED_MAP : BinaryCodec.HASH_MAP);
+		out.write(BinaryCodec.encodeStreamedSize(0));
+		if (!uuidKeys) {
+			out.writeByte(BinaryCodec.STRING);
+		}
+		out.writeByte(BinaryCodec.MIXED);
+	}
+
+	/**
+	 * Writes a single entry of a map that was started with
+	 * {@link #writeMapStart(DataOutputStream, boolean)}.
+	 *
+	 * @param out the stream to write to.
+	 * @param uuidKeys {@code true} if the keys of the map are {@code UUID}s;
+	 * {@code false} if they are strings.
+	 * @param key the key of the entry.
+	 * @param value the value of the entry.
+	 * @throws IOException if the entry could not be written.
+	 */
+	public void writeMapEntry(DataOutputStream out, boolean uuidKeys, Object key, Object value)
+			throws IOException {
+		if (uuidKeys) {
+			BinaryCodec.writeUUID(out, (UUID) key);
+		} else {
+			BinaryCodec.writeString(out, (String) key);
+		}
+		this.writeValue(out, value);
+	}
+
+	/**
+	 * Encodes the size of a map that was started with
+	 * {@link #writeMapStart(DataOutputStream, boolean)}, as a variable-length number that
+	 * is padded to exactly {@link #STREAMED_SIZE_BYTES} bytes.
+	 *
+	 * @param size the number of entries in the map.
+	 * @return the encoded size.
+	 */
+	public static byte[] encodeStreamedSize(int size) {
+		byte[] bytes = new byte[BinaryCodec.STREAMED_SIZE_BYTES];
+		long value = size;
+		for (int i = 0; i < bytes.length - 1; i++) {
+			bytes[i] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		bytes[bytes.length - 1] = (byte) value;
+		return bytes;
+	}
+
+	/**
+	 * Determines if the map at the start of the given stream has UUID keys that are stored
+	 * as UUIDs, as written by {@link #writeMapStart(DataOutputStream, boolean)}. Nothing
+	 * is read from the stream.
+	 *
+	 * @param in the stream to check, which must support {@code mark} and {@code reset}.
+	 * @return {@code true} if the map has UUID keys; {@code false} otherwise.
+	 * @throws IOException if the stream could not be read.
+	 */
+	public boolean isUUIDKeyedMap(InputStream in) throws IOException {
+		in.mark(1);
+		int type = in.read();
+		in.reset();
+		return type == BinaryCodec.UUID_KEYED_MAP;
+	}
+
+	/**
+	 * Reads a map one entry at a time, without keeping the whole map in memory. The map
+	 * must have been written by this codec, with string or UUID keys.
+	 *
+	 * @param in the stream to read from.
+	 * @param visitor receives every entry of the map, in the order it was written.
+	 * @return the number of entries that were read.
+	 * @throws IOException if the map could not be read, or if the stream does not hold a
+	 * map.
+	 */
+	public int readMap(DataInputStream in, EntryVisitor visitor) throws IOException {
+		int type = in.readUnsignedByte();
+		int size;
+		switch (type) {
+			case HASH_MAP:
+			case LINKED_HASH_MAP:
+			case TREE_MAP:
+				size = BinaryCodec.readLength(in);
+				int keyType = in.readUnsignedByte();
+				int valueType = in.readUnsignedByte();
+				for (int i = 0; i < size; i++) {
+					Object key = this.readElement(in, keyType);
+					visitor.visit(key, this.readElement(in, valueType));
+				}
+				return size;
+			case UUID_KEYED_MAP:
+				size = BinaryCodec.readLength(in);
+				this.readUUIDKeyedEntries(in, size, visitor);
+				return size;
+			default:
+				throw new IOException("The data is not a map");
+		}
+	}
+
+	/**
+	 * Reads the start of a map that was written by this codec, and leaves the stream at
+	 * the first entry of the map. Each entry is then a key of the returned key type,
+	 * followed by a value of the returned value type, which can be read with
+	 * {@link #readElement(DataInputStream, int)}.
+	 *
+	 * @param in the stream to read from.
+	 * @return the number of entries in the map, the type of its keys, and the type of its
+	 * values, in that order.
+	 * @throws IOException if the start of the map could not be read, or if the stream does
+	 * not hold a map.
+	 */
+	int[] readMapStart(DataInputStream in) throws IOException {
+		int type = in.readUnsignedByte();
+		switch (type) {
+			case HASH_MAP:
+			case LINKED_HASH_MAP:
+			case TREE_MAP: {
+				int size = BinaryCodec.readLength(in);
+				int keyType = in.readUnsignedByte();
+				return new int[] {size, keyType, in.readUnsignedByte()};
+			}
+			case UUID_KEYED_MAP: {
+				int size = BinaryCodec.readLength(in);
+				return new int[] {size, BinaryCodec.UUID_TYPE, in.readUnsignedByte()};
+			}
+			default:
+				throw new IOException("The data is not a map");
+		}
+	}
+
+	/**
+	 * Reads the entries of a map with UUID keys.
+	 *
+	 * @param in the stream to read from.
+	 * @param size the number of entries.
+	 * @param visitor receives every entry of the map.
+	 * @throws IOException if the entries could not be read.
+	 */
+	private void readUUIDKeyedEntries(DataInputStream in, int size, EntryVisitor visitor)
+			throws IOException {
+		int valueType = in.readUnsignedByte();
+		for (int i = 0; i < size; i++) {
+			UUID key = BinaryCodec.readUUID(in);
+			visitor.visit(key, this.readElement(in, valueType));
+		}
+	}
+
+	/**
+	 * Writes a single element of a collection or map.
+	 *
+	 * @param out the stream to write to.
+	 * @param commonType the type shared by every element, or {@code MIXED}.
+	 * @param element the element to write.
+	 * @throws IOException if the element could not be written.
+	 */
+	private void writeElement(DataOutputStream out, int commonType, Object element)
+			throws IOException {
+		if (commonType == BinaryCodec.MIXED) {
+			this.writeValue(out, element);
+		} else {
+			this.writeBody(out, commonType, element);
+		}
+	}
+
+	/**
+	 * Reads the elements of a collection into the given collection.
+	 *
+	 * @param in the stream to read from.
+	 * @param size the number of elements.
+	 * @param target the collection to add the elements to.
+	 * @return the given collection.
+	 * @throws IOException if the elements could not be read.
+	 */
+	private Collection<Object> readElements(DataInputStream in, int size,
+			Collection<Object> target) throws IOException {
+		int type = in.readUnsignedByte();
+		for (int i = 0; i < size; i++) {
+			target.add(this.readElement(in, type));
+		}
+		return target;
+	}
+
+	/**
+	 * Reads the entries of a map into the given map.
+	 *
+	 * @param in the stream to read from.
+	 * @param size the number of entries.
+	 * @param target the map to add the entries to.
+	 * @return the given map.
+	 * @throws IOException if the entries could not be read.
+	 */
+	private Map<Object, Object> readEntries(DataInputStream in, int size,
+			Map<Object, Object> target) throws IOException {
+		int keyType = in.readUnsignedByte();
+		int valueType = in.readUnsignedByte();
+		for (int i = 0; i < size; i++) {
+			Object key = this.readElement(in, keyType);
+			target.put(key, this.readElement(in, valueType));
+		}
+		return target;
+	}
+
+	/**
+	 * Reads a single element of a collection or map.
+	 *
+	 * @param in the stream to read from.
+	 * @param commonType the type shared by every element, or {@code MIXED}.
+	 * @return the element that was read.
+	 * @throws IOException if the element could not be read.
+	 */
+	Object readElement(DataInputStream in, int commonType) throws IOException {
+		if (commonType == BinaryCodec.MIXED) {
+			return this.readValue(in);
+		} else {
+			return this.readBody(in, commonType);
+		}
+	}
+
+	/**
+	 * Skips over a single element of a collection or map. Elements with a fixed size or a
+	 * length prefix are skipped without being read; collections and maps are read and
+	 * discarded.
+	 *
+	 * @param in the stream to read from.
+	 * @param commonType the type shared by every element, or {@code MIXED}.
+	 * @throws IOException if the element could not be skipped.
+	 */
+	void skipElement(DataInputStream in, int commonType) throws IOException {
+		int type = (commonType == BinaryCodec.MIXED) ? in.readUnsignedByte() : commonType;
+		switch (type) {
+			case NULL:
+				return;
+			case BOOLEAN:
+			case BYTE:
+				BinaryCodec.skipFully(in, 1);
+				return;
+			case SHORT:
+			case CHAR:
+				BinaryCodec.skipFully(in, 2);
+				return;
+			case INT:
+			case LONG:
+				BinaryCodec.readVarLong(in);
+				return;
+			case FLOAT:
+				BinaryCodec.skipFully(in, 4);
+				return;
+			case DOUBLE:
+				BinaryCodec.skipFully(in, 8);
+				return;
+			case UUID_TYPE:
+				BinaryCodec.skipFully(in, 16);
+				return;
+			case LOCATION:
+				// The UUID of the world, if there is one, then three doubles and two floats
+				BinaryCodec.skipFully(in, (in.readBoolean() ? 16 : 0) + 32);
+				return;
+			case STRING:
+			case BYTE_ARRAY:
+			case SERIALIZED:
+				BinaryCodec.skipFully(in, BinaryCodec.readLength(in));
+				return;
+			default:
+				this.readBody(in, type);
+		}
+	}
+
+	/**
+	 * Skips exactly the given number of bytes.
+	 *
+	 * @param in the stream to skip bytes in.
+	 * @param length the number of bytes to skip.
+	 * @throws IOException if the stream ends before the bytes are skipped.
+	 */
+	private static void skipFully(DataInputStream in, int length) throws IOException {
+		while (length > 0) {
+			int skipped = in.skipBytes(length);
+			if (skipped <= 0) {
+				in.readByte();
+				skipped = 1;
+			}
+			length -= skipped;
+		}
+	}
+
+	/**
+	 * Writes a location as the UUID of its world, followed by its coordinates and
+	 * direction.
+	 *
+	 * @param out the stream to write to.
+	 * @param location the location to write.
+	 * @throws IOException if the location could not be written.
+	 */
+	private void writeLocation(DataOutputStream out, SerializableLocation location)
+			throws IOException {
+		World world = location.getWorld();
+		out.writeBoolean(world != null);
+		if (world != null) {
+			BinaryCodec.writeUUID(out, world.getUID());
+		}
+		out.writeDouble(location.getX());
+		out.writeDouble(location.getY());
+		out.writeDouble(location.getZ());
+		out.writeFloat(location.getYaw());
+		out.writeFloat(location.getPitch());
+	}
+
+	/**
+	 * Reads a location that was written by
+	 * {@link #writeLocation(DataOutputStream, SerializableLocation)}.
+	 *
+	 * @param in the stream to read from.
+	 * @return the location that was read.
+	 * @throws IOException if the location could not be read.
+	 */
+	private SerializableLocation readLocation(DataInputStream in) throws IOException {
+		World world = null;
+		if (in.readBoolean()) {
+			world = Bukkit.getWorld(BinaryCodec.readUUID(in));
+		}
+		double x = in.readDouble();
+		double y = in.readDouble();
+		double z = in.readDouble();
+		return new SerializableLocation(world, x, y, z, in.readFloat(), in.readFloat());
+	}
+
+	/**
+	 * Finds the type of the given object.
+	 *
+	 * @param value the object.
+	 * @return the type of the object.
+	 */
+	private static int typeOf(Object value) {
+		if (value == null) {
+			return BinaryCodec.NULL;
+		}
+		Class<?> type = value.getClass();
+		if (type == String.class) {
+			return BinaryCodec.STRING;
+		} else if (type == Integer.class) {
+			return BinaryCodec.INT;
+		} else if (type == Long.class) {
+			return BinaryCodec.LONG;
+		} else if (type == Double.class) {
+			return BinaryCodec.DOUBLE;
+		} else if (type == Boolean.class) {
+			return BinaryCodec.BOOLEAN;
+		} else if (type == UUID.class) {
+			return BinaryCodec.UUID_TYPE;
+		} else if (type == Float.class) {
+			return BinaryCodec.FLOAT;
+		} else if (type == Short.class) {
+			return BinaryCodec.SHORT;
+		} else if (type == Byte.class) {
+			return BinaryCodec.BYTE;
+		} else if (type == Character.class) {
+			return BinaryCodec.CHAR;
+		} else if (type == SerializableLocation.class) {
+			return BinaryCodec.LOCATION;
+		} else if (type == byte[].class) {
+			return BinaryCodec.BYTE_ARRAY;
+		} else if (type == ArrayList.class) {
+			return BinaryCodec.ARRAY_LIST;
+		} else if (type == LinkedList.class) {
+			return BinaryCodec.LINKED_LIST;
+		} else if (type == HashSet.class) {
+			return BinaryCodec.HASH_SET;
+		} else if (type == LinkedHashSet.class) {
+			return BinaryCodec.LINKED_HASH_SET;
+		} else if (type == TreeSet.class && ((TreeSet<?>) value).comparator() == null) {
+			return BinaryCodec.TREE_SET;
+		} else if (type == HashMap.class) {
+			return BinaryCodec.HASH_MAP;
+		} else if (type == LinkedHashMap.class) {
+			return BinaryCodec.LINKED_HASH_MAP;
+		} else if (type == TreeMap.class && ((TreeMap<?, ?>) value).comparator() == null) {
+			return BinaryCodec.TREE_MAP;
+		} else if (type == UUIDKeyedMap.class) {
+			return BinaryCodec.UUID_KEYED_MAP;
+		} else {
+			return BinaryCodec.SERIALIZED;
+		}
+	}
+
+	/**
+	 * Finds the type shared by every element of the given collection.
+	 *
+	 * @param elements the collection.
+	 * @return the type shared by every element, or {@code MIXED} if the elements do not
+	 * all have the same type, or if any of them are {@code null}.
+	 */
+	private static int commonTypeOf(Collection<?> elements) {
+		int common = -1;
+		for (Object element : elements) {
+			int type = BinaryCodec.typeOf(element);
+			if (type == BinaryCodec.NULL || (common != -1 && type != common)) {
+				return BinaryCodec.MIXED;
+			}
+			common = type;
+		}
+		return (common == -1) ? BinaryCodec.MIXED : common;
+	}
+
+	/**
+	 * Writes a string as its length, followed by its UTF-8 bytes.
+	 *
+	 * @param out the stream to write to.
+	 * @param value the string to write.
+	 * @throws IOException if the string could not be written.
+	 */
+	static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		BinaryCodec.writeVarLong(out, bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Reads a string that was written by {@link #writeString(DataOutputStream, String)}.
+	 *
+	 * @param in the stream to read from.
+	 * @return the string that was read.
+	 * @throws IOException if the string could not be read.
+	 */
+	static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[BinaryCodec.readLength(in)];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Writes a UUID as two longs.
+	 *
+	 * @param out the stream to write to.
+	 * @param value the UUID to write.
+	 * @throws IOException if the UUID could not be written.
+	 */
+	private static void writeUUID(DataOutputStream out, UUID value) throws IOException {
+		out.writeLong(value.getMostSignificantBits());
+		out.writeLong(value.getLeastSignificantBits());
+	}
+
+	/**
+	 * Reads a UUID that was written by {@link #writeUUID(DataOutputStream, UUID)}.
+	 *
+	 * @param in the stream to read from.
+	 * @return the UUID that was read.
+	 * @throws IOException if the UUID could not be read.
+	 */
+	private static UUID readUUID(DataInputStream in) throws IOException {
+		return new UUID(in.readLong(), in.readLong());
+	}
+
+	/**
+	 * Writes a non-negative number using as few bytes as possible: seven bits per byte,
+	 * with the high bit of each byte set if more bytes follow.
+	 *
+	 * @param out the stream to write to.
+	 * @param value the number to write.
+	 * @throws IOException if the number could not be written.
+	 */
+	public static void writeVarLong(DataOutputStream out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	/**
+	 * Reads a number that was written by {@link #writeVarLong(DataOutputStream, long)}.
+	 *
+	 * @param in the stream to read from.
+	 * @return the number that was read.
+	 * @throws IOException if the number could not be read.
+	 */
+	public static long readVarLong(DataInputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed variable-length number");
+	}
+
+	/**
+	 * Reads a length or size that was written by
+	 * {@link #writeVarLong(DataOutputStream, long)}.
+	 *
+	 * @param in the stream to read from.
+	 * @return the length that was read.
+	 * @throws IOException if the length could not be read, or is not a valid length.
+	 */
+	static int readLength(DataInputStream in) throws IOException {
+		long length = BinaryCodec.readVarLong(in);
+		if (length < 0 || length > Integer.MAX_VALUE) {
+			throw new IOException("Invalid length in binary data: " + length);
+		}
+		return (int) length;
+	}
+
+	/**
+	 * Maps signed numbers to unsigned numbers, so that numbers near zero are small.
+	 *
+	 * @param value the signed number.
+	 * @return the unsigned number.
+	 */
+	static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	/**
+	 * Reverses {@link #zigzag(long)}.
+	 *
+	 * @param value the unsigned number.
+	 * @return the signed number.
+	 */
+	static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * Finds the initial capacity of a hash table that will hold the given number of
+	 * entries without resizing.
+	 *
+	 * @param size the number of entries.
+	 * @return the initial capacity to use.
+	 */
+	private static int capacityFor(int size) {
+		return (int) Math.min(Integer.MAX_VALUE, size * 4L / 3 + 1);
+	}
+
+	/**
+	 * Converts an object to bytes using Java's standard serialization.
+	 *
+	 * @param value the object to serialize.
+	 * @return the serialized object.
+	 * @throws IOException if the object could not be serialized.
+	 */
+	private static byte[] serialize(Object value) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		JavaSerializationCodec.INSTANCE.encode(value, bytes);
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Converts bytes back to an object using Java's standard serialization.
+	 *
+	 * @param bytes the serialized object.
+	 * @return the object.
+	 * @throws IOException if the object could not be deserialized.
+	 */
+	private Object deserialize(byte[] bytes) throws IOException {
+		return this.serialization.decode(new ByteArrayInputStream(bytes));
+	}
+
+	/**
+	 * An {@code EntryVisitor} receives the entries of a map that is read by
+	 * {@link BinaryCodec#readMap(DataInputStream, EntryVisitor)}.
+	 */
+	public interface EntryVisitor {
+
+		/**
+		 * Processes a single entry.
+		 *
+		 * @param key the key of the entry.
+		 * @param value the value of the entry.
+		 * @throws IOException if the entry could not be processed.
+		 */
+		void visit(Object key, Object value) throws IOException;
+
+	}
+
+}
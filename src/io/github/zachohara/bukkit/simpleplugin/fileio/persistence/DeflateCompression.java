@@ -0,0 +1,125 @@
+/* Copyright (C) 2017 Zach Ohara
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.github.zachohara.bukkit.simpleplugin.fileio.persistence;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The {@code DeflateCompression} compresses files with the DEFLATE algorithm, which is
+ * built into Java. It gives much smaller files than the {@code LZCompression}, but takes
+ * longer to compress and decompress them. The level of compression can be chosen when the
+ * compression is created; every level is read in the same way.
+ *
+ * @author Zach Ohara
+ * @see LZCompression
+ */
+public class DeflateCompression implements PayloadCompression {
+
+	/**
+	 * The identifier of this compression.
+	 */
+	public static final byte ID = 1;
+
+	/**
+	 * The shared instance of this compression, which uses the default level of
+	 * compression.
+	 */
+	public static final DeflateCompression INSTANCE =
+			new DeflateCompression(Deflater.DEFAULT_COMPRESSION);
+
+	/**
+	 * The shared instance of this compression that uses the fastest level of compression.
+	 */
+	public static final DeflateCompression FASTEST = new DeflateCompression(Deflater.BEST_SPEED);
+
+	/**
+	 * The size of the buffers used by the compressing and decompressing streams.
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * The level of compression, from {@code 1} to {@code 9}, or {@code -1} for the default.
+	 */
+	private final int level;
+
+	/**
+	 * Constructs a new {@code DeflateCompression} with the given level of compression.
+	 *
+	 * @param level the level of compression, from {@code 1} for the fastest to {@code 9}
+	 * for the smallest files, or {@code -1} for the default.
+	 */
+	public DeflateCompression(int level) {
+		if (level != Deflater.DEFAULT_COMPRESSION && (level < 1 || level > 9)) {
+			throw new IllegalArgumentException("Invalid compression level: " + level);
+		}
+		this.level = level;
+	}
+
+	/**
+	 * Returns the level of compression.
+	 *
+	 * @return the level of compression, or {@code -1} for the default.
+	 */
+	public int getLevel() {
+		return this.level;
+	}
+
+	@Override
+	public byte getId() {
+		return DeflateCompression.ID;
+	}
+
+	@Override
+	public OutputStream compress(OutputStream out) throws IOException {
+		final Deflater deflater = new Deflater(this.level);
+		return new DeflaterOutputStream(out, deflater, DeflateCompression.BUFFER_SIZE) {
+
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					deflater.end();
+				}
+			}
+
+		};
+	}
+
+	@Override
+	public InputStream decompress(InputStream in) throws IOException {
+		final Inflater inflater = new Inflater();
+		return new InflaterInputStream(in, inflater, DeflateCompression.BUFFER_SIZE) {
+
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					inflater.end();
+				}
+			}
+
+		};
+	}
+
+}
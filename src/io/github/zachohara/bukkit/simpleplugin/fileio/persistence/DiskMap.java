@@ -0,0 +1,869 @@
+/* Copyright (C) 2017 Zach Ohara
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.zachohara.bukkit.simpleplugin.fileio.persistence;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.github.zachohara.bukkit.simpleplugin.fileio.FileExecutor;
+import io.github.zachohara.bukkit.simpleplugin.fileio.FileUtil;
+
+/**
+ * A {@code DiskMap} is a map whose values are kept on the disk instead of in memory. Only
+ * an index from each key to the location of its value is kept in memory, and values are
+ * read from the disk when they are needed. Recently used values are kept in a cache of
+ * limited size, so values that are used often are not read from the disk every time.
+ * <p>
+ * Every change is appended to a data file, so the cost of a change does not depend on the
+ * size of the map. Once the data files hold more outdated records than current ones, the
+ * current records are copied into a new data file on a background thread, and the old
+ * data files are deleted.
+ * <p>
+ * Looking up a key that is not in the map never reads from the disk, and neither does
+ * {@code put}, so it only returns the previous value if that value is cached. A value
+ * that is changed after it was read must be stored again with {@code put}, or the change
+ * may be lost once the value leaves the cache. All methods of this class are thread safe.
+ *
+ * @param <K> the key type of the map.
+ * @param <V> the value type of the map.
+ * @see PersistentMap#useDiskStorage(boolean)
+ * @author Zach Ohara
+ */
+public class DiskMap<K extends Serializable, V extends Serializable> extends AbstractMap<K, V> {
+
+	/**
+	 * The default number of bytes of values that may be kept in the cache.
+	 */
+	public static final long DEFAULT_CACHE_SIZE = 8 * 1024 * 1024;
+
+	/**
+	 * The default size, in bytes, that the data files must reach before they may be
+	 * compacted.
+	 */
+	public static final long DEFAULT_COMPACTION_THRESHOLD = 4 * 1024 * 1024;
+
+	/**
+	 * The number of low bits of a location that hold the position of a record; the
+	 * remaining high bits hold the generation of the data file.
+	 */
+	private static final int POSITION_BITS = 40;
+
+	/**
+	 * The mask that selects the position from a location.
+	 */
+	private static final long POSITION_MASK = (1L << DiskMap.POSITION_BITS) - 1;
+
+	/**
+	 * The map that owns this storage, which decides the codec used to encode keys and
+	 * values.
+	 */
+	private final PersistentMap<K, V> owner;
+
+	/**
+	 * The file of the owning map. Data files are stored next to it.
+	 */
+	private final File snapshotFile;
+
+	/**
+	 * The log to report background errors to.
+	 */
+	private final Logger logger;
+
+	/**
+	 * Maps every key to the location of its most recent record: the generation of the
+	 * data file in the high bits, and the position in that file in the low bits.
+	 */
+	private final Map<K, Long> index;
+
+	/**
+	 * Every open data file, by generation.
+	 */
+	private final TreeMap<Long, RecordLog> logs;
+
+	/**
+	 * The recently used values, in order from least to most recently used.
+	 */
+	private final LinkedHashMap<K, CachedValue<V>> cache;
+
+	/**
+	 * The data file that new records are appended to.
+	 */
+	private RecordLog active;
+
+	/**
+	 * The generation of the data file that new records are appended to.
+	 */
+	private long activeGeneration;
+
+	/**
+	 * The number of records in every open data file.
+	 */
+	private long recordCount;
+
+	/**
+	 * The total size, in bytes, of the values in the cache.
+	 */
+	private long cacheBytes;
+
+	/**
+	 * The number of bytes of values that may be kept in the cache.
+	 */
+	private long cacheSize;
+
+	/**
+	 * The size, in bytes, that the data files must reach before they may be compacted.
+	 */
+	private long compactionThreshold;
+
+	/**
+	 * The number of milliseconds that changes may wait in memory before they are written.
+	 */
+	private long commitInterval;
+
+	/**
+	 * The compaction that is currently running, or {@code null} if there is none.
+	 */
+	private Future<?> compaction;
+
+	/**
+	 * Opens the disk storage for the given map, and reads the keys of every existing data
+	 * file into the index. Values are not read.
+	 *
+	 * @param owner the map that owns this storage.
+	 * @param snapshotFile the file of the owning map.
+	 * @param logger the log to report background errors to.
+	 * @throws IOException if the data files could not be opened or read.
+	 */
+	public DiskMap(PersistentMap<K, V> owner, File snapshotFile, Logger logger)
+			throws IOException {
+		this.owner = owner;
+		this.snapshotFile = snapshotFile;
+		this.logger = logger;
+		this.index = new HashMap<K, Long>();
+		this.logs = new TreeMap<Long, RecordLog>();
+		this.cache = new LinkedHashMap<K, CachedValue<V>>(16, 0.75f, true);
+		this.cacheSize = DiskMap.DEFAULT_CACHE_SIZE;
+		this.compactionThreshold = DiskMap.DEFAULT_COMPACTION_THRESHOLD;
+		this.commitInterval = RecordLog.DEFAULT_COMMIT_INTERVAL;
+		for (long gen : this.findGenerations()) {
+			RecordLog log = new RecordLog(this.getDataFile(gen));
+			this.logs.put(gen, log);
+			this.replay(log, gen);
+			this.activeGeneration = gen;
+		}
+		if (this.logs.isEmpty()) {
+			this.logs.put(this.activeGeneration,
+					new RecordLog(this.getDataFile(this.activeGeneration)));
+		}
+		this.active = this.logs.get(this.activeGeneration);
+	}
+
+	/**
+	 * Sets the number of bytes of values that may be kept in the cache. The size of a
+	 * value is the size of its encoded form.
+	 *
+	 * @param bytes the cache size, in bytes.
+	 */
+	public synchronized void setCacheSize(long bytes) {
+		this.cacheSize = bytes;
+		this.trimCache();
+	}
+
+	/**
+	 * Sets the size, in bytes, that the data files must reach before they may be
+	 * compacted. The data files are only compacted once they also hold more outdated
+	 * records than current ones.
+	 *
+	 * @param bytes the compaction threshold, in bytes.
+	 */
+	public synchronized void setCompactionThreshold(long bytes) {
+		this.compactionThreshold = bytes;
+	}
+
+	/**
+	 * Sets the number of milliseconds that changes may wait in memory before they are
+	 * written to the disk.
+	 *
+	 * @param millis the commit interval, in milliseconds.
+	 * @see RecordLog#setCommitInterval(long)
+	 */
+	public synchronized void setCommitInterval(long millis) {
+		this.commitInterval = millis;
+		this.active.setCommitInterval(millis);
+	}
+
+	/**
+	 * Writes every pending change to the disk, and waits until the disk has confirmed
+	 * that they are stored.
+	 *
+	 * @throws IOException if the changes could not be written.
+	 */
+	public void commit() throws IOException {
+		RecordLog log;
+		synchronized (this) {
+			log = this.active;
+		}
+		log.commit();
+	}
+
+	/**
+	 * Writes every pending change to the disk, waits for any running compaction to finish,
+	 * and closes every data file.
+	 *
+	 * @throws IOException if the changes could not be written.
+	 */
+	public void close() throws IOException {
+		this.awaitCompaction();
+		synchronized (this) {
+			IOException failure = null;
+			for (RecordLog log : this.logs.values()) {
+				try {
+					log.close();
+				} catch (IOException e) {
+					failure = e;
+				}
+			}
+			if (failure != null) {
+				throw failure;
+			}
+		}
+	}
+
+	/**
+	 * Closes every data file, and then deletes them. This is used when disk storage is
+	 * turned off, after the contents of this map have been written somewhere else.
+	 *
+	 * @throws IOException if the data files could not be closed.
+	 */
+	public void closeAndDelete() throws IOException {
+		this.close();
+		DiskMap.deleteDataFiles(this.snapshotFile);
+	}
+
+	/**
+	 * Deletes every data file of the map stored in the given file. This is used after the
+	 * map has been written to its own file without disk storage, so that old data files are
+	 * not read on top of the newer file the next time disk storage is turned on.
+	 *
+	 * @param snapshotFile the file of the map.
+	 */
+	static void deleteDataFiles(File snapshotFile) {
+		for (long gen : DiskMap.findGenerations(snapshotFile)) {
+			DiskMap.getDataFile(snapshotFile, gen).delete();
+		}
+	}
+
+	@Override
+	public synchronized boolean containsKey(Object key) {
+		return this.index.containsKey(key);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public synchronized V get(Object key) {
+		Long location = this.index.get(key);
+		if (location == null) {
+			return null;
+		}
+		CachedValue<V> cached = this.cache.get(key);
+		if (cached != null) {
+			return cached.value;
+		}
+		final byte[][] valueBytes = new byte[1][];
+		try {
+			this.getLog(location).read(DiskMap.getPosition(location), new RecordLog.Visitor() {
+
+				@Override
+				public void visit(long position, byte op, byte[] key, byte[] value) {
+					valueBytes[0] = value;
+				}
+
+			});
+			V value = (V) PayloadFormat.fromBytes(valueBytes[0]);
+			this.cacheValue((K) key, value, valueBytes[0].length);
+			return value;
+		} catch (IOException e) {
+			throw new UncheckedIOException("Error reading value from: " + this.snapshotFile, e);
+		}
+	}
+
+	/**
+	 * Associates the given value with the given key. The old value is never read from the
+	 * disk, so the previous value is only returned if it is in the cache; otherwise
+	 * {@code null} is returned, even if the key was mapped. Call {@code get} first if the
+	 * previous value is needed.
+	 *
+	 * @param key the key.
+	 * @param value the value to associate with the key.
+	 * @return the previous value, if it was in the cache, or {@code null}.
+	 */
+	@Override
+	public synchronized V put(K key, V value) {
+		CachedValue<V> cached = this.cache.get(key);
+		V previous = (cached != null) ? cached.value : null;
+		try {
+			byte[] valueBytes = this.encode(value);
+			long position = this.active.append(MapJournal.PUT, this.encode(key), valueBytes);
+			this.index.put(key, DiskMap.getLocation(this.activeGeneration, position));
+			this.recordCount++;
+			this.cacheValue(key, value, valueBytes.length);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Error writing value to: " + this.snapshotFile, e);
+		}
+		this.checkCompaction();
+		return previous;
+	}
+
+	@Override
+	public synchronized V remove(Object key) {
+		if (!this.index.containsKey(key)) {
+			return null;
+		}
+		V previous = this.get(key);
+		this.appendRemove(key);
+		this.index.remove(key);
+		return previous;
+	}
+
+	@Override
+	public synchronized void clear() {
+		try {
+			this.active.append(MapJournal.CLEAR, new byte[0], new byte[0]);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Error writing to: " + this.snapshotFile, e);
+		}
+		this.recordCount++;
+		this.index.clear();
+		this.cache.clear();
+		this.cacheBytes = 0;
+	}
+
+	@Override
+	public synchronized int size() {
+		return this.index.size();
+	}
+
+	@Override
+	public Set<Map.Entry<K, V>> entrySet() {
+		return new EntrySetView();
+	}
+
+	/**
+	 * Appends a record that removes the given key, and forgets its cached value. The key
+	 * must still be removed from the index by the caller.
+	 *
+	 * @param key the key to remove.
+	 */
+	private void appendRemove(Object key) {
+		try {
+			this.active.append(MapJournal.REMOVE, this.encode(key), new byte[0]);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Error writing to: " + this.snapshotFile, e);
+		}
+		this.recordCount++;
+		CachedValue<V> cached = this.cache.remove(key);
+		if (cached != null) {
+			this.cacheBytes -= cached.bytes;
+		}
+		this.checkCompaction();
+	}
+
+	/**
+	 * Adds the given value to the cache, and removes the least recently used values until
+	 * the cache fits in its size limit again.
+	 *
+	 * @param key the key of the value.
+	 * @param value the value to cache.
+	 * @param bytes the size of the encoded value, in bytes.
+	 */
+	private void cacheValue(K key, V value, int bytes) {
+		CachedValue<V> previous = this.cache.put(key, new CachedValue<V>(value, bytes));
+		if (previous != null) {
+			this.cacheBytes -= previous.bytes;
+		}
+		this.cacheBytes += bytes;
+		this.trimCache();
+	}
+
+	/**
+	 * Removes the least recently used values from the cache until it fits in its size
+	 * limit.
+	 */
+	private void trimCache() {
+		Iterator<CachedValue<V>> eldest = this.cache.values().iterator();
+		while (this.cacheBytes > this.cacheSize && eldest.hasNext()) {
+			this.cacheBytes -= eldest.next().bytes;
+			eldest.remove();
+		}
+	}
+
+	/**
+	 * Starts a compaction if the data files are large enough, and hold more outdated
+	 * records than current ones.
+	 */
+	private void checkCompaction() {
+		if (this.compaction != null && !this.compaction.isDone()) {
+			return;
+		}
+		if (this.recordCount - this.index.size() <= this.index.size()) {
+			return;
+		}
+		long totalSize = 0;
+		for (RecordLog log : this.logs.values()) {
+			totalSize += log.size();
+		}
+		if (totalSize >= this.compactionThreshold) {
+			try {
+				this.startCompaction();
+			} catch (IOException e) {
+				this.logger.log(Level.WARNING, "Error compacting data: " + this.snapshotFile, e);
+			}
+		}
+	}
+
+	/**
+	 * Starts a new data file for new records, and copies every current record from the
+	 * older data files into a single new data file on a background thread. The new file
+	 * is given a generation between the older files and the file for new records, so the
+	 * files are always replayed in the right order.
+	 *
+	 * @throws IOException if the new data file could not be created.
+	 */
+	private void startCompaction() throws IOException {
+		final long lastOldGeneration = this.activeGeneration;
+		final long mergedGeneration = this.activeGeneration + 1;
+		this.activeGeneration += 2;
+		this.active = new RecordLog(this.getDataFile(this.activeGeneration));
+		this.active.setCommitInterval(this.commitInterval);
+		this.logs.put(this.activeGeneration, this.active);
+		final Map<K, Long> locations = new HashMap<K, Long>(this.index);
+		final Map<Long, RecordLog> sources =
+				new HashMap<Long, RecordLog>(this.logs.headMap(lastOldGeneration, true));
+		final long oldRecordCount = this.recordCount;
+		this.compaction = FileExecutor.submit(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					DiskMap.this.compact(locations, sources, oldRecordCount, lastOldGeneration,
+							mergedGeneration);
+				} catch (IOException e) {
+					DiskMap.this.logger.log(Level.WARNING,
+							"Error compacting data: " + DiskMap.this.snapshotFile, e);
+				}
+			}
+
+		});
+	}
+
+	/**
+	 * Copies every current record from the older data files into a new data file, and
+	 * then switches the index over to the new file and deletes the older files. Only the
+	 * final switch holds the lock on this map.
+	 *
+	 * @param locations the location of every current record when the compaction started.
+	 * @param sources the older data files, by generation.
+	 * @param oldRecordCount the number of records in the older data files.
+	 * @param lastOldGeneration the generation of the newest of the older data files.
+	 * @param mergedGeneration the generation of the new data file.
+	 * @throws IOException if the new data file could not be written.
+	 */
+	private void compact(Map<K, Long> locations, Map<Long, RecordLog> sources,
+			long oldRecordCount, long lastOldGeneration, long mergedGeneration)
+			throws IOException {
+		File target = this.getDataFile(mergedGeneration);
+		File temp = FileUtil.getTempFile(target);
+		temp.delete();
+		final RecordLog merged = new RecordLog(temp);
+		final Map<K, Long> moved = new HashMap<K, Long>(locations.size());
+		try {
+			for (final Map.Entry<K, Long> entry : locations.entrySet()) {
+				long location = entry.getValue();
+				RecordLog source = sources.get(DiskMap.getGeneration(location));
+				source.read(DiskMap.getPosition(location), new RecordLog.Visitor() {
+
+					@Override
+					public void visit(long position, byte op, byte[] key, byte[] value)
+							throws IOException {
+						long newPosition = merged.append(op, key, value);
+						moved.put(entry.getKey(),
+								DiskMap.getLocation(mergedGeneration, newPosition));
+					}
+
+				});
+			}
+		} finally {
+			merged.close();
+		}
+		FileUtil.replaceFile(temp, target);
+		RecordLog mergedLog = new RecordLog(target);
+		synchronized (this) {
+			for (Map.Entry<K, Long> entry : moved.entrySet()) {
+				K key = entry.getKey();
+				if (Objects.equals(this.index.get(key), locations.get(key))) {
+					this.index.put(key, entry.getValue());
+				}
+			}
+			for (long gen : sources.keySet()) {
+				this.logs.remove(gen).close();
+				this.getDataFile(gen).delete();
+			}
+			this.logs.put(mergedGeneration, mergedLog);
+			this.recordCount = this.recordCount - oldRecordCount + moved.size();
+		}
+	}
+
+	/**
+	 * Waits for the current compaction, if any, to finish.
+	 */
+	private void awaitCompaction() {
+		Future<?> running;
+		synchronized (this) {
+			running = this.compaction;
+			this.compaction = null;
+		}
+		if (running == null) {
+			return;
+		}
+		try {
+			running.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			this.logger.log(Level.WARNING, "Error compacting data: " + this.snapshotFile,
+					e.getCause());
+		}
+	}
+
+	/**
+	 * Reads the key of every record in the given data file into the index.
+	 *
+	 * @param log the data file to read.
+	 * @param gen the generation of the data file.
+	 * @throws IOException if the data file could not be read.
+	 */
+	private void replay(RecordLog log, final long gen) throws IOException {
+		log.replay(new RecordLog.Visitor() {
+
+			@Override
+			@SuppressWarnings("unchecked")
+			public void visit(long position, byte op, byte[] key, byte[] value)
+					throws IOException {
+				DiskMap.this.recordCount++;
+				switch (op) {
+					case MapJournal.PUT:
+						DiskMap.this.index.put((K) PayloadFormat.fromBytes(key),
+								DiskMap.getLocation(gen, position));
+						break;
+					case MapJournal.REMOVE:
+						DiskMap.this.index.remove(PayloadFormat.fromBytes(key));
+						break;
+					case MapJournal.CLEAR:
+						DiskMap.this.index.clear();
+						break;
+					default:
+						throw new IOException("Unknown data record type: " + op);
+				}
+			}
+
+		});
+	}
+
+	/**
+	 * Returns the open data file that holds the record at the given location.
+	 *
+	 * @param location the location of the record.
+	 * @return the data file that holds the record.
+	 */
+	private RecordLog getLog(long location) {
+		return this.logs.get(DiskMap.getGeneration(location));
+	}
+
+	/**
+	 * Finds the generation numbers of every data file that exists for the map, in
+	 * ascending order.
+	 *
+	 * @return the generation numbers of the existing data files.
+	 */
+	private long[] findGenerations() {
+		return DiskMap.findGenerations(this.snapshotFile);
+	}
+
+	/**
+	 * Finds the generation numbers of every data file that exists for the map stored in
+	 * the given file, in ascending order.
+	 *
+	 * @param snapshotFile the file of the map.
+	 * @return the generation numbers of the existing data files.
+	 */
+	private static long[] findGenerations(File snapshotFile) {
+		final String prefix = DiskMap.getDataPrefix(snapshotFile);
+		File[] files = snapshotFile.getParentFile().listFiles(new FilenameFilter() {
+
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(prefix) && name.substring(prefix.length()).matches("\\d+");
+			}
+
+		});
+		if (files == null) {
+			return new long[0];
+		}
+		long[] generations = new long[files.length];
+		for (int i = 0; i < files.length; i++) {
+			generations[i] = Long.parseLong(files[i].getName().substring(prefix.length()));
+		}
+		Arrays.sort(generations);
+		return generations;
+	}
+
+	/**
+	 * Returns the data file for the given generation.
+	 *
+	 * @param gen the generation number.
+	 * @return the data file for that generation.
+	 */
+	private File getDataFile(long gen) {
+		return DiskMap.getDataFile(this.snapshotFile, gen);
+	}
+
+	/**
+	 * Returns the data file for the given generation of the map stored in the given file.
+	 *
+	 * @param snapshotFile the file of the map.
+	 * @param gen the generation number.
+	 * @return the data file for that generation.
+	 */
+	private static File getDataFile(File snapshotFile, long gen) {
+		return new File(snapshotFile.getParentFile(), DiskMap.getDataPrefix(snapshotFile) + gen);
+	}
+
+	/**
+	 * Returns the prefix shared by the names of every data file for the map stored in the
+	 * given file.
+	 *
+	 * @param snapshotFile the file of the map.
+	 * @return the data file name prefix.
+	 */
+	private static String getDataPrefix(File snapshotFile) {
+		return snapshotFile.getName() + ".data.";
+	}
+
+	/**
+	 * Converts the given object to bytes, using the codec of the owning map.
+	 *
+	 * @param obj the object to convert.
+	 * @return the encoded form of the object.
+	 * @throws IOException if the object could not be encoded.
+	 */
+	private byte[] encode(Object obj) throws IOException {
+		return PayloadFormat.toBytes(this.owner.getCodec(), obj);
+	}
+
+	/**
+	 * Combines the given generation and position into a single location.
+	 *
+	 * @param gen the generation of the data file.
+	 * @param position the position of the record in the data file.
+	 * @return the location of the record.
+	 * @throws IllegalStateException if the position is too large to be stored.
+	 */
+	private static long getLocation(long gen, long position) {
+		if (position > DiskMap.POSITION_MASK) {
+			throw new IllegalStateException("Data file is too large: " + position + " bytes");
+		}
+		return (gen << DiskMap.POSITION_BITS) | position;
+	}
+
+	/**
+	 * Returns the generation of the data file from the given location.
+	 *
+	 * @param location the location of a record.
+	 * @return the generation of the data file that holds the record.
+	 */
+	private static long getGeneration(long location) {
+		return location >>> DiskMap.POSITION_BITS;
+	}
+
+	/**
+	 * Returns the position in the data file from the given location.
+	 *
+	 * @param location the location of a record.
+	 * @return the position of the record in its data file.
+	 */
+	private static long getPosition(long location) {
+		return location & DiskMap.POSITION_MASK;
+	}
+
+	/**
+	 * A value in the cache, together with the size of its encoded form.
+	 *
+	 * @param <V> the value type of the map.
+	 */
+	private static class CachedValue<V> {
+
+		/**
+		 * The cached value.
+		 */
+		private final V value;
+
+		/**
+		 * The size of the encoded form of the value, in bytes.
+		 */
+		private final int bytes;
+
+		/**
+		 * Constructs a new {@code CachedValue}.
+		 *
+		 * @param value the cached value.
+		 * @param bytes the size of the encoded form of the value, in bytes.
+		 */
+		public CachedValue(V value, int bytes) {
+			this.value = value;
+			this.bytes = bytes;
+		}
+
+	}
+
+	/**
+	 * A view of the entries in this map. The values of the entries are only read when
+	 * they are needed.
+	 */
+	private class EntrySetView extends AbstractSet<Map.Entry<K, V>> {
+
+		@Override
+		public Iterator<Map.Entry<K, V>> iterator() {
+			final Iterator<K> keys = DiskMap.this.index.keySet().iterator();
+			return new Iterator<Map.Entry<K, V>>() {
+
+				/**
+				 * The most recently returned key.
+				 */
+				private K lastKey;
+
+				@Override
+				public boolean hasNext() {
+					synchronized (DiskMap.this) {
+						return keys.hasNext();
+					}
+				}
+
+				@Override
+				public Map.Entry<K, V> next() {
+					synchronized (DiskMap.this) {
+						this.lastKey = keys.next();
+						return new DiskEntry(this.lastKey);
+					}
+				}
+
+				@Override
+				public void remove() {
+					synchronized (DiskMap.this) {
+						keys.remove();
+						DiskMap.this.appendRemove(this.lastKey);
+					}
+				}
+
+			};
+		}
+
+		@Override
+		public int size() {
+			return DiskMap.this.size();
+		}
+
+		@Override
+		public void clear() {
+			DiskMap.this.clear();
+		}
+
+	}
+
+	/**
+	 * An entry of this map, whose value is read when it is first needed.
+	 */
+	private class DiskEntry implements Map.Entry<K, V> {
+
+		/**
+		 * The key of this entry.
+		 */
+		private final K key;
+
+		/**
+		 * Constructs a new {@code DiskEntry} for the given key.
+		 *
+		 * @param key the key of this entry.
+		 */
+		public DiskEntry(K key) {
+			this.key = key;
+		}
+
+		@Override
+		public K getKey() {
+			return this.key;
+		}
+
+		@Override
+		public V getValue() {
+			return DiskMap.this.get(this.key);
+		}
+
+		@Override
+		public V setValue(V value) {
+			return DiskMap.this.put(this.key, value);
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Map.Entry<?, ?>)) {
+				return false;
+			}
+			Map.Entry<?, ?> entry = (Map.Entry<?, ?>) other;
+			return Objects.equals(this.key, entry.getKey())
+					&& Objects.equals(this.getValue(), entry.getValue());
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(this.key) ^ Objects.hashCode(this.getValue());
+		}
+
+		@Override
+		public String toString() {
+			return this.key + "=" + this.getValue();
+		}
+
+	}
+
+}
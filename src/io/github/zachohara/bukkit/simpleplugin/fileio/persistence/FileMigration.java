@@ -0,0 +1,419 @@
+/* Copyright (C) 2017 Zach Ohara
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.zachohara.bukkit.simpleplugin.fileio.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import io.github.zachohara.bukkit.simpleplugin.plugin.SimplePlugin;
+
+/**
+ * A {@code FileMigration} upgrades the file of a map from an old version of the plugin's
+ * data classes to a new one. Each version of the file is recorded in its schema header;
+ * the plugin registers a step that converts a single entry from each old version to the
+ * next, and the steps are applied in order to every entry of the file.
+ * <p>
+ * The file is read and written one entry at a time, so a large map is never held in
+ * memory; only a file written by Java's standard serialization must be read all at once.
+ * Old values whose classes have since changed can be read through legacy classes. The
+ * migrated map is written to a temporary file, and the old file is kept until the new
+ * one has been completely written, so a migration that fails leaves the old file as it
+ * was.
+ * <p>
+ * A migration should be run before the file is opened, and the plugin should then set
+ * the current version on the opened map with
+ * {@link PersistentObject#setSchemaVersion(int)}, so that new files are marked with it.
+ * Only maps with string or UUID keys can be migrated.
+ *
+ * @author Zach Ohara
+ */
+public class FileMigration {
+
+	/**
+	 * The size of the buffer used when reading the old file.
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * The number of entries between reports of progress.
+	 */
+	private static final int PROGRESS_INTERVAL = 10000;
+
+	/**
+	 * The plugin that owns the file.
+	 */
+	private final SimplePlugin owner;
+
+	/**
+	 * The file to migrate.
+	 */
+	private final File file;
+
+	/**
+	 * The step that converts an entry from each version to the next, by the version it
+	 * converts from.
+	 */
+	private final Map<Integer, EntryMigration> steps;
+
+	/**
+	 * The class to use in place of each class named in the old file, by the name in the
+	 * file.
+	 */
+	private final Map<String, Class<?>> legacyClasses;
+
+	/**
+	 * Receives reports of the progress of the migration, or {@code null} if progress is
+	 * only written to the log.
+	 */
+	private ProgressListener progressListener;
+
+	/**
+	 * Constructs a new {@code FileMigration} for the given file of the given plugin.
+	 *
+	 * @param owner the plugin that owns the file.
+	 * @param filename the filename of the map.
+	 */
+	public FileMigration(SimplePlugin owner, String filename) {
+		this.owner = owner;
+		this.file = new File(owner.getDataFolder(), filename);
+		this.steps = new TreeMap<Integer, EntryMigration>();
+		this.legacyClasses = new HashMap<String, Class<?>>();
+	}
+
+	/**
+	 * Registers the step that converts an entry from the given version to the next.
+	 *
+	 * @param fromVersion the version that the step converts from.
+	 * @param migration the step that converts each entry.
+	 */
+	public void addStep(int fromVersion, EntryMigration migration) {
+		this.steps.put(fromVersion, migration);
+	}
+
+	/**
+	 * Registers a legacy class to read in place of a class that is named in the old file.
+	 * The legacy class must have the same fields as the old class had when the file was
+	 * written, but may have any name, so that the old class can be changed freely.
+	 *
+	 * @param className the fully qualified name of the class in the old file.
+	 * @param legacyClass the class to read in its place.
+	 */
+	public void addLegacyClass(String className, Class<?> legacyClass) {
+		this.legacyClasses.put(className, legacyClass);
+	}
+
+	/**
+	 * Gets the listener that receives reports of the progress of the migration.
+	 *
+	 * @return the progress listener, or {@code null} if there is none.
+	 */
+	public ProgressListener getProgressListener() {
+		return this.progressListener;
+	}
+
+	/**
+	 * Sets the listener that receives reports of the progress of the migration. Progress
+	 * is reported every few thousand entries, and once more when the migration is done.
+	 * Without a listener, progress is written to the log of the plugin.
+	 *
+	 * @param listener the progress listener, or {@code null} to only use the log.
+	 */
+	public void setProgressListener(ProgressListener listener) {
+		this.progressListener = listener;
+	}
+
+	/**
+	 * Returns the schema version of the file, as recorded in its header.
+	 *
+	 * @return the schema version of the file, or {@code 0} if the file has no schema
+	 * header, or does not exist.
+	 * @throws IOException if the file could not be read.
+	 */
+	public int getFileVersion() throws IOException {
+		if (!this.file.exists()) {
+			return 0;
+		}
+		return PersistentObject.readSchemaVersion(this.file);
+	}
+
+	/**
+	 * Migrates the file to the given version, if it is at an older version. Every entry
+	 * is passed through the step for each version from the version of the file up to the
+	 * given version, and the file is then replaced with the migrated entries, with the
+	 * given version in its header. The new file is not compressed; it is compressed when
+	 * it is next saved, if its map uses compression.
+	 *
+	 * @param targetVersion the version to migrate the file to.
+	 * @return {@code true} if the file was migrated; {@code false} if the file does not
+	 * exist, is empty, or is already at the given version or a newer one.
+	 * @throws IOException if a step is missing, or the file could not be migrated; the
+	 * old file is then unchanged.
+	 */
+	public boolean migrate(int targetVersion) throws IOException {
+		if (!this.file.exists() || this.file.length() == 0) {
+			return false;
+		}
+		int fromVersion = this.getFileVersion();
+		if (fromVersion >= targetVersion) {
+			return false;
+		}
+		List<EntryMigration> chain = new ArrayList<EntryMigration>();
+		for (int version = fromVersion; version < targetVersion; version++) {
+			EntryMigration step = this.steps.get(version);
+			if (step == null) {
+				throw new IOException("There is no migration from version " + version
+						+ " of " + this.file.getName());
+			}
+			chain.add(step);
+		}
+		this.owner.getLogger().info("Migrating " + this.file + " from version " + fromVersion
+				+ " to version " + targetVersion);
+		long start = System.nanoTime();
+		CountingInputStream counter = new CountingInputStream(new FileInputStream(this.file));
+		InputStream in = new BufferedInputStream(counter, FileMigration.BUFFER_SIZE);
+		MigratingVisitor visitor = null;
+		boolean success = false;
+		try {
+			in = PayloadFormat.decompress(in);
+			PayloadCodec codec = PayloadFormat.readCodec(in);
+			JavaSerializationCodec serialization = new JavaSerializationCodec(this.legacyClasses);
+			if (codec.getId() == BinaryCodec.ID) {
+				BinaryCodec binary = new BinaryCodec(serialization);
+				visitor = new MigratingVisitor(chain, new StreamingMapWriter(this.file,
+						binary.isUUIDKeyedMap(in), targetVersion), counter);
+				binary.readMap(new DataInputStream(in), visitor);
+			} else {
+				Object payload = (codec.getId() == JavaSerializationCodec.ID)
+						? serialization.decode(in) : codec.decode(in);
+				if (!(payload instanceof Map<?, ?>)) {
+					throw new IOException("The file does not contain a map");
+				}
+				visitor = new MigratingVisitor(chain, new StreamingMapWriter(this.file,
+						payload instanceof UUIDKeyedMap<?>, targetVersion), counter);
+				for (Map.Entry<?, ?> entry : ((Map<?, ?>) payload).entrySet()) {
+					visitor.visit(entry.getKey(), entry.getValue());
+				}
+			}
+			visitor.reportProgress();
+			success = true;
+		} finally {
+			in.close();
+			if (!success && visitor != null) {
+				visitor.writer.abort();
+			}
+		}
+		visitor.writer.finish();
+		this.owner.getLogger().info("Migrated " + visitor.entries + " entries of " + this.file
+				+ " (" + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms)");
+		return true;
+	}
+
+	/**
+	 * An {@code EntryMigration} converts a single entry of a map from one version of the
+	 * plugin's data classes to the next.
+	 */
+	public interface EntryMigration {
+
+		/**
+		 * Converts the value of a single entry.
+		 *
+		 * @param key the key of the entry. A UUID key is given in its string form.
+		 * @param value the value of the entry, at the old version.
+		 * @return the value of the entry at the new version, or {@code null} to remove
+		 * the entry.
+		 * @throws IOException if the entry could not be converted.
+		 */
+		Object migrate(String key, Object value) throws IOException;
+
+	}
+
+	/**
+	 * A {@code ProgressListener} receives reports of the progress of a migration.
+	 */
+	public interface ProgressListener {
+
+		/**
+		 * Reports the progress of a migration.
+		 *
+		 * @param entries the number of entries that have been migrated.
+		 * @param bytesRead the number of bytes of the old file that have been read.
+		 * @param totalBytes the size of the old file, in bytes.
+		 */
+		void progress(long entries, long bytesRead, long totalBytes);
+
+	}
+
+	/**
+	 * A {@code MigratingVisitor} passes each entry of the old file through every step of
+	 * a migration, and writes the result to the new file.
+	 */
+	private class MigratingVisitor implements BinaryCodec.EntryVisitor {
+
+		/**
+		 * The steps to apply to every entry, in order.
+		 */
+		private final List<EntryMigration> chain;
+
+		/**
+		 * The writer of the new file.
+		 */
+		private final StreamingMapWriter writer;
+
+		/**
+		 * The stream that counts the bytes read from the old file.
+		 */
+		private final CountingInputStream counter;
+
+		/**
+		 * {@code true} if the new file has UUID keys; {@code false} if it has string keys.
+		 */
+		private final boolean uuidKeys;
+
+		/**
+		 * The number of entries that have been migrated.
+		 */
+		private long entries;
+
+		/**
+		 * The last tenth of the file that was written to the log.
+		 */
+		private int loggedTenth;
+
+		/**
+		 * Constructs a new {@code MigratingVisitor}.
+		 *
+		 * @param chain the steps to apply to every entry, in order.
+		 * @param writer the writer of the new file.
+		 * @param counter the stream that counts the bytes read from the old file.
+		 */
+		private MigratingVisitor(List<EntryMigration> chain, StreamingMapWriter writer,
+				CountingInputStream counter) {
+			this.chain = chain;
+			this.writer = writer;
+			this.counter = counter;
+			this.uuidKeys = writer.hasUUIDKeys();
+		}
+
+		@Override
+		public void visit(Object key, Object value) throws IOException {
+			String mapkey;
+			if (key instanceof String) {
+				mapkey = (String) key;
+			} else if (this.uuidKeys && key instanceof UUID) {
+				mapkey = key.toString();
+			} else {
+				throw new IOException("Only maps with string or UUID keys can be migrated");
+			}
+			for (EntryMigration step : this.chain) {
+				value = step.migrate(mapkey, value);
+				if (value == null) {
+					break;
+				}
+			}
+			if (value != null) {
+				this.writer.write(this.uuidKeys ? UUIDKeyedMap.toUUID(mapkey) : mapkey, value);
+			}
+			this.entries++;
+			if (this.entries % FileMigration.PROGRESS_INTERVAL == 0) {
+				this.reportProgress();
+			}
+		}
+
+		/**
+		 * Reports the current progress to the progress listener, or to the log.
+		 */
+		private void reportProgress() {
+			long total = FileMigration.this.file.length();
+			ProgressListener listener = FileMigration.this.progressListener;
+			if (listener != null) {
+				listener.progress(this.entries, this.counter.count, total);
+				return;
+			}
+			int tenth = (total > 0) ? (int) (this.counter.count * 10 / total) : 10;
+			if (tenth > this.loggedTenth && tenth < 10) {
+				this.loggedTenth = tenth;
+				FileMigration.this.owner.getLogger().info("Migrating " + FileMigration.this.file
+						+ ": " + (tenth * 10) + "% (" + this.entries + " entries)");
+			}
+		}
+
+	}
+
+	/**
+	 * A {@code CountingInputStream} counts the bytes that are read through it.
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+
+		/**
+		 * The number of bytes that have been read.
+		 */
+		private long count;
+
+		/**
+		 * Constructs a new {@code CountingInputStream} that reads from the given stream.
+		 *
+		 * @param in the stream to read from.
+		 */
+		private CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = this.in.read();
+			if (b >= 0) {
+				this.count++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = this.in.read(b, off, len);
+			if (read > 0) {
+				this.count += read;
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = this.in.skip(n);
+			this.count += skipped;
+			return skipped;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+	}
+
+}
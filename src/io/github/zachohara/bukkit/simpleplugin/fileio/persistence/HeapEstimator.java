@@ -0,0 +1,387 @@
+/* Copyright (C) 2017 Zach Ohara
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.zachohara.bukkit.simpleplugin.fileio.persistence;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The {@code HeapEstimator} class estimates how many bytes of memory an object and
+ * everything that it refers to take up. The sizes assume a 64-bit virtual machine with
+ * compressed references, which is how servers are usually run. Large collections and
+ * arrays are estimated from a sample of their elements, so the estimate takes time in
+ * proportion to the sample size rather than the size of the data.
+ * <p>
+ * Classes from the Java libraries are not inspected, except for the common collections,
+ * strings, boxed primitives and arrays; any other such object is counted as a small
+ * object with no references. Objects that are reached more than once are counted once.
+ *
+ * @author Zach Ohara
+ */
+final class HeapEstimator {
+
+	/**
+	 * The size of the header of an object, in bytes.
+	 */
+	private static final int OBJECT_HEADER = 12;
+
+	/**
+	 * The size of the header of an array, in bytes.
+	 */
+	private static final int ARRAY_HEADER = 16;
+
+	/**
+	 * The size of a reference, in bytes.
+	 */
+	private static final int REFERENCE = 4;
+
+	/**
+	 * The size of an entry node in a {@code HashMap}, in bytes.
+	 */
+	private static final int HASH_NODE = 32;
+
+	/**
+	 * The size of a node in a linked collection, in bytes.
+	 */
+	private static final int LINKED_NODE = 24;
+
+	/**
+	 * The number of elements of a collection or array that are inspected. Larger
+	 * collections and arrays are estimated from an even sample of this many elements.
+	 */
+	private static final int SAMPLE_SIZE = 64;
+
+	/**
+	 * The deepest chain of references that is followed.
+	 */
+	private static final int MAX_DEPTH = 32;
+
+	/**
+	 * The fields of each class that has been inspected, which hold references.
+	 */
+	private final Map<Class<?>, Field[]> referenceFields;
+
+	/**
+	 * The shallow size of each class that has been inspected, in bytes.
+	 */
+	private final Map<Class<?>, Long> shallowSizes;
+
+	/**
+	 * Every object that has been counted.
+	 */
+	private final Map<Object, Boolean> visited;
+
+	/**
+	 * Constructs a new {@code HeapEstimator} that has not counted any objects.
+	 */
+	private HeapEstimator() {
+		this.referenceFields = new HashMap<Class<?>, Field[]>();
+		this.shallowSizes = new HashMap<Class<?>, Long>();
+		this.visited = new IdentityHashMap<Object, Boolean>();
+	}
+
+	/**
+	 * Estimates the number of bytes of memory taken up by the given objects, and
+	 * everything that they refer to.
+	 *
+	 * @param roots the objects to measure; {@code null} elements are ignored.
+	 * @return the estimated size, in bytes.
+	 */
+	public static long estimate(Object... roots) {
+		HeapEstimator estimator = new HeapEstimator();
+		long size = 0;
+		for (Object root : roots) {
+			size += estimator.sizeOf(root, 0);
+		}
+		return size;
+	}
+
+	/**
+	 * Estimates the size of the given object and everything that it refers to, not
+	 * including any object that has already been counted.
+	 *
+	 * @param object the object to measure.
+	 * @param depth the number of references followed to reach the object.
+	 * @return the estimated size, in bytes.
+	 */
+	private long sizeOf(Object object, int depth) {
+		if (object == null || depth > HeapEstimator.MAX_DEPTH || object instanceof Class<?>
+				|| object instanceof Enum<?> || this.visited.put(object, Boolean.TRUE) != null) {
+			return 0;
+		}
+		Class<?> type = object.getClass();
+		if (type.isArray()) {
+			return this.sizeOfArray(object, depth);
+		}
+		if (object instanceof String) {
+			// A compact string, with one byte per character
+			return HeapEstimator.align(HeapEstimator.OBJECT_HEADER + 12)
+					+ HeapEstimator.align(HeapEstimator.ARRAY_HEADER + ((String) object).length());
+		}
+		if (object instanceof Long || object instanceof Double || object instanceof UUID) {
+			return HeapEstimator.align(HeapEstimator.OBJECT_HEADER + (object instanceof UUID ? 16 : 8));
+		}
+		if (HeapEstimator.isLibraryClass(type)) {
+			if (object instanceof Map<?, ?>) {
+				return this.sizeOfMap((Map<?, ?>) object, depth);
+			}
+			if (object instanceof Collection<?>) {
+				return this.sizeOfCollection((Collection<?>) object, depth);
+			}
+			return HeapEstimator.align(HeapEstimator.OBJECT_HEADER + 4);
+		}
+		long size = this.shallowSizeOf(type);
+		for (Field field : this.referenceFieldsOf(type)) {
+			try {
+				size += this.sizeOf(field.get(object), depth + 1);
+			} catch (IllegalAccessException e) {
+				// Counted as a reference only
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Estimates the size of the given array and its elements.
+	 *
+	 * @param array the array to measure.
+	 * @param depth the number of references followed to reach the array.
+	 * @return the estimated size, in bytes.
+	 */
+	private long sizeOfArray(Object array, int depth) {
+		int length = Array.getLength(array);
+		Class<?> component = array.getClass().getComponentType();
+		if (component.isPrimitive()) {
+			return HeapEstimator.align(HeapEstimator.ARRAY_HEADER
+					+ (long) length * HeapEstimator.primitiveSize(component));
+		}
+		long size = HeapEstimator.align(HeapEstimator.ARRAY_HEADER
+				+ (long) length * HeapEstimator.REFERENCE);
+		if (length == 0) {
+			return size;
+		}
+		int step = Math.max(1, length / HeapEstimator.SAMPLE_SIZE);
+		long sampled = 0;
+		int count = 0;
+		for (int i = 0; i < length; i += step) {
+			sampled += this.sizeOf(Array.get(array, i), depth + 1);
+			count++;
+		}
+		return size + sampled * length / count;
+	}
+
+	/**
+	 * Estimates the size of the given map from the library, and its keys and values.
+	 *
+	 * @param map the map to measure.
+	 * @param depth the number of references followed to reach the map.
+	 * @return the estimated size, in bytes.
+	 */
+	private long sizeOfMap(Map<?, ?> map, int depth) {
+		int size = map.size();
+		long bytes = HeapEstimator.align(HeapEstimator.OBJECT_HEADER + 36)
+				+ HeapEstimator.align(HeapEstimator.ARRAY_HEADER
+						+ (long) HeapEstimator.tableCapacity(size) * HeapEstimator.REFERENCE)
+				+ (long) size * HeapEstimator.HASH_NODE;
+		if (size == 0) {
+			return bytes;
+		}
+		long sampled = 0;
+		int count = 0;
+		Iterator<? extends Map.Entry<?, ?>> entries = map.entrySet().iterator();
+		while (count < HeapEstimator.SAMPLE_SIZE && entries.hasNext()) {
+			Map.Entry<?, ?> entry = entries.next();
+			sampled += this.sizeOf(entry.getKey(), depth + 1);
+			sampled += this.sizeOf(entry.getValue(), depth + 1);
+			count++;
+		}
+		return bytes + sampled * size / count;
+	}
+
+	/**
+	 * Estimates the size of the given collection from the library, and its elements.
+	 *
+	 * @param collection the collection to measure.
+	 * @param depth the number of references followed to reach the collection.
+	 * @return the estimated size, in bytes.
+	 */
+	private long sizeOfCollection(Collection<?> collection, int depth) {
+		int size = collection.size();
+		long bytes = HeapEstimator.align(HeapEstimator.OBJECT_HEADER + 12);
+		if (collection instanceof ArrayList<?>) {
+			bytes += HeapEstimator.align(HeapEstimator.ARRAY_HEADER
+					+ (long) size * HeapEstimator.REFERENCE);
+		} else {
+			bytes += (long) size * HeapEstimator.LINKED_NODE;
+		}
+		if (size == 0) {
+			return bytes;
+		}
+		long sampled = 0;
+		int count = 0;
+		if (collection instanceof List<?> && collection instanceof RandomAccess) {
+			List<?> list = (List<?>) collection;
+			int step = Math.max(1, size / HeapEstimator.SAMPLE_SIZE);
+			for (int i = 0; i < size; i += step) {
+				sampled += this.sizeOf(list.get(i), depth + 1);
+				count++;
+			}
+		} else {
+			Iterator<?> elements = collection.iterator();
+			while (count < HeapEstimator.SAMPLE_SIZE && elements.hasNext()) {
+				sampled += this.sizeOf(elements.next(), depth + 1);
+				count++;
+			}
+		}
+		return bytes + sampled * size / count;
+	}
+
+	/**
+	 * Returns the shallow size of an object of the given class, which is not from the
+	 * library.
+	 *
+	 * @param type the class to measure.
+	 * @return the shallow size, in bytes.
+	 */
+	private long shallowSizeOf(Class<?> type) {
+		Long size = this.shallowSizes.get(type);
+		if (size == null) {
+			this.inspect(type);
+			size = this.shallowSizes.get(type);
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the fields of the given class, which is not from the library, that hold
+	 * references to other objects.
+	 *
+	 * @param type the class to inspect.
+	 * @return the reference fields of the class.
+	 */
+	private Field[] referenceFieldsOf(Class<?> type) {
+		Field[] fields = this.referenceFields.get(type);
+		if (fields == null) {
+			this.inspect(type);
+			fields = this.referenceFields.get(type);
+		}
+		return fields;
+	}
+
+	/**
+	 * Finds the shallow size and reference fields of the given class, and of every
+	 * superclass that is not from the library.
+	 *
+	 * @param type the class to inspect.
+	 */
+	private void inspect(Class<?> type) {
+		long size = HeapEstimator.OBJECT_HEADER;
+		List<Field> references = new ArrayList<Field>();
+		for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+			boolean library = HeapEstimator.isLibraryClass(c);
+			for (Field field : c.getDeclaredFields()) {
+				if (Modifier.isStatic(field.getModifiers())) {
+					continue;
+				}
+				if (field.getType().isPrimitive()) {
+					size += HeapEstimator.primitiveSize(field.getType());
+					continue;
+				}
+				size += HeapEstimator.REFERENCE;
+				if (library) {
+					continue;
+				}
+				try {
+					field.setAccessible(true);
+					references.add(field);
+				} catch (RuntimeException e) {
+					// Counted as a reference only
+				}
+			}
+		}
+		this.shallowSizes.put(type, HeapEstimator.align(size));
+		this.referenceFields.put(type, references.toArray(new Field[references.size()]));
+	}
+
+	/**
+	 * Determines if the given class is part of the Java libraries, and so cannot be
+	 * inspected.
+	 *
+	 * @param type the class to check.
+	 * @return {@code true} if the class is from the library; {@code false} otherwise.
+	 */
+	private static boolean isLibraryClass(Class<?> type) {
+		String name = type.getName();
+		return name.startsWith("java.") || name.startsWith("javax.") || name.startsWith("sun.")
+				|| name.startsWith("jdk.");
+	}
+
+	/**
+	 * Returns the size of a value of the given primitive type.
+	 *
+	 * @param type the primitive type.
+	 * @return the size of the type, in bytes.
+	 */
+	private static int primitiveSize(Class<?> type) {
+		if (type == long.class || type == double.class) {
+			return 8;
+		}
+		if (type == int.class || type == float.class) {
+			return 4;
+		}
+		if (type == short.class || type == char.class) {
+			return 2;
+		}
+		return 1;
+	}
+
+	/**
+	 * Returns the capacity of the table of a {@code HashMap} that holds the given number
+	 * of entries, with the default load factor.
+	 *
+	 * @param size the number of entries.
+	 * @return the capacity of the table.
+	 */
+	private static int tableCapacity(int size) {
+		int capacity = 16;
+		while (capacity * 3L / 4 < size) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+
+	/**
+	 * Rounds the given size up to the alignment of objects in memory.
+	 *
+	 * @param size the size to align.
+	 * @return the aligned size.
+	 */
+	private static long align(long size) {
+		return (size + 7) & ~7L;
+	}
+
+}
@@ -0,0 +1,125 @@
+/* Copyright (C) 2017 Zach Ohara
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.zachohara.bukkit.simpleplugin.fileio.persistence;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The {@code JavaSerializationCodec} stores payloads using Java's standard object
+ * serialization. Files written by this codec have no header, so they are identical to the
+ * files written by earlier versions of this library. This codec can store any
+ * {@code Serializable} object, but it is slow, its files are large, and its files often
+ * cannot be read after the classes they contain are changed.
+ * <p>
+ * To read such files, a codec may be given legacy classes to use in place of the classes
+ * named in the file. A legacy class is a copy of a class as it was when the file was
+ * written, with the same fields, under a different name; the file is read as though it
+ * had been written with the legacy class.
+ *
+ * @author Zach Ohara
+ */
+public class JavaSerializationCodec implements PayloadCodec {
+
+	/**
+	 * The identifier of this codec.
+	 */
+	public static final byte ID = 1;
+
+	/**
+	 * The shared instance of this codec.
+	 */
+	public static final JavaSerializationCodec INSTANCE = new JavaSerializationCodec();
+
+	/**
+	 * The class to use in place of each class named in a file, by the name in the file.
+	 */
+	private final Map<String, Class<?>> legacyClasses;
+
+	/**
+	 * Constructs a new {@code JavaSerializationCodec} that reads every class as it is
+	 * named in the file.
+	 */
+	public JavaSerializationCodec() {
+		this(Collections.<String, Class<?>>emptyMap());
+	}
+
+	/**
+	 * Constructs a new {@code JavaSerializationCodec} that reads the given classes in
+	 * place of the classes named in the file.
+	 *
+	 * @param legacyClasses the class to use in place of each class named in a file, by the
+	 * fully qualified name in the file.
+	 */
+	public JavaSerializationCodec(Map<String, Class<?>> legacyClasses) {
+		this.legacyClasses = new HashMap<String, Class<?>>(legacyClasses);
+	}
+
+	@Override
+	public byte getId() {
+		return JavaSerializationCodec.ID;
+	}
+
+	@Override
+	public void encode(Object value, OutputStream out) throws IOException {
+		ObjectOutputStream objectOut = new ObjectOutputStream(out);
+		objectOut.writeObject(value);
+		objectOut.flush();
+	}
+
+	@Override
+	public Object decode(InputStream in) throws IOException {
+		ObjectInputStream objectIn;
+		if (this.legacyClasses.isEmpty()) {
+			objectIn = new ObjectInputStream(in);
+		} else {
+			objectIn = new ObjectInputStream(in) {
+
+				@Override
+				protected ObjectStreamClass readClassDescriptor()
+						throws IOException, ClassNotFoundException {
+					ObjectStreamClass descriptor = super.readClassDescriptor();
+					Class<?> legacy = JavaSerializationCodec.this.legacyClasses.get(
+							descriptor.getName());
+					return (legacy != null) ? ObjectStreamClass.lookup(legacy) : descriptor;
+				}
+
+				@Override
+				protected Class<?> resolveClass(ObjectStreamClass descriptor)
+						throws IOException, ClassNotFoundException {
+					// A descriptor of a legacy class already knows its class
+					Class<?> local = descriptor.forClass();
+					return (local != null) ? local : super.resolveClass(descriptor);
+				}
+
+			};
+		}
+		try {
+			return objectIn.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		}
+	}
+
+}
@@ -0,0 +1,566 @@
+/* Copyright (C) 2017 Zach Ohara
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.zachohara.bukkit.simpleplugin.fileio.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import io.github.zachohara.bukkit.simpleplugin.fileio.FileUtil;
+
+/**
+ * A {@code KeyFilter} is a Bloom filter over the keys of a map: it can say for certain
+ * that a key is not in the map, and otherwise says that the key might be, with a
+ * configurable chance of being wrong. The bits for each key are kept in a single block of
+ * 64 bytes, so a key that is not in the filter is usually ruled out by reading one cache
+ * line.
+ * <p>
+ * Keys can be added, but never removed. When more keys are added than the filter was
+ * sized for, a stage of twice the size is added to it, with half the false positive rate
+ * of the stage before, so that the chance of a false positive never grows past twice the
+ * configured rate. A filter with more than one stage, or with many keys that have since
+ * been removed from the map, should be rebuilt. Keys can be added from many
+ * threads at once.
+ * <p>
+ * Keys are hashed with {@code hashCode()}, so a filter can only be stored in a file and
+ * used again if every key has a hash code that does not change between server restarts:
+ * a string, a boxed primitive, or a UUID.
+ *
+ * @author Zach Ohara
+ * @see PersistentMap#useKeyFilter(boolean)
+ */
+public class KeyFilter {
+
+	/**
+	 * The first bytes of a file that stores a filter.
+	 */
+	private static final byte[] MAGIC = {'S', 'P', 'K', 'F'};
+
+	/**
+	 * The version of the file format.
+	 */
+	private static final int VERSION = 1;
+
+	/**
+	 * The number of bits in each block.
+	 */
+	private static final int BLOCK_BITS = 512;
+
+	/**
+	 * The number of {@code long}s in each block.
+	 */
+	private static final int BLOCK_LONGS = KeyFilter.BLOCK_BITS / 64;
+
+	/**
+	 * The smallest number of keys that a stage is sized for.
+	 */
+	private static final int MIN_CAPACITY = 1024;
+
+	/**
+	 * The extra bits given to each stage, because keeping the bits for each key in a
+	 * single block raises the false positive rate slightly.
+	 */
+	private static final double BLOCKING_OVERHEAD = 1.125;
+
+	/**
+	 * The chance that a key that was never added is reported as possibly present.
+	 */
+	private final double falsePositiveRate;
+
+	/**
+	 * Whether every key that has been added has a hash code that does not change between
+	 * server restarts.
+	 */
+	private volatile boolean stableHashes;
+
+	/**
+	 * The stages of this filter, in the order they were added. New keys are added to the
+	 * last stage.
+	 */
+	private volatile Stage[] stages;
+
+	/**
+	 * Constructs a new, empty {@code KeyFilter}.
+	 *
+	 * @param expectedKeys the number of keys that the filter should hold before it grows.
+	 * @param falsePositiveRate the chance that a key that was never added is reported as
+	 * possibly present, between {@code 0} and {@code 1}.
+	 */
+	public KeyFilter(int expectedKeys, double falsePositiveRate) {
+		if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+			throw new IllegalArgumentException("The false positive rate must be between 0 and 1");
+		}
+		this.falsePositiveRate = falsePositiveRate;
+		this.stableHashes = true;
+		this.stages = new Stage[] {
+				new Stage(Math.max(expectedKeys, KeyFilter.MIN_CAPACITY), falsePositiveRate)};
+	}
+
+	/**
+	 * Constructs a {@code KeyFilter} with the given stages.
+	 *
+	 * @param falsePositiveRate the false positive rate of the filter.
+	 * @param stages the stages of the filter.
+	 */
+	private KeyFilter(double falsePositiveRate, Stage[] stages) {
+		this.falsePositiveRate = falsePositiveRate;
+		this.stableHashes = true;
+		this.stages = stages;
+	}
+
+	/**
+	 * Adds the given key to this filter.
+	 *
+	 * @param key the key to add, which may be {@code null}.
+	 * @return {@code true} if the key was definitely not in the filter before;
+	 * {@code false} if it might have been.
+	 */
+	public boolean add(Object key) {
+		if (this.stableHashes && !KeyFilter.hasStableHash(key)) {
+			this.stableHashes = false;
+		}
+		long hash = KeyFilter.hash(key);
+		Stage[] current = this.stages;
+		for (Stage stage : current) {
+			if (stage.mightContain(hash)) {
+				return false;
+			}
+		}
+		Stage last = current[current.length - 1];
+		last.add(hash);
+		if (last.count.incrementAndGet() > last.capacity) {
+			this.grow(last);
+		}
+		return true;
+	}
+
+	/**
+	 * Determines if the given key might have been added to this filter.
+	 *
+	 * @param key the key to check, which may be {@code null}.
+	 * @return {@code false} if the key was definitely never added; {@code true} if it
+	 * might have been.
+	 */
+	public boolean mightContain(Object key) {
+		long hash = KeyFilter.hash(key);
+		for (Stage stage : this.stages) {
+			if (stage.mightContain(hash)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the chance that a key that was never added is reported as possibly present.
+	 *
+	 * @return the false positive rate of this filter.
+	 */
+	public double getFalsePositiveRate() {
+		return this.falsePositiveRate;
+	}
+
+	/**
+	 * Returns the number of distinct keys that have been added to this filter. Keys that
+	 * were reported as possibly present when they were added are not counted.
+	 *
+	 * @return the number of keys in this filter.
+	 */
+	public int getKeyCount() {
+		int count = 0;
+		for (Stage stage : this.stages) {
+			count += stage.count.get();
+		}
+		return count;
+	}
+
+	/**
+	 * Determines if every key that has been added to this filter has a hash code that does
+	 * not change between server restarts, so that the filter can be stored in a file and
+	 * used again.
+	 *
+	 * @return {@code true} if the filter can be stored; {@code false} otherwise.
+	 */
+	public boolean hasStableHashes() {
+		return this.stableHashes;
+	}
+
+	/**
+	 * Returns the number of stages in this filter. A filter has more than one stage once
+	 * more keys have been added to it than it was sized for.
+	 *
+	 * @return the number of stages.
+	 */
+	public int getStageCount() {
+		return this.stages.length;
+	}
+
+	/**
+	 * Returns the memory used by the bits of this filter.
+	 *
+	 * @return the size of this filter, in bytes.
+	 */
+	public long getSizeInBytes() {
+		long bytes = 0;
+		for (Stage stage : this.stages) {
+			bytes += stage.bits.length() * 8L;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Adds a larger stage after the given stage, if it is still the last stage.
+	 *
+	 * @param full the stage that has reached its capacity.
+	 */
+	private synchronized void grow(Stage full) {
+		Stage[] current = this.stages;
+		if (current[current.length - 1] != full) {
+			return;
+		}
+		Stage[] grown = Arrays.copyOf(current, current.length + 1);
+		grown[current.length] = new Stage((int) Math.min(Integer.MAX_VALUE / 2,
+				full.capacity * 2L), full.falsePositiveRate / 2);
+		this.stages = grown;
+	}
+
+	/**
+	 * Writes this filter to the given file, along with the size and modification time of
+	 * the given source file, so that the filter is only used again with the same version
+	 * of the source file. The filter is first written to a temporary file, which then
+	 * replaces the real file.
+	 *
+	 * @param file the file to write.
+	 * @param source the file that holds the keys of this filter.
+	 * @throws IOException if the filter could not be written.
+	 * @throws IllegalStateException if some keys do not have stable hash codes.
+	 * @see #hasStableHashes()
+	 */
+	public void writeFile(File file, File source) throws IOException {
+		if (!this.stableHashes) {
+			throw new IllegalStateException("The keys of this filter cannot be stored");
+		}
+		File temp = FileUtil.getTempFile(file);
+		FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(
+					Channels.newOutputStream(channel)), new CRC32());
+			DataOutputStream out = new DataOutputStream(checked);
+			out.write(KeyFilter.MAGIC);
+			out.writeByte(KeyFilter.VERSION);
+			out.writeLong(source.length());
+			out.writeLong(KeyFilter.modifiedTime(source));
+			out.writeDouble(this.falsePositiveRate);
+			Stage[] current = this.stages;
+			out.writeInt(current.length);
+			for (Stage stage : current) {
+				out.writeInt(stage.capacity);
+				out.writeDouble(stage.falsePositiveRate);
+				out.writeInt(stage.count.get());
+				out.writeInt(stage.bits.length());
+				for (int i = 0; i < stage.bits.length(); i++) {
+					out.writeLong(stage.bits.get(i));
+				}
+			}
+			out.writeLong(checked.getChecksum().getValue());
+			out.flush();
+		} finally {
+			channel.close();
+		}
+		FileUtil.replaceFile(temp, file);
+	}
+
+	/**
+	 * Reads a filter that was written by {@link #writeFile(File, File)}, if it was written
+	 * for the current version of the given source file.
+	 *
+	 * @param file the file to read.
+	 * @param source the file that holds the keys of the filter.
+	 * @return the filter that was read, or {@code null} if there is no filter, or if it was
+	 * written for a different version of the source file.
+	 * @throws IOException if the file could not be read, or is damaged.
+	 */
+	public static KeyFilter readFile(File file, File source) throws IOException {
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+		try {
+			CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(
+					Channels.newInputStream(channel)), new CRC32());
+			DataInputStream in = new DataInputStream(checked);
+			byte[] magic = new byte[KeyFilter.MAGIC.length];
+			in.readFully(magic);
+			if (!Arrays.equals(magic, KeyFilter.MAGIC)) {
+				throw new IOException("Not a key filter file: " + file);
+			}
+			int version = in.readUnsignedByte();
+			if (version != KeyFilter.VERSION) {
+				throw new IOException("Unsupported key filter version: " + version);
+			}
+			if (in.readLong() != source.length()
+					|| in.readLong() != KeyFilter.modifiedTime(source)) {
+				return null;
+			}
+			double falsePositiveRate = in.readDouble();
+			int stageCount = in.readInt();
+			if (stageCount <= 0 || stageCount > 32) {
+				throw new IOException("Invalid key filter: " + file);
+			}
+			Stage[] stages = new Stage[stageCount];
+			for (int i = 0; i < stageCount; i++) {
+				int capacity = in.readInt();
+				double stageRate = in.readDouble();
+				int count = in.readInt();
+				int length = in.readInt();
+				if (capacity <= 0 || !(stageRate > 0 && stageRate < 1) || length <= 0
+						|| length % KeyFilter.BLOCK_LONGS != 0
+						|| length > channel.size() / 8) {
+					throw new IOException("Invalid key filter: " + file);
+				}
+				AtomicLongArray bits = new AtomicLongArray(length);
+				for (int j = 0; j < length; j++) {
+					bits.set(j, in.readLong());
+				}
+				stages[i] = new Stage(capacity, stageRate, bits);
+				stages[i].count.set(count);
+			}
+			long expected = checked.getChecksum().getValue();
+			if (in.readLong() != expected) {
+				throw new IOException("Key filter is damaged: " + file);
+			}
+			return new KeyFilter(falsePositiveRate, stages);
+		} catch (EOFException e) {
+			throw new IOException("Key filter is incomplete: " + file, e);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Returns the modification time of the given file, as precisely as the file system
+	 * records it.
+	 *
+	 * @param file the file.
+	 * @return the modification time, in nanoseconds since the epoch, or {@code 0} if the
+	 * file does not exist.
+	 * @throws IOException if the modification time could not be read.
+	 */
+	private static long modifiedTime(File file) throws IOException {
+		try {
+			return Files.getLastModifiedTime(file.toPath()).to(TimeUnit.NANOSECONDS);
+		} catch (NoSuchFileException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Determines if the given key has a hash code that is specified by its class, and so
+	 * does not change between server restarts.
+	 *
+	 * @param key the key, which may be {@code null}.
+	 * @return {@code true} if the hash code of the key is stable; {@code false} otherwise.
+	 */
+	private static boolean hasStableHash(Object key) {
+		if (key == null) {
+			return true;
+		}
+		Class<?> type = key.getClass();
+		return type == String.class || type == Integer.class || type == Long.class
+				|| type == UUID.class || type == Short.class || type == Byte.class
+				|| type == Character.class || type == Boolean.class || type == Double.class
+				|| type == Float.class;
+	}
+
+	/**
+	 * Hashes the given key.
+	 *
+	 * @param key the key, which may be {@code null}.
+	 * @return the 64-bit hash of the key.
+	 */
+	private static long hash(Object key) {
+		return KeyFilter.mix((key == null) ? 0 : key.hashCode());
+	}
+
+	/**
+	 * Spreads the bits of the given number over every bit of the result.
+	 *
+	 * @param value the number to mix.
+	 * @return the mixed number.
+	 */
+	private static long mix(long value) {
+		value = (value + 0x9E3779B97F4A7C15L) * 0xBF58476D1CE4E5B9L;
+		value = (value ^ (value >>> 30)) * 0x94D049BB133111EBL;
+		value = (value ^ (value >>> 27)) * 0xBF58476D1CE4E5B9L;
+		return value ^ (value >>> 31);
+	}
+
+	/**
+	 * A {@code Stage} is a blocked Bloom filter with a fixed size.
+	 */
+	private static final class Stage {
+
+		/**
+		 * The number of keys that this stage is sized for.
+		 */
+		private final int capacity;
+
+		/**
+		 * The false positive rate of this stage when it holds {@code capacity} keys.
+		 */
+		private final double falsePositiveRate;
+
+		/**
+		 * The number of bits that are set for each key.
+		 */
+		private final int hashes;
+
+		/**
+		 * The number of blocks in this stage.
+		 */
+		private final int blocks;
+
+		/**
+		 * The bits of this stage.
+		 */
+		private final AtomicLongArray bits;
+
+		/**
+		 * The number of keys that have been added to this stage.
+		 */
+		private final AtomicInteger count;
+
+		/**
+		 * Constructs a new, empty {@code Stage}.
+		 *
+		 * @param capacity the number of keys that the stage is sized for.
+		 * @param falsePositiveRate the false positive rate when the stage is full.
+		 */
+		private Stage(int capacity, double falsePositiveRate) {
+			this(capacity, falsePositiveRate, new AtomicLongArray(
+					Stage.blocksFor(capacity, falsePositiveRate) * KeyFilter.BLOCK_LONGS));
+		}
+
+		/**
+		 * Constructs a {@code Stage} with the given bits.
+		 *
+		 * @param capacity the number of keys that the stage is sized for.
+		 * @param falsePositiveRate the false positive rate when the stage is full.
+		 * @param bits the bits of the stage.
+		 */
+		private Stage(int capacity, double falsePositiveRate, AtomicLongArray bits) {
+			this.capacity = capacity;
+			this.falsePositiveRate = falsePositiveRate;
+			this.hashes = (int) Math.max(1, Math.min(16, Math.round(
+					-Math.log(falsePositiveRate) / Math.log(2))));
+			this.blocks = bits.length() / KeyFilter.BLOCK_LONGS;
+			this.bits = bits;
+			this.count = new AtomicInteger();
+		}
+
+		/**
+		 * Finds the number of blocks that a stage needs to hold the given number of keys
+		 * with the given false positive rate.
+		 *
+		 * @param capacity the number of keys.
+		 * @param falsePositiveRate the false positive rate.
+		 * @return the number of blocks.
+		 */
+		private static int blocksFor(int capacity, double falsePositiveRate) {
+			double bitsPerKey = -Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+			double bits = capacity * bitsPerKey * KeyFilter.BLOCKING_OVERHEAD;
+			return (int) Math.max(1, Math.min(Integer.MAX_VALUE / KeyFilter.BLOCK_LONGS,
+					Math.ceil(bits / KeyFilter.BLOCK_BITS)));
+		}
+
+		/**
+		 * Sets the bits for the key with the given hash.
+		 *
+		 * @param hash the hash of the key.
+		 */
+		private void add(long hash) {
+			int base = this.blockOf(hash);
+			// The high bits choose the block, so the low bits choose the bits within it
+			int step = (int) (hash >>> 23) | 1;
+			int position = (int) hash;
+			for (int i = 0; i < this.hashes; i++) {
+				int bit = position & (KeyFilter.BLOCK_BITS - 1);
+				int index = base + (bit >>> 6);
+				long mask = 1L << bit;
+				long word = this.bits.get(index);
+				while ((word & mask) == 0 && !this.bits.compareAndSet(index, word, word | mask)) {
+					word = this.bits.get(index);
+				}
+				position += step;
+			}
+		}
+
+		/**
+		 * Determines if every bit for the key with the given hash is set.
+		 *
+		 * @param hash the hash of the key.
+		 * @return {@code true} if the key might have been added; {@code false} otherwise.
+		 */
+		private boolean mightContain(long hash) {
+			int base = this.blockOf(hash);
+			// The high bits choose the block, so the low bits choose the bits within it
+			int step = (int) (hash >>> 23) | 1;
+			int position = (int) hash;
+			for (int i = 0; i < this.hashes; i++) {
+				int bit = position & (KeyFilter.BLOCK_BITS - 1);
+				if ((this.bits.get(base + (bit >>> 6)) & (1L << bit)) == 0) {
+					return false;
+				}
+				position += step;
+			}
+			return true;
+		}
+
+		/**
+		 * Finds the index of the first {@code long} of the block for the key with the given
+		 * hash.
+		 *
+		 * @param hash the hash of the key.
+		 * @return the index of the block's first {@code long}.
+		 */
+		private int blockOf(long hash) {
+			return (int) (((hash >>> 32) * this.blocks) >>> 32) * KeyFilter.BLOCK_LONGS;
+		}
+
+	}
+
+}
@@ -0,0 +1,536 @@
+/* Copyright (C) 2017 Zach Ohara
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.github.zachohara.bukkit.simpleplugin.fileio.persistence;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * The {@code LZCompression} compresses files with a simple, fast algorithm in the LZ77
+ * family, which replaces repeated sequences of bytes with references to their earlier
+ * copies. It runs entirely in Java, needs no other library, and compresses and
+ * decompresses many times faster than the {@code DeflateCompression}, at the cost of
+ * larger files. It works best on data with many repeated strings, such as the keys and
+ * values of a large map.
+ * <p>
+ * The data is split into blocks of {@value #BLOCK_SIZE} bytes, each of which is
+ * compressed on its own. Each block starts with its uncompressed and compressed lengths
+ * and the CRC-32 of its uncompressed bytes, so that a damaged file is always detected, and
+ * a block that would not get smaller is stored as it is. A block with an uncompressed
+ * length of {@code 0} marks the end of the data.
+ *
+ * @author Zach Ohara
+ * @see DeflateCompression
+ */
+public class LZCompression implements PayloadCompression {
+
+	/**
+	 * The identifier of this compression.
+	 */
+	public static final byte ID = 2;
+
+	/**
+	 * The shared instance of this compression.
+	 */
+	public static final LZCompression INSTANCE = new LZCompression();
+
+	/**
+	 * The largest number of uncompressed bytes in a block. References never reach further
+	 * back than this, so their distance always fits in two bytes.
+	 */
+	public static final int BLOCK_SIZE = 64 * 1024;
+
+	/**
+	 * The flag that is set in the compressed length of a block that is stored as it is.
+	 */
+	private static final int STORED_FLAG = 0x80000000;
+
+	/**
+	 * The shortest sequence of bytes that is replaced with a reference.
+	 */
+	private static final int MIN_MATCH = 4;
+
+	/**
+	 * The number of bits in the index of the table of recent positions.
+	 */
+	private static final int HASH_BITS = 14;
+
+	/**
+	 * The largest length that fits in one half of the token byte of a sequence; longer
+	 * lengths continue in the following bytes.
+	 */
+	private static final int TOKEN_MAX = 15;
+
+	@Override
+	public byte getId() {
+		return LZCompression.ID;
+	}
+
+	@Override
+	public OutputStream compress(OutputStream out) {
+		return new CompressingStream(out);
+	}
+
+	@Override
+	public InputStream decompress(InputStream in) {
+		return new DecompressingStream(in);
+	}
+
+	/**
+	 * Compresses the given block of bytes.
+	 *
+	 * @param src the bytes to compress.
+	 * @param length the number of bytes to compress.
+	 * @param dst the array to write the compressed bytes to, which must have room for at
+	 * least {@link #maxCompressedLength(int)} bytes.
+	 * @param table the table of recent positions to use, which is overwritten.
+	 * @return the number of compressed bytes.
+	 */
+	static int compressBlock(byte[] src, int length, byte[] dst, int[] table) {
+		Arrays.fill(table, 0);
+		int op = 0;
+		int anchor = 0;
+		int pos = 0;
+		int limit = length - LZCompression.MIN_MATCH;
+		while (pos <= limit) {
+			int sequence = LZCompression.readInt(src, pos);
+			int hash = (sequence * -1640531535) >>> (32 - LZCompression.HASH_BITS);
+			// Positions are stored plus one, so that zero means an empty slot
+			int candidate = table[hash] - 1;
+			table[hash] = pos + 1;
+			if (candidate < 0 || LZCompression.readInt(src, candidate) != sequence) {
+				// Skip faster through data that does not compress
+				pos += 1 + ((pos - anchor) >>> 6);
+				continue;
+			}
+			int matchLength = LZCompression.MIN_MATCH;
+			while (pos + matchLength < length && src[candidate + matchLength] == src[pos + matchLength]) {
+				matchLength++;
+			}
+			int tokenIndex = op;
+			op = LZCompression.writeSequence(src, anchor, pos - anchor, dst, op);
+			int distance = pos - candidate;
+			dst[op++] = (byte) distance;
+			dst[op++] = (byte) (distance >>> 8);
+			op = LZCompression.writeMatchLength(dst, tokenIndex, op,
+					matchLength - LZCompression.MIN_MATCH);
+			pos += matchLength;
+			anchor = pos;
+		}
+		// The last sequence holds only literals, which tells the reader the block is over
+		return LZCompression.writeSequence(src, anchor, length - anchor, dst, op);
+	}
+
+	/**
+	 * Decompresses the given block of bytes.
+	 *
+	 * @param src the compressed bytes.
+	 * @param length the number of compressed bytes.
+	 * @param dst the array to write the uncompressed bytes to.
+	 * @param expected the number of uncompressed bytes.
+	 * @throws IOException if the compressed bytes are not valid.
+	 */
+	static void decompressBlock(byte[] src, int length, byte[] dst, int expected)
+			throws IOException {
+		int ip = 0;
+		int op = 0;
+		try {
+			while (true) {
+				if (ip >= length) {
+					throw new IOException("Compressed block is incomplete");
+				}
+				int token = src[ip++] & 0xFF;
+				int literals = token >>> 4;
+				if (literals == LZCompression.TOKEN_MAX) {
+					int extra;
+					do {
+						extra = src[ip++] & 0xFF;
+						literals += extra;
+					} while (extra == 255);
+				}
+				if (ip + literals > length || op + literals > expected) {
+					throw new IOException("Compressed block is corrupt");
+				}
+				System.arraycopy(src, ip, dst, op, literals);
+				ip += literals;
+				op += literals;
+				if (ip == length) {
+					break;
+				}
+				int distance = (src[ip++] & 0xFF) | ((src[ip++] & 0xFF) << 8);
+				int matchLength = token & 0x0F;
+				if (matchLength == LZCompression.TOKEN_MAX) {
+					int extra;
+					do {
+						extra = src[ip++] & 0xFF;
+						matchLength += extra;
+					} while (extra == 255);
+				}
+				matchLength += LZCompression.MIN_MATCH;
+				if (distance == 0 || distance > op || op + matchLength > expected) {
+					throw new IOException("Compressed block is corrupt");
+				}
+				// Copied one byte at a time, because a match may overlap its own output
+				for (int from = op - distance, end = op + matchLength; op < end; op++, from++) {
+					dst[op] = dst[from];
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Compressed block is corrupt", e);
+		}
+		if (op != expected) {
+			throw new IOException("Compressed block is incomplete");
+		}
+	}
+
+	/**
+	 * Returns the largest number of bytes that a block of the given length can be
+	 * compressed to.
+	 *
+	 * @param length the number of uncompressed bytes.
+	 * @return the largest possible number of compressed bytes.
+	 */
+	static int maxCompressedLength(int length) {
+		return length + length / 255 + 16;
+	}
+
+	/**
+	 * Writes the token and literals of a sequence. The length of the match, if any, is
+	 * added to the token afterwards.
+	 *
+	 * @param src the uncompressed bytes.
+	 * @param start the index of the first literal.
+	 * @param literals the number of literals.
+	 * @param dst the array of compressed bytes.
+	 * @param op the index to write to.
+	 * @return the index after the literals.
+	 */
+	private static int writeSequence(byte[] src, int start, int literals, byte[] dst, int op) {
+		int tokenIndex = op++;
+		if (literals >= LZCompression.TOKEN_MAX) {
+			dst[tokenIndex] = (byte) (LZCompression.TOKEN_MAX << 4);
+			op = LZCompression.writeExtraLength(dst, op, literals - LZCompression.TOKEN_MAX);
+		} else {
+			dst[tokenIndex] = (byte) (literals << 4);
+		}
+		System.arraycopy(src, start, dst, op, literals);
+		return op + literals;
+	}
+
+	/**
+	 * Writes the length of a match, in the token of its sequence and in the following
+	 * bytes if necessary.
+	 *
+	 * @param dst the array of compressed bytes.
+	 * @param tokenIndex the index of the token of the sequence.
+	 * @param op the index after the distance of the match.
+	 * @param length the length of the match, less the shortest length.
+	 * @return the index after the length.
+	 */
+	private static int writeMatchLength(byte[] dst, int tokenIndex, int op, int length) {
+		if (length >= LZCompression.TOKEN_MAX) {
+			dst[tokenIndex] |= LZCompression.TOKEN_MAX;
+			return LZCompression.writeExtraLength(dst, op, length - LZCompression.TOKEN_MAX);
+		}
+		dst[tokenIndex] |= length;
+		return op;
+	}
+
+	/**
+	 * Writes the part of a length that does not fit in the token, as a series of bytes
+	 * that ends with the first byte that is less than {@code 255}.
+	 *
+	 * @param dst the array of compressed bytes.
+	 * @param op the index to write to.
+	 * @param length the remaining length.
+	 * @return the index after the length.
+	 */
+	private static int writeExtraLength(byte[] dst, int op, int length) {
+		while (length >= 255) {
+			dst[op++] = (byte) 255;
+			length -= 255;
+		}
+		dst[op++] = (byte) length;
+		return op;
+	}
+
+	/**
+	 * Reads four bytes as an {@code int}.
+	 *
+	 * @param bytes the array to read from.
+	 * @param index the index of the first byte.
+	 * @return the four bytes, as an {@code int}.
+	 */
+	private static int readInt(byte[] bytes, int index) {
+		return (bytes[index] & 0xFF) | ((bytes[index + 1] & 0xFF) << 8)
+				| ((bytes[index + 2] & 0xFF) << 16) | (bytes[index + 3] << 24);
+	}
+
+	/**
+	 * A {@code CompressingStream} collects the bytes written to it into blocks, and writes
+	 * each block to the underlying stream once it is full. Flushing the stream does not
+	 * end the current block; only closing the stream writes the last block.
+	 */
+	private static class CompressingStream extends OutputStream {
+
+		/**
+		 * The stream that the compressed blocks are written to.
+		 */
+		private final DataOutputStream out;
+
+		/**
+		 * The bytes of the current block.
+		 */
+		private final byte[] block = new byte[LZCompression.BLOCK_SIZE];
+
+		/**
+		 * The compressed bytes of the block being written.
+		 */
+		private final byte[] compressed = new byte[LZCompression.maxCompressedLength(LZCompression.BLOCK_SIZE)];
+
+		/**
+		 * The table of recent positions, which is reused for every block.
+		 */
+		private final int[] table = new int[1 << LZCompression.HASH_BITS];
+
+		/**
+		 * The checksum of the uncompressed bytes of each block.
+		 */
+		private final CRC32 checksum = new CRC32();
+
+		/**
+		 * The number of bytes in the current block.
+		 */
+		private int count;
+
+		/**
+		 * {@code true} once this stream has been closed.
+		 */
+		private boolean closed;
+
+		/**
+		 * Constructs a new {@code CompressingStream} that writes to the given stream.
+		 *
+		 * @param out the stream to write the compressed blocks to.
+		 */
+		public CompressingStream(OutputStream out) {
+			this.out = new DataOutputStream(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (this.count == this.block.length) {
+				this.writeBlock();
+			}
+			this.block[this.count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (this.count == this.block.length) {
+					this.writeBlock();
+				}
+				int chunk = Math.min(len, this.block.length - this.count);
+				System.arraycopy(b, off, this.block, this.count, chunk);
+				this.count += chunk;
+				off += chunk;
+				len -= chunk;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			this.out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (this.closed) {
+				return;
+			}
+			this.closed = true;
+			try {
+				if (this.count > 0) {
+					this.writeBlock();
+				}
+				this.out.writeInt(0);
+				this.out.flush();
+			} finally {
+				this.out.close();
+			}
+		}
+
+		/**
+		 * Compresses the current block, and writes it to the underlying stream.
+		 *
+		 * @throws IOException if the block could not be written.
+		 */
+		private void writeBlock() throws IOException {
+			int length = LZCompression.compressBlock(this.block, this.count, this.compressed, this.table);
+			this.checksum.reset();
+			this.checksum.update(this.block, 0, this.count);
+			this.out.writeInt(this.count);
+			this.out.writeInt((int) this.checksum.getValue());
+			if (length < this.count) {
+				this.out.writeInt(length);
+				this.out.write(this.compressed, 0, length);
+			} else {
+				this.out.writeInt(this.count | LZCompression.STORED_FLAG);
+				this.out.write(this.block, 0, this.count);
+			}
+			this.count = 0;
+		}
+
+	}
+
+	/**
+	 * A {@code DecompressingStream} reads the compressed blocks from the underlying stream
+	 * one at a time, and returns the bytes of each block in turn.
+	 */
+	private static class DecompressingStream extends InputStream {
+
+		/**
+		 * The stream that the compressed blocks are read from.
+		 */
+		private final DataInputStream in;
+
+		/**
+		 * The uncompressed bytes of the current block.
+		 */
+		private final byte[] block = new byte[LZCompression.BLOCK_SIZE];
+
+		/**
+		 * The compressed bytes of the block being read.
+		 */
+		private final byte[] compressed = new byte[LZCompression.maxCompressedLength(LZCompression.BLOCK_SIZE)];
+
+		/**
+		 * The checksum of the uncompressed bytes of each block.
+		 */
+		private final CRC32 checksum = new CRC32();
+
+		/**
+		 * The number of bytes in the current block.
+		 */
+		private int count;
+
+		/**
+		 * The index of the next byte to return from the current block.
+		 */
+		private int position;
+
+		/**
+		 * {@code true} once the block that marks the end of the data has been read.
+		 */
+		private boolean finished;
+
+		/**
+		 * Constructs a new {@code DecompressingStream} that reads from the given stream.
+		 *
+		 * @param in the stream to read the compressed blocks from.
+		 */
+		public DecompressingStream(InputStream in) {
+			this.in = new DataInputStream(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (this.position == this.count && !this.readBlock()) {
+				return -1;
+			}
+			return this.block[this.position++] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (this.position == this.count && !this.readBlock()) {
+				return -1;
+			}
+			int chunk = Math.min(len, this.count - this.position);
+			System.arraycopy(this.block, this.position, b, off, chunk);
+			this.position += chunk;
+			return chunk;
+		}
+
+		@Override
+		public int available() {
+			return this.count - this.position;
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.in.close();
+		}
+
+		/**
+		 * Reads and decompresses the next block.
+		 *
+		 * @return {@code true} if a block was read; {@code false} at the end of the data.
+		 * @throws IOException if the block could not be read.
+		 */
+		private boolean readBlock() throws IOException {
+			if (this.finished) {
+				return false;
+			}
+			int length;
+			try {
+				length = this.in.readInt();
+			} catch (EOFException e) {
+				throw new IOException("Compressed data ends without an end marker", e);
+			}
+			if (length == 0) {
+				this.finished = true;
+				return false;
+			} else if (length < 0 || length > this.block.length) {
+				throw new IOException("Invalid block length: " + length);
+			}
+			int expectedChecksum = this.in.readInt();
+			int stored = this.in.readInt();
+			if ((stored & LZCompression.STORED_FLAG) != 0) {
+				if ((stored & ~LZCompression.STORED_FLAG) != length) {
+					throw new IOException("Invalid stored block length: " + stored);
+				}
+				this.in.readFully(this.block, 0, length);
+			} else {
+				if (stored <= 0 || stored > this.compressed.length) {
+					throw new IOException("Invalid compressed block length: " + stored);
+				}
+				this.in.readFully(this.compressed, 0, stored);
+				LZCompression.decompressBlock(this.compressed, stored, this.block, length);
+			}
+			this.checksum.reset();
+			this.checksum.update(this.block, 0, length);
+			if ((int) this.checksum.getValue() != expectedChecksum) {
+				throw new IOException("Compressed block does not match its checksum");
+			}
+			this.count = length;
+			this.position = 0;
+			return true;
+		}
+
+	}
+
+}
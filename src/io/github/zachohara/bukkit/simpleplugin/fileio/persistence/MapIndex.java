@@ -0,0 +1,393 @@
+/* Copyright (C) 2017 Zach Ohara
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.zachohara.bukkit.simpleplugin.fileio.persistence;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.function.Function;
+
+import io.github.zachohara.bukkit.simpleplugin.fileio.FileExecutor;
+
+/**
+ * A {@code MapIndex} is a secondary index on the values of a {@code TrackedMap}. Each
+ * value is passed to an extractor function, such as one that returns the rank of a
+ * player or the world of a home, and the index keeps track of the keys whose values have
+ * each result. A lookup then takes time proportional to the number of keys it returns,
+ * instead of a scan of every value in the map.
+ * <p>
+ * An index is created by {@link TrackedMap#addIndex(String, Function)} or
+ * {@link TrackedMap#addSortedIndex(String, Function)}, and is kept up to date by the
+ * map on every change. An index is never stored: it is built from the contents of the
+ * map when it is added, with the extractor run in parallel for large maps. A value whose
+ * extracted result is {@code null} is left out of the index. A sorted index also supports
+ * lookups of every key whose result falls in a range.
+ * <p>
+ * If a value is changed in place, the map must be told through
+ * {@link TrackedMap#markDirty(Object)}, which also updates every index. Every
+ * method of an index is thread safe, and every lookup returns a copy, so the results may
+ * be used while the map continues to change.
+ *
+ * @param <K> the key type of the map.
+ * @param <V> the value type of the map.
+ * @param <T> the type of the results of the extractor.
+ * @author Zach Ohara
+ * @see TrackedMap
+ */
+public class MapIndex<K, V, T> {
+
+	/**
+	 * The smallest number of entries for which the extractor is run in parallel when the
+	 * index is built.
+	 */
+	private static final int PARALLEL_THRESHOLD = 8192;
+
+	/**
+	 * The name of this index.
+	 */
+	private final String name;
+
+	/**
+	 * The function that extracts the indexed result from each value.
+	 */
+	private final Function<? super V, ? extends T> extractor;
+
+	/**
+	 * The keys whose values have each result. This is a {@code TreeMap} if the index is
+	 * sorted, or a {@code HashMap} otherwise.
+	 */
+	private final Map<T, Set<K>> postings;
+
+	/**
+	 * The result that each indexed key is currently filed under, so that a key can be
+	 * moved even after its value has been changed in place.
+	 */
+	private final Map<K, T> results;
+
+	/**
+	 * Constructs a new {@code MapIndex}.
+	 *
+	 * @param name the name of the index.
+	 * @param extractor the function that extracts the indexed result from each value.
+	 * @param comparator the order of the results of a sorted index, or {@code null} if the
+	 * index is not sorted.
+	 */
+	MapIndex(String name, Function<? super V, ? extends T> extractor,
+			Comparator<? super T> comparator) {
+		this.name = name;
+		this.extractor = extractor;
+		if (comparator != null) {
+			this.postings = new TreeMap<T, Set<K>>(comparator);
+		} else {
+			this.postings = new HashMap<T, Set<K>>();
+		}
+		this.results = new HashMap<K, T>();
+	}
+
+	/**
+	 * Returns the name of this index.
+	 *
+	 * @return the name of this index.
+	 */
+	public String getName() {
+		return this.name;
+	}
+
+	/**
+	 * Determines if this index keeps its results in order, so that it supports range
+	 * lookups.
+	 *
+	 * @return {@code true} if this index is sorted; {@code false} otherwise.
+	 */
+	public boolean isSorted() {
+		return this.postings instanceof TreeMap<?, ?>;
+	}
+
+	/**
+	 * Returns every key whose value has the given result.
+	 *
+	 * @param result the result to look up.
+	 * @return a copy of the set of keys with the given result, which is empty if there
+	 * are none.
+	 */
+	public synchronized Set<K> get(T result) {
+		Set<K> keys = this.postings.get(result);
+		return (keys == null) ? new HashSet<K>() : new HashSet<K>(keys);
+	}
+
+	/**
+	 * Returns the number of keys whose value has the given result.
+	 *
+	 * @param result the result to look up.
+	 * @return the number of keys with the given result.
+	 */
+	public synchronized int count(T result) {
+		Set<K> keys = this.postings.get(result);
+		return (keys == null) ? 0 : keys.size();
+	}
+
+	/**
+	 * Returns every key whose value has a result between the given bounds. The keys are
+	 * returned in the order of their results. This lookup is only supported by a sorted
+	 * index.
+	 *
+	 * @param from the lowest result to include, or {@code null} for no lower bound.
+	 * @param fromInclusive {@code true} if keys with a result equal to {@code from} should
+	 * be included; {@code false} otherwise.
+	 * @param to the highest result to include, or {@code null} for no upper bound.
+	 * @param toInclusive {@code true} if keys with a result equal to {@code to} should be
+	 * included; {@code false} otherwise.
+	 * @return a copy of the set of keys with a result in the range.
+	 * @throws UnsupportedOperationException if this index is not sorted.
+	 */
+	public synchronized Set<K> getRange(T from, boolean fromInclusive, T to, boolean toInclusive) {
+		Set<K> keys = new LinkedHashSet<K>();
+		for (Set<K> matching : this.navigableRange(from, fromInclusive, to, toInclusive).values()) {
+			keys.addAll(matching);
+		}
+		return keys;
+	}
+
+	/**
+	 * Returns every key whose value has a result that is at least {@code from} and less
+	 * than {@code to}. The keys are returned in the order of their results. This lookup is
+	 * only supported by a sorted index.
+	 *
+	 * @param from the lowest result to include, or {@code null} for no lower bound.
+	 * @param to the result to stop before, or {@code null} for no upper bound.
+	 * @return a copy of the set of keys with a result in the range.
+	 * @throws UnsupportedOperationException if this index is not sorted.
+	 */
+	public Set<K> getRange(T from, T to) {
+		return this.getRange(from, true, to, false);
+	}
+
+	/**
+	 * Returns the number of keys whose value has a result between the given bounds. This
+	 * lookup is only supported by a sorted index.
+	 *
+	 * @param from the lowest result to include, or {@code null} for no lower bound.
+	 * @param fromInclusive {@code true} if keys with a result equal to {@code from} should
+	 * be counted; {@code false} otherwise.
+	 * @param to the highest result to include, or {@code null} for no upper bound.
+	 * @param toInclusive {@code true} if keys with a result equal to {@code to} should be
+	 * counted; {@code false} otherwise.
+	 * @return the number of keys with a result in the range.
+	 * @throws UnsupportedOperationException if this index is not sorted.
+	 */
+	public synchronized int countRange(T from, boolean fromInclusive, T to, boolean toInclusive) {
+		int count = 0;
+		for (Set<K> matching : this.navigableRange(from, fromInclusive, to, toInclusive).values()) {
+			count += matching.size();
+		}
+		return count;
+	}
+
+	/**
+	 * Returns every distinct result in this index. The results of a sorted index are
+	 * returned in order.
+	 *
+	 * @return a copy of the set of results.
+	 */
+	public synchronized Set<T> getResults() {
+		return new LinkedHashSet<T>(this.postings.keySet());
+	}
+
+	/**
+	 * Returns the result that the given key is currently indexed under.
+	 *
+	 * @param key the key to look up.
+	 * @return the result for the key, or {@code null} if the key is not indexed.
+	 */
+	public synchronized T getResult(K key) {
+		return this.results.get(key);
+	}
+
+	/**
+	 * Returns the number of keys in this index.
+	 *
+	 * @return the number of indexed keys.
+	 */
+	public synchronized int size() {
+		return this.results.size();
+	}
+
+	/**
+	 * Files the given key under the result of the given value, moving it from the result
+	 * it was filed under before, if any.
+	 *
+	 * @param key the key that was changed.
+	 * @param value the new value for the key, or {@code null} if the key was removed.
+	 */
+	void update(K key, V value) {
+		T result = (value == null) ? null : this.extractor.apply(value);
+		synchronized (this) {
+			this.file(key, result);
+		}
+	}
+
+	/**
+	 * Removes every key from this index.
+	 */
+	synchronized void clear() {
+		this.postings.clear();
+		this.results.clear();
+	}
+
+	/**
+	 * Replaces the contents of this index with the results of every entry of the given
+	 * map. For a large map, the extractor is run on many threads at once.
+	 *
+	 * @param data the entries to index.
+	 */
+	@SuppressWarnings("unchecked")
+	void rebuild(Map<K, V> data) {
+		final Object[] keys = new Object[data.size()];
+		final Object[] values = new Object[keys.length];
+		int count = 0;
+		for (Map.Entry<K, V> entry : data.entrySet()) {
+			if (count == keys.length) {
+				break;
+			}
+			keys[count] = entry.getKey();
+			values[count] = entry.getValue();
+			count++;
+		}
+		final Object[] extracted = new Object[count];
+		int chunks = (count < MapIndex.PARALLEL_THRESHOLD) ? 1
+				: Math.min(Runtime.getRuntime().availableProcessors() * 4,
+						count / (MapIndex.PARALLEL_THRESHOLD / 4));
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(chunks);
+		for (int chunk = 0; chunk < chunks; chunk++) {
+			final int from = (int) ((long) count * chunk / chunks);
+			final int to = (int) ((long) count * (chunk + 1) / chunks);
+			tasks.add(new Callable<Void>() {
+
+				@Override
+				public Void call() {
+					for (int i = from; i < to; i++) {
+						if (values[i] != null) {
+							extracted[i] = MapIndex.this.extractor.apply((V) values[i]);
+						}
+					}
+					return null;
+				}
+
+			});
+		}
+		if (chunks == 1) {
+			try {
+				tasks.get(0).call();
+			} catch (Exception e) {
+				throw MapIndex.unchecked(e);
+			}
+		} else {
+			try {
+				FileExecutor.invokeAll(tasks);
+			} catch (IOException e) {
+				throw MapIndex.unchecked(e.getCause() != null ? e.getCause() : e);
+			}
+		}
+		synchronized (this) {
+			this.clear();
+			for (int i = 0; i < count; i++) {
+				this.file((K) keys[i], (T) extracted[i]);
+			}
+		}
+	}
+
+	/**
+	 * Files the given key under the given result, moving it from the result it was filed
+	 * under before, if any. The caller must hold the lock of this index.
+	 *
+	 * @param key the key to file.
+	 * @param result the new result for the key, or {@code null} to remove the key.
+	 */
+	private void file(K key, T result) {
+		T previous = (result == null) ? this.results.remove(key) : this.results.put(key, result);
+		if (previous != null) {
+			if (previous.equals(result)) {
+				return;
+			}
+			Set<K> keys = this.postings.get(previous);
+			keys.remove(key);
+			if (keys.isEmpty()) {
+				this.postings.remove(previous);
+			}
+		}
+		if (result != null) {
+			Set<K> keys = this.postings.get(result);
+			if (keys == null) {
+				keys = new HashSet<K>(4);
+				this.postings.put(result, keys);
+			}
+			keys.add(key);
+		}
+	}
+
+	/**
+	 * Returns the part of the sorted results between the given bounds. The caller must
+	 * hold the lock of this index.
+	 *
+	 * @param from the lowest result, or {@code null} for no lower bound.
+	 * @param fromInclusive {@code true} if the lowest result is included.
+	 * @param to the highest result, or {@code null} for no upper bound.
+	 * @param toInclusive {@code true} if the highest result is included.
+	 * @return a view of the results in the range.
+	 * @throws UnsupportedOperationException if this index is not sorted.
+	 */
+	private NavigableMap<T, Set<K>> navigableRange(T from, boolean fromInclusive, T to,
+			boolean toInclusive) {
+		if (!this.isSorted()) {
+			throw new UnsupportedOperationException("Index " + this.name + " is not sorted");
+		}
+		NavigableMap<T, Set<K>> sorted = (TreeMap<T, Set<K>>) this.postings;
+		if (from != null && to != null) {
+			return sorted.subMap(from, fromInclusive, to, toInclusive);
+		} else if (from != null) {
+			return sorted.tailMap(from, fromInclusive);
+		} else if (to != null) {
+			return sorted.headMap(to, toInclusive);
+		}
+		return sorted;
+	}
+
+	/**
+	 * Returns the given exception, thrown by an extractor, as an unchecked exception.
+	 *
+	 * @param e the exception that was thrown.
+	 * @return the exception to throw in its place.
+	 */
+	private static RuntimeException unchecked(Throwable e) {
+		if (e instanceof RuntimeException) {
+			return (RuntimeException) e;
+		} else if (e instanceof Error) {
+			throw (Error) e;
+		}
+		return new IllegalStateException("Index could not be built", e);
+	}
+
+}
@@ -0,0 +1,439 @@
+/* Copyright (C) 2017 Zach Ohara
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.zachohara.bukkit.simpleplugin.fileio.persistence;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.github.zachohara.bukkit.simpleplugin.fileio.FileExecutor;
+
+/**
+ * A {@code MapJournal} records every change made to a {@code PersistentMap} as a small
+ * record in an append-only journal file, so that the cost of saving a change depends only
+ * on the size of the change, and not on the size of the map. The file of the map itself
+ * acts as a snapshot; when the map is loaded, the journal is replayed on top of the
+ * snapshot.
+ * <p>
+ * Once the journal grows past a size threshold, it is compacted: a copy of the map is
+ * written as a new snapshot on a background thread, and new changes are written to a new
+ * journal file in the meantime. The old journal file is deleted only after the new
+ * snapshot has been safely written.
+ *
+ * @param <K> the key type of the map.
+ * @param <V> the value type of the map.
+ * @author Zach Ohara
+ */
+public class MapJournal<K extends Serializable, V extends Serializable> {
+
+	/**
+	 * The operation code for a record that maps a key to a value.
+	 */
+	public static final byte PUT = 1;
+
+	/**
+	 * The operation code for a record that removes a key.
+	 */
+	public static final byte REMOVE = 2;
+
+	/**
+	 * The operation code for a record that removes every key.
+	 */
+	public static final byte CLEAR = 3;
+
+	/**
+	 * The default size, in bytes, that the journal may grow to before it is compacted.
+	 */
+	public static final long DEFAULT_COMPACTION_THRESHOLD = 4 * 1024 * 1024;
+
+	/**
+	 * The map that this journal records changes for.
+	 */
+	private final PersistentMap<K, V> owner;
+
+	/**
+	 * The snapshot file of the map. Journal files are stored next to it.
+	 */
+	private final File snapshotFile;
+
+	/**
+	 * The log to report background errors to.
+	 */
+	private final Logger logger;
+
+	/**
+	 * The journal file that new records are appended to.
+	 */
+	private RecordLog log;
+
+	/**
+	 * The generation number of the current journal file. Every compaction starts a new
+	 * generation.
+	 */
+	private long generation;
+
+	/**
+	 * The size, in bytes, that the journal may grow to before it is compacted.
+	 */
+	private long compactionThreshold;
+
+	/**
+	 * The number of milliseconds that changes may wait in memory before they are written.
+	 */
+	private long commitInterval;
+
+	/**
+	 * The compaction that is currently running, or {@code null} if there is none.
+	 */
+	private Future<?> compaction;
+
+	/**
+	 * Opens the journal for the given map, and replays every existing journal file into
+	 * the given data.
+	 *
+	 * @param owner the map that this journal records changes for.
+	 * @param snapshotFile the snapshot file of the map.
+	 * @param logger the log to report background errors to.
+	 * @param data the data of the map, as loaded from its snapshot.
+	 * @throws IOException if the journal could not be opened or read.
+	 */
+	public MapJournal(PersistentMap<K, V> owner, File snapshotFile, Logger logger,
+			Map<K, V> data) throws IOException {
+		this.owner = owner;
+		this.snapshotFile = snapshotFile;
+		this.logger = logger;
+		this.compactionThreshold = MapJournal.DEFAULT_COMPACTION_THRESHOLD;
+		this.commitInterval = RecordLog.DEFAULT_COMMIT_INTERVAL;
+		long[] generations = this.findGenerations();
+		for (long gen : generations) {
+			RecordLog oldLog = new RecordLog(this.getJournalFile(gen));
+			try {
+				this.replay(oldLog, data);
+			} finally {
+				oldLog.close();
+			}
+		}
+		if (generations.length > 0) {
+			this.generation = generations[generations.length - 1];
+		}
+		this.log = new RecordLog(this.getJournalFile(this.generation));
+	}
+
+	/**
+	 * Sets the size, in bytes, that the journal may grow to before it is compacted into a
+	 * new snapshot.
+	 *
+	 * @param bytes the compaction threshold, in bytes.
+	 */
+	public void setCompactionThreshold(long bytes) {
+		this.compactionThreshold = bytes;
+	}
+
+	/**
+	 * Sets the number of milliseconds that changes may wait in memory before they are
+	 * written to the disk.
+	 *
+	 * @param millis the commit interval, in milliseconds.
+	 * @see RecordLog#setCommitInterval(long)
+	 */
+	public void setCommitInterval(long millis) {
+		this.commitInterval = millis;
+		this.log.setCommitInterval(millis);
+	}
+
+	/**
+	 * Records that the given key was mapped to the given value.
+	 *
+	 * @param key the key that was changed.
+	 * @param value the new value of the key.
+	 */
+	public void recordPut(K key, V value) {
+		this.append(MapJournal.PUT, key, value);
+	}
+
+	/**
+	 * Records that the given key was removed.
+	 *
+	 * @param key the key that was removed.
+	 */
+	public void recordRemove(Object key) {
+		this.append(MapJournal.REMOVE, key, null);
+	}
+
+	/**
+	 * Records that every key was removed.
+	 */
+	public void recordClear() {
+		this.append(MapJournal.CLEAR, null, null);
+	}
+
+	/**
+	 * Writes every pending change to the disk, waits for any running compaction to finish,
+	 * and closes the journal file.
+	 *
+	 * @throws IOException if the journal could not be written.
+	 */
+	public void close() throws IOException {
+		this.awaitCompaction();
+		this.log.close();
+	}
+
+	/**
+	 * Writes the map as a new snapshot, and then deletes every journal file. This is used
+	 * when journaling is turned off, so that the journal is not replayed on top of a newer
+	 * snapshot later.
+	 *
+	 * @throws IOException if the snapshot could not be written.
+	 */
+	public void closeAndDelete() throws IOException {
+		this.close();
+		this.owner.writeSnapshot(this.owner.getPayload());
+		MapJournal.deleteJournalFiles(this.snapshotFile);
+	}
+
+	/**
+	 * Appends a record to the journal, and starts a compaction if the journal has grown
+	 * too large.
+	 *
+	 * @param op the operation code of the record.
+	 * @param key the key of the record; ignored for {@code CLEAR} records.
+	 * @param value the value of the record; ignored unless this is a {@code PUT} record.
+	 */
+	private void append(byte op, Object key, V value) {
+		try {
+			byte[] keyBytes = (op == MapJournal.CLEAR) ? new byte[0] : this.encode(key);
+			byte[] valueBytes = (op == MapJournal.PUT) ? this.encode(value) : new byte[0];
+			this.log.append(op, keyBytes, valueBytes);
+			if (this.log.size() > this.compactionThreshold && !this.isCompacting()) {
+				this.startCompaction();
+			}
+		} catch (IOException e) {
+			this.logger.log(Level.WARNING,
+					"Error writing to journal: " + this.log.getFile(), e);
+		}
+	}
+
+	/**
+	 * Starts a new journal generation, and writes a snapshot of the map on a background
+	 * thread.
+	 *
+	 * @throws IOException if the new journal file could not be created.
+	 */
+	private void startCompaction() throws IOException {
+		final PayloadSnapshot snapshot = this.owner.captureSnapshot();
+		final RecordLog oldLog = this.log;
+		final long oldGeneration = this.generation;
+		this.generation++;
+		this.log = new RecordLog(this.getJournalFile(this.generation));
+		this.log.setCommitInterval(this.commitInterval);
+		this.compaction = FileExecutor.submit(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					oldLog.close();
+					MapJournal.this.owner.writeSnapshot(snapshot);
+					for (long gen : MapJournal.this.findGenerations()) {
+						if (gen <= oldGeneration) {
+							MapJournal.this.getJournalFile(gen).delete();
+						}
+					}
+				} catch (IOException e) {
+					MapJournal.this.logger.log(Level.WARNING,
+							"Error compacting journal: " + oldLog.getFile(), e);
+				} finally {
+					snapshot.release();
+				}
+			}
+
+		});
+	}
+
+	/**
+	 * Determines if a compaction is currently running.
+	 *
+	 * @return {@code true} if a compaction is running; {@code false} otherwise.
+	 */
+	private boolean isCompacting() {
+		return this.compaction != null && !this.compaction.isDone();
+	}
+
+	/**
+	 * Waits for the current compaction, if any, to finish.
+	 */
+	private void awaitCompaction() {
+		if (this.compaction == null) {
+			return;
+		}
+		try {
+			this.compaction.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			this.logger.log(Level.WARNING,
+					"Error compacting journal: " + this.log.getFile(), e.getCause());
+		}
+		this.compaction = null;
+	}
+
+	/**
+	 * Replays every record in the given journal file into the given data.
+	 *
+	 * @param source the journal file to replay.
+	 * @param data the data to apply the records to.
+	 * @throws IOException if the journal could not be read.
+	 */
+	private void replay(RecordLog source, final Map<K, V> data) throws IOException {
+		source.replay(new RecordLog.Visitor() {
+
+			@Override
+			@SuppressWarnings("unchecked")
+			public void visit(long position, byte op, byte[] key, byte[] value)
+					throws IOException {
+				switch (op) {
+					case MapJournal.PUT:
+						data.put((K) MapJournal.decode(key), (V) MapJournal.decode(value));
+						break;
+					case MapJournal.REMOVE:
+						data.remove(MapJournal.decode(key));
+						break;
+					case MapJournal.CLEAR:
+						data.clear();
+						break;
+					default:
+						throw new IOException("Unknown journal record type: " + op);
+				}
+			}
+
+		});
+	}
+
+	/**
+	 * Deletes every journal file of the map stored in the given file. This is used after a
+	 * snapshot has been written without journaling, so that an old journal is not replayed
+	 * on top of the newer snapshot the next time journaling is turned on.
+	 *
+	 * @param snapshotFile the snapshot file of the map.
+	 */
+	static void deleteJournalFiles(File snapshotFile) {
+		for (long gen : MapJournal.findGenerations(snapshotFile)) {
+			MapJournal.getJournalFile(snapshotFile, gen).delete();
+		}
+	}
+
+	/**
+	 * Finds the generation numbers of every journal file that exists for the map, in
+	 * ascending order.
+	 *
+	 * @return the generation numbers of the existing journal files.
+	 */
+	private long[] findGenerations() {
+		return MapJournal.findGenerations(this.snapshotFile);
+	}
+
+	/**
+	 * Finds the generation numbers of every journal file that exists for the map stored in
+	 * the given file, in ascending order.
+	 *
+	 * @param snapshotFile the snapshot file of the map.
+	 * @return the generation numbers of the existing journal files.
+	 */
+	private static long[] findGenerations(File snapshotFile) {
+		final String prefix = MapJournal.getJournalPrefix(snapshotFile);
+		File[] files = snapshotFile.getParentFile().listFiles(new FilenameFilter() {
+
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(prefix) && name.substring(prefix.length()).matches("\\d+");
+			}
+
+		});
+		if (files == null) {
+			return new long[0];
+		}
+		long[] generations = new long[files.length];
+		for (int i = 0; i < files.length; i++) {
+			generations[i] = Long.parseLong(files[i].getName().substring(prefix.length()));
+		}
+		Arrays.sort(generations);
+		return generations;
+	}
+
+	/**
+	 * Returns the journal file for the given generation.
+	 *
+	 * @param gen the generation number.
+	 * @return the journal file for that generation.
+	 */
+	private File getJournalFile(long gen) {
+		return MapJournal.getJournalFile(this.snapshotFile, gen);
+	}
+
+	/**
+	 * Returns the journal file for the given generation of the map stored in the given
+	 * file.
+	 *
+	 * @param snapshotFile the snapshot file of the map.
+	 * @param gen the generation number.
+	 * @return the journal file for that generation.
+	 */
+	private static File getJournalFile(File snapshotFile, long gen) {
+		return new File(snapshotFile.getParentFile(),
+				MapJournal.getJournalPrefix(snapshotFile) + gen);
+	}
+
+	/**
+	 * Returns the prefix shared by the names of every journal file for the map stored in
+	 * the given file.
+	 *
+	 * @param snapshotFile the snapshot file of the map.
+	 * @return the journal file name prefix.
+	 */
+	private static String getJournalPrefix(File snapshotFile) {
+		return snapshotFile.getName() + ".journal.";
+	}
+
+	/**
+	 * Converts the given object to bytes, using the codec of the map.
+	 *
+	 * @param obj the object to convert.
+	 * @return the encoded form of the object.
+	 * @throws IOException if the object could not be encoded.
+	 */
+	private byte[] encode(Object obj) throws IOException {
+		return PayloadFormat.toBytes(this.owner.getCodec(), obj);
+	}
+
+	/**
+	 * Converts the given bytes back to an object.
+	 *
+	 * @param data the encoded form of the object.
+	 * @return the object.
+	 * @throws IOException if the object could not be decoded.
+	 */
+	private static Object decode(byte[] data) throws IOException {
+		return PayloadFormat.fromBytes(data);
+	}
+
+}
@@ -0,0 +1,62 @@
+/* Copyright (C) 2017 Zach Ohara
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.zachohara.bukkit.simpleplugin.fileio.persistence;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A {@code PayloadCodec} converts the payload of a {@code PersistentObject} to and from the
+ * bytes that are stored in its file. Every codec has a unique identifier, which is stored
+ * in the header of each file, so that a file can always be read back with the codec that
+ * wrote it.
+ *
+ * @author Zach Ohara
+ * @see PayloadFormat
+ */
+public interface PayloadCodec {
+
+	/**
+	 * Returns the unique identifier of this codec, which is stored in the header of every
+	 * file written by this codec.
+	 *
+	 * @return the identifier of this codec.
+	 */
+	byte getId();
+
+	/**
+	 * Writes the given object to the given stream. The stream must not be closed by this
+	 * method.
+	 *
+	 * @param value the object to write.
+	 * @param out the stream to write to.
+	 * @throws IOException if the object could not be written.
+	 */
+	void encode(Object value, OutputStream out) throws IOException;
+
+	/**
+	 * Reads an object, which was written by {@link #encode(Object, OutputStream)}, from the
+	 * given stream. The stream must not be closed by this method.
+	 *
+	 * @param in the stream to read from.
+	 * @return the object that was read.
+	 * @throws IOException if the object could not be read.
+	 */
+	Object decode(InputStream in) throws IOException;
+
+}
@@ -0,0 +1,64 @@
+/* Copyright (C) 2017 Zach Ohara
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.github.zachohara.bukkit.simpleplugin.fileio.persistence;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A {@code PayloadCompression} compresses the whole contents of a persistent data file as
+ * it is written, and decompresses it as it is read. Every compression has a unique
+ * identifier, which is stored in a short header in front of the compressed data, so that
+ * a file can always be read back no matter which compression, if any, wrote it.
+ *
+ * @author Zach Ohara
+ * @see PayloadFormat#compress(OutputStream, PayloadCompression)
+ * @see PayloadFormat#decompress(InputStream)
+ */
+public interface PayloadCompression {
+
+	/**
+	 * Returns the unique identifier of this compression, which is stored in the header of
+	 * every file that it compressed.
+	 *
+	 * @return the identifier of this compression.
+	 */
+	byte getId();
+
+	/**
+	 * Returns a stream that compresses everything written to it, and writes the result to
+	 * the given stream. Closing the returned stream must write any remaining compressed
+	 * data, and then close the given stream.
+	 *
+	 * @param out the stream to write the compressed data to.
+	 * @return the stream to write the uncompressed data to.
+	 * @throws IOException if the stream could not be created.
+	 */
+	OutputStream compress(OutputStream out) throws IOException;
+
+	/**
+	 * Returns a stream that decompresses the data in the given stream, which was written
+	 * by {@link #compress(OutputStream)}. Closing the returned stream must close the given
+	 * stream.
+	 *
+	 * @param in the stream to read the compressed data from.
+	 * @return the stream to read the uncompressed data from.
+	 * @throws IOException if the stream could not be created.
+	 */
+	InputStream decompress(InputStream in) throws IOException;
+
+}
@@ -0,0 +1,410 @@
+/* Copyright (C) 2017 Zach Ohara
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.zachohara.bukkit.simpleplugin.fileio.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The {@code PayloadFormat} class reads and writes the header at the start of every
+ * persistent data file, and keeps track of every {@code PayloadCodec} that may be used to
+ * read a file. The header identifies the codec that wrote the file, so a file can always
+ * be read, even if the codec that is used to write new files has since changed.
+ * <p>
+ * Files written by the {@code JavaSerializationCodec} have no header, so that files
+ * written by earlier versions of this library can still be read. These files are
+ * recognized by the signature of Java's standard serialization.
+ * <p>
+ * A file may also be compressed by a {@code PayloadCompression}. A compressed file starts
+ * with a separate header that identifies the compression, followed by the compressed form
+ * of an ordinary file, header and all. Whether a file is compressed is detected when it is
+ * read, so compressed and uncompressed files can always be read in the same way.
+ * <p>
+ * A file may also start with a schema header, which records the version of the plugin's
+ * own data classes that the file was written with, so that old files can be recognized
+ * and migrated. The schema header comes before everything else, and is only written for
+ * versions other than {@code 0}, so files without one are at version {@code 0}.
+ *
+ * @author Zach Ohara
+ */
+public final class PayloadFormat {
+
+	/**
+	 * The bytes at the start of every file that has a header.
+	 */
+	private static final byte[] MAGIC = {'S', 'P', 'D', 'F'};
+
+	/**
+	 * The bytes at the start of every compressed file.
+	 */
+	private static final byte[] COMPRESSED_MAGIC = {'S', 'P', 'D', 'Z'};
+
+	/**
+	 * The bytes at the start of every file that has a schema header.
+	 */
+	private static final byte[] SCHEMA_MAGIC = {'S', 'P', 'D', 'V'};
+
+	/**
+	 * The size of the buffer used to read the decompressed data of a file.
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * The version of the header format.
+	 */
+	private static final int VERSION = 1;
+
+	/**
+	 * The first byte of every stream written by Java's standard serialization.
+	 */
+	private static final int JAVA_SERIALIZATION_SIGNATURE = 0xAC;
+
+	/**
+	 * Every codec that may be used to read a file, by identifier.
+	 */
+	private static Map<Byte, PayloadCodec> codecs;
+
+	/**
+	 * Every compression that may be used to read a file, by identifier.
+	 */
+	private static Map<Byte, PayloadCompression> compressions;
+
+	static {
+		PayloadFormat.codecs = new HashMap<Byte, PayloadCodec>();
+		PayloadFormat.register(JavaSerializationCodec.INSTANCE);
+		PayloadFormat.register(BinaryCodec.INSTANCE);
+		PayloadFormat.register(PrimitiveTableCodec.INSTANCE);
+		PayloadFormat.compressions = new HashMap<Byte, PayloadCompression>();
+		PayloadFormat.register(DeflateCompression.INSTANCE);
+		PayloadFormat.register(LZCompression.INSTANCE);
+	}
+
+	/**
+	 * The {@code PayloadFormat} class should not be instantiable.
+	 */
+	private PayloadFormat() {
+
+	}
+
+	/**
+	 * Registers the given codec, so that files written by it can be read.
+	 *
+	 * @param codec the codec to register.
+	 * @throws IllegalArgumentException if a different codec with the same identifier is
+	 * already registered.
+	 */
+	public static synchronized void register(PayloadCodec codec) {
+		PayloadCodec existing = PayloadFormat.codecs.get(codec.getId());
+		if (existing != null && existing.getClass() != codec.getClass()) {
+			throw new IllegalArgumentException("Codec id " + codec.getId()
+					+ " is already used by " + existing.getClass().getName());
+		}
+		PayloadFormat.codecs.put(codec.getId(), codec);
+	}
+
+	/**
+	 * Returns the registered codec with the given identifier.
+	 *
+	 * @param id the identifier of the codec.
+	 * @return the codec with the given identifier.
+	 * @throws IOException if no codec with the given identifier is registered.
+	 */
+	public static synchronized PayloadCodec getCodec(byte id) throws IOException {
+		PayloadCodec codec = PayloadFormat.codecs.get(id);
+		if (codec == null) {
+			throw new IOException("Unknown codec id: " + id);
+		}
+		return codec;
+	}
+
+	/**
+	 * Registers the given compression, so that files compressed by it can be read.
+	 *
+	 * @param compression the compression to register.
+	 * @throws IllegalArgumentException if a different compression with the same
+	 * identifier is already registered.
+	 */
+	public static synchronized void register(PayloadCompression compression) {
+		PayloadCompression existing = PayloadFormat.compressions.get(compression.getId());
+		if (existing != null && existing.getClass() != compression.getClass()) {
+			throw new IllegalArgumentException("Compression id " + compression.getId()
+					+ " is already used by " + existing.getClass().getName());
+		}
+		if (existing == null) {
+			PayloadFormat.compressions.put(compression.getId(), compression);
+		}
+	}
+
+	/**
+	 * Returns the registered compression with the given identifier.
+	 *
+	 * @param id the identifier of the compression.
+	 * @return the compression with the given identifier.
+	 * @throws IOException if no compression with the given identifier is registered.
+	 */
+	public static synchronized PayloadCompression getCompression(byte id) throws IOException {
+		PayloadCompression compression = PayloadFormat.compressions.get(id);
+		if (compression == null) {
+			throw new IOException("Unknown compression id: " + id);
+		}
+		return compression;
+	}
+
+	/**
+	 * Writes the schema header for the given schema version. Nothing is written for
+	 * version {@code 0}, so that the file can still be read by earlier versions of this
+	 * library. The schema header must be the first thing in the file.
+	 *
+	 * @param out the stream to write to.
+	 * @param schemaVersion the version of the data in the file.
+	 * @throws IOException if the header could not be written.
+	 */
+	public static void writeSchemaVersion(OutputStream out, int schemaVersion)
+			throws IOException {
+		if (schemaVersion != 0) {
+			out.write(PayloadFormat.SCHEMA_MAGIC);
+			out.write(PayloadFormat.VERSION);
+			for (int shift = 24; shift >= 0; shift -= 8) {
+				out.write(schemaVersion >>> shift);
+			}
+		}
+	}
+
+	/**
+	 * Reads the schema header from the given stream, if there is one, and returns the
+	 * schema version in it. If the stream has no schema header, nothing is read.
+	 *
+	 * @param in the stream to read from, which must support {@code mark} and
+	 * {@code reset}.
+	 * @return the version of the data in the stream, or {@code 0} if it has no schema
+	 * header.
+	 * @throws IOException if the schema header could not be read, or is not valid.
+	 */
+	public static int readSchemaVersion(InputStream in) throws IOException {
+		in.mark(PayloadFormat.SCHEMA_MAGIC.length);
+		for (byte expected : PayloadFormat.SCHEMA_MAGIC) {
+			if (in.read() != expected) {
+				in.reset();
+				return 0;
+			}
+		}
+		int version = in.read();
+		if (version != PayloadFormat.VERSION) {
+			throw new IOException("Unsupported schema header version: " + version);
+		}
+		int schemaVersion = 0;
+		for (int i = 0; i < 4; i++) {
+			int b = in.read();
+			if (b < 0) {
+				throw new IOException("Schema header is incomplete");
+			}
+			schemaVersion = (schemaVersion << 8) | b;
+		}
+		return schemaVersion;
+	}
+
+	/**
+	 * Writes the header for the given compression, and returns a stream that compresses
+	 * everything written to it into the given stream. The returned stream must be closed
+	 * to write the end of the compressed data; closing it flushes the given stream, but
+	 * does not close it.
+	 *
+	 * @param out the stream to write the compressed file to.
+	 * @param compression the compression to use, or {@code null} to write the data as it
+	 * is.
+	 * @return the stream to write the uncompressed file to.
+	 * @throws IOException if the header could not be written.
+	 */
+	public static OutputStream compress(OutputStream out, PayloadCompression compression)
+			throws IOException {
+		OutputStream unclosable = new FilterOutputStream(out) {
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				this.out.write(b, off, len);
+			}
+
+			@Override
+			public void close() throws IOException {
+				this.flush();
+			}
+
+		};
+		if (compression == null) {
+			return unclosable;
+		}
+		out.write(PayloadFormat.COMPRESSED_MAGIC);
+		out.write(PayloadFormat.VERSION);
+		out.write(compression.getId());
+		// The codecs write many small values, which the compressors handle poorly one at a time
+		return new BufferedOutputStream(compression.compress(unclosable),
+				PayloadFormat.BUFFER_SIZE);
+	}
+
+	/**
+	 * Reads the compression header from the given stream, if there is one, and returns a
+	 * stream of the decompressed file. If the stream is not compressed, it is returned
+	 * as it is. Closing the returned stream closes the given stream. A schema header at
+	 * the start of the stream is skipped; it can be read first with
+	 * {@link #readSchemaVersion(InputStream)}.
+	 *
+	 * @param in the stream to read from, which must support {@code mark} and
+	 * {@code reset}.
+	 * @return a stream of the uncompressed file, which supports {@code mark} and
+	 * {@code reset}.
+	 * @throws IOException if the compression header could not be read, or is not valid.
+	 */
+	public static InputStream decompress(InputStream in) throws IOException {
+		PayloadFormat.readSchemaVersion(in);
+		in.mark(PayloadFormat.COMPRESSED_MAGIC.length);
+		for (byte expected : PayloadFormat.COMPRESSED_MAGIC) {
+			if (in.read() != expected) {
+				in.reset();
+				return in;
+			}
+		}
+		int version = in.read();
+		if (version != PayloadFormat.VERSION) {
+			throw new IOException("Unsupported compressed file version: " + version);
+		}
+		int id = in.read();
+		if (id < 0) {
+			throw new IOException("Compressed file header is incomplete");
+		}
+		return new BufferedInputStream(PayloadFormat.getCompression((byte) id).decompress(in),
+				PayloadFormat.BUFFER_SIZE);
+	}
+
+	/**
+	 * Writes the header for the given codec, followed by the given payload.
+	 *
+	 * @param out the stream to write to.
+	 * @param codec the codec to write the payload with.
+	 * @param payload the payload to write.
+	 * @throws IOException if the payload could not be written.
+	 */
+	public static void write(OutputStream out, PayloadCodec codec, Object payload)
+			throws IOException {
+		PayloadFormat.writeHeader(out, codec);
+		codec.encode(payload, out);
+		out.flush();
+	}
+
+	/**
+	 * Writes the header for the given codec. This is used when the payload is written
+	 * piece by piece by the caller, instead of all at once.
+	 *
+	 * @param out the stream to write to.
+	 * @param codec the codec that will write the payload.
+	 * @throws IOException if the header could not be written.
+	 */
+	public static void writeHeader(OutputStream out, PayloadCodec codec) throws IOException {
+		if (codec.getId() != JavaSerializationCodec.ID) {
+			out.write(PayloadFormat.MAGIC);
+			out.write(PayloadFormat.VERSION);
+			out.write(codec.getId());
+		}
+	}
+
+	/**
+	 * Reads the header from the given stream, and then reads the payload with the codec
+	 * named in the header.
+	 *
+	 * @param in the stream to read from, which must support {@code mark} and
+	 * {@code reset}.
+	 * @return the payload that was read.
+	 * @throws IOException if the payload could not be read.
+	 */
+	public static Object read(InputStream in) throws IOException {
+		return PayloadFormat.readCodec(in).decode(in);
+	}
+
+	/**
+	 * Reads the header from the given stream, and returns the codec named in it. After
+	 * this method returns, the stream is positioned at the start of the payload.
+	 *
+	 * @param in the stream to read from, which must support {@code mark} and
+	 * {@code reset}.
+	 * @return the codec that wrote the stream.
+	 * @throws IOException if the header could not be read, or is not valid.
+	 */
+	public static PayloadCodec readCodec(InputStream in) throws IOException {
+		in.mark(1);
+		int first = in.read();
+		in.reset();
+		if (first < 0) {
+			throw new IOException("File is empty");
+		} else if (first == PayloadFormat.JAVA_SERIALIZATION_SIGNATURE) {
+			return JavaSerializationCodec.INSTANCE;
+		}
+		for (byte expected : PayloadFormat.MAGIC) {
+			if (in.read() != expected) {
+				throw new IOException("File is not in a recognized format");
+			}
+		}
+		int version = in.read();
+		if (version != PayloadFormat.VERSION) {
+			throw new IOException("Unsupported file format version: " + version);
+		}
+		int id = in.read();
+		if (id < 0) {
+			throw new IOException("File header is incomplete");
+		}
+		return PayloadFormat.getCodec((byte) id);
+	}
+
+	/**
+	 * Converts a single object to bytes with the given codec. The identifier of the codec
+	 * is stored in the first byte.
+	 *
+	 * @param codec the codec to use.
+	 * @param value the object to convert.
+	 * @return the bytes of the object.
+	 * @throws IOException if the object could not be converted.
+	 */
+	public static byte[] toBytes(PayloadCodec codec, Object value) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		bytes.write(codec.getId());
+		codec.encode(value, bytes);
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Converts bytes that were created by {@link #toBytes(PayloadCodec, Object)} back to an
+	 * object.
+	 *
+	 * @param bytes the bytes of the object.
+	 * @return the object.
+	 * @throws IOException if the object could not be converted.
+	 */
+	public static Object fromBytes(byte[] bytes) throws IOException {
+		if (bytes.length == 0) {
+			throw new IOException("No data to convert");
+		}
+		InputStream in = new ByteArrayInputStream(bytes, 1, bytes.length - 1);
+		return PayloadFormat.getCodec(bytes[0]).decode(in);
+	}
+
+}
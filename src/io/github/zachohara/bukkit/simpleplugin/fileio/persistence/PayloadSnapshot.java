@@ -0,0 +1,96 @@
+/* Copyright (C) 2017 Zach Ohara
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.zachohara.bukkit.simpleplugin.fileio.persistence;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+
+/**
+ * A {@code PayloadSnapshot} is a consistent, unchanging view of the payload of a
+ * {@code PersistentObject}, taken at a single point in time. A snapshot is captured on the
+ * main server thread, and may then be written to the disk on a background thread while
+ * the payload itself continues to change.
+ *
+ * @author Zach Ohara
+ */
+public abstract class PayloadSnapshot {
+
+	/**
+	 * Writes the data of this snapshot to the given stream, in the format of the file of
+	 * a {@code PersistentObject}.
+	 *
+	 * @param out the stream to write to.
+	 * @throws IOException if the data could not be written.
+	 */
+	public abstract void writeTo(OutputStream out) throws IOException;
+
+	/**
+	 * Signals that this snapshot is no longer needed, whether or not it was written
+	 * successfully. This may be called from any thread. By default, this method takes no
+	 * action.
+	 */
+	public void release() {
+		// Take no action
+		// May be overridden by subclasses
+	}
+
+	/**
+	 * Creates a snapshot that writes the given object with the given codec. The object
+	 * must not be changed until the snapshot has been released.
+	 *
+	 * @param data the object to write.
+	 * @param codec the codec to write the object with.
+	 * @return a snapshot of the given object.
+	 */
+	public static PayloadSnapshot of(final Serializable data, final PayloadCodec codec) {
+		return new PayloadSnapshot() {
+
+			@Override
+			public void writeTo(OutputStream out) throws IOException {
+				PayloadFormat.write(out, codec, data);
+			}
+
+		};
+	}
+
+	/**
+	 * Creates a snapshot by immediately serializing the given object into memory. The
+	 * object may be changed as soon as this method returns, but the time taken by this
+	 * method grows with the size of the object.
+	 *
+	 * @param data the object to serialize.
+	 * @param codec the codec to serialize the object with.
+	 * @return a snapshot of the given object.
+	 * @throws IOException if the object could not be serialized.
+	 */
+	public static PayloadSnapshot copyOf(Serializable data, PayloadCodec codec)
+			throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		PayloadSnapshot.of(data, codec).writeTo(bytes);
+		return new PayloadSnapshot() {
+
+			@Override
+			public void writeTo(OutputStream out) throws IOException {
+				bytes.writeTo(out);
+			}
+
+		};
+	}
+
+}
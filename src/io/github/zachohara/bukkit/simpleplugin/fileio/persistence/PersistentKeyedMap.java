@@ -16,9 +16,29 @@
 
 package io.github.zachohara.bukkit.simpleplugin.fileio.persistence;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
 
+import org.bukkit.Bukkit;
+import org.bukkit.scheduler.BukkitTask;
+
+import io.github.zachohara.bukkit.simpleplugin.fileio.FileExecutor;
 import io.github.zachohara.bukkit.simpleplugin.plugin.SimplePlugin;
 
 /**
@@ -27,6 +47,19 @@ import io.github.zachohara.bukkit.simpleplugin.plugin.SimplePlugin;
  * through server restarts. At its core, a {@code PersistentKeyedMap} object is essentially
  * a {@code PersistentMap} with the map key being a String that is generated for any given
  * key.
+ * <p>
+ * Entries may be given a time to live, after which they expire. Expired entries are
+ * hidden from {@link #getKeyData(String)} and {@link #keyDataExists(String)} straight
+ * away, and are removed from the map by a task on the main server thread, which uses a
+ * {@code TimerWheel} so that each check only costs as much as the entries that actually
+ * expire. Expiry times are stored in a second file next to the map, so they are kept
+ * through server restarts.
+ * <p>
+ * The map can also be used as a read-through cache of {@link #calculateDataValue(Object)},
+ * with {@link #getOrCompute(Object)}. Stored data is used for as long as it is fresh, and
+ * is otherwise calculated again. Data is fresh if it was calculated by this map, and has
+ * not since been changed, invalidated, or outlived the maximum data age; a sub-class may
+ * also give each key a version, so that data becomes stale when the version changes.
  *
  * @param <K> the key type for this map.
  * @param <D> the data type for this map. A data object must be able to be generated for
@@ -35,6 +68,103 @@ import io.github.zachohara.bukkit.simpleplugin.plugin.SimplePlugin;
  */
 public abstract class PersistentKeyedMap<K, D extends Serializable> extends PersistentMap<String, D> {
 
+	/**
+	 * The suffix that is added to the filename of the map to name the file that stores
+	 * expiry times.
+	 */
+	private static final String EXPIRY_SUFFIX = ".expiry";
+
+	/**
+	 * The number of milliseconds in each tick of the expiry wheel.
+	 */
+	private static final long EXPIRY_TICK_MILLIS = 1000;
+
+	/**
+	 * The number of server ticks between checks for expired entries.
+	 */
+	private static final long EXPIRY_CHECK_INTERVAL = 20;
+
+	/**
+	 * The number of keys that each task calculates data for, when data is calculated on
+	 * many threads at once.
+	 */
+	private static final int PARALLEL_BATCH_SIZE = 32;
+
+	/**
+	 * An executor that runs each task straight away, on the thread that submits it.
+	 */
+	private static final Executor DIRECT_EXECUTOR = new Executor() {
+
+		@Override
+		public void execute(Runnable task) {
+			task.run();
+		}
+
+	};
+
+	/**
+	 * Whether {@code calculateDataValue} and {@code generateMapKey} may be called from
+	 * many threads at once.
+	 */
+	private volatile boolean parallelCalculation;
+
+	/**
+	 * When and at which version the data for each map key was calculated, for the data
+	 * that has not changed since it was calculated by this map.
+	 */
+	private final Map<String, Freshness> freshness;
+
+	/**
+	 * The calculation that is running for each map key in {@code getOrCompute}, so that
+	 * concurrent requests for the same key share a single calculation.
+	 */
+	private final Map<String, FutureTask<D>> pendingCalculations;
+
+	/**
+	 * The longest time that calculated data is fresh for, in nanoseconds, or {@code 0} if
+	 * data does not become stale with age.
+	 */
+	private volatile long maxDataAge;
+
+	/**
+	 * The lock that guards the expiry times and the expiry wheel.
+	 */
+	private final Object expiryLock;
+
+	/**
+	 * The name of the file that stores expiry times, relative to the data folder of the
+	 * plugin.
+	 */
+	private final String expiryFilename;
+
+	/**
+	 * The task that removes expired entries, or {@code null} if it has not been started.
+	 */
+	private BukkitTask expiryTask;
+
+	/**
+	 * The time that each entry with a time to live expires at, in milliseconds since the
+	 * epoch, or {@code null} if no entry has ever been given a time to live.
+	 */
+	private volatile PersistentLongMap<String> expiry;
+
+	/**
+	 * The wheel that schedules the removal of each entry with a time to live, or
+	 * {@code null} if it has not been built yet.
+	 */
+	private TimerWheel<String> expiryWheel;
+
+	/**
+	 * The executor that runs the expiry listener.
+	 */
+	private Executor expiryExecutor;
+
+	/**
+	 * Called with the map key and data of each entry that is removed when it expires, or
+	 * {@code null} if there is nothing to call.
+	 */
+	private BiConsumer<? super String, ? super D> expiryListener;
+
 	/**
 	 * Constructs a new {@code PersistentPlayerData} with the given plugin as an owner, and
 	 * the filename to store that data to. This constructor will create a new
@@ -45,6 +175,14 @@ public abstract class PersistentKeyedMap<K, D extends Serializable> extends Pers
 	 */
 	public PersistentKeyedMap(SimplePlugin owner, String filename) {
 		super(owner, filename);
+		this.freshness = new ConcurrentHashMap<String, Freshness>();
+		this.pendingCalculations = new ConcurrentHashMap<String, FutureTask<D>>();
+		this.expiryLock = new Object();
+		this.expiryExecutor = PersistentKeyedMap.DIRECT_EXECUTOR;
+		this.expiryFilename = filename + PersistentKeyedMap.EXPIRY_SUFFIX;
+		if (new File(owner.getDataFolder(), this.expiryFilename).exists()) {
+			this.enableExpiry();
+		}
 	}
 
 	/**
@@ -67,31 +205,70 @@ public abstract class PersistentKeyedMap<K, D extends Serializable> extends Pers
 	 * for the given key.
 	 */
 	public D getKeyData(String key) {
-		return this.get(key);
+		D data = this.get(key);
+		if (data != null && this.isExpired(key)) {
+			return null;
+		}
+		return data;
 	}
 
 	/**
-	 * Saves the relevant value for the given key to this map.
+	 * Saves the relevant value for the given key to this map. If the calculated value is
+	 * {@code null}, the key is removed from this map instead.
 	 *
 	 * @param key the key to save information for.
 	 * @see #calculateDataValue(Object)
 	 */
 	public void saveKeyedData(K key) {
-		String mapkey = this.generateMapKey(key);
-		if (this.keyDataExists(key)) {
-			this.remove(mapkey);
-		}
-		this.put(mapkey, this.calculateDataValue(key));
+		this.calculateAndStore(key, this.generateMapKey(key));
 	}
 
 	/**
-	 * Saves the relevant values for all the keys given in the list.
+	 * Saves the relevant values for all the keys given in the list. The values are all
+	 * calculated first, and are then stored in the map together, as a single change. If
+	 * parallel calculation is used, the values are calculated on many threads at once.
+	 * Each key whose calculated value is {@code null} is removed from this map, as it is
+	 * by {@link #saveKeyedData(Object)}.
 	 *
 	 * @param collection the list of keys to save data for.
+	 * @see #useParallelCalculation(boolean)
 	 */
+	@SuppressWarnings("unchecked")
 	public void saveAllKeyedData(Collection<? extends K> collection) {
-		for (K key : collection) {
-			this.saveKeyedData(key);
+		List<K> keys = new ArrayList<K>(collection);
+		long[] versions = new long[keys.size()];
+		for (int i = 0; i < versions.length; i++) {
+			versions[i] = this.getDataVersion(keys.get(i));
+		}
+		long calculated = System.nanoTime();
+		String[] mapkeys = new String[keys.size()];
+		Object[] data = new Object[keys.size()];
+		if (this.parallelCalculation && keys.size() > PersistentKeyedMap.PARALLEL_BATCH_SIZE) {
+			this.calculateInParallel(keys, mapkeys, data);
+		} else {
+			this.calculate(keys, 0, keys.size(), mapkeys, data);
+		}
+		Map<String, D> batch = new LinkedHashMap<String, D>();
+		for (int i = 0; i < mapkeys.length; i++) {
+			batch.put(mapkeys[i], (D) data[i]);
+		}
+		List<String> removed = new ArrayList<String>();
+		Iterator<Map.Entry<String, D>> entries = batch.entrySet().iterator();
+		while (entries.hasNext()) {
+			Map.Entry<String, D> entry = entries.next();
+			if (entry.getValue() == null) {
+				removed.add(entry.getKey());
+				entries.remove();
+			}
+		}
+		this.putAll(batch);
+		for (String mapkey : removed) {
+			this.remove(mapkey);
+		}
+		for (int i = 0; i < mapkeys.length; i++) {
+			if (batch.containsKey(mapkeys[i])) {
+				this.freshness.put(mapkeys[i], new Freshness(calculated, versions[i]));
+			}
 		}
 	}
 
@@ -99,15 +276,301 @@ public abstract class PersistentKeyedMap<K, D extends Serializable> extends Pers
 	 * Saves the relevant values for all the keys given in the array.
 	 *
 	 * @param keylist the array of keys to save data for.
+	 * @see #saveAllKeyedData(Collection)
 	 */
 	public void saveAllKeyedData(K[] keylist) {
-		for (K key : keylist) {
-			this.saveKeyedData(key);
+		this.saveAllKeyedData(Arrays.asList(keylist));
+	}
+
+	/**
+	 * Sets whether {@link #calculateDataValue(Object)} and {@link #generateMapKey(Object)}
+	 * are thread safe. If they are, {@code saveAllKeyedData} calculates the data for large
+	 * batches of keys on many threads at once, which takes less time when calculating the
+	 * data is expensive. The calculated data is still stored in this map by the thread
+	 * that called {@code saveAllKeyedData}.
+	 *
+	 * @param parallelCalculation {@code true} if data may be calculated on many threads at
+	 * once; {@code false} otherwise.
+	 */
+	public void useParallelCalculation(boolean parallelCalculation) {
+		this.parallelCalculation = parallelCalculation;
+	}
+
+	/**
+	 * Gets whether data may be calculated on many threads at once.
+	 *
+	 * @return {@code true} if data may be calculated on many threads at once;
+	 * {@code false} otherwise.
+	 * @see #useParallelCalculation(boolean)
+	 */
+	public boolean getUseParallelCalculation() {
+		return this.parallelCalculation;
+	}
+
+	/**
+	 * Calculates the map key and data for each of the given keys, on many threads at once.
+	 *
+	 * @param keys the keys to calculate data for.
+	 * @param mapkeys the array to store the map key for each key in.
+	 * @param data the array to store the data for each key in.
+	 */
+	private void calculateInParallel(final List<K> keys, final String[] mapkeys,
+			final Object[] data) {
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int start = 0; start < keys.size(); start += PersistentKeyedMap.PARALLEL_BATCH_SIZE) {
+			final int from = start;
+			final int to = Math.min(start + PersistentKeyedMap.PARALLEL_BATCH_SIZE, keys.size());
+			tasks.add(new Callable<Void>() {
+
+				@Override
+				public Void call() {
+					PersistentKeyedMap.this.calculate(keys, from, to, mapkeys, data);
+					return null;
+				}
+
+			});
+		}
+		try {
+			FileExecutor.invokeAll(tasks);
+		} catch (IOException e) {
+			throw PersistentKeyedMap.unchecked((e.getCause() != null) ? e.getCause() : e);
+		}
+	}
+
+	/**
+	 * Calculates the map key and data for each of the keys in the given range of the given
+	 * list.
+	 *
+	 * @param keys the keys to calculate data for.
+	 * @param from the index of the first key to calculate data for.
+	 * @param to the index after the last key to calculate data for.
+	 * @param mapkeys the array to store the map key for each key in.
+	 * @param data the array to store the data for each key in.
+	 */
+	private void calculate(List<K> keys, int from, int to, String[] mapkeys, Object[] data) {
+		for (int i = from; i < to; i++) {
+			K key = keys.get(i);
+			mapkeys[i] = this.generateMapKey(key);
+			data[i] = this.calculateDataValue(key);
+		}
+	}
+
+	/**
+	 * Returns the data for the given key, if it is fresh, or otherwise calculates, stores
+	 * and returns it. If another thread is already calculating the data for the same key,
+	 * this waits for that calculation instead of starting another. A map that is used from
+	 * many threads must allow concurrent access.
+	 *
+	 * @param key the key to get data for.
+	 * @return the data for the key.
+	 * @see #setMaxDataAge(long, TimeUnit)
+	 * @see #getDataVersion(Object)
+	 * @see #invalidateKeyData(String)
+	 */
+	public D getOrCompute(final K key) {
+		final String mapkey = this.generateMapKey(key);
+		D data = this.getFreshData(key, mapkey);
+		if (data != null) {
+			return data;
+		}
+		FutureTask<D> task = new FutureTask<D>(new Callable<D>() {
+
+			@Override
+			public D call() {
+				// Another calculation may have finished since the data was checked
+				D data = PersistentKeyedMap.this.getFreshData(key, mapkey);
+				if (data != null) {
+					return data;
+				}
+				return PersistentKeyedMap.this.calculateAndStore(key, mapkey);
+			}
+
+		});
+		FutureTask<D> running = this.pendingCalculations.putIfAbsent(mapkey, task);
+		if (running == null) {
+			running = task;
+			try {
+				task.run();
+			} finally {
+				this.pendingCalculations.remove(mapkey, task);
+			}
+		}
+		try {
+			return running.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while calculating data for " + mapkey, e);
+		} catch (ExecutionException e) {
+			throw PersistentKeyedMap.unchecked(e.getCause());
+		}
+	}
+
+	/**
+	 * Makes the data for the given key stale, so that it is calculated again the next time
+	 * it is requested by {@code getOrCompute}. The data itself is not changed.
+	 *
+	 * @param key the key whose data should be calculated again.
+	 */
+	public void invalidateKeyData(K key) {
+		this.invalidateKeyData(this.generateMapKey(key));
+	}
+
+	/**
+	 * Makes the data for the given map key stale, so that it is calculated again the next
+	 * time it is requested by {@code getOrCompute}. The data itself is not changed.
+	 *
+	 * @param key the map key whose data should be calculated again.
+	 */
+	public void invalidateKeyData(String key) {
+		this.freshness.remove(key);
+	}
+
+	/**
+	 * Makes the data for every key stale, so that it is all calculated again the next time
+	 * it is requested by {@code getOrCompute}.
+	 */
+	public void invalidateAllKeyData() {
+		this.freshness.clear();
+	}
+
+	/**
+	 * Sets the longest time that calculated data is fresh for. Data that was calculated
+	 * longer ago than this is calculated again the next time it is requested by
+	 * {@code getOrCompute}.
+	 *
+	 * @param time the longest time that data is fresh for, or {@code 0} if data should not
+	 * become stale with age.
+	 * @param unit the unit of {@code time}.
+	 */
+	public void setMaxDataAge(long time, TimeUnit unit) {
+		this.maxDataAge = Math.max(unit.toNanos(time), 0);
+	}
+
+	/**
+	 * Gets the longest time that calculated data is fresh for.
+	 *
+	 * @param unit the unit to return the time in.
+	 * @return the longest time that data is fresh for, or {@code 0} if data does not
+	 * become stale with age.
+	 * @see #setMaxDataAge(long, TimeUnit)
+	 */
+	public long getMaxDataAge(TimeUnit unit) {
+		return unit.convert(this.maxDataAge, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Returns the version of the information that the data for the given key is
+	 * calculated from. Data that was calculated at one version is stale once the version
+	 * changes. Overriding this method allows sub-classes to make data stale as soon as
+	 * the information it depends on changes; by default, every key is always at version
+	 * {@code 0}. This is called on the thread that calculates the data, before it is
+	 * calculated.
+	 *
+	 * @param key the key to return the version of.
+	 * @return the current version of the data for the key.
+	 */
+	protected long getDataVersion(K key) {
+		return 0;
+	}
+
+	/**
+	 * Returns the data for the given key if it is stored and fresh.
+	 *
+	 * @param key the key to get data for.
+	 * @param mapkey the map key that is generated for the key.
+	 * @return the data for the key, or {@code null} if it is not stored, or is stale.
+	 */
+	private D getFreshData(K key, String mapkey) {
+		Freshness freshness = this.freshness.get(mapkey);
+		if (freshness == null) {
+			return null;
+		}
+		long maxAge = this.maxDataAge;
+		if (maxAge > 0 && System.nanoTime() - freshness.calculated >= maxAge) {
+			return null;
+		} else if (freshness.version != this.getDataVersion(key)) {
+			return null;
+		}
+		return this.getKeyData(mapkey);
+	}
+
+	/**
+	 * Calculates the data for the given key, stores it, and records that it is fresh.
+	 *
+	 * @param key the key to calculate data for.
+	 * @param mapkey the map key that is generated for the key.
+	 * @return the calculated data.
+	 */
+	private D calculateAndStore(K key, String mapkey) {
+		long version = this.getDataVersion(key);
+		long calculated = System.nanoTime();
+		D data = this.calculateDataValue(key);
+		if (data == null) {
+			this.remove(mapkey);
+			return null;
 		}
+		this.put(mapkey, data);
+		this.freshness.put(mapkey, new Freshness(calculated, version));
+		return data;
 	}
 
 	/**
-	 * Determines if a value for the given key exists in this map.
+	 * Returns the given exception as an unchecked exception, so that it can be thrown
+	 * from a method that does not declare it.
+	 *
+	 * @param e the exception to return.
+	 * @return the exception, or an {@code IllegalStateException} that wraps it.
+	 */
+	private static RuntimeException unchecked(Throwable e) {
+		if (e instanceof RuntimeException) {
+			return (RuntimeException) e;
+		} else if (e instanceof Error) {
+			throw (Error) e;
+		}
+		return new IllegalStateException("Data could not be calculated", e);
+	}
+
+	/**
+	 * Atomically replaces the data for the given key with the result of the given
+	 * function. The function is given the key object and the current data, or {@code null}
+	 * if there is none; if it returns {@code null}, the data is removed. When concurrent
+	 * access is allowed, no other thread can change the data for the key while the
+	 * function runs.
+	 *
+	 * @param key the key to compute data for.
+	 * @param function computes the new data from the key and its current data.
+	 * @return the new data for the key, or {@code null} if there is none.
+	 * @see #useConcurrentAccess(boolean)
+	 */
+	public D computeKeyData(final K key, final BiFunction<? super K, ? super D, ? extends D> function) {
+		return this.compute(this.generateMapKey(key), new BiFunction<String, D, D>() {
+
+			@Override
+			public D apply(String mapkey, D data) {
+				return function.apply(key, data);
+			}
+
+		});
+	}
+
+	/**
+	 * Atomically combines the given data with the current data for the given key. If
+	 * there is no data for the key, the given data is stored; otherwise, the result of the
+	 * given function is stored, or the data is removed if the result is {@code null}.
+	 *
+	 * @param key the key to merge data for.
+	 * @param data the data to merge with the current data.
+	 * @param function combines the current data with the given data.
+	 * @return the new data for the key, or {@code null} if there is none.
+	 * @see #useConcurrentAccess(boolean)
+	 */
+	public D mergeKeyData(K key, D data, BiFunction<? super D, ? super D, ? extends D> function) {
+		return this.merge(this.generateMapKey(key), data, function);
+	}
+
+	/**
+	 * Determines if a value for the given key exists in this map. If this map keeps a key
+	 * filter, most keys that have no value are ruled out without searching the map.
 	 *
 	 * @param key the data to query for.
 	 * @return {@code true} if a value currently exists in the map for the given key;
@@ -126,7 +589,322 @@ public abstract class PersistentKeyedMap<K, D extends Serializable> extends Pers
 	 * {@code false} otherwise.
 	 */
 	public boolean keyDataExists(String key) {
-		return this.get(key) != null;
+		return this.getKeyData(key) != null;
+	}
+
+	/**
+	 * Stores the given data for the given key, and sets it to expire after the given time.
+	 *
+	 * @param key the key to store data for.
+	 * @param data the data to store.
+	 * @param ttl the time that the data should be kept for.
+	 * @param unit the unit of {@code ttl}.
+	 * @see #setKeyExpiry(String, long, TimeUnit)
+	 */
+	public void putKeyData(K key, D data, long ttl, TimeUnit unit) {
+		String mapkey = this.generateMapKey(key);
+		this.put(mapkey, data);
+		this.setKeyExpiry(mapkey, ttl, unit);
+	}
+
+	/**
+	 * Saves the relevant value for the given key to this map, and sets it to expire after
+	 * the given time.
+	 *
+	 * @param key the key to save information for.
+	 * @param ttl the time that the data should be kept for.
+	 * @param unit the unit of {@code ttl}.
+	 * @see #calculateDataValue(Object)
+	 */
+	public void saveKeyedData(K key, long ttl, TimeUnit unit) {
+		this.putKeyData(key, this.calculateDataValue(key), ttl, unit);
+	}
+
+	/**
+	 * Sets the data for the given key to expire after the given time.
+	 *
+	 * @param key the key whose data should expire.
+	 * @param ttl the time that the data should be kept for, from now.
+	 * @param unit the unit of {@code ttl}.
+	 * @return {@code true} if there was data for the key; {@code false} otherwise.
+	 * @see #setKeyExpiry(String, long, TimeUnit)
+	 */
+	public boolean setKeyExpiry(K key, long ttl, TimeUnit unit) {
+		return this.setKeyExpiry(this.generateMapKey(key), ttl, unit);
+	}
+
+	/**
+	 * Sets the data for the given map key to expire after the given time. Once it
+	 * expires, the data is hidden straight away, and is removed from this map and passed
+	 * to the expiry listener soon after. The time to live is kept if the data is changed,
+	 * and is removed along with the data.
+	 *
+	 * @param key the map key whose data should expire.
+	 * @param ttl the time that the data should be kept for, from now.
+	 * @param unit the unit of {@code ttl}.
+	 * @return {@code true} if there was data for the key; {@code false} otherwise.
+	 * @see #setExpiryListener(BiConsumer)
+	 */
+	public boolean setKeyExpiry(String key, long ttl, TimeUnit unit) {
+		if (!this.keyDataExists(key)) {
+			return false;
+		}
+		long expiresAt = System.currentTimeMillis() + Math.max(unit.toMillis(ttl), 0);
+		this.enableExpiry();
+		synchronized (this.expiryLock) {
+			this.expiry.put(key, expiresAt);
+			this.getExpiryWheel().schedule(key, PersistentKeyedMap.expiryTick(expiresAt));
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the time that the data for the given key expires at.
+	 *
+	 * @param key the key to query for.
+	 * @return the time that the data expires at, in milliseconds since the epoch, or
+	 * {@code 0} if it does not expire.
+	 */
+	public long getKeyExpiry(K key) {
+		return this.getKeyExpiry(this.generateMapKey(key));
+	}
+
+	/**
+	 * Returns the time that the data for the given map key expires at.
+	 *
+	 * @param key the map key to query for.
+	 * @return the time that the data expires at, in milliseconds since the epoch, or
+	 * {@code 0} if it does not expire.
+	 */
+	public long getKeyExpiry(String key) {
+		PersistentLongMap<String> expiry = this.expiry;
+		if (expiry == null) {
+			return 0;
+		}
+		synchronized (this.expiryLock) {
+			return expiry.get(key);
+		}
+	}
+
+	/**
+	 * Removes the time to live of the data for the given key, so that it is kept until it
+	 * is removed.
+	 *
+	 * @param key the key whose data should not expire.
+	 * @return {@code true} if the data had a time to live; {@code false} otherwise.
+	 */
+	public boolean removeKeyExpiry(K key) {
+		return this.removeKeyExpiry(this.generateMapKey(key));
+	}
+
+	/**
+	 * Removes the time to live of the data for the given map key, so that it is kept
+	 * until it is removed. Data that has already expired stays expired.
+	 *
+	 * @param key the map key whose data should not expire.
+	 * @return {@code true} if the data had a time to live; {@code false} otherwise.
+	 */
+	public boolean removeKeyExpiry(String key) {
+		if (this.expiry == null || !this.keyDataExists(key)) {
+			return false;
+		}
+		synchronized (this.expiryLock) {
+			this.getExpiryWheel().cancel(key);
+			return this.expiry.remove(key);
+		}
+	}
+
+	/**
+	 * Gets the listener that is called for each entry that is removed when it expires.
+	 *
+	 * @return the expiry listener, or {@code null} if there is none.
+	 */
+	public BiConsumer<? super String, ? super D> getExpiryListener() {
+		return this.expiryListener;
+	}
+
+	/**
+	 * Sets the listener that is called for each entry that is removed when it expires. The
+	 * listener is given the map key and the data of the entry, after it has been removed,
+	 * and is run by the expiry executor.
+	 *
+	 * @param listener the expiry listener, or {@code null} to remove it.
+	 * @see #setExpiryExecutor(Executor)
+	 */
+	public void setExpiryListener(BiConsumer<? super String, ? super D> listener) {
+		this.expiryListener = listener;
+	}
+
+	/**
+	 * Gets the executor that runs the expiry listener.
+	 *
+	 * @return the expiry executor.
+	 */
+	public Executor getExpiryExecutor() {
+		return this.expiryExecutor;
+	}
+
+	/**
+	 * Sets the executor that runs the expiry listener. By default, the listener is run
+	 * straight away on the main server thread, by the task that removes expired entries.
+	 *
+	 * @param executor the expiry executor, or {@code null} to use the default.
+	 */
+	public void setExpiryExecutor(Executor executor) {
+		this.expiryExecutor = (executor != null) ? executor : PersistentKeyedMap.DIRECT_EXECUTOR;
+	}
+
+	/**
+	 * Removes every entry that has expired, and passes each of them to the expiry
+	 * listener. This is done automatically on the main server thread about once per
+	 * second, but may also be called directly.
+	 *
+	 * @return the number of entries that were removed.
+	 */
+	public int expireEntries() {
+		if (this.expiry == null) {
+			return 0;
+		}
+		long now = System.currentTimeMillis();
+		List<String> expired;
+		synchronized (this.expiryLock) {
+			expired = this.getExpiryWheel().advance(now / PersistentKeyedMap.EXPIRY_TICK_MILLIS);
+			for (String key : expired) {
+				this.expiry.remove(key);
+			}
+		}
+		final BiConsumer<? super String, ? super D> listener = this.expiryListener;
+		int removed = 0;
+		for (final String key : expired) {
+			final D data = this.remove(key);
+			if (data != null) {
+				removed++;
+				if (listener != null) {
+					this.expiryExecutor.execute(new Runnable() {
+
+						@Override
+						public void run() {
+							listener.accept(key, data);
+						}
+
+					});
+				}
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Determines if the data for the given map key has expired, but has not been removed
+	 * yet.
+	 *
+	 * @param key the map key to check.
+	 * @return {@code true} if the data has expired; {@code false} otherwise.
+	 */
+	private boolean isExpired(String key) {
+		long expiresAt = this.getKeyExpiry(key);
+		return expiresAt != 0 && expiresAt <= System.currentTimeMillis();
+	}
+
+	/**
+	 * Opens the file that stores expiry times, and starts the task that removes expired
+	 * entries, if this has not been done already.
+	 */
+	private void enableExpiry() {
+		synchronized (this.expiryLock) {
+			if (this.expiry == null) {
+				this.expiry = new PersistentLongMap<String>(this.getOwner(), this.expiryFilename,
+						String.class);
+			}
+			if (this.expiryTask != null) {
+				return;
+			}
+			this.expiryTask = Bukkit.getScheduler().runTaskTimer(this.getOwner(), new Runnable() {
+
+				@Override
+				public void run() {
+					PersistentKeyedMap.this.expireEntries();
+				}
+
+			}, PersistentKeyedMap.EXPIRY_CHECK_INTERVAL, PersistentKeyedMap.EXPIRY_CHECK_INTERVAL);
+		}
+	}
+
+	@Override
+	protected void attemptClose() throws IOException {
+		synchronized (this.expiryLock) {
+			if (this.expiryTask != null) {
+				this.expiryTask.cancel();
+				this.expiryTask = null;
+			}
+		}
+		super.attemptClose();
+	}
+
+	/**
+	 * Returns the expiry wheel, after building it from the stored expiry times if it has
+	 * not been built yet. Stored expiry times for keys that are no longer in the map are
+	 * discarded. This must be called while holding the expiry lock.
+	 *
+	 * @return the expiry wheel.
+	 */
+	private TimerWheel<String> getExpiryWheel() {
+		if (this.expiryWheel == null) {
+			// Start a tick behind, so that entries that expired while the server was stopped
+			// are removed by the next check
+			TimerWheel<String> wheel = new TimerWheel<String>(
+					System.currentTimeMillis() / PersistentKeyedMap.EXPIRY_TICK_MILLIS - 1);
+			for (Map.Entry<String, Long> entry : this.expiry.toMap().entrySet()) {
+				if (this.containsKey(entry.getKey())) {
+					wheel.schedule(entry.getKey(), PersistentKeyedMap.expiryTick(entry.getValue()));
+				} else {
+					this.expiry.remove(entry.getKey());
+				}
+			}
+			this.expiryWheel = wheel;
+		}
+		return this.expiryWheel;
+	}
+
+	/**
+	 * Returns the first tick of the expiry wheel that starts at or after the given time.
+	 *
+	 * @param time the time, in milliseconds since the epoch.
+	 * @return the tick that an entry expiring at the given time should be removed on.
+	 */
+	private static long expiryTick(long time) {
+		return (time + PersistentKeyedMap.EXPIRY_TICK_MILLIS - 1) / PersistentKeyedMap.EXPIRY_TICK_MILLIS;
+	}
+
+	@Override
+	void entryChanged(Object key, D value) {
+		super.entryChanged(key, value);
+		if (!this.freshness.isEmpty()) {
+			// Data that was not calculated by this map cannot be known to be fresh
+			this.freshness.remove(key);
+		}
+		if (value == null && this.expiry != null) {
+			synchronized (this.expiryLock) {
+				if (this.expiryWheel != null) {
+					this.expiryWheel.cancel(key);
+				}
+				this.expiry.remove((String) key);
+			}
+		}
+	}
+
+	@Override
+	void entriesCleared() {
+		super.entriesCleared();
+		this.freshness.clear();
+		if (this.expiry != null) {
+			synchronized (this.expiryLock) {
+				if (this.expiryWheel != null) {
+					this.expiryWheel.clear();
+				}
+				this.expiry.clear();
+			}
+		}
 	}
 
 	/**
@@ -158,4 +936,35 @@ public abstract class PersistentKeyedMap<K, D extends Serializable> extends Pers
 		this.put(this.generateMapKey(key), data);
 	}
 
+	/**
+	 * A {@code Freshness} records when, and at which version, the data for a key was
+	 * calculated.
+	 */
+	private static class Freshness {
+
+		/**
+		 * The value of {@code System.nanoTime()} when the data was calculated.
+		 */
+		private final long calculated;
+
+		/**
+		 * The version of the key when the data was calculated.
+		 */
+		private final long version;
+
+		/**
+		 * Constructs a new {@code Freshness} for data calculated at the given time and
+		 * version.
+		 *
+		 * @param calculated the value of {@code System.nanoTime()} when the data was
+		 * calculated.
+		 * @param version the version of the key when the data was calculated.
+		 */
+		private Freshness(long calculated, long version) {
+			this.calculated = calculated;
+			this.version = version;
+		}
+
+	}
+
 }
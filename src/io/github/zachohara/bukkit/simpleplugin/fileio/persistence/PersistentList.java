@@ -16,12 +16,17 @@
 
 package io.github.zachohara.bukkit.simpleplugin.fileio.persistence;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.concurrent.CountDownLatch;
 
 import io.github.zachohara.bukkit.simpleplugin.plugin.SimplePlugin;
 
@@ -35,6 +40,12 @@ import io.github.zachohara.bukkit.simpleplugin.plugin.SimplePlugin;
  */
 public class PersistentList<E extends Serializable> extends PersistentObject implements List<E> {
 
+	/**
+	 * Released once the underlying list is no longer needed by the snapshot that is being
+	 * written from it, or {@code null} if no snapshot is using the underlying list.
+	 */
+	private CountDownLatch frozenData;
+
 	/**
 	 * Constructs a new {@code PersistentList} with the given plugin as an owner, the data
 	 * to store, and the filename to store that data to.
@@ -61,19 +72,99 @@ public class PersistentList<E extends Serializable> extends PersistentObject imp
 	}
 
 	/**
-	 * Gets the {@code List} that is stored by this {@code PersistentList}.
+	 * Gets the {@code List} that is stored by this {@code PersistentList}, for reading
+	 * only.
 	 *
 	 * @return a reference to the underlying {@code List}.
 	 */
 	@SuppressWarnings("unchecked")
 	private List<E> listdata() {
-		if (this.getPayload() instanceof List<?>) {
-			return (List<E>) this.getPayload();
+		if (super.getPayload() instanceof List<?>) {
+			return (List<E>) super.getPayload();
 		} else {
 			return null;
 		}
 	}
 
+	/**
+	 * Gets the {@code List} that is stored by this {@code PersistentList}, so that it can
+	 * be changed. If a snapshot is still being written from the underlying list, the list
+	 * is first copied, so that the snapshot is not disturbed.
+	 *
+	 * @return a reference to the underlying {@code List}.
+	 */
+	@SuppressWarnings("unchecked")
+	private List<E> writableListdata() {
+		if (this.frozenData != null && this.frozenData.getCount() > 0) {
+			List<E> data = this.listdata();
+			List<E> copy;
+			if (data instanceof ArrayList<?>) {
+				copy = (List<E>) ((ArrayList<E>) data).clone();
+			} else if (data instanceof LinkedList<?>) {
+				copy = (List<E>) ((LinkedList<E>) data).clone();
+			} else {
+				copy = new ArrayList<E>(data);
+			}
+			this.setPayload((Serializable) copy);
+		}
+		this.frozenData = null;
+		return this.listdata();
+	}
+
+	/**
+	 * Returns a reference to the {@code List} that is stored by this
+	 * {@code PersistentList}. If a snapshot is still being written from the underlying
+	 * list, the list is first copied, so that the snapshot is not disturbed.
+	 *
+	 * @return a reference to the stored data.
+	 */
+	@Override
+	public Serializable getPayload() {
+		this.writableListdata();
+		return super.getPayload();
+	}
+
+	/**
+	 * Captures a snapshot of this list without copying it. The underlying list is frozen
+	 * until the snapshot is released; if the list is changed before then, it is copied
+	 * first, so the snapshot is not disturbed.
+	 *
+	 * @return a snapshot of this list.
+	 */
+	@Override
+	protected PayloadSnapshot captureSnapshot() {
+		final Serializable frozen = (Serializable) this.writableListdata();
+		final CountDownLatch latch = new CountDownLatch(1);
+		this.frozenData = latch;
+		return new PayloadSnapshot() {
+
+			@Override
+			public void writeTo(OutputStream out) throws IOException {
+				PayloadSnapshot.of(frozen, PersistentList.this.getCodec()).writeTo(out);
+			}
+
+			@Override
+			public void release() {
+				latch.countDown();
+			}
+
+		};
+	}
+
+	/**
+	 * Records a change to this list if the given result of a list operation shows that the
+	 * list was changed.
+	 *
+	 * @param changed the result of the list operation.
+	 * @return the given result.
+	 */
+	private boolean markDirtyIf(boolean changed) {
+		if (changed) {
+			this.markDirty();
+		}
+		return changed;
+	}
+
 	// @formatter:off
 
 	/*
@@ -86,28 +177,32 @@ public class PersistentList<E extends Serializable> extends PersistentObject imp
 
 	@Override
 	public boolean add(E arg0) {
-		return this.listdata().add(arg0);
+		this.markDirty();
+		return this.writableListdata().add(arg0);
 	}
 
 	@Override
 	public void add(int arg0, E arg1) {
-		this.listdata().add(arg0, arg1);
-
+		this.writableListdata().add(arg0, arg1);
+		this.markDirty();
 	}
 
 	@Override
 	public boolean addAll(Collection<? extends E> arg0) {
-		return this.listdata().addAll(arg0);
+		return this.markDirtyIf(this.writableListdata().addAll(arg0));
 	}
 
 	@Override
 	public boolean addAll(int arg0, Collection<? extends E> arg1) {
-		return this.listdata().addAll(arg0, arg1);
+		return this.markDirtyIf(this.writableListdata().addAll(arg0, arg1));
 	}
 
 	@Override
 	public void clear() {
-		this.listdata().clear();
+		if (!this.listdata().isEmpty()) {
+			this.writableListdata().clear();
+			this.markDirty();
+		}
 	}
 
 	@Override
@@ -137,7 +232,7 @@ public class PersistentList<E extends Serializable> extends PersistentObject imp
 
 	@Override
 	public Iterator<E> iterator() {
-		return this.listdata().iterator();
+		return new TrackedListIterator(this.writableListdata().listIterator());
 	}
 
 	@Override
@@ -147,37 +242,41 @@ public class PersistentList<E extends Serializable> extends PersistentObject imp
 
 	@Override
 	public ListIterator<E> listIterator() {
-		return this.listdata().listIterator();
+		return new TrackedListIterator(this.writableListdata().listIterator());
 	}
 
 	@Override
 	public ListIterator<E> listIterator(int arg0) {
-		return this.listdata().listIterator(arg0);
+		return new TrackedListIterator(this.writableListdata().listIterator(arg0));
 	}
 
 	@Override
 	public boolean remove(Object arg0) {
-		return this.listdata().remove(arg0);
+		return this.markDirtyIf(this.writableListdata().remove(arg0));
 	}
 
 	@Override
 	public E remove(int arg0) {
-		return this.listdata().remove(arg0);
+		E removed = this.writableListdata().remove(arg0);
+		this.markDirty();
+		return removed;
 	}
 
 	@Override
 	public boolean removeAll(Collection<?> arg0) {
-		return this.listdata().removeAll(arg0);
+		return this.markDirtyIf(this.writableListdata().removeAll(arg0));
 	}
 
 	@Override
 	public boolean retainAll(Collection<?> arg0) {
-		return this.listdata().retainAll(arg0);
+		return this.markDirtyIf(this.writableListdata().retainAll(arg0));
 	}
 
 	@Override
 	public E set(int arg0, E arg1) {
-		return this.listdata().set(arg0, arg1);
+		E previous = this.writableListdata().set(arg0, arg1);
+		this.markDirty();
+		return previous;
 	}
 
 	@Override
@@ -187,7 +286,7 @@ public class PersistentList<E extends Serializable> extends PersistentObject imp
 
 	@Override
 	public List<E> subList(int arg0, int arg1) {
-		return this.listdata().subList(arg0, arg1);
+		return new TrackedSubList(this.writableListdata().subList(arg0, arg1));
 	}
 
 	@Override
@@ -200,4 +299,143 @@ public class PersistentList<E extends Serializable> extends PersistentObject imp
 		return this.listdata().toArray(arg0);
 	}
 
-}
+	// @formatter:off
+
+	/*
+	 * +-------------------------------------------------------------------------------------+
+	 * | The classes below are views of this list that record changes made through them too. |
+	 * +-------------------------------------------------------------------------------------+
+	 */
+
+	// @formatter:on
+
+	/**
+	 * An iterator over the underlying list, that records changes made through it.
+	 */
+	private class TrackedListIterator implements ListIterator<E> {
+
+		/**
+		 * The iterator of the underlying list.
+		 */
+		private final ListIterator<E> iterator;
+
+		/**
+		 * Constructs a new {@code TrackedListIterator} around the given iterator.
+		 *
+		 * @param iterator the iterator of the underlying list.
+		 */
+		public TrackedListIterator(ListIterator<E> iterator) {
+			this.iterator = iterator;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return this.iterator.hasNext();
+		}
+
+		@Override
+		public E next() {
+			return this.iterator.next();
+		}
+
+		@Override
+		public boolean hasPrevious() {
+			return this.iterator.hasPrevious();
+		}
+
+		@Override
+		public E previous() {
+			return this.iterator.previous();
+		}
+
+		@Override
+		public int nextIndex() {
+			return this.iterator.nextIndex();
+		}
+
+		@Override
+		public int previousIndex() {
+			return this.iterator.previousIndex();
+		}
+
+		@Override
+		public void remove() {
+			this.iterator.remove();
+			PersistentList.this.markDirty();
+		}
+
+		@Override
+		public void set(E e) {
+			this.iterator.set(e);
+			PersistentList.this.markDirty();
+		}
+
+		@Override
+		public void add(E e) {
+			this.iterator.add(e);
+			PersistentList.this.markDirty();
+		}
+
+	}
+
+	/**
+	 * A view of part of the underlying list, that records changes made through it.
+	 */
+	private class TrackedSubList extends AbstractList<E> {
+
+		/**
+		 * The view of the underlying list.
+		 */
+		private final List<E> sublist;
+
+		/**
+		 * Constructs a new {@code TrackedSubList} around the given view.
+		 *
+		 * @param sublist the view of the underlying list.
+		 */
+		public TrackedSubList(List<E> sublist) {
+			this.sublist = sublist;
+		}
+
+		@Override
+		public E get(int index) {
+			return this.sublist.get(index);
+		}
+
+		@Override
+		public int size() {
+			return this.sublist.size();
+		}
+
+		@Override
+		public E set(int index, E element) {
+			E previous = this.sublist.set(index, element);
+			PersistentList.this.markDirty();
+			return previous;
+		}
+
+		@Override
+		public void add(int index, E element) {
+			this.sublist.add(index, element);
+			this.modCount++;
+			PersistentList.this.markDirty();
+		}
+
+		@Override
+		public E remove(int index) {
+			E removed = this.sublist.remove(index);
+			this.modCount++;
+			PersistentList.this.markDirty();
+			return removed;
+		}
+
+		@Override
+		protected void removeRange(int fromIndex, int toIndex) {
+			this.sublist.subList(fromIndex, toIndex).clear();
+			this.modCount++;
+			PersistentList.this.markDirty();
+		}
+
+	}
+
+}
\ No newline at end of file
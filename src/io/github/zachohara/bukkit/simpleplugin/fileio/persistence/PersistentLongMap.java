@@ -0,0 +1,144 @@
+/* Copyright (C) 2017 Zach Ohara
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.zachohara.bukkit.simpleplugin.fileio.persistence;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.ObjLongConsumer;
+
+import io.github.zachohara.bukkit.simpleplugin.plugin.SimplePlugin;
+
+/**
+ * A {@code PersistentLongMap} is a {@code PersistentPrimitiveMap} whose values are
+ * {@code long}s. Long values are stored on the disk as variable-length numbers, so small values take a
+ * single byte.
+ *
+ * @param <K> the key type of the map, which must be {@code String} or {@code UUID}.
+ * @author Zach Ohara
+ */
+public class PersistentLongMap<K> extends PersistentPrimitiveMap<K> {
+
+	/**
+	 * Constructs a new {@code PersistentLongMap} with the given plugin as an owner, the filename
+	 * to store the data to, and the class of its keys.
+	 *
+	 * @param owner the plugin that created this object.
+	 * @param filename the filename to store the map as.
+	 * @param keyClass the class of the keys, which must be {@code String.class} or
+	 * {@code UUID.class}.
+	 * @throws IllegalArgumentException if the key class is not supported.
+	 * @throws IllegalStateException if the file holds data that cannot be converted to
+	 * this kind of map.
+	 */
+	public PersistentLongMap(SimplePlugin owner, String filename, Class<K> keyClass) {
+		super(owner, filename, keyClass, PrimitiveTable.LONG_VALUES);
+	}
+
+	/**
+	 * Returns the value for the given key.
+	 *
+	 * @param key the key to look up.
+	 * @return the value for the key, or {@code 0} if the key is not in this map.
+	 */
+	public long get(K key) {
+		return this.getOrDefault(key, 0);
+	}
+
+	/**
+	 * Returns the value for the given key, or the given default value if the key is not in
+	 * this map.
+	 *
+	 * @param key the key to look up.
+	 * @param defaultValue the value to return if the key is not in this map.
+	 * @return the value for the key, or {@code defaultValue}.
+	 */
+	public long getOrDefault(K key, long defaultValue) {
+		return this.getBits(key, defaultValue);
+	}
+
+	/**
+	 * Sets the value for the given key.
+	 *
+	 * @param key the key to change.
+	 * @param value the new value for the key.
+	 * @return the previous value for the key, or {@code 0} if there was none.
+	 */
+	public long put(K key, long value) {
+		return this.putBits(key, value);
+	}
+
+	/**
+	 * Adds the given amount to the value for the given key. A key that is not in this map
+	 * starts with a value of {@code 0}.
+	 *
+	 * @param key the key to change.
+	 * @param delta the amount to add; may be negative.
+	 * @return the new value for the key.
+	 */
+	public long add(K key, long delta) {
+		int slot = this.slotForUpdate(key);
+		PrimitiveTable table = this.table();
+		long value = table.bitsAt(slot) + delta;
+		table.setBitsAt(slot, value);
+		return value;
+	}
+
+	/**
+	 * Adds one to the value for the given key. A key that is not in this map starts with a
+	 * value of {@code 0}.
+	 *
+	 * @param key the key to change.
+	 * @return the new value for the key.
+	 */
+	public long increment(K key) {
+		return this.add(key, 1);
+	}
+
+	/**
+	 * Performs the given action for every key in this map, with its value. The action
+	 * must not change this map.
+	 *
+	 * @param action the action to perform for every entry.
+	 */
+	public void forEach(ObjLongConsumer<? super K> action) {
+		PrimitiveTable table = this.table();
+		for (int slot = 0; slot < table.capacity(); slot++) {
+			if (table.isUsed(slot)) {
+				action.accept(this.keyAt(table, slot), table.bitsAt(slot));
+			}
+		}
+	}
+
+	/**
+	 * Returns a copy of this map as a {@code HashMap} of boxed values.
+	 *
+	 * @return a copy of this map.
+	 */
+	public Map<K, Long> toMap() {
+		final Map<K, Long> map = new HashMap<K, Long>();
+		this.forEach(new ObjLongConsumer<K>() {
+
+			@Override
+			public void accept(K key, long value) {
+				map.put(key, value);
+			}
+
+		});
+		return map;
+	}
+
+}
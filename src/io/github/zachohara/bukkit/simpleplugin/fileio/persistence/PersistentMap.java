@@ -16,11 +16,32 @@
 
 package io.github.zachohara.bukkit.simpleplugin.fileio.persistence;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.logging.Level;
 
 import io.github.zachohara.bukkit.simpleplugin.plugin.SimplePlugin;
 
@@ -33,45 +54,1197 @@ import io.github.zachohara.bukkit.simpleplugin.plugin.SimplePlugin;
  * @see java.util.Map
  * @author Zach Ohara
  */
-public class PersistentMap<K extends Serializable, V extends Serializable> extends PersistentObject implements Map<K, V> {
+public class PersistentMap<K extends Serializable, V extends Serializable> extends PersistentObject implements TrackedMap<K, V> {
+
+	/**
+	 * The journal that records every change to this map, or {@code null} if journaling is
+	 * not being used.
+	 */
+	private MapJournal<K, V> journal;
+
+	/**
+	 * The storage that keeps the values of this map on the disk, or {@code null} if the
+	 * values are kept in memory.
+	 */
+	private DiskMap<K, V> diskMap;
+
+	/**
+	 * The changes made to this map since the last snapshot was captured, or {@code null}
+	 * if no snapshot is being written. While a snapshot is being written, the underlying
+	 * map is frozen, and every change is stored here instead. Removed keys are mapped to
+	 * {@link #REMOVED}.
+	 */
+	private Map<Object, Object> overlay;
+
+	/**
+	 * The number of entries in this map while changes are being stored in the overlay.
+	 */
+	private int overlaySize;
+
+	/**
+	 * Released once the frozen underlying map is no longer needed by the snapshot that is
+	 * being written.
+	 */
+	private CountDownLatch frozenData;
+
+	/**
+	 * The number of iterators over the frozen underlying map that have not reached its
+	 * end. The overlay is not merged back while any of them is still in use, so that the
+	 * map does not change underneath them.
+	 */
+	private int overlayIterators;
+
+	/**
+	 * The keys that have been changed or removed, each mapped to the number of its most
+	 * recent change.
+	 *
+	 * @see PersistentObject#markDirty()
+	 */
+	private Map<K, Long> dirtyKeys = new HashMap<K, Long>();
+
+	/**
+	 * {@code true} if this map may be used from many threads at once.
+	 *
+	 * @see #useConcurrentAccess(boolean)
+	 */
+	private volatile boolean concurrent;
+
+	/**
+	 * The snapshot that is being written while concurrent access is used, or {@code null}
+	 * if there is none. Every write that sees this snapshot records the value it replaced,
+	 * so that the snapshot can leave the write out.
+	 */
+	private volatile ConcurrentSnapshot activeSnapshot;
+
+	/**
+	 * The epoch that new concurrent writes are counted in. The epoch changes every time a
+	 * concurrent snapshot is captured.
+	 */
+	private volatile int writeEpoch;
+
+	/**
+	 * The number of concurrent writes in progress, for each epoch.
+	 */
+	private final AtomicLong[] writesInProgress = {new AtomicLong(), new AtomicLong()};
+
+	/**
+	 * The secondary indexes on the values of this map.
+	 *
+	 * @see #addIndex(String, Function)
+	 */
+	private final List<MapIndex<K, V, ?>> indexes = new CopyOnWriteArrayList<MapIndex<K, V, ?>>();
+
+	/**
+	 * The filter that rules out keys that are not in this map, or {@code null} if no
+	 * filter is kept.
+	 *
+	 * @see #useKeyFilter(boolean)
+	 */
+	private volatile KeyFilter keyFilter;
+
+	/**
+	 * The key filter that holds every key of the snapshot that is being written, or
+	 * {@code null} if no filter should be stored with the snapshot.
+	 */
+	private volatile KeyFilter snapshotFilter;
+
+	/**
+	 * The false positive rate of the key filter.
+	 *
+	 * @see #setKeyFilterRate(double)
+	 */
+	private volatile double keyFilterRate = PersistentMap.DEFAULT_KEY_FILTER_RATE;
+
+	/**
+	 * The default false positive rate of the key filter.
+	 */
+	public static final double DEFAULT_KEY_FILTER_RATE = 0.01;
+
+	/**
+	 * The suffix that is added to the filename of the map to name the file that stores the
+	 * key filter.
+	 */
+	private static final String KEY_FILTER_SUFFIX = ".keys";
+
+	/**
+	 * The number of keys that are checked against a stored key filter before it is used.
+	 */
+	private static final int KEY_FILTER_SAMPLE = 64;
+
+	/**
+	 * The marker stored in the overlay for a key that has been removed.
+	 */
+	private static final Object REMOVED = new Object();
 
 	/**
 	 * Constructs a new {@code PersistentMap} with the given plugin as an owner, the data
 	 * to store, and the filename to store that data to.
 	 *
-	 * @param <T> any type that is a {@code Map<K, V>} and is {@code Serializable}.
-	 * @param owner the plugin that created this object.
-	 * @param data the serializable {@code Map} that should be stored in an external file.
-	 * @param filename the filename to store the object as.
+	 * @param <T> any type that is a {@code Map<K, V>} and is {@code Serializable}.
+	 * @param owner the plugin that created this object.
+	 * @param data the serializable {@code Map} that should be stored in an external file.
+	 * @param filename the filename to store the object as.
+	 */
+	public <T extends Map<K, V> & Serializable> PersistentMap(SimplePlugin owner, String filename, T data) {
+		super(owner, filename, data);
+	}
+
+	/**
+	 * Constructs a new {@code PersistentMap} with the given plugin as an owner, and the
+	 * filename to store that data to. This constructor will create a new {@code HashMap}
+	 * object that will contain the data.
+	 *
+	 * @param owner the plugin that created this object.
+	 * @param filename the filename to store the object as.
+	 */
+	public PersistentMap(SimplePlugin owner, String filename) {
+		this(owner, filename, new HashMap<K, V>());
+	}
+
+	/**
+	 * Gets the {@code Map} that is stored by this {@code PersistentMap}, so that it can be
+	 * used directly. If a snapshot is still being written from the underlying map, the
+	 * map is first copied, so that the snapshot is not disturbed.
+	 *
+	 * @return a reference to the underlying {@code Map}.
+	 */
+	private Map<K, V> mapdata() {
+		this.settleOverlay(true);
+		if (this.overlay != null) {
+			this.detachOverlay();
+		}
+		return this.basedata();
+	}
+
+	/**
+	 * Gets the underlying {@code Map} so that it can be read directly, if no snapshot has
+	 * stored changes outside of it.
+	 *
+	 * @return a reference to the underlying {@code Map}, or {@code null} if some changes
+	 * are only stored in the overlay.
+	 */
+	Map<K, V> readableData() {
+		this.settleOverlay(false);
+		return (this.overlay == null) ? this.basedata() : null;
+	}
+
+	/**
+	 * Gets the underlying {@code Map} without checking whether it is frozen by a snapshot.
+	 *
+	 * @return a reference to the underlying {@code Map}.
+	 */
+	@SuppressWarnings("unchecked")
+	private Map<K, V> basedata() {
+		if (this.diskMap != null) {
+			return this.diskMap;
+		} else if (super.getPayload() instanceof Map<?, ?>) {
+			return (Map<K, V>) super.getPayload();
+		} else {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns a reference to the {@code Map} that is stored by this {@code PersistentMap}.
+	 * If a snapshot is still being written from the underlying map, the map is first
+	 * copied, so that the snapshot is not disturbed. If disk storage is being used, a new
+	 * {@code HashMap} that holds every entry is returned instead, and changes to it are
+	 * not reflected in this map.
+	 *
+	 * @return a reference to the stored data.
+	 */
+	@Override
+	public Serializable getPayload() {
+		if (this.diskMap != null) {
+			return new HashMap<K, V>(this.diskMap);
+		}
+		this.mapdata();
+		return super.getPayload();
+	}
+
+	/**
+	 * Captures a snapshot of this map without copying it. The underlying map is frozen
+	 * until the snapshot is released, and changes made in the meantime are kept in a
+	 * separate overlay, which is merged back into the underlying map afterwards. Lookups,
+	 * views and iteration read through the overlay, so none of them copy the map while the
+	 * snapshot is being written. The time taken by this method does not depend on the size
+	 * of the map.
+	 * <p>
+	 * Only the structure of the map is frozen. The values themselves are shared with the
+	 * snapshot, which serializes them on a background thread, so a value must not be
+	 * changed in place while it may be written; see {@link PersistentObject#saveInBackground()}.
+	 *
+	 * @return a snapshot of this map.
+	 */
+	@Override
+	protected PayloadSnapshot captureSnapshot() {
+		this.pruneDirtyKeys();
+		this.compactKeyFilter();
+		// The filter only gains keys from now on, so it always holds every key of the snapshot
+		this.snapshotFilter = (this.journal == null && this.diskMap == null) ? this.keyFilter
+				: null;
+		if (this.concurrent) {
+			ConcurrentSnapshot snapshot = new ConcurrentSnapshot(this.concurrentdata(),
+					this.writeEpoch);
+			this.activeSnapshot = snapshot;
+			this.writeEpoch = 1 - this.writeEpoch;
+			return snapshot;
+		} else if (this.diskMap != null) {
+			final DiskMap<K, V> disk = this.diskMap;
+			return new PayloadSnapshot() {
+
+				@Override
+				public void writeTo(OutputStream out) throws IOException {
+					disk.commit();
+					PayloadFormat.write(out, PersistentMap.this.getCodec(), new HashMap<K, V>());
+				}
+
+			};
+		}
+		final Serializable frozen = (Serializable) this.mapdata();
+		final CountDownLatch latch = new CountDownLatch(1);
+		this.overlay = new HashMap<Object, Object>();
+		this.overlaySize = ((Map<?, ?>) frozen).size();
+		this.frozenData = latch;
+		this.overlayIterators = 0;
+		return new PayloadSnapshot() {
+
+			@Override
+			public void writeTo(OutputStream out) throws IOException {
+				PayloadSnapshot.of(frozen, PersistentMap.this.getCodec()).writeTo(out);
+			}
+
+			@Override
+			public void release() {
+				latch.countDown();
+			}
+
+		};
+	}
+
+	/**
+	 * Merges the overlay back into the underlying map, if the snapshot that froze the
+	 * underlying map has been released. The time taken by this method grows only with the
+	 * number of changes made while the snapshot was being written.
+	 *
+	 * @param force {@code true} if the overlay should be merged even while an iterator over
+	 * the frozen map is still in use; {@code false} otherwise.
+	 */
+	@SuppressWarnings("unchecked")
+	private void settleOverlay(boolean force) {
+		if (this.overlay == null || this.frozenData.getCount() > 0
+				|| (this.overlayIterators > 0 && !force)) {
+			return;
+		}
+		Map<K, V> data = this.basedata();
+		for (Map.Entry<Object, Object> change : this.overlay.entrySet()) {
+			if (change.getValue() == PersistentMap.REMOVED) {
+				data.remove(change.getKey());
+			} else {
+				data.put((K) change.getKey(), (V) change.getValue());
+			}
+		}
+		this.overlay = null;
+		this.frozenData = null;
+	}
+
+	/**
+	 * Replaces the frozen underlying map with a copy that includes every change in the
+	 * overlay, so that the map can be used directly again while the snapshot is still
+	 * being written. If the underlying map cannot be copied, this method waits for the
+	 * snapshot to be released instead. This is only needed when the underlying map itself
+	 * is handed out, through {@link #getPayload()}, {@link #clear()}, or by a subclass.
+	 */
+	@SuppressWarnings("unchecked")
+	private void detachOverlay() {
+		Map<K, V> data = this.basedata();
+		Map<K, V> copy;
+		if (data instanceof HashMap<?, ?>) {
+			copy = (Map<K, V>) ((HashMap<K, V>) data).clone();
+		} else if (data instanceof TreeMap<?, ?>) {
+			copy = (Map<K, V>) ((TreeMap<K, V>) data).clone();
+		} else if (data instanceof UUIDKeyedMap<?>) {
+			copy = (Map<K, V>) ((UUIDKeyedMap<V>) data).copy();
+		} else {
+			try {
+				this.frozenData.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			this.settleOverlay(true);
+			return;
+		}
+		for (Map.Entry<Object, Object> change : this.overlay.entrySet()) {
+			if (change.getValue() == PersistentMap.REMOVED) {
+				copy.remove(change.getKey());
+			} else {
+				copy.put((K) change.getKey(), (V) change.getValue());
+			}
+		}
+		this.setPayload((Serializable) copy);
+		this.overlay = null;
+		this.frozenData = null;
+	}
+
+	/**
+	 * Sets whether changes to this map are recorded in a journal. When journaling is used,
+	 * every {@code put} and {@code remove} appends a small record to a journal file, so
+	 * changes survive a crash, and closing the map does not need to rewrite all of its
+	 * data. When journaling is turned off, the journal is merged into the main file and
+	 * deleted.
+	 * <p>
+	 * The journal is only read when journaling is turned on, so a journaled map should turn
+	 * it on every time it is loaded. Whenever the map is saved without journaling, any
+	 * journal files left next to it are deleted, so that they are never replayed on top of
+	 * the newer data.
+	 *
+	 * @param useJournal {@code true} if changes should be journaled; {@code false}
+	 * otherwise.
+	 * @throws IOException if the journal could not be opened, replayed, or merged.
+	 * @see MapJournal
+	 */
+	public void useJournal(boolean useJournal) throws IOException {
+		if (useJournal && this.getEntryNamespace() != null) {
+			throw new IllegalStateException("A map in the shared store cannot be journaled");
+		}
+		if (useJournal && this.diskMap != null) {
+			throw new IllegalStateException("A map that uses disk storage cannot be journaled");
+		} else if (useJournal && this.concurrent) {
+			throw new IllegalStateException("A map that allows concurrent access cannot be journaled");
+		}
+		if (useJournal && this.journal == null) {
+			// A save that started without the journal would delete the new journal file
+			this.awaitBackgroundSave();
+			this.journal = new MapJournal<K, V>(this, this.getFile(), this.getOwner().getLogger(),
+					this.mapdata());
+			// The journal was replayed directly into the underlying map
+			for (MapIndex<K, V, ?> index : this.indexes) {
+				index.rebuild(this);
+			}
+			if (this.keyFilter != null) {
+				this.keyFilter = this.buildKeyFilter();
+			}
+		} else if (!useJournal && this.journal != null) {
+			this.journal.closeAndDelete();
+			this.journal = null;
+		}
+	}
+
+	/**
+	 * Gets whether changes to this map are recorded in a journal.
+	 *
+	 * @return {@code true} if changes are journaled; {@code false} otherwise.
+	 * @see #useJournal(boolean)
+	 */
+	public boolean getUseJournal() {
+		return this.journal != null;
+	}
+
+	/**
+	 * Returns the journal for this map.
+	 *
+	 * @return the journal for this map, or {@code null} if journaling is not being used.
+	 */
+	public MapJournal<K, V> getJournal() {
+		return this.journal;
+	}
+
+	/**
+	 * Sets whether the values of this map are kept on the disk instead of in memory. When
+	 * disk storage is used, only an index of the keys is kept in memory; values are read
+	 * from the disk when they are needed, and the most recently used values are kept in a
+	 * cache. Every change is appended to a data file as soon as it is made. When disk
+	 * storage is turned on, any values that are in memory are moved to the disk; when it
+	 * is turned off, every value is read back into memory, and the data files are deleted.
+	 * <p>
+	 * A map that uses disk storage does not keep the order of a {@code TreeMap} or
+	 * {@code LinkedHashMap}, and cannot also be journaled. Its {@code put} method does not
+	 * read the old value from the disk, so it only returns the previous value if that value
+	 * is in the cache.
+	 * <p>
+	 * The data files are only read when disk storage is turned on, so a map that uses disk
+	 * storage should turn it on every time it is loaded. Whenever the map is saved without
+	 * disk storage, any data files left next to it are deleted, so that they are never read
+	 * on top of the newer data.
+	 *
+	 * @param useDiskStorage {@code true} if values should be kept on the disk;
+	 * {@code false} otherwise.
+	 * @throws IOException if the data files could not be opened, read, or written.
+	 * @see DiskMap
+	 */
+	public void useDiskStorage(boolean useDiskStorage) throws IOException {
+		if (useDiskStorage && this.getEntryNamespace() != null) {
+			throw new IllegalStateException("A map in the shared store cannot also use disk storage");
+		}
+		if (useDiskStorage && this.journal != null) {
+			throw new IllegalStateException("A journaled map cannot also use disk storage");
+		} else if (useDiskStorage && this.concurrent) {
+			throw new IllegalStateException("A map that allows concurrent access cannot use disk storage");
+		}
+		if (useDiskStorage && this.diskMap == null) {
+			// A save that started without disk storage would delete the new data files
+			this.awaitBackgroundSave();
+			DiskMap<K, V> disk = new DiskMap<K, V>(this, this.getFile(),
+					this.getOwner().getLogger());
+			Map<K, V> loaded = this.mapdata();
+			if (!loaded.isEmpty()) {
+				disk.putAll(loaded);
+				disk.commit();
+			}
+			this.diskMap = disk;
+			this.setPayload(new HashMap<K, V>());
+			this.writeSnapshot(new HashMap<K, V>());
+			// The data files may already have held keys that were not loaded into memory
+			if (this.keyFilter != null) {
+				this.keyFilter = this.buildKeyFilter();
+			}
+		} else if (!useDiskStorage && this.diskMap != null) {
+			Serializable data = this.getPayload();
+			this.writeSnapshot(data);
+			this.diskMap.closeAndDelete();
+			this.diskMap = null;
+			this.setPayload(data);
+		}
+	}
+
+	/**
+	 * Gets whether the values of this map are kept on the disk instead of in memory.
+	 *
+	 * @return {@code true} if disk storage is being used; {@code false} otherwise.
+	 * @see #useDiskStorage(boolean)
+	 */
+	public boolean getUseDiskStorage() {
+		return this.diskMap != null;
+	}
+
+	/**
+	 * Returns the disk storage for this map.
+	 *
+	 * @return the disk storage for this map, or {@code null} if the values are kept in
+	 * memory.
+	 */
+	public DiskMap<K, V> getDiskMap() {
+		return this.diskMap;
+	}
+
+	/**
+	 * Sets whether this map may be used from many threads at once. When concurrent access
+	 * is allowed, the data is kept in a {@code ConcurrentHashMap}, and every method of this
+	 * map, including {@code compute}, {@code merge}, {@code putIfAbsent} and the other
+	 * conditional updates, is atomic and thread safe. Snapshots for saving are consistent
+	 * without stopping other threads: a write that happens while a snapshot is being
+	 * written records the value it replaced, so the snapshot can leave it out.
+	 * <p>
+	 * This should be set before the map is shared with other threads; a subclass may set
+	 * it in its constructor. A map that allows concurrent access cannot contain
+	 * {@code null} keys or values, does not keep the order of a {@code TreeMap} or
+	 * {@code LinkedHashMap}, and cannot also be journaled or use disk storage. A function
+	 * given to {@code compute} or {@code merge} must not change this map.
+	 *
+	 * @param useConcurrentAccess {@code true} if this map may be used from many threads;
+	 * {@code false} otherwise.
+	 */
+	public void useConcurrentAccess(boolean useConcurrentAccess) {
+		if (useConcurrentAccess == this.concurrent) {
+			return;
+		} else if (useConcurrentAccess && (this.journal != null || this.diskMap != null)) {
+			throw new IllegalStateException(
+					"A journaled map, or a map that uses disk storage, cannot allow concurrent access");
+		}
+		if (useConcurrentAccess && this.getEntryNamespace() != null) {
+			throw new IllegalStateException("A map in the shared store cannot allow concurrent access");
+		}
+		this.awaitBackgroundSave();
+		Map<K, V> data = this.mapdata();
+		if (useConcurrentAccess) {
+			this.setPayload(new ConcurrentHashMap<K, V>(data));
+			this.dirtyKeys = new ConcurrentHashMap<K, Long>(this.dirtyKeys);
+		} else {
+			this.setPayload(new HashMap<K, V>(data));
+			this.dirtyKeys = new HashMap<K, Long>(this.dirtyKeys);
+		}
+		this.concurrent = useConcurrentAccess;
+	}
+
+	/**
+	 * Gets whether this map may be used from many threads at once.
+	 *
+	 * @return {@code true} if concurrent access is allowed; {@code false} otherwise.
+	 * @see #useConcurrentAccess(boolean)
+	 */
+	public boolean getUseConcurrentAccess() {
+		return this.concurrent;
+	}
+
+	/**
+	 * Sets whether a Bloom filter of the keys of this map is kept, so that most lookups of
+	 * keys that are not in the map are answered by {@code get} and {@code containsKey}
+	 * without searching the map, such as looking for the data of a player who has never
+	 * joined before. For a map that is kept in memory, a miss in the hash table already
+	 * costs about as much as a check of the filter, so the filter mainly helps a map that
+	 * uses disk storage, where every lookup must otherwise take the lock of the disk
+	 * storage. The filter uses about two bytes for every key, at the default false
+	 * positive rate.
+	 * <p>
+	 * The filter is stored in a file next to the map whenever the map is saved, and is used
+	 * again when this is next turned on, if the map file has not changed since; otherwise,
+	 * it is built from the keys of the map. A filter only grows as keys are removed and
+	 * added, so it is built again when the map is saved, if it has outgrown its size or
+	 * holds many keys that have since been removed. A filter of a map that allows
+	 * concurrent access is only built again when it is turned on, or when its false
+	 * positive rate is changed. Like an index, this should be set after journaling or disk
+	 * storage has been set up, and before the map is shared with other threads.
+	 *
+	 * @param useKeyFilter {@code true} if a filter of the keys should be kept;
+	 * {@code false} otherwise.
+	 * @see KeyFilter
+	 */
+	public void useKeyFilter(boolean useKeyFilter) {
+		if (useKeyFilter && this.keyFilter == null) {
+			this.keyFilter = this.loadKeyFilter();
+		} else if (!useKeyFilter && this.keyFilter != null) {
+			this.keyFilter = null;
+			this.getKeyFilterFile().delete();
+		}
+	}
+
+	/**
+	 * Gets whether a Bloom filter of the keys of this map is kept.
+	 *
+	 * @return {@code true} if a key filter is kept; {@code false} otherwise.
+	 * @see #useKeyFilter(boolean)
+	 */
+	public boolean getUseKeyFilter() {
+		return this.keyFilter != null;
+	}
+
+	/**
+	 * Returns the filter of the keys of this map.
+	 *
+	 * @return the key filter, or {@code null} if none is kept.
+	 */
+	public KeyFilter getKeyFilter() {
+		return this.keyFilter;
+	}
+
+	/**
+	 * Sets the chance that the key filter reports a key that is not in this map as
+	 * possibly present, so that the map must be searched anyway. A lower rate uses more
+	 * memory: each halving of the rate adds about 1.5 bits for every key. If a key filter
+	 * is already kept, it is built again with the new rate.
+	 *
+	 * @param falsePositiveRate the false positive rate, between {@code 0} and {@code 1}.
+	 * @see #useKeyFilter(boolean)
+	 */
+	public void setKeyFilterRate(double falsePositiveRate) {
+		if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+			throw new IllegalArgumentException("The false positive rate must be between 0 and 1");
+		}
+		this.keyFilterRate = falsePositiveRate;
+		if (this.keyFilter != null) {
+			this.keyFilter = this.buildKeyFilter();
+		}
+	}
+
+	/**
+	 * Returns the chance that the key filter reports a key that is not in this map as
+	 * possibly present.
+	 *
+	 * @return the false positive rate of the key filter.
+	 * @see #setKeyFilterRate(double)
+	 */
+	public double getKeyFilterRate() {
+		return this.keyFilterRate;
+	}
+
+	/**
+	 * Returns the file that stores the key filter.
+	 *
+	 * @return the file that stores the key filter.
+	 */
+	private File getKeyFilterFile() {
+		return new File(this.getFile().getPath() + PersistentMap.KEY_FILTER_SUFFIX);
+	}
+
+	/**
+	 * Reads the stored key filter, if it matches the map file and every key that is
+	 * checked, and otherwise builds a new key filter from the keys of this map.
+	 *
+	 * @return the key filter.
+	 */
+	private KeyFilter loadKeyFilter() {
+		if (this.journal == null && this.diskMap == null && this.usesOwnFile()) {
+			try {
+				KeyFilter stored = KeyFilter.readFile(this.getKeyFilterFile(), this.getFile());
+				if (stored != null && stored.getFalsePositiveRate() == this.keyFilterRate
+						&& this.containsSample(stored)) {
+					return stored;
+				}
+			} catch (IOException e) {
+				this.getOwner().getLogger().log(Level.WARNING,
+						"Error reading key filter: " + this.getKeyFilterFile(), e);
+			}
+		}
+		return this.buildKeyFilter();
+	}
+
+	/**
+	 * Determines if the given key filter holds the first few keys of this map.
+	 *
+	 * @param filter the key filter to check.
+	 * @return {@code true} if every key that was checked is in the filter; {@code false}
+	 * otherwise.
+	 */
+	private boolean containsSample(KeyFilter filter) {
+		int checked = 0;
+		for (K key : this.keySet()) {
+			if (!filter.mightContain(key)) {
+				return false;
+			} else if (++checked >= PersistentMap.KEY_FILTER_SAMPLE) {
+				break;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Builds a new key filter from the keys of this map, with room for the map to grow by
+	 * half before the filter grows.
+	 *
+	 * @return the new key filter.
+	 */
+	private KeyFilter buildKeyFilter() {
+		KeyFilter filter = new KeyFilter((int) Math.min(Integer.MAX_VALUE, this.size() * 3L / 2),
+				this.keyFilterRate);
+		for (K key : this.keySet()) {
+			filter.add(key);
+		}
+		return filter;
+	}
+
+	/**
+	 * Builds the key filter again, if it has grown past its size, or holds many more keys
+	 * than are in this map. This is only done while concurrent access is not allowed.
+	 */
+	private void compactKeyFilter() {
+		KeyFilter filter = this.keyFilter;
+		if (filter != null && !this.concurrent && (filter.getStageCount() > 1
+				|| filter.getKeyCount() > this.size() * 2L)) {
+			this.keyFilter = this.buildKeyFilter();
+		}
+	}
+
+	@Override
+	void snapshotWritten() {
+		if (this.journal == null) {
+			MapJournal.deleteJournalFiles(this.getFile());
+		}
+		if (this.diskMap == null) {
+			DiskMap.deleteDataFiles(this.getFile());
+		}
+		KeyFilter filter = this.snapshotFilter;
+		this.snapshotFilter = null;
+		File file = this.getKeyFilterFile();
+		if (filter == null || !filter.hasStableHashes()) {
+			file.delete();
+			return;
+		}
+		try {
+			filter.writeFile(file, this.getFile());
+		} catch (IOException e) {
+			file.delete();
+			this.getOwner().getLogger().log(Level.WARNING, "Error writing key filter: " + file, e);
+		}
+	}
+
+	/**
+	 * Opens a read-only view of the entries of this map as they were when it was last
+	 * saved. The view reads the file directly, so queries over it can run on background
+	 * threads without touching this map; changes that have not been saved yet are not
+	 * included. The view should be closed when it is no longer needed.
+	 *
+	 * @return a view of the last saved entries of this map.
+	 * @throws IOException if the file could not be read, or was not written by the
+	 * {@code BinaryCodec}.
+	 * @throws IllegalStateException if this map is journaled, uses disk storage, or is kept
+	 * in the shared store, so that its file does not hold all of its entries.
+	 * @see SnapshotView
+	 */
+	public SnapshotView<K, V> openSnapshotView() throws IOException {
+		if (this.journal != null) {
+			throw new IllegalStateException("A journaled map cannot be viewed");
+		} else if (this.diskMap != null) {
+			throw new IllegalStateException("A map that uses disk storage cannot be viewed");
+		} else if (!this.usesOwnFile()) {
+			throw new IllegalStateException("A map in the shared store cannot be viewed");
+		}
+		return new SnapshotView<K, V>(this.getFile());
+	}
+
+	/**
+	 * Adds a secondary index on the values of this map. The given function extracts the
+	 * result to index from each value, such as the rank of a player, and the index can then
+	 * find every key whose value has a given result without a scan of the whole map. The
+	 * index is built from the current contents of the map before this method returns, and
+	 * is kept up to date on every change after that.
+	 * <p>
+	 * Indexes are not stored, so they should be added again every time the map is loaded,
+	 * after journaling or disk storage has been set up, and before the map is shared with
+	 * other threads. The function must not change this map.
+	 *
+	 * @param <T> the type of the indexed results.
+	 * @param name the name of the index, which must be unique in this map.
+	 * @param extractor the function that extracts the indexed result from each value; a
+	 * result of {@code null} leaves the entry out of the index.
+	 * @return the new index.
+	 * @throws IllegalArgumentException if this map already has an index with the given
+	 * name.
+	 * @see MapIndex
+	 */
+	@Override
+	public <T> MapIndex<K, V, T> addIndex(String name, Function<? super V, ? extends T> extractor) {
+		return this.addIndex(new MapIndex<K, V, T>(name, extractor, null));
+	}
+
+	/**
+	 * Adds a secondary index on the values of this map, which keeps its results in their
+	 * natural order, so that it also supports range lookups.
+	 *
+	 * @param <T> the type of the indexed results.
+	 * @param name the name of the index, which must be unique in this map.
+	 * @param extractor the function that extracts the indexed result from each value; a
+	 * result of {@code null} leaves the entry out of the index.
+	 * @return the new index.
+	 * @throws IllegalArgumentException if this map already has an index with the given
+	 * name.
+	 * @see #addIndex(String, Function)
+	 */
+	@Override
+	public <T extends Comparable<? super T>> MapIndex<K, V, T> addSortedIndex(String name,
+			Function<? super V, ? extends T> extractor) {
+		return this.addIndex(new MapIndex<K, V, T>(name, extractor, Comparator.<T>naturalOrder()));
+	}
+
+	/**
+	 * Adds a secondary index on the values of this map, which keeps its results in the
+	 * order of the given comparator, so that it also supports range lookups.
+	 *
+	 * @param <T> the type of the indexed results.
+	 * @param name the name of the index, which must be unique in this map.
+	 * @param extractor the function that extracts the indexed result from each value; a
+	 * result of {@code null} leaves the entry out of the index.
+	 * @param comparator the order of the indexed results.
+	 * @return the new index.
+	 * @throws IllegalArgumentException if this map already has an index with the given
+	 * name.
+	 * @see #addIndex(String, Function)
+	 */
+	@Override
+	public <T> MapIndex<K, V, T> addSortedIndex(String name,
+			Function<? super V, ? extends T> extractor, Comparator<? super T> comparator) {
+		return this.addIndex(new MapIndex<K, V, T>(name, extractor, comparator));
+	}
+
+	/**
+	 * Returns the secondary index with the given name.
+	 *
+	 * @param name the name of the index.
+	 * @return the index with the given name, or {@code null} if there is none.
+	 */
+	@Override
+	public MapIndex<K, V, ?> getIndex(String name) {
+		for (MapIndex<K, V, ?> index : this.indexes) {
+			if (index.getName().equals(name)) {
+				return index;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Removes the secondary index with the given name, so that it is no longer kept up to
+	 * date.
+	 *
+	 * @param name the name of the index.
+	 * @return {@code true} if the index was removed; {@code false} if there was no index
+	 * with the given name.
+	 */
+	@Override
+	public boolean removeIndex(String name) {
+		MapIndex<K, V, ?> index = this.getIndex(name);
+		return index != null && this.indexes.remove(index);
+	}
+
+	/**
+	 * Builds the given index from the contents of this map, and starts keeping it up to
+	 * date.
+	 *
+	 * @param <T> the type of the indexed results.
+	 * @param index the index to add.
+	 * @return the given index.
+	 */
+	private <T> MapIndex<K, V, T> addIndex(MapIndex<K, V, T> index) {
+		if (this.getIndex(index.getName()) != null) {
+			throw new IllegalArgumentException("An index named " + index.getName()
+					+ " already exists");
+		}
+		index.rebuild(this);
+		this.indexes.add(index);
+		return index;
+	}
+
+	/**
+	 * Called after every change to the given key, no matter how it was made, to update
+	 * every secondary index. Sub-classes may extend this to keep other state in step with
+	 * the map.
+	 *
+	 * @param key the key that was changed.
+	 * @param value the new value for the key, or {@code null} if the key was removed.
+	 */
+	@SuppressWarnings("unchecked")
+	void entryChanged(Object key, V value) {
+		KeyFilter filter = this.keyFilter;
+		if (filter != null && value != null) {
+			filter.add(key);
+		}
+		for (MapIndex<K, V, ?> index : this.indexes) {
+			index.update((K) key, value);
+		}
+	}
+
+	/**
+	 * Called after every key is removed from the map at once, to clear every secondary
+	 * index.
+	 */
+	void entriesCleared() {
+		if (this.keyFilter != null) {
+			this.keyFilter = new KeyFilter(0, this.keyFilterRate);
+		}
+		for (MapIndex<K, V, ?> index : this.indexes) {
+			index.clear();
+		}
+	}
+
+	@Override
+	protected boolean requiresSave() {
+		return this.journal == null && this.diskMap == null && !this.concurrent
+				&& this.getEntryNamespace() == null && super.requiresSave();
+	}
+
+	/**
+	 * Returns {@code true}, because every change to a map is recorded by key, so each
+	 * entry can be written to the shared store as soon as it changes.
+	 *
+	 * @return {@code true}.
+	 */
+	@Override
+	boolean storesEntries() {
+		return true;
+	}
+
+	/**
+	 * Records that the value for the given key has changed, so that it will be written the
+	 * next time this map is saved. This should be called after changing an object that is
+	 * stored in this map, because those changes cannot be detected automatically.
+	 *
+	 * @param key the key whose value has changed.
+	 */
+	@Override
+	public void markDirty(K key) {
+		if (this.concurrent) {
+			this.concurrentCompute(key, new BiFunction<K, V, V>() {
+
+				@Override
+				public V apply(K k, V old) {
+					return old;
+				}
+
+			}, true, null);
+			return;
+		}
+		this.recordDirtyKey(key, this.markDirty());
+		this.entryChanged(key, this.get(key));
+		if (this.journal != null && this.containsKey(key)) {
+			this.journal.recordPut(key, this.get(key));
+		} else if (this.getEntryNamespace() != null && this.containsKey(key)) {
+			this.storeEntry(key, this.get(key));
+		} else if (this.diskMap != null && this.containsKey(key)) {
+			this.diskMap.put(key, this.get(key));
+		}
+	}
+
+	/**
+	 * Returns the keys whose values have been changed or removed since this map was last
+	 * saved. A key that is in the returned set, but not in this map, has been removed.
+	 * Changed keys are only recorded while change tracking is on, so this set is always
+	 * empty otherwise.
+	 *
+	 * @return a copy of the set of changed keys.
+	 * @see #useChangeTracking(boolean)
+	 */
+	@Override
+	public Set<K> getDirtyKeys() {
+		this.pruneDirtyKeys();
+		return new HashSet<K>(this.dirtyKeys.keySet());
+	}
+
+	/**
+	 * Records the number of the most recent change to the given key, if change tracking
+	 * is on. Without change tracking, the whole map is written by every save, so the
+	 * changed keys are not needed.
+	 *
+	 * @param key the key that was changed or removed.
+	 * @param change the number of the change.
+	 */
+	private void recordDirtyKey(K key, long change) {
+		if (this.tracksChanges()) {
+			this.dirtyKeys.put(key, change);
+		}
+	}
+
+	/**
+	 * Forgets every dirty key whose most recent change has already been saved.
+	 */
+	private void pruneDirtyKeys() {
+		long saved = this.getSavedChangeCount();
+		Iterator<Map.Entry<K, Long>> changes = this.dirtyKeys.entrySet().iterator();
+		while (changes.hasNext()) {
+			Map.Entry<K, Long> change = changes.next();
+			if (change.getValue() <= saved) {
+				if (this.concurrent) {
+					this.dirtyKeys.remove(change.getKey(), change.getValue());
+				} else {
+					changes.remove();
+				}
+			}
+		}
+	}
+
+	@Override
+	public void useChangeTracking(boolean useChangeTracking) {
+		super.useChangeTracking(useChangeTracking);
+		if (!useChangeTracking) {
+			this.dirtyKeys.clear();
+		}
+	}
+
+	@Override
+	public boolean saveInBackground() {
+		this.pruneDirtyKeys();
+		return super.saveInBackground();
+	}
+
+	@Override
+	void batchCommitted(long changes, long nanos) {
+		super.batchCommitted(changes, nanos);
+		this.pruneDirtyKeys();
+	}
+
+	@Override
+	protected void attemptClose() throws IOException {
+		if (this.journal != null) {
+			this.journal.close();
+		}
+		if (this.diskMap != null) {
+			this.diskMap.close();
+		}
+		if (this.concurrent) {
+			this.setSnapshotInterval(0);
+			this.awaitBackgroundSave();
+			if (this.isDirty()) {
+				PayloadSnapshot snapshot = this.captureSnapshot();
+				try {
+					this.writeSnapshot(snapshot);
+				} finally {
+					snapshot.release();
+				}
+			}
+		}
+		super.attemptClose();
+	}
+
+	/**
+	 * Records that the given key has been mapped to the given value.
+	 *
+	 * @param key the key that was changed.
+	 * @param value the new value for the key.
+	 */
+	private void recordPut(K key, V value) {
+		this.recordDirtyKey(key, this.markDirty());
+		this.entryChanged(key, value);
+		if (this.journal != null) {
+			this.journal.recordPut(key, value);
+		}
+		this.storeEntry(key, value);
+	}
+
+	/**
+	 * Records that the given key has been removed.
+	 *
+	 * @param key the key that was removed.
+	 */
+	@SuppressWarnings("unchecked")
+	private void recordRemove(Object key) {
+		this.recordDirtyKey((K) key, this.markDirty());
+		this.entryChanged(key, null);
+		if (this.journal != null) {
+			this.journal.recordRemove(key);
+		}
+		this.storeRemove(key);
+	}
+
+	/**
+	 * Records that every key has been removed.
+	 *
+	 * @param removedKeys the keys that were in this map before it was cleared.
+	 */
+	private void recordClear(Collection<K> removedKeys) {
+		long change = this.markDirty();
+		for (K key : removedKeys) {
+			this.recordDirtyKey(key, change);
+		}
+		this.entriesCleared();
+		if (this.journal != null) {
+			this.journal.recordClear();
+		}
+		this.storeClear();
+	}
+
+	/**
+	 * Writes the given entry to the shared store, if the entries of this map are stored
+	 * there.
+	 *
+	 * @param key the key that was changed.
+	 * @param value the new value for the key.
+	 */
+	private void storeEntry(Object key, V value) {
+		SharedStore.Namespace ns = this.getEntryNamespace();
+		if (ns == null) {
+			return;
+		}
+		try {
+			this.recordWrite(ns.put(PersistentObject.toKeyBytes(key),
+					PayloadFormat.toBytes(this.getCodec(), value)));
+		} catch (IOException e) {
+			this.getOwner().getLogger().log(Level.WARNING,
+					"Error writing to the shared store: " + this.getFile(), e);
+		}
+	}
+
+	/**
+	 * Removes the given key from the shared store, if the entries of this map are stored
+	 * there.
+	 *
+	 * @param key the key that was removed.
 	 */
-	public <T extends Map<K, V> & Serializable> PersistentMap(SimplePlugin owner, String filename, T data) {
-		super(owner, filename, data);
+	private void storeRemove(Object key) {
+		SharedStore.Namespace ns = this.getEntryNamespace();
+		if (ns == null) {
+			return;
+		}
+		try {
+			this.recordWrite(ns.remove(PersistentObject.toKeyBytes(key)));
+		} catch (IOException e) {
+			this.getOwner().getLogger().log(Level.WARNING,
+					"Error writing to the shared store: " + this.getFile(), e);
+		}
 	}
 
 	/**
-	 * Constructs a new {@code PersistentMap} with the given plugin as an owner, and the
-	 * filename to store that data to. This constructor will create a new {@code HashMap}
-	 * object that will contain the data.
-	 *
-	 * @param owner the plugin that created this object.
-	 * @param filename the filename to store the object as.
+	 * Removes every key from the shared store, if the entries of this map are stored
+	 * there. The schema version, which is stored with the entries, is written again the
+	 * next time this map is saved.
 	 */
-	public PersistentMap(SimplePlugin owner, String filename) {
-		this(owner, filename, new HashMap<K, V>());
+	private void storeClear() {
+		SharedStore.Namespace ns = this.getEntryNamespace();
+		if (ns == null) {
+			return;
+		}
+		try {
+			ns.clear();
+			this.storedEntriesCleared();
+		} catch (IOException e) {
+			this.getOwner().getLogger().log(Level.WARNING,
+					"Error writing to the shared store: " + this.getFile(), e);
+		}
 	}
 
 	/**
-	 * Gets the {@code Map} that is stored by this {@code PersistentMap}.
+	 * Gets the {@code ConcurrentHashMap} that is stored by this map while concurrent access
+	 * is allowed.
 	 *
-	 * @return a reference to the underlying {@code Map}.
+	 * @return a reference to the underlying {@code ConcurrentHashMap}.
 	 */
 	@SuppressWarnings("unchecked")
-	private Map<K, V> mapdata() {
-		if (this.getPayload() instanceof Map<?, ?>) {
-			return (Map<K, V>) this.getPayload();
-		} else {
-			return null;
+	private ConcurrentHashMap<K, V> concurrentdata() {
+		return (ConcurrentHashMap<K, V>) super.getPayload();
+	}
+
+	/**
+	 * Atomically replaces the value for the given key with the result of the given
+	 * function, and records the change, while concurrent access is allowed. A result of
+	 * {@code null} removes the key.
+	 *
+	 * @param key the key to update.
+	 * @param function computes the new value from the key and the current value.
+	 * @param recordUnchanged {@code true} if the key should be recorded as changed even if
+	 * the function returns the current value; {@code false} otherwise.
+	 * @param previous an array whose first element is set to the value that was replaced,
+	 * or {@code null} if the replaced value is not needed.
+	 * @return the new value for the key.
+	 */
+	private V concurrentCompute(K key, final BiFunction<? super K, ? super V, ? extends V> function,
+			final boolean recordUnchanged, final Object[] previous) {
+		AtomicLong counter = this.writesInProgress[this.writeEpoch];
+		counter.incrementAndGet();
+		try {
+			return this.concurrentdata().compute(key, new BiFunction<K, V, V>() {
+
+				@Override
+				public V apply(K k, V old) {
+					if (previous != null) {
+						previous[0] = old;
+					}
+					V value = function.apply(k, old);
+					if ((value != old || recordUnchanged) && (value != null || old != null)) {
+						PersistentMap.this.recordConcurrentChange(k, old);
+						PersistentMap.this.entryChanged(k, value);
+					}
+					return value;
+				}
+
+			});
+		} finally {
+			counter.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Records that the given key is about to be changed while concurrent access is
+	 * allowed. This is always called while the key is locked by the underlying map, so
+	 * changes to a single key are always recorded in order.
+	 *
+	 * @param key the key that is being changed.
+	 * @param old the value that is being replaced, or {@code null} if there is none.
+	 */
+	private void recordConcurrentChange(K key, V old) {
+		ConcurrentSnapshot snapshot = this.activeSnapshot;
+		if (snapshot != null) {
+			snapshot.recordBefore(key, old);
 		}
+		this.recordDirtyKey(key, this.markDirty());
+	}
+
+	/**
+	 * Returns the value that was replaced by a concurrent update.
+	 *
+	 * @param previous the array that was passed to
+	 * {@link #concurrentCompute(Object, BiFunction, boolean, Object[])}.
+	 * @return the value that was replaced, or {@code null} if there was none.
+	 */
+	@SuppressWarnings("unchecked")
+	private V previousValue(Object[] previous) {
+		return (V) previous[0];
 	}
 
 	// @formatter:off
@@ -86,62 +1259,789 @@ public class PersistentMap<K extends Serializable, V extends Serializable> exten
 
 	@Override
 	public void clear() {
+		if (this.concurrent) {
+			for (K key : this.concurrentdata().keySet()) {
+				this.remove(key);
+			}
+			return;
+		}
+		List<K> removedKeys = new ArrayList<K>(this.mapdata().keySet());
 		this.mapdata().clear();
+		this.recordClear(removedKeys);
 	}
 
 	@Override
 	public boolean containsKey(Object arg0) {
-		return this.mapdata().containsKey(arg0);
+		KeyFilter filter = this.keyFilter;
+		if (filter != null && !filter.mightContain(arg0)) {
+			return false;
+		}
+		this.settleOverlay(false);
+		if (this.overlay != null && this.overlay.containsKey(arg0)) {
+			return this.overlay.get(arg0) != PersistentMap.REMOVED;
+		}
+		return this.basedata().containsKey(arg0);
 	}
 
 	@Override
 	public boolean containsValue(Object arg0) {
-		return this.mapdata().containsValue(arg0);
+		if (!this.concurrent) {
+			this.settleOverlay(false);
+		}
+		if (this.overlay == null) {
+			return this.basedata().containsValue(arg0);
+		}
+		for (V value : this.values()) {
+			if (Objects.equals(value, arg0)) {
+				return true;
+			}
+		}
+		return false;
 	}
 
 	@Override
 	public Set<java.util.Map.Entry<K, V>> entrySet() {
-		return this.mapdata().entrySet();
+		return new EntrySetView();
 	}
 
 	@Override
+	@SuppressWarnings("unchecked")
 	public V get(Object arg0) {
-		return this.mapdata().get(arg0);
+		KeyFilter filter = this.keyFilter;
+		if (filter != null && !filter.mightContain(arg0)) {
+			return null;
+		}
+		this.settleOverlay(false);
+		if (this.overlay != null && this.overlay.containsKey(arg0)) {
+			Object value = this.overlay.get(arg0);
+			return (value == PersistentMap.REMOVED) ? null : (V) value;
+		}
+		return this.basedata().get(arg0);
 	}
 
 	@Override
 	public boolean isEmpty() {
-		return this.mapdata().isEmpty();
+		return this.size() == 0;
 	}
 
 	@Override
 	public Set<K> keySet() {
-		return this.mapdata().keySet();
+		return new KeySetView();
 	}
 
 	@Override
-	public V put(K arg0, V arg1) {
-		return this.mapdata().put(arg0, arg1);
+	public V put(K arg0, final V arg1) {
+		if (this.concurrent) {
+			Object[] previous = new Object[1];
+			this.concurrentCompute(arg0, new BiFunction<K, V, V>() {
+
+				@Override
+				public V apply(K k, V old) {
+					return arg1;
+				}
+
+			}, true, previous);
+			return this.previousValue(previous);
+		}
+		this.settleOverlay(false);
+		V previous;
+		if (this.overlay != null) {
+			// Either lookup may settle the overlay, if the snapshot has just been released
+			boolean present = this.containsKey(arg0);
+			previous = this.get(arg0);
+			if (this.overlay != null) {
+				if (!present) {
+					this.overlaySize++;
+				}
+				this.overlay.put(arg0, arg1);
+			} else {
+				this.basedata().put(arg0, arg1);
+			}
+		} else {
+			previous = this.basedata().put(arg0, arg1);
+		}
+		this.recordPut(arg0, arg1);
+		return previous;
 	}
 
 	@Override
 	public void putAll(Map<? extends K, ? extends V> arg0) {
-		this.mapdata().putAll(arg0);
+		if (!this.concurrent) {
+			this.settleOverlay(false);
+		}
+		if (this.concurrent || this.overlay != null) {
+			for (Map.Entry<? extends K, ? extends V> entry : arg0.entrySet()) {
+				this.put(entry.getKey(), entry.getValue());
+			}
+			return;
+		}
+		// Without an overlay, the whole batch can be merged at once, as a single change
+		this.basedata().putAll(arg0);
+		long change = this.markDirty();
+		for (Map.Entry<? extends K, ? extends V> entry : arg0.entrySet()) {
+			this.recordDirtyKey(entry.getKey(), change);
+			this.entryChanged(entry.getKey(), entry.getValue());
+			if (this.journal != null) {
+				this.journal.recordPut(entry.getKey(), entry.getValue());
+			}
+			this.storeEntry(entry.getKey(), entry.getValue());
+		}
 	}
 
 	@Override
+	@SuppressWarnings("unchecked")
 	public V remove(Object arg0) {
-		return this.mapdata().remove(arg0);
+		if (this.concurrent) {
+			if (!this.containsKey(arg0)) {
+				return null;
+			}
+			Object[] previous = new Object[1];
+			this.concurrentCompute((K) arg0, new BiFunction<K, V, V>() {
+
+				@Override
+				public V apply(K k, V old) {
+					return null;
+				}
+
+			}, true, previous);
+			return this.previousValue(previous);
+		}
+		if (!this.containsKey(arg0)) {
+			return null;
+		}
+		// The lookup may settle the overlay, if the snapshot has just been released
+		V previous = (this.overlay != null) ? this.get(arg0) : null;
+		if (this.overlay != null) {
+			this.overlay.put(arg0, PersistentMap.REMOVED);
+			this.overlaySize--;
+		} else {
+			previous = this.basedata().remove(arg0);
+		}
+		this.recordRemove(arg0);
+		return previous;
+	}
+
+	/**
+	 * Returns the number of entries in this map.
+	 *
+	 * @return the number of entries.
+	 * @see #size()
+	 */
+	@Override
+	public int getEntryCount() {
+		return this.size();
+	}
+
+	@Override
+	Object[] getHeapRoots() {
+		return new Object[] {super.getHeapRoots()[0], this.diskMap, this.overlay, this.dirtyKeys,
+				this.indexes, this.keyFilter};
 	}
 
 	@Override
 	public int size() {
-		return this.mapdata().size();
+		this.settleOverlay(false);
+		if (this.overlay != null) {
+			return this.overlaySize;
+		}
+		return this.basedata().size();
 	}
 
 	@Override
 	public Collection<V> values() {
-		return this.mapdata().values();
+		return new ValuesView();
+	}
+
+	@Override
+	public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+		if (this.concurrent) {
+			return this.concurrentCompute(key, remappingFunction, true, null);
+		}
+		return TrackedMap.super.compute(key, remappingFunction);
+	}
+
+	@Override
+	public V computeIfAbsent(K key, final Function<? super K, ? extends V> mappingFunction) {
+		if (this.concurrent) {
+			return this.concurrentCompute(key, new BiFunction<K, V, V>() {
+
+				@Override
+				public V apply(K k, V old) {
+					return (old != null) ? old : mappingFunction.apply(k);
+				}
+
+			}, false, null);
+		}
+		return TrackedMap.super.computeIfAbsent(key, mappingFunction);
+	}
+
+	@Override
+	public V computeIfPresent(K key,
+			final BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+		if (this.concurrent) {
+			return this.concurrentCompute(key, new BiFunction<K, V, V>() {
+
+				@Override
+				public V apply(K k, V old) {
+					return (old != null) ? remappingFunction.apply(k, old) : null;
+				}
+
+			}, true, null);
+		}
+		return TrackedMap.super.computeIfPresent(key, remappingFunction);
+	}
+
+	@Override
+	public V merge(K key, final V value,
+			final BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+		if (this.concurrent) {
+			return this.concurrentCompute(key, new BiFunction<K, V, V>() {
+
+				@Override
+				public V apply(K k, V old) {
+					return (old != null) ? remappingFunction.apply(old, value) : value;
+				}
+
+			}, true, null);
+		}
+		return TrackedMap.super.merge(key, value, remappingFunction);
+	}
+
+	@Override
+	public V putIfAbsent(K key, final V value) {
+		if (this.concurrent) {
+			Object[] previous = new Object[1];
+			this.concurrentCompute(key, new BiFunction<K, V, V>() {
+
+				@Override
+				public V apply(K k, V old) {
+					return (old != null) ? old : value;
+				}
+
+			}, false, previous);
+			return this.previousValue(previous);
+		}
+		return TrackedMap.super.putIfAbsent(key, value);
+	}
+
+	@Override
+	public V replace(K key, final V value) {
+		if (this.concurrent) {
+			Object[] previous = new Object[1];
+			this.concurrentCompute(key, new BiFunction<K, V, V>() {
+
+				@Override
+				public V apply(K k, V old) {
+					return (old != null) ? value : null;
+				}
+
+			}, true, previous);
+			return this.previousValue(previous);
+		}
+		return TrackedMap.super.replace(key, value);
+	}
+
+	@Override
+	public boolean replace(K key, final V oldValue, final V newValue) {
+		if (this.concurrent) {
+			Object[] previous = new Object[1];
+			this.concurrentCompute(key, new BiFunction<K, V, V>() {
+
+				@Override
+				public V apply(K k, V old) {
+					return (old != null && old.equals(oldValue)) ? newValue : old;
+				}
+
+			}, false, previous);
+			return previous[0] != null && previous[0].equals(oldValue);
+		}
+		return TrackedMap.super.replace(key, oldValue, newValue);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public boolean remove(Object key, final Object value) {
+		if (this.concurrent) {
+			if (!this.containsKey(key)) {
+				return false;
+			}
+			Object[] previous = new Object[1];
+			this.concurrentCompute((K) key, new BiFunction<K, V, V>() {
+
+				@Override
+				public V apply(K k, V old) {
+					return (old != null && old.equals(value)) ? null : old;
+				}
+
+			}, false, previous);
+			return previous[0] != null && previous[0].equals(value);
+		}
+		return TrackedMap.super.remove(key, value);
+	}
+
+	// @formatter:off
+
+	/*
+	 * +------------------------------------------------------------------------------------+
+	 * | The classes below are views of this map that record changes made through them too. |
+	 * +------------------------------------------------------------------------------------+
+	 */
+
+	// @formatter:on
+
+	/**
+	 * An iterator over the entries of the underlying map, that records the removal of an
+	 * entry through {@code remove()}. While a snapshot is being written, this iterates over
+	 * the frozen underlying map, skipping every key that has changed since, and then over
+	 * the changed keys, so that the map does not have to be copied.
+	 */
+	private class EntryIterator implements Iterator<Map.Entry<K, V>> {
+
+		/**
+		 * The iterator that is currently being read from.
+		 */
+		private Iterator<? extends Map.Entry<?, ?>> iterator;
+
+		/**
+		 * The changes made since the snapshot, as they were when this iterator was created,
+		 * or {@code null} if the underlying map was not frozen.
+		 */
+		private final Map<Object, Object> changes;
+
+		/**
+		 * The overlay that this iterator was created under, or {@code null} if the
+		 * underlying map was not frozen.
+		 */
+		private final Map<Object, Object> overlay;
+
+		/**
+		 * {@code true} once the frozen map has been read, and the changed keys are being
+		 * read.
+		 */
+		private boolean readingChanges;
+
+		/**
+		 * The next entry to return, or {@code null} if it has not been found yet.
+		 */
+		private Map.Entry<K, V> nextEntry;
+
+		/**
+		 * The key of the most recently returned entry.
+		 */
+		private K lastKey;
+
+		/**
+		 * Constructs a new {@code EntryIterator} over the underlying map.
+		 */
+		public EntryIterator() {
+			if (!PersistentMap.this.concurrent) {
+				PersistentMap.this.settleOverlay(false);
+			}
+			this.overlay = PersistentMap.this.overlay;
+			if (this.overlay == null) {
+				this.changes = null;
+				this.iterator = PersistentMap.this.basedata().entrySet().iterator();
+			} else {
+				this.changes = new HashMap<Object, Object>(this.overlay);
+				this.iterator = PersistentMap.this.basedata().entrySet().iterator();
+				PersistentMap.this.overlayIterators++;
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (this.changes == null) {
+				return this.iterator.hasNext();
+			}
+			return this.findNext();
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public Map.Entry<K, V> next() {
+			if (this.changes == null) {
+				Map.Entry<K, V> entry = (Map.Entry<K, V>) this.iterator.next();
+				this.lastKey = entry.getKey();
+				return new EntryView(entry);
+			}
+			if (!this.findNext()) {
+				throw new NoSuchElementException();
+			}
+			Map.Entry<K, V> entry = this.nextEntry;
+			this.nextEntry = null;
+			this.lastKey = entry.getKey();
+			return new OverlayEntryView(entry.getKey(), entry.getValue());
+		}
+
+		@Override
+		public void remove() {
+			if (PersistentMap.this.concurrent || this.changes != null) {
+				// Changes made while the map is frozen go to the overlay
+				PersistentMap.this.remove(this.lastKey);
+				return;
+			}
+			this.iterator.remove();
+			PersistentMap.this.recordRemove(this.lastKey);
+		}
+
+		/**
+		 * Finds the next entry of the frozen map whose key has not changed, or else the next
+		 * changed key that was not removed.
+		 *
+		 * @return {@code true} if there is another entry; {@code false} otherwise.
+		 */
+		@SuppressWarnings("unchecked")
+		private boolean findNext() {
+			while (this.nextEntry == null) {
+				if (!this.iterator.hasNext()) {
+					if (this.readingChanges) {
+						this.finish();
+						return false;
+					}
+					this.readingChanges = true;
+					this.iterator = this.changes.entrySet().iterator();
+					continue;
+				}
+				Map.Entry<?, ?> entry = this.iterator.next();
+				if (this.readingChanges ? entry.getValue() != PersistentMap.REMOVED
+						: !this.changes.containsKey(entry.getKey())) {
+					this.nextEntry = (Map.Entry<K, V>) entry;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Records that this iterator has reached the end of the frozen map, so the overlay
+		 * may be merged back.
+		 */
+		private void finish() {
+			if (this.overlay == PersistentMap.this.overlay && this.overlay != null
+					&& PersistentMap.this.overlayIterators > 0) {
+				PersistentMap.this.overlayIterators--;
+			}
+		}
+
+	}
+
+	/**
+	 * An entry that was read while a snapshot was being written. Changes made through
+	 * {@code setValue()} are made through the map, so they go to the overlay.
+	 */
+	private class OverlayEntryView extends AbstractMap.SimpleEntry<K, V> {
+
+		/**
+		 * The serial version of this class.
+		 */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Constructs a new {@code OverlayEntryView} with the given key and value.
+		 *
+		 * @param key the key of the entry.
+		 * @param value the value of the entry.
+		 */
+		public OverlayEntryView(K key, V value) {
+			super(key, value);
+		}
+
+		@Override
+		public V setValue(V value) {
+			PersistentMap.this.put(this.getKey(), value);
+			return super.setValue(value);
+		}
+
+	}
+
+	/**
+	 * An entry of the underlying map, that records changes made through
+	 * {@code setValue()}.
+	 */
+	private class EntryView implements Map.Entry<K, V> {
+
+		/**
+		 * The entry of the underlying map.
+		 */
+		private final Map.Entry<K, V> entry;
+
+		/**
+		 * Constructs a new {@code EntryView} around the given entry.
+		 *
+		 * @param entry the entry of the underlying map.
+		 */
+		public EntryView(Map.Entry<K, V> entry) {
+			this.entry = entry;
+		}
+
+		@Override
+		public K getKey() {
+			return this.entry.getKey();
+		}
+
+		@Override
+		public V getValue() {
+			return this.entry.getValue();
+		}
+
+		@Override
+		public V setValue(V value) {
+			if (PersistentMap.this.concurrent) {
+				return PersistentMap.this.put(this.entry.getKey(), value);
+			}
+			V previous = this.entry.setValue(value);
+			PersistentMap.this.recordPut(this.entry.getKey(), value);
+			return previous;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return this.entry.equals(other);
+		}
+
+		@Override
+		public int hashCode() {
+			return this.entry.hashCode();
+		}
+
+		@Override
+		public String toString() {
+			return this.entry.toString();
+		}
+
+	}
+
+	/**
+	 * A view of the entries in this map.
+	 */
+	private class EntrySetView extends AbstractSet<Map.Entry<K, V>> {
+
+		@Override
+		public Iterator<Map.Entry<K, V>> iterator() {
+			return new EntryIterator();
+		}
+
+		@Override
+		public int size() {
+			return PersistentMap.this.size();
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			if (!(o instanceof Map.Entry<?, ?>)) {
+				return false;
+			}
+			Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+			return PersistentMap.this.containsKey(entry.getKey())
+					&& Objects.equals(PersistentMap.this.get(entry.getKey()), entry.getValue());
+		}
+
+		@Override
+		public boolean remove(Object o) {
+			if (this.contains(o)) {
+				PersistentMap.this.remove(((Map.Entry<?, ?>) o).getKey());
+				return true;
+			}
+			return false;
+		}
+
+		@Override
+		public void clear() {
+			PersistentMap.this.clear();
+		}
+
+	}
+
+	/**
+	 * A view of the keys in this map.
+	 */
+	private class KeySetView extends AbstractSet<K> {
+
+		@Override
+		public Iterator<K> iterator() {
+			final EntryIterator entries = new EntryIterator();
+			return new Iterator<K>() {
+
+				@Override
+				public boolean hasNext() {
+					return entries.hasNext();
+				}
+
+				@Override
+				public K next() {
+					return entries.next().getKey();
+				}
+
+				@Override
+				public void remove() {
+					entries.remove();
+				}
+
+			};
+		}
+
+		@Override
+		public int size() {
+			return PersistentMap.this.size();
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return PersistentMap.this.containsKey(o);
+		}
+
+		@Override
+		public boolean remove(Object o) {
+			if (PersistentMap.this.containsKey(o)) {
+				PersistentMap.this.remove(o);
+				return true;
+			}
+			return false;
+		}
+
+		@Override
+		public void clear() {
+			PersistentMap.this.clear();
+		}
+
+	}
+
+	/**
+	 * A view of the values in this map.
+	 */
+	private class ValuesView extends AbstractCollection<V> {
+
+		@Override
+		public Iterator<V> iterator() {
+			final EntryIterator entries = new EntryIterator();
+			return new Iterator<V>() {
+
+				@Override
+				public boolean hasNext() {
+					return entries.hasNext();
+				}
+
+				@Override
+				public V next() {
+					return entries.next().getValue();
+				}
+
+				@Override
+				public void remove() {
+					entries.remove();
+				}
+
+			};
+		}
+
+		@Override
+		public int size() {
+			return PersistentMap.this.size();
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return PersistentMap.this.containsValue(o);
+		}
+
+		@Override
+		public void clear() {
+			PersistentMap.this.clear();
+		}
+
+	}
+
+	/**
+	 * A snapshot of this map that is captured while concurrent access is allowed. The
+	 * snapshot does not copy or freeze the map; instead, every write that happens after the
+	 * snapshot is captured records the value that it replaced, and the snapshot restores
+	 * those values while it is being written.
+	 */
+	private class ConcurrentSnapshot extends PayloadSnapshot {
+
+		/**
+		 * The map that this snapshot is taken of.
+		 */
+		private final ConcurrentHashMap<K, V> data;
+
+		/**
+		 * The epoch of the writes that may have started before this snapshot was captured.
+		 */
+		private final int epoch;
+
+		/**
+		 * The value of every key that has been changed since this snapshot was captured,
+		 * from before its first change. Keys that did not exist are mapped to
+		 * {@link PersistentMap#REMOVED}.
+		 */
+		private final ConcurrentHashMap<Object, Object> before;
+
+		/**
+		 * {@code true} once every write from before this snapshot was captured has finished.
+		 */
+		private volatile boolean drained;
+
+		/**
+		 * Constructs a new {@code ConcurrentSnapshot} of the given map.
+		 *
+		 * @param data the map to take a snapshot of.
+		 * @param epoch the epoch of the writes that may have started before the snapshot.
+		 */
+		private ConcurrentSnapshot(ConcurrentHashMap<K, V> data, int epoch) {
+			this.data = data;
+			this.epoch = epoch;
+			this.before = new ConcurrentHashMap<Object, Object>();
+		}
+
+		/**
+		 * Records the value of the given key from before it is changed. Only the first
+		 * change of every key is recorded.
+		 *
+		 * @param key the key that is being changed.
+		 * @param old the value that is being replaced, or {@code null} if there is none.
+		 */
+		private void recordBefore(Object key, Object old) {
+			this.before.putIfAbsent(key, (old == null) ? PersistentMap.REMOVED : old);
+		}
+
+		/**
+		 * Waits for every write that may have started before this snapshot was captured to
+		 * finish. Those writes do not always see this snapshot, so they must be complete
+		 * before the map is read.
+		 */
+		private void drain() {
+			if (this.drained) {
+				return;
+			}
+			AtomicLong writes = PersistentMap.this.writesInProgress[this.epoch];
+			while (writes.get() > 0) {
+				Thread.yield();
+			}
+			this.drained = true;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public void writeTo(OutputStream out) throws IOException {
+			this.drain();
+			HashMap<K, V> copy = new HashMap<K, V>(this.data);
+			for (Map.Entry<Object, Object> change : this.before.entrySet()) {
+				if (change.getValue() == PersistentMap.REMOVED) {
+					copy.remove(change.getKey());
+				} else {
+					copy.put((K) change.getKey(), (V) change.getValue());
+				}
+			}
+			PayloadFormat.write(out, PersistentMap.this.getCodec(), copy);
+		}
+
+		@Override
+		public void release() {
+			this.drain();
+			if (PersistentMap.this.activeSnapshot == this) {
+				PersistentMap.this.activeSnapshot = null;
+			}
+		}
+
 	}
 
 }
@@ -16,13 +16,35 @@
 
 package io.github.zachohara.bukkit.simpleplugin.fileio.persistence;
 
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 
+import org.bukkit.Bukkit;
+import org.bukkit.scheduler.BukkitTask;
+
+import io.github.zachohara.bukkit.simpleplugin.fileio.FileExecutor;
+import io.github.zachohara.bukkit.simpleplugin.fileio.FileUtil;
 import io.github.zachohara.bukkit.simpleplugin.fileio.PluginDataFile;
 import io.github.zachohara.bukkit.simpleplugin.plugin.SimplePlugin;
 
@@ -35,12 +57,136 @@ import io.github.zachohara.bukkit.simpleplugin.plugin.SimplePlugin;
  */
 public class PersistentObject extends PluginDataFile {
 
+	/**
+	 * The size of the buffers used when reading and writing files.
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * The key that the payload is stored under when it is kept in the shared store as a
+	 * whole. When the entries of a map are stored separately, this key holds the schema
+	 * version instead; no key of a map is ever converted to an empty array.
+	 */
+	private static final byte[] PAYLOAD_KEY = new byte[0];
+
 	/**
 	 * The {@code Serializable} object that will be stored. After registering the object
 	 * here, the object can still be modified by other classes.
 	 */
 	private Serializable payload;
 
+	/**
+	 * The codec used to write the payload, or {@code null} to use the default codec.
+	 */
+	private PayloadCodec codec;
+
+	/**
+	 * The compression applied to the file when it is written, or {@code null} if the file
+	 * is not compressed.
+	 */
+	private volatile PayloadCompression compression;
+
+	/**
+	 * The version of the plugin's data classes that the payload was written with, which
+	 * is stored in the schema header of the file.
+	 */
+	private volatile int schemaVersion;
+
+	/**
+	 * The namespace of the shared store that holds the payload, or {@code null} if the
+	 * payload is kept in its own file. This is set while the file is read, which may be
+	 * before the constructor of this class has run, so it has no initializer.
+	 */
+	private volatile SharedStore.Namespace namespace;
+
+	/**
+	 * {@code true} if the payload was read from its own file, and must be moved into the
+	 * shared store once it has been loaded.
+	 */
+	private boolean migrateToStore;
+
+	/**
+	 * {@code true} if the payload was read from the shared store, which this object no
+	 * longer uses, and must be moved back to its own file once it has been loaded.
+	 */
+	private boolean exportFromStore;
+
+	/**
+	 * The schema version that is stored in the namespace, when the entries of a map are
+	 * stored separately.
+	 */
+	private int storedSchemaVersion;
+
+	/**
+	 * {@code true} if every entry must be written to the namespace the next time this
+	 * object is saved, because the namespace was empty or could not be read when this
+	 * object was loaded, or because a batch that changed this object could not be written.
+	 */
+	private volatile boolean rewriteEntries;
+
+	/**
+	 * Guards writing to the file, so that only one snapshot is written at a time.
+	 */
+	private final Object writeLock = new Object();
+
+	/**
+	 * {@code true} if the caller has promised to report every change to the payload, so
+	 * that saves can be skipped when nothing has changed. This is set after loading, so it
+	 * has no initial value.
+	 *
+	 * @see #useChangeTracking(boolean)
+	 */
+	private volatile boolean changeTracking;
+
+	/**
+	 * The number of changes that have been made to the payload.
+	 *
+	 * @see #markDirty()
+	 */
+	private final AtomicLong changeCount = new AtomicLong();
+
+	/**
+	 * The number of the most recent change that has been written to the disk.
+	 */
+	private volatile long savedChangeCount;
+
+	/**
+	 * {@code true} if the file could not be loaded, so the payload must be written even if
+	 * it has not changed.
+	 */
+	private volatile boolean loadFailed;
+
+	/**
+	 * The task that periodically saves the payload, or {@code null} if there is none.
+	 */
+	private BukkitTask snapshotTask;
+
+	/**
+	 * The background save that is currently running, or {@code null} if there is none.
+	 */
+	private Future<?> backgroundSave;
+
+	/**
+	 * The number of snapshots that have been written.
+	 */
+	private volatile long snapshotCount;
+
+	/**
+	 * The time the main thread was paused to capture the most recent background snapshot,
+	 * in nanoseconds.
+	 */
+	private volatile long lastCaptureNanos;
+
+	/**
+	 * The time taken to write the most recent snapshot, in nanoseconds.
+	 */
+	private volatile long lastSnapshotNanos;
+
+	/**
+	 * The number of bytes written by the most recent snapshot.
+	 */
+	private volatile long lastSnapshotBytes;
+
 	/**
 	 * Constructs a new {@code PersistentObject} with the given plugin as an owner, the
 	 * payload to store, and the filename to store that data to.
@@ -69,39 +215,1083 @@ public class PersistentObject extends PluginDataFile {
 
 	/**
 	 * Returns a reference to the {@code Serializable} object that is stored by this
-	 * {@code PersistentObject}.
+	 * {@code PersistentObject}. If the file is still being loaded in the background, this
+	 * waits for it first.
 	 *
 	 * @return a reference to the stored data.
 	 */
 	public Serializable getPayload() {
+		this.ensureLoaded();
 		return this.payload;
 	}
 
+	/**
+	 * Returns the codec that is used to write the payload to the file.
+	 *
+	 * @return the codec for this object.
+	 * @see #setCodec(PayloadCodec)
+	 */
+	public PayloadCodec getCodec() {
+		if (this.codec == null) {
+			return BinaryCodec.INSTANCE;
+		}
+		return this.codec;
+	}
+
+	/**
+	 * Sets the codec that is used to write the payload to the file. The codec that is used
+	 * to read the file is always chosen from the header of the file, so this setting only
+	 * affects how the file is written the next time it is saved. By default, the
+	 * {@code BinaryCodec} is used.
+	 * <p>
+	 * The {@code BinaryCodec} writes each value of the payload on its own, so an object
+	 * that is shared by several values is read back as a separate copy for each of them. A
+	 * payload that relies on shared objects should use the {@code JavaSerializationCodec}
+	 * instead.
+	 *
+	 * @param codec the codec to use when writing the file.
+	 */
+	public void setCodec(PayloadCodec codec) {
+		PayloadFormat.register(codec);
+		this.codec = codec;
+	}
+
+	/**
+	 * Returns the compression that is applied to the file when it is written.
+	 *
+	 * @return the compression for this object, or {@code null} if the file is not
+	 * compressed.
+	 * @see #setCompression(PayloadCompression)
+	 */
+	public PayloadCompression getCompression() {
+		return this.compression;
+	}
+
+	/**
+	 * Sets the compression that is applied to the file when it is written. The data is
+	 * compressed as it is written, on the thread that writes the file, so a background
+	 * save does not compress on the main server thread. Whether a file is compressed is
+	 * always detected when it is read, so this setting only affects how the file is
+	 * written the next time it is saved. By default, files are not compressed.
+	 *
+	 * @param compression the compression to use when writing the file, or {@code null}
+	 * to write the file without compression.
+	 * @see DeflateCompression
+	 * @see LZCompression
+	 */
+	public void setCompression(PayloadCompression compression) {
+		if (compression != null) {
+			PayloadFormat.register(compression);
+		}
+		this.compression = compression;
+	}
+
+	/**
+	 * Returns the version of the plugin's data classes that the payload is stored with.
+	 * This is read from the schema header of the file when it is loaded, and is {@code 0}
+	 * for a file without one.
+	 *
+	 * @return the schema version of the payload.
+	 * @see #setSchemaVersion(int)
+	 */
+	public int getSchemaVersion() {
+		this.ensureLoaded();
+		return this.schemaVersion;
+	}
+
+	/**
+	 * Sets the version of the plugin's data classes that the payload is stored with, which
+	 * is written to the schema header of the file the next time it is saved. A plugin
+	 * that migrates its data with {@code FileMigration} should set the current version
+	 * after opening the file, so that a new file is also marked with it.
+	 *
+	 * @param schemaVersion the schema version of the payload, which must not be negative.
+	 * @see FileMigration
+	 */
+	public void setSchemaVersion(int schemaVersion) {
+		if (schemaVersion < 0) {
+			throw new IllegalArgumentException("Schema versions cannot be negative");
+		}
+		this.ensureLoaded();
+		if (schemaVersion != this.schemaVersion) {
+			this.schemaVersion = schemaVersion;
+			this.markDirty();
+		}
+	}
+
+	/**
+	 * Replaces the {@code Serializable} object that is stored by this
+	 * {@code PersistentObject}.
+	 *
+	 * @param payload the new data to store.
+	 */
+	protected void setPayload(Serializable payload) {
+		this.ensureLoaded();
+		this.payload = payload;
+	}
+
+	/**
+	 * Returns {@code true}, because the file of a {@code PersistentObject} is only read
+	 * by {@link #readContents()}, and the payload is only used through
+	 * {@link #getPayload()}.
+	 *
+	 * @return {@code true}.
+	 */
+	@Override
+	protected boolean supportsAsyncLoad() {
+		return true;
+	}
+
+	/**
+	 * Reads the payload from the shared store if this object uses it, and from its own
+	 * file otherwise. A file that exists while the namespace in the shared store is empty
+	 * is read from the file, and is moved into the shared store once it is loaded; the
+	 * reverse happens when a plugin stops using the shared store.
+	 */
+	@Override
+	protected Object readContents() throws IOException {
+		SharedStore store = this.getSharedStore();
+		File file = this.getFile();
+		if (store == null) {
+			store = SharedStore.getShared();
+			if (store != null && this.supportsSharedStore() && file.length() == 0
+					&& store.contains(this.getNamespaceName())) {
+				this.exportFromStore = true;
+				this.namespace = store.openNamespace(this.getNamespaceName());
+				return this.readNamespace();
+			}
+			return this.readOwnFile();
+		}
+		this.namespace = store.openNamespace(this.getNamespaceName());
+		if (this.namespace.isEmpty() && file.length() > 0) {
+			this.migrateToStore = true;
+			return this.readOwnFile();
+		}
+		return this.readNamespace();
+	}
+
+	/**
+	 * Reads the payload from the file of this object.
+	 *
+	 * @return the object stored in the file.
+	 * @throws IOException if the file could not be read.
+	 */
+	private Object readOwnFile() throws IOException {
+		this.schemaVersion = PersistentObject.readSchemaVersion(this.getFile());
+		Object contents = PersistentObject.readFile(this.getFile());
+		this.recordRead(this.getFile().length());
+		return contents;
+	}
+
+	/**
+	 * Reads the payload from the namespace of this object in the shared store. If the
+	 * entries of a map are stored separately, they are read into a new {@code HashMap}.
+	 *
+	 * @return the payload stored in the namespace.
+	 * @throws IOException if the namespace is empty, or could not be read.
+	 */
+	private Object readNamespace() throws IOException {
+		SharedStore.Namespace ns = this.namespace;
+		if (ns.isEmpty()) {
+			throw new IOException("No data is stored in the shared store for " + ns.getName());
+		}
+		if (this.storesEntries()) {
+			final Map<Object, Object> entries = new HashMap<Object, Object>();
+			final long[] bytes = new long[1];
+			ns.read(new SharedStore.EntryVisitor() {
+
+				@Override
+				public void visit(byte[] key, byte[] value) throws IOException {
+					bytes[0] += key.length + value.length;
+					if (key.length == 0) {
+						PersistentObject.this.schemaVersion = ByteBuffer.wrap(value).getInt();
+					} else {
+						entries.put(PayloadFormat.fromBytes(key), PayloadFormat.fromBytes(value));
+					}
+				}
+
+			});
+			this.recordRead(bytes[0]);
+			this.storedSchemaVersion = this.schemaVersion;
+			return entries;
+		}
+		byte[] bytes = ns.get(PersistentObject.PAYLOAD_KEY);
+		if (bytes == null) {
+			throw new IOException("The shared store does not hold a whole payload for " + ns.getName());
+		}
+		this.recordRead(bytes.length);
+		this.schemaVersion = PayloadFormat.readSchemaVersion(new ByteArrayInputStream(bytes));
+		return PersistentObject.readStream(new ByteArrayInputStream(bytes));
+	}
+
 	@Override
 	protected void attemptLoad() throws IOException {
 		super.attemptLoad();
-		ObjectInputStream in = new ObjectInputStream(new FileInputStream(this.getFile()));
 		Object loadedData;
 		try {
-			loadedData = in.readObject();
-		} catch (ClassNotFoundException e) {
-			throw new IOException(e);
-		} finally {
-			in.close();
+			loadedData = this.getLoadedContents();
+		} catch (IOException e) {
+			this.loadFailed = true;
+			this.moveUnreadableFile();
+			throw e;
 		}
 		if (loadedData instanceof Serializable) {
 			this.payload = (Serializable) loadedData;
 		} else {
+			this.loadFailed = true;
+			this.moveUnreadableFile();
 			throw new IOException("Object found was not of the correct type");
 		}
+		if (this.migrateToStore) {
+			this.migrateToStore = false;
+			this.moveIntoStore();
+		} else if (this.exportFromStore) {
+			this.exportFromStore = false;
+			this.moveOutOfStore();
+		}
+	}
+
+	/**
+	 * Writes the payload that was just read from the file of this object to its namespace
+	 * in the shared store, and then moves the file aside, so that it is not read again.
+	 * This is called while the object is being loaded, so it must not use any field that
+	 * has an initializer.
+	 *
+	 * @throws IOException if the payload could not be written.
+	 */
+	private void moveIntoStore() throws IOException {
+		SharedStore.Namespace ns = this.namespace;
+		if (this.storesEntries()) {
+			this.writeEntries((Map<?, ?>) this.payload);
+		} else {
+			byte[] bytes = this.toStoreBytes(PayloadSnapshot.of(this.payload, this.getCodec()));
+			this.recordWrite(ns.put(PersistentObject.PAYLOAD_KEY, bytes));
+		}
+		ns.commit();
+		File file = this.getFile();
+		File moved = new File(file.getParentFile(), file.getName() + ".migrated");
+		FileUtil.replaceFile(file, moved);
+		this.getOwner().getLogger().info("File moved into the shared store, and kept as " + moved);
+	}
+
+	/**
+	 * Writes the payload that was just read from the shared store to the file of this
+	 * object, and then empties its namespace. This is called while the object is being
+	 * loaded, so it must not use any field that has an initializer.
+	 *
+	 * @throws IOException if the payload could not be written.
+	 */
+	private void moveOutOfStore() throws IOException {
+		SharedStore.Namespace ns = this.namespace;
+		this.recordWrite(PersistentObject.writeFile(this.getFile(),
+				PayloadSnapshot.of(this.payload, this.getCodec()), this.compression,
+				this.schemaVersion));
+		this.namespace = null;
+		try {
+			ns.clear();
+		} finally {
+			ns.close();
+		}
+		this.getOwner().getLogger().info("File moved out of the shared store: " + this.getFile());
+	}
+
+	/**
+	 * Moves the file aside after it could not be loaded, so that it is not overwritten
+	 * when this object is saved. An empty file is left where it is, because there is no
+	 * data in it to lose.
+	 */
+	private void moveUnreadableFile() {
+		File file = this.getFile();
+		SharedStore.Namespace ns = this.namespace;
+		if (this.exportFromStore) {
+			// The data is left in the shared store, and this object starts a new file
+			this.exportFromStore = false;
+			this.namespace = null;
+			try {
+				ns.close();
+			} catch (IOException e) {
+				this.getOwner().getLogger().log(Level.WARNING,
+						"Error closing the namespace: " + ns.getName(), e);
+			}
+			return;
+		}
+		if (ns != null) {
+			// Entries that could not be read are left in place, and replaced one at a time
+			this.rewriteEntries = ns.isEmpty();
+			if (!this.migrateToStore) {
+				this.keepUnreadablePayload();
+				return;
+			}
+			this.migrateToStore = false;
+		}
+		if (file.length() == 0) {
+			return;
+		}
+		this.schemaVersion = 0;
+		File aside = new File(file.getParentFile(),
+				file.getName() + ".unreadable-" + System.currentTimeMillis());
+		try {
+			FileUtil.replaceFile(file, aside);
+			this.getOwner().getLogger().warning("The unreadable file was kept as " + aside);
+		} catch (IOException e) {
+			this.getOwner().getLogger().log(Level.WARNING,
+					"The unreadable file could not be moved aside: " + file, e);
+		}
+	}
+
+	/**
+	 * Copies the payload in the shared store to a file beside the file of this object,
+	 * after it could not be loaded, so that it is not lost when this object is saved. The
+	 * entries of a map that are stored separately are not copied, because each of them is
+	 * only replaced when the same key is written again.
+	 */
+	private void keepUnreadablePayload() {
+		if (this.storesEntries()) {
+			return;
+		}
+		File file = this.getFile();
+		File aside = new File(file.getParentFile(),
+				file.getName() + ".unreadable-" + System.currentTimeMillis());
+		try {
+			byte[] bytes = this.namespace.get(PersistentObject.PAYLOAD_KEY);
+			if (bytes == null) {
+				return;
+			}
+			aside.getParentFile().mkdirs();
+			Files.write(aside.toPath(), bytes);
+			this.schemaVersion = 0;
+			this.getOwner().getLogger().warning("The unreadable data was kept as " + aside);
+		} catch (IOException e) {
+			this.getOwner().getLogger().log(Level.WARNING,
+					"The unreadable data could not be kept: " + aside, e);
+		}
 	}
 
 	@Override
 	protected void attemptClose() throws IOException {
-		ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(this.getFile()));
-		out.writeObject(this.payload);
-		out.close();
+		this.setSnapshotInterval(0);
+		this.awaitBackgroundSave();
+		SharedStore.Namespace ns = this.namespace;
+		try {
+			if (ns != null && this.storesEntries()) {
+				if (this.isDirty()) {
+					long changes = this.changeCount.get();
+					long start = System.nanoTime();
+					this.writePendingEntries();
+					ns.commit();
+					this.recordSave(System.nanoTime() - start);
+					this.markSaved(changes);
+				}
+			} else if (this.requiresSave()) {
+				long changes = this.changeCount.get();
+				this.writeSnapshot(this.getPayload());
+				this.markSaved(changes);
+			}
+		} finally {
+			if (ns != null) {
+				ns.close();
+			}
+		}
 		super.attemptClose();
 	}
 
+	/**
+	 * Determines if the payload needs to be written to the file when this object is
+	 * closed. Subclasses that keep the file up to date by some other means may override
+	 * this method to skip the full rewrite. By default, this method returns
+	 * {@link #isDirty()}.
+	 *
+	 * @return {@code true} if the payload should be written when this object is closed;
+	 * {@code false} otherwise.
+	 */
+	protected boolean requiresSave() {
+		return this.isDirty();
+	}
+
+	/**
+	 * Sets whether this object skips saves when its payload has not changed. Maps and lists
+	 * see every change made through their own methods, but not a change made to an object
+	 * stored inside them, such as {@code map.get(key).add(x)}. So change tracking is off
+	 * by default, and the whole payload is written every time this object is saved.
+	 * <p>
+	 * A caller that turns change tracking on promises to call {@link #markDirty()}, or
+	 * {@link PersistentMap#markDirty(Serializable)}, after changing an object stored in
+	 * the payload; a change that is not reported may not be saved.
+	 *
+	 * @param useChangeTracking {@code true} if saves should be skipped when nothing has
+	 * changed; {@code false} if the payload should always be written.
+	 */
+	public void useChangeTracking(boolean useChangeTracking) {
+		this.changeTracking = useChangeTracking;
+	}
+
+	/**
+	 * Gets whether this object skips saves when its payload has not changed.
+	 *
+	 * @return {@code true} if changes are tracked; {@code false} otherwise.
+	 * @see #useChangeTracking(boolean)
+	 */
+	public boolean getUseChangeTracking() {
+		return this.tracksChanges();
+	}
+
+	/**
+	 * Determines if this object keeps track of every change made to its payload through
+	 * {@link #markDirty()}. Objects that do not track changes are always considered to be
+	 * dirty, because their payload may be changed directly by other classes. By default,
+	 * this method returns whether change tracking has been turned on with
+	 * {@link #useChangeTracking(boolean)}.
+	 *
+	 * @return {@code true} if changes to the payload are tracked; {@code false} otherwise.
+	 */
+	protected boolean tracksChanges() {
+		return this.changeTracking;
+	}
+
+	/**
+	 * Determines if the payload may have changed since it was last loaded or saved. A
+	 * payload that is not dirty is not written to the disk again.
+	 *
+	 * @return {@code true} if the payload has unsaved changes; {@code false} otherwise.
+	 */
+	public boolean isDirty() {
+		return this.loadFailed || !this.tracksChanges()
+				|| this.changeCount.get() != this.savedChangeCount;
+	}
+
+	/**
+	 * Records that the payload has changed, so that it will be written the next time it
+	 * is saved. This should be called after changing an object that is stored inside the
+	 * payload, because those changes cannot be detected automatically.
+	 *
+	 * @return a number that identifies this change; numbers for later changes are always
+	 * larger.
+	 */
+	public long markDirty() {
+		return this.changeCount.incrementAndGet();
+	}
+
+	/**
+	 * Returns the number that identifies the most recent change that is known to have been
+	 * written to the disk.
+	 *
+	 * @return the number of the most recent saved change.
+	 * @see #markDirty()
+	 */
+	protected long getSavedChangeCount() {
+		return this.savedChangeCount;
+	}
+
+	/**
+	 * Records that every change up to and including the given change has been written to
+	 * the disk. This may be called from any thread.
+	 *
+	 * @param changes the number of the most recent change included in the save.
+	 */
+	private synchronized void markSaved(long changes) {
+		this.loadFailed = false;
+		if (changes > this.savedChangeCount) {
+			this.savedChangeCount = changes;
+		}
+	}
+
+	/**
+	 * Sets how often the payload is saved in the background while the server is running.
+	 * Each save captures a snapshot of the payload on the main server thread, and then
+	 * writes it to the disk on a background thread.
+	 *
+	 * @param ticks the number of server ticks between saves, or {@code 0} to turn off
+	 * periodic saving.
+	 * @see #saveInBackground()
+	 */
+	public void setSnapshotInterval(long ticks) {
+		if (this.snapshotTask != null) {
+			this.snapshotTask.cancel();
+			this.snapshotTask = null;
+		}
+		if (ticks > 0) {
+			this.snapshotTask = Bukkit.getScheduler().runTaskTimer(this.getOwner(), new Runnable() {
+
+				@Override
+				public void run() {
+					PersistentObject.this.saveInBackground();
+				}
+
+			}, ticks, ticks);
+		}
+	}
+
+	/**
+	 * Captures a snapshot of the payload, and writes it to the disk on a background
+	 * thread. This method must be called from the main server thread. If an earlier
+	 * background save is still running, or if the payload has not changed since it was
+	 * last saved, this method takes no action.
+	 * <p>
+	 * Maps and lists capture their snapshot without copying the objects they hold; the
+	 * objects are serialized on the background thread. A value that is changed in place,
+	 * such as a list stored in a map, may therefore be written half-changed if it is
+	 * changed while the save is running. Values that are changed in place should be
+	 * replaced through the map or list instead of being changed in place. Immutable
+	 * values, such as strings, numbers and UUIDs, are always safe.
+	 *
+	 * @return {@code true} if a background save was started; {@code false} otherwise.
+	 */
+	public boolean saveInBackground() {
+		if (this.backgroundSave != null && !this.backgroundSave.isDone()) {
+			return false;
+		}
+		if (!this.isDirty()) {
+			return false;
+		}
+		final long changes = this.changeCount.get();
+		final SharedStore.Namespace ns = this.namespace;
+		if (ns != null && this.storesEntries()) {
+			return this.commitInBackground(ns, changes);
+		}
+		long captureStart = System.nanoTime();
+		final PayloadSnapshot snapshot;
+		try {
+			snapshot = this.captureSnapshot();
+		} catch (IOException e) {
+			this.getOwner().getLogger().log(Level.WARNING,
+					"Error capturing snapshot: " + this.getFile(), e);
+			return false;
+		}
+		this.lastCaptureNanos = System.nanoTime() - captureStart;
+		this.backgroundSave = FileExecutor.submit(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					PersistentObject.this.writeSnapshot(snapshot);
+					PersistentObject.this.markSaved(changes);
+				} catch (IOException e) {
+					PersistentObject.this.getOwner().getLogger().log(Level.WARNING,
+							"Error saving file in the background: " + PersistentObject.this.getFile(), e);
+				} finally {
+					snapshot.release();
+				}
+			}
+
+		});
+		return true;
+	}
+
+	/**
+	 * Commits the entries of this map that are stored separately in the shared store, on a
+	 * background thread. Every change has already been appended to the store as it was
+	 * made, so nothing needs to be captured on the main server thread.
+	 *
+	 * @param ns the namespace of this object.
+	 * @param changes the number of the most recent change included in the save.
+	 * @return {@code true} if a background save was started; {@code false} otherwise.
+	 */
+	private boolean commitInBackground(final SharedStore.Namespace ns, final long changes) {
+		try {
+			this.writePendingEntries();
+		} catch (IOException e) {
+			this.getOwner().getLogger().log(Level.WARNING,
+					"Error writing to the shared store: " + this.getFile(), e);
+			return false;
+		}
+		this.backgroundSave = FileExecutor.submit(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					long start = System.nanoTime();
+					ns.commit();
+					PersistentObject.this.recordSave(System.nanoTime() - start);
+					PersistentObject.this.markSaved(changes);
+				} catch (IOException e) {
+					PersistentObject.this.getOwner().getLogger().log(Level.WARNING,
+							"Error saving file in the background: " + PersistentObject.this.getFile(), e);
+				}
+			}
+
+		});
+		return true;
+	}
+
+	/**
+	 * Writes every change to the separately stored entries of this map that is not
+	 * written as it is made: every entry, if the namespace could not be loaded or changes
+	 * are not tracked, and the schema version, if it has changed.
+	 *
+	 * @throws IOException if the changes could not be written.
+	 */
+	private void writePendingEntries() throws IOException {
+		if (this.rewriteEntries || !this.tracksChanges()) {
+			this.rewriteEntries = false;
+			this.writeEntries((Map<?, ?>) this.getPayload());
+		} else if (this.schemaVersion != this.storedSchemaVersion) {
+			this.storedSchemaVersion = this.schemaVersion;
+			this.recordWrite(this.namespace.put(PersistentObject.PAYLOAD_KEY,
+					ByteBuffer.allocate(4).putInt(this.storedSchemaVersion).array()));
+		}
+	}
+
+	/**
+	 * Replaces every entry in the namespace of this map with the entries of the given map.
+	 *
+	 * @param entries the entries to write.
+	 * @throws IOException if the entries could not be written.
+	 */
+	private void writeEntries(Map<?, ?> entries) throws IOException {
+		SharedStore.Namespace ns = this.namespace;
+		ns.clear();
+		long bytes = 0;
+		this.storedSchemaVersion = this.schemaVersion;
+		if (this.storedSchemaVersion != 0) {
+			bytes += ns.put(PersistentObject.PAYLOAD_KEY,
+					ByteBuffer.allocate(4).putInt(this.storedSchemaVersion).array());
+		}
+		for (Map.Entry<?, ?> entry : entries.entrySet()) {
+			bytes += ns.put(PersistentObject.toKeyBytes(entry.getKey()),
+					PayloadFormat.toBytes(this.getCodec(), entry.getValue()));
+		}
+		this.recordWrite(bytes);
+	}
+
+	/**
+	 * Returns the namespace that the entries of this map are stored in separately.
+	 *
+	 * @return the namespace, or {@code null} if the entries are not stored separately.
+	 */
+	SharedStore.Namespace getEntryNamespace() {
+		return this.storesEntries() ? this.namespace : null;
+	}
+
+	/**
+	 * Returns the namespace that this object keeps its payload in, after waiting for it to
+	 * be loaded.
+	 *
+	 * @return the namespace, or {@code null} if the payload is kept in its own file.
+	 */
+	SharedStore.Namespace getNamespace() {
+		this.ensureLoaded();
+		return this.namespace;
+	}
+
+	/**
+	 * Adds every change to this object that has not yet been written to the batch of the
+	 * calling thread. The entries of a map that are stored separately have already been
+	 * added as they changed; any other payload is added as a whole.
+	 *
+	 * @return the number of the most recent change included in the batch.
+	 * @throws IOException if the changes could not be added.
+	 * @see WriteBatch
+	 */
+	long stageInBatch() throws IOException {
+		long changes = this.changeCount.get();
+		if (this.storesEntries()) {
+			this.writePendingEntries();
+		} else {
+			this.recordWrite(this.namespace.put(PersistentObject.PAYLOAD_KEY,
+					this.toStoreBytes(PayloadSnapshot.of(this.getPayload(), this.getCodec()))));
+		}
+		return changes;
+	}
+
+	/**
+	 * Records that a batch that included every change to this object, up to and including
+	 * the given change, has been written to the disk.
+	 *
+	 * @param changes the number of the most recent change included in the batch.
+	 * @param nanos the time taken to write the batch, in nanoseconds.
+	 */
+	void batchCommitted(long changes, long nanos) {
+		this.recordSave(nanos);
+		this.markSaved(changes);
+	}
+
+	/**
+	 * Records that a batch that changed this object could not be written. The changes
+	 * that the batch made in memory are kept, but the entries of a map that are stored
+	 * separately were discarded with the batch, so every entry is written the next time
+	 * this object is saved.
+	 */
+	void batchAborted() {
+		if (this.storesEntries()) {
+			this.rewriteEntries = true;
+		}
+	}
+
+	/**
+	 * Records that every entry has been removed from the namespace of this map, together
+	 * with the schema version, so that the schema version is written again the next time
+	 * this map is saved.
+	 */
+	void storedEntriesCleared() {
+		this.storedSchemaVersion = 0;
+	}
+
+	/**
+	 * Converts the given key of a map to the bytes that it is stored under in the shared
+	 * store. Keys are always converted by the {@code BinaryCodec}, so that the same key is
+	 * always stored under the same bytes, whatever codec the values are written with.
+	 *
+	 * @param key the key to convert.
+	 * @return the bytes of the key.
+	 * @throws IOException if the key could not be converted.
+	 */
+	static byte[] toKeyBytes(Object key) throws IOException {
+		return PayloadFormat.toBytes(BinaryCodec.INSTANCE, key);
+	}
+
+	/**
+	 * Determines if this object can keep its payload in the shared store. This is called
+	 * while the file is read, so it must not use any field of the subclass. Subclasses
+	 * that spread their data over several files should return {@code false}. By default,
+	 * this method returns {@code true}.
+	 *
+	 * @return {@code true} if the payload can be kept in the shared store; {@code false}
+	 * otherwise.
+	 * @see SimplePlugin#useSharedStore(boolean)
+	 */
+	protected boolean supportsSharedStore() {
+		return true;
+	}
+
+	/**
+	 * Determines if the payload is a map whose entries are stored separately in the shared
+	 * store, each written as soon as it changes. Otherwise, the whole payload is stored
+	 * under a single key each time it is saved. This is called while the file is read, so
+	 * it must not use any field of the subclass. By default, this method returns
+	 * {@code false}.
+	 *
+	 * @return {@code true} if the entries of the payload are stored separately;
+	 * {@code false} otherwise.
+	 */
+	boolean storesEntries() {
+		return false;
+	}
+
+	/**
+	 * Returns the shared store that this object keeps its payload in.
+	 *
+	 * @return the shared store, or {@code null} if the payload is kept in its own file.
+	 */
+	private SharedStore getSharedStore() {
+		if (!this.getOwner().getUseSharedStore() || !this.supportsSharedStore()) {
+			return null;
+		}
+		return SharedStore.getShared();
+	}
+
+	/**
+	 * Returns the name of the namespace of this object in the shared store, which is the
+	 * name of the plugin followed by the path of the file within the plugin's folder.
+	 *
+	 * @return the name of the namespace.
+	 */
+	private String getNamespaceName() {
+		URI folder = this.getOwner().getDataFolder().toURI();
+		return this.getOwner().getName() + "/" + folder.relativize(this.getFile().toURI()).getPath();
+	}
+
+	/**
+	 * Returns {@code false} if this object keeps its payload in the shared store, so that
+	 * its own file is not created.
+	 *
+	 * @return {@code true} if the payload is kept in its own file; {@code false}
+	 * otherwise.
+	 */
+	@Override
+	protected boolean usesOwnFile() {
+		return this.getSharedStore() == null;
+	}
+
+	/**
+	 * Captures a consistent snapshot of the payload, which can be written to the disk from
+	 * a background thread while the payload continues to change. This method is always
+	 * called from the main server thread, so it should be as fast as possible. By default,
+	 * this method serializes the payload into memory; subclasses that know the structure
+	 * of their payload should override this method with something cheaper.
+	 *
+	 * @return a snapshot of the payload.
+	 * @throws IOException if the snapshot could not be captured.
+	 */
+	protected PayloadSnapshot captureSnapshot() throws IOException {
+		return PayloadSnapshot.copyOf(this.getPayload(), this.getCodec());
+	}
+
+	/**
+	 * Waits for the current background save, if any, to finish.
+	 */
+	protected void awaitBackgroundSave() {
+		if (this.backgroundSave == null) {
+			return;
+		}
+		try {
+			this.backgroundSave.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			// Already logged by the background save
+		}
+		this.backgroundSave = null;
+	}
+
+	/**
+	 * Writes the given data to the file for this object. The data is first written to a
+	 * temporary file, which then replaces the real file, so that a crash in the middle of
+	 * a save never leaves a partially written file behind.
+	 *
+	 * @param data the data to write; usually the payload, or a copy of it.
+	 * @throws IOException if the data could not be written.
+	 */
+	protected void writeSnapshot(Serializable data) throws IOException {
+		this.writeSnapshot(PayloadSnapshot.of(data, this.getCodec()));
+	}
+
+	/**
+	 * Writes the given snapshot to the file for this object. The data is first written to
+	 * a temporary file, which then replaces the real file, so that a crash in the middle of
+	 * a save never leaves a partially written file behind. This method may be called from
+	 * any thread.
+	 *
+	 * @param snapshot the snapshot to write.
+	 * @throws IOException if the snapshot could not be written.
+	 */
+	protected void writeSnapshot(PayloadSnapshot snapshot) throws IOException {
+		synchronized (this.writeLock) {
+			long start = System.nanoTime();
+			SharedStore.Namespace ns = this.namespace;
+			if (ns == null) {
+				this.lastSnapshotBytes = PersistentObject.writeFile(this.getFile(), snapshot,
+						this.compression, this.schemaVersion);
+				this.snapshotWritten();
+			} else {
+				this.lastSnapshotBytes = ns.put(PersistentObject.PAYLOAD_KEY,
+						this.toStoreBytes(snapshot));
+				ns.commit();
+			}
+			this.lastSnapshotNanos = System.nanoTime() - start;
+			this.snapshotCount++;
+			this.recordWrite(this.lastSnapshotBytes);
+			this.recordSave(this.lastSnapshotNanos);
+		}
+	}
+
+	/**
+	 * Converts the given snapshot to the bytes that are stored in the shared store, which
+	 * are the same as the contents of the file that it would otherwise be written to.
+	 *
+	 * @param snapshot the snapshot to convert.
+	 * @return the bytes of the snapshot.
+	 * @throws IOException if the snapshot could not be converted.
+	 */
+	private byte[] toStoreBytes(PayloadSnapshot snapshot) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		PayloadFormat.writeSchemaVersion(bytes, this.schemaVersion);
+		OutputStream data = PayloadFormat.compress(bytes, this.compression);
+		snapshot.writeTo(data);
+		data.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Reads the object stored in the given file, with the codec named in the header of
+	 * the file. If the file is compressed, it is decompressed as it is read.
+	 *
+	 * @param file the file to read.
+	 * @return the object stored in the file.
+	 * @throws IOException if the file could not be read.
+	 */
+	static Object readFile(File file) throws IOException {
+		return PersistentObject.readStream(new BufferedInputStream(Channels.newInputStream(
+				FileChannel.open(file.toPath(), StandardOpenOption.READ)),
+				PersistentObject.BUFFER_SIZE));
+	}
+
+	/**
+	 * Reads the object stored in the given stream, which holds the contents of a file.
+	 * The stream is closed afterwards.
+	 *
+	 * @param in the stream to read.
+	 * @return the object stored in the stream.
+	 * @throws IOException if the stream could not be read.
+	 */
+	static Object readStream(InputStream in) throws IOException {
+		try {
+			in = PayloadFormat.decompress(in);
+			return PayloadFormat.read(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads the schema version from the header of the given file.
+	 *
+	 * @param file the file to read.
+	 * @return the schema version of the file, or {@code 0} if it has no schema header.
+	 * @throws IOException if the file could not be read.
+	 */
+	static int readSchemaVersion(File file) throws IOException {
+		InputStream in = new BufferedInputStream(Channels.newInputStream(
+				FileChannel.open(file.toPath(), StandardOpenOption.READ)), 16);
+		try {
+			return PayloadFormat.readSchemaVersion(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes the given snapshot to the given file, without a schema header. The data is
+	 * first written to a temporary file, which then replaces the real file.
+	 *
+	 * @param file the file to write.
+	 * @param snapshot the snapshot to write.
+	 * @param compression the compression to apply, or {@code null} to write the file
+	 * without compression.
+	 * @return the number of bytes written.
+	 * @throws IOException if the snapshot could not be written.
+	 */
+	static long writeFile(File file, PayloadSnapshot snapshot, PayloadCompression compression)
+			throws IOException {
+		return PersistentObject.writeFile(file, snapshot, compression, 0);
+	}
+
+	/**
+	 * Writes the given snapshot to the given file. The data is first written to a
+	 * temporary file, which then replaces the real file.
+	 *
+	 * @param file the file to write.
+	 * @param snapshot the snapshot to write.
+	 * @param compression the compression to apply, or {@code null} to write the file
+	 * without compression.
+	 * @param schemaVersion the schema version to write in the header of the file.
+	 * @return the number of bytes written.
+	 * @throws IOException if the snapshot could not be written.
+	 */
+	static long writeFile(File file, PayloadSnapshot snapshot, PayloadCompression compression,
+			int schemaVersion) throws IOException {
+		File temp = FileUtil.getTempFile(file);
+		FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel),
+					PersistentObject.BUFFER_SIZE);
+			PayloadFormat.writeSchemaVersion(out, schemaVersion);
+			OutputStream data = PayloadFormat.compress(out, compression);
+			snapshot.writeTo(data);
+			data.close();
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+		long bytes = temp.length();
+		FileUtil.replaceFile(temp, file);
+		return bytes;
+	}
+
+	/**
+	 * Called after a snapshot has replaced the file, before any other snapshot can be
+	 * written, so that sub-classes can write files that must match it. This is not called
+	 * when the payload is kept in the shared store. By default, this method does nothing.
+	 */
+	void snapshotWritten() {
+		// Nothing else is stored next to the file by default
+	}
+
+	/**
+	 * Returns the number of entries in the payload, if it is a map or a collection.
+	 *
+	 * @return the number of entries, or {@code -1} if the payload is not a map or a
+	 * collection.
+	 */
+	@Override
+	public int getEntryCount() {
+		this.ensureLoaded();
+		Serializable data = this.payload;
+		if (data instanceof Map<?, ?>) {
+			return ((Map<?, ?>) data).size();
+		}
+		if (data instanceof Collection<?>) {
+			return ((Collection<?>) data).size();
+		}
+		return super.getEntryCount();
+	}
+
+	/**
+	 * Returns the number of bytes that the payload takes up on the disk, including the
+	 * records that hold it when it is kept in the shared store.
+	 *
+	 * @return the size of the stored payload, in bytes.
+	 */
+	@Override
+	public long getStoredBytes() {
+		SharedStore.Namespace ns = this.namespace;
+		return (ns == null) ? super.getStoredBytes() : ns.getLiveBytes();
+	}
+
+	/**
+	 * Estimates the memory taken up by the payload, from a sample of its entries. If the
+	 * payload is changed by another thread while it is being measured, this method gives
+	 * up and returns {@code -1}.
+	 *
+	 * @return the estimated size of the payload in memory, in bytes, or {@code -1} if it
+	 * could not be measured.
+	 */
+	@Override
+	public long getEstimatedHeapBytes() {
+		this.ensureLoaded();
+		try {
+			return HeapEstimator.estimate(this.getHeapRoots());
+		} catch (ConcurrentModificationException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Returns every object that holds the data of this object in memory, for
+	 * {@link #getEstimatedHeapBytes()}. This must not copy the data. By default, this
+	 * method returns the payload.
+	 *
+	 * @return the objects that hold the data in memory.
+	 */
+	Object[] getHeapRoots() {
+		return new Object[] {this.payload};
+	}
+
+	/**
+	 * Returns the number of snapshots of the payload that have been written to the disk.
+	 *
+	 * @return the number of snapshots written.
+	 */
+	public long getSnapshotCount() {
+		return this.snapshotCount;
+	}
+
+	/**
+	 * Returns the time the main server thread was paused to capture the most recent
+	 * background snapshot.
+	 *
+	 * @return the most recent capture time, in nanoseconds.
+	 */
+	public long getLastCaptureNanos() {
+		return this.lastCaptureNanos;
+	}
+
+	/**
+	 * Returns the time taken to write the most recent snapshot to the disk.
+	 *
+	 * @return the most recent write time, in nanoseconds.
+	 */
+	public long getLastSnapshotNanos() {
+		return this.lastSnapshotNanos;
+	}
+
+	/**
+	 * Returns the number of bytes written by the most recent snapshot.
+	 *
+	 * @return the size of the most recent snapshot, in bytes.
+	 */
+	public long getLastSnapshotBytes() {
+		return this.lastSnapshotBytes;
+	}
+
 }
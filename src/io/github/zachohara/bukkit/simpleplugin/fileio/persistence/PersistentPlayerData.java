@@ -16,9 +16,21 @@
 
 package io.github.zachohara.bukkit.simpleplugin.fileio.persistence;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 
 import org.bukkit.Bukkit;
+import org.bukkit.OfflinePlayer;
 import org.bukkit.entity.Player;
 
 import io.github.zachohara.bukkit.simpleplugin.plugin.SimplePlugin;
@@ -44,9 +56,48 @@ public abstract class PersistentPlayerData<D extends Serializable> extends Persi
 	 */
 	private boolean useUUID;
 
+	/**
+	 * The size of the buffer used when migrating a file.
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Constructs a new {@code PersistentPlayerData} with the given plugin as an owner, and
+	 * the filename to store that data to. If the file already stores its keys as native
+	 * UUIDs, the data is stored by UUID.
+	 *
+	 * @param owner the plugin that created this object.
+	 * @param filename the filename to store the object as.
+	 * @see #useNativeUUID(boolean)
+	 */
 	public PersistentPlayerData(SimplePlugin owner, String filename) {
 		super(owner, filename);
-		this.useUUID = false;
+	}
+
+	/**
+	 * Loads the file, and stores the data by UUID if the file stores its keys as native
+	 * UUIDs.
+	 *
+	 * @throws IOException if the file could not be read.
+	 */
+	@Override
+	protected void attemptLoad() throws IOException {
+		super.attemptLoad();
+		if (this.readableData() instanceof UUIDKeyedMap<?>) {
+			this.useUUID = true;
+		}
+	}
+
+	/**
+	 * Returns {@code false}, because whether the data is stored by UUID is only known from
+	 * the type of the map that was saved, so the map is kept in the shared store as a
+	 * whole.
+	 *
+	 * @return {@code false}.
+	 */
+	@Override
+	boolean storesEntries() {
+		return false;
 	}
 
 	/**
@@ -57,6 +108,9 @@ public abstract class PersistentPlayerData<D extends Serializable> extends Persi
 	 * @see #useUUID
 	 */
 	public void useUUID(boolean useUUID) {
+		if (!useUUID && this.getUseNativeUUID()) {
+			throw new IllegalStateException("Native UUID storage can only store data by UUID");
+		}
 		this.useUUID = useUUID;
 	}
 
@@ -68,9 +122,102 @@ public abstract class PersistentPlayerData<D extends Serializable> extends Persi
 	 * @see #useUUID
 	 */
 	public boolean getUseUUID() {
+		this.ensureLoaded();
 		return this.useUUID;
 	}
 
+	/**
+	 * Sets whether the keys of this map are stored natively, as the two {@code long}s of
+	 * each UUID, both in memory and in the file. This also stores data by UUID. In native
+	 * mode, looking up the data of a {@code Player} creates no objects at all, and the
+	 * file is smaller, because keys are not stored as 36-character strings. Data is still
+	 * given to and returned from the {@code Map} methods with the string form of each UUID.
+	 * <p>
+	 * Every key in this map must already be a UUID; a file that is stored by account name
+	 * can be converted with {@link #migrateToUUIDs(SimplePlugin, String, Map)} before it is
+	 * opened. Native storage cannot be combined with journaling, disk storage, or
+	 * concurrent access.
+	 *
+	 * @param useNativeUUID {@code true} if keys should be stored natively; {@code false}
+	 * if they should be stored as strings.
+	 * @throws IllegalStateException if a key is not a UUID, or if another storage mode is
+	 * being used.
+	 */
+	@SuppressWarnings("unchecked")
+	public void useNativeUUID(boolean useNativeUUID) {
+		if (useNativeUUID == this.getUseNativeUUID()) {
+			this.useUUID |= useNativeUUID;
+			return;
+		} else if (this.getUseJournal() || this.getUseDiskStorage() || this.getUseConcurrentAccess()) {
+			throw new IllegalStateException(
+					"Native UUID storage cannot be combined with another storage mode");
+		}
+		Map<String, D> data = (Map<String, D>) this.getPayload();
+		if (useNativeUUID) {
+			for (String key : data.keySet()) {
+				if (UUIDKeyedMap.toUUID(key) == null) {
+					throw new IllegalStateException("The key \"" + key + "\" is not a UUID;"
+							+ " the file must be migrated to UUIDs first");
+				}
+			}
+			this.setPayload(new UUIDKeyedMap<D>(data));
+			this.useUUID = true;
+		} else {
+			this.setPayload(new HashMap<String, D>(data));
+		}
+		this.markDirty();
+	}
+
+	/**
+	 * Gets whether the keys of this map are stored natively as UUIDs.
+	 *
+	 * @return {@code true} if keys are stored natively; {@code false} otherwise.
+	 * @see #useNativeUUID(boolean)
+	 */
+	public boolean getUseNativeUUID() {
+		return this.getPayload() instanceof UUIDKeyedMap<?>;
+	}
+
+	/**
+	 * Returns the data for the given player. In native UUID mode, this creates no objects.
+	 *
+	 * @param p the player to find the data of.
+	 * @return the data of the player, or {@code null} if there is none.
+	 */
+	@Override
+	public D getKeyData(Player p) {
+		UUIDKeyedMap<D> data = this.nativeData();
+		if (data == null) {
+			return super.getKeyData(p);
+		}
+		UUID id = p.getUniqueId();
+		return data.get(id.getMostSignificantBits(), id.getLeastSignificantBits());
+	}
+
+	/**
+	 * Determines if data exists for the given player. In native UUID mode, this creates no
+	 * objects.
+	 *
+	 * @param p the player to check.
+	 * @return {@code true} if data exists for the player; {@code false} otherwise.
+	 */
+	@Override
+	public boolean keyDataExists(Player p) {
+		return this.getKeyData(p) != null;
+	}
+
+	/**
+	 * Returns the underlying map if its keys are stored natively, and it can be read
+	 * directly.
+	 *
+	 * @return the underlying map, or {@code null} if it cannot be read natively.
+	 */
+	@SuppressWarnings("unchecked")
+	private UUIDKeyedMap<D> nativeData() {
+		Map<String, D> data = this.readableData();
+		return (data instanceof UUIDKeyedMap<?>) ? (UUIDKeyedMap<D>) data : null;
+	}
+
 	/**
 	 * Generates a map key for a given player. If the {@code useUUID} instance variable is
 	 * true, the map key will be the player's UUID; otherwise, the map key will be the
@@ -82,7 +229,7 @@ public abstract class PersistentPlayerData<D extends Serializable> extends Persi
 	 */
 	@Override
 	public String generateMapKey(Player p) {
-		if (this.useUUID) {
+		if (this.getUseUUID()) {
 			return p.getUniqueId().toString();
 		} else {
 			return p.getName().toLowerCase();
@@ -96,4 +243,131 @@ public abstract class PersistentPlayerData<D extends Serializable> extends Persi
 		this.saveAllKeyedData(Bukkit.getOnlinePlayers());
 	}
 
+	/**
+	 * Converts a file that stores player data by account name into a file that stores the
+	 * data by native UUID, so that it can be opened with {@link #useNativeUUID(boolean)}.
+	 * This should be called before the file is opened. The file is read and written one
+	 * entry at a time, so the data is never held in memory; only a file written by Java's
+	 * standard serialization must be read all at once. The old file is replaced only once
+	 * the new file, and the file of names without a known UUID, have both been completely
+	 * written.
+	 * <p>
+	 * Names are matched to UUIDs without regard to case. Keys that are already UUIDs are
+	 * kept. The data of every name that has no known UUID is moved to a separate file,
+	 * named after the original file with {@code .unmapped} added, so that no data is lost.
+	 *
+	 * @param owner the plugin that owns the file.
+	 * @param filename the filename of the data.
+	 * @param ids the UUID of every known player, by account name.
+	 * @return the names that had no known UUID.
+	 * @throws IOException if the file could not be converted; the file is then unchanged.
+	 * @see #getKnownPlayerIds()
+	 */
+	public static List<String> migrateToUUIDs(SimplePlugin owner, String filename,
+			Map<String, UUID> ids) throws IOException {
+		File file = new File(owner.getDataFolder(), filename);
+		List<String> unmapped = new ArrayList<String>();
+		if (!file.exists()) {
+			return unmapped;
+		}
+		final Map<String, UUID> lowerIds = new HashMap<String, UUID>();
+		for (Map.Entry<String, UUID> entry : ids.entrySet()) {
+			lowerIds.put(entry.getKey().toLowerCase(), entry.getValue());
+		}
+		File leftoverFile = new File(file.getPath() + ".unmapped");
+		StreamingMapWriter mapped = new StreamingMapWriter(file, true);
+		StreamingMapWriter leftover = new StreamingMapWriter(leftoverFile, false);
+		InputStream in = new BufferedInputStream(new FileInputStream(file),
+				PersistentPlayerData.BUFFER_SIZE);
+		boolean success = false;
+		try {
+			try {
+				PersistentPlayerData.migrateEntries(in, lowerIds, mapped, leftover, unmapped);
+			} finally {
+				in.close();
+			}
+			// The original file is only replaced once the leftover entries are safe
+			if (leftover.size() > 0) {
+				leftover.finish();
+			} else {
+				leftover.abort();
+			}
+			mapped.finish();
+			success = true;
+		} finally {
+			if (!success) {
+				mapped.abort();
+				leftover.abort();
+			}
+		}
+		return unmapped;
+	}
+
+	/**
+	 * Reads every entry of a name-keyed file, and writes it to the UUID-keyed file if its
+	 * name has a known UUID, or to the leftover file otherwise. A compressed file is
+	 * detected and read, but the migrated files are written without compression, since the
+	 * writers patch the entry count in place; they are compressed when they are next saved.
+	 *
+	 * @param in the stream of the name-keyed file.
+	 * @param ids the UUID of every known player, by lower-case account name.
+	 * @param mapped the writer of the UUID-keyed file.
+	 * @param leftover the writer of the leftover file.
+	 * @param unmapped the list to add every name without a known UUID to.
+	 * @throws IOException if the file could not be read, or an entry could not be
+	 * written.
+	 */
+	private static void migrateEntries(InputStream in, final Map<String, UUID> ids,
+			final StreamingMapWriter mapped, final StreamingMapWriter leftover,
+			final List<String> unmapped) throws IOException {
+		BinaryCodec.EntryVisitor visitor = new BinaryCodec.EntryVisitor() {
+
+			@Override
+			public void visit(Object key, Object value) throws IOException {
+				UUID id = (key instanceof UUID) ? (UUID) key : UUIDKeyedMap.toUUID(key);
+				if (id == null && key instanceof String) {
+					id = ids.get(((String) key).toLowerCase());
+				}
+				if (id != null) {
+					mapped.write(id, value);
+				} else if (key instanceof String) {
+					leftover.write(key, value);
+					unmapped.add((String) key);
+				} else {
+					throw new IOException("The file has a key that is not a name: " + key);
+				}
+			}
+
+		};
+		in = PayloadFormat.decompress(in);
+		PayloadCodec codec = PayloadFormat.readCodec(in);
+		if (codec == BinaryCodec.INSTANCE) {
+			BinaryCodec.INSTANCE.readMap(new DataInputStream(in), visitor);
+		} else {
+			Object payload = codec.decode(in);
+			if (!(payload instanceof Map<?, ?>)) {
+				throw new IOException("The file does not contain a map");
+			}
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) payload).entrySet()) {
+				visitor.visit(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Returns the UUID of every player who has played on the server, by account name, for
+	 * use with {@link #migrateToUUIDs(SimplePlugin, String, Map)}.
+	 *
+	 * @return the UUID of every known player, by account name.
+	 */
+	public static Map<String, UUID> getKnownPlayerIds() {
+		Map<String, UUID> ids = new HashMap<String, UUID>();
+		for (OfflinePlayer player : Bukkit.getOfflinePlayers()) {
+			if (player.getName() != null) {
+				ids.put(player.getName().toLowerCase(), player.getUniqueId());
+			}
+		}
+		return ids;
+	}
+
 }
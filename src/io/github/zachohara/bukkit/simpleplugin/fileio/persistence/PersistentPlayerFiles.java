@@ -0,0 +1,882 @@
+/* Copyright (C) 2017 Zach Ohara
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.zachohara.bukkit.simpleplugin.fileio.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+import io.github.zachohara.bukkit.simpleplugin.fileio.FileExecutor;
+import io.github.zachohara.bukkit.simpleplugin.fileio.PluginDataFile;
+import io.github.zachohara.bukkit.simpleplugin.plugin.SimplePlugin;
+
+/**
+ * A {@code PersistentPlayerFiles} object stores the data of every player in its own small
+ * file, and only keeps the data of players who are online in memory. It is used much like
+ * a {@code PersistentPlayerData}, but its memory use grows with the number of players who
+ * are online, rather than with the number of players who have ever joined, and a save
+ * only rewrites the files of the players whose data has changed.
+ * <p>
+ * The data of a player is loaded on a background thread when the player logs in, before
+ * the player joins the server. When the player quits, the data is recalculated with
+ * {@link #calculateDataValue(Player)}, written to the disk on a background thread, and
+ * then kept in memory for a short grace period, so that a player who reconnects does not
+ * have to wait for the file to be read again.
+ * <p>
+ * The files are stored by player UUID, in a directory named after the file named by the
+ * constructor, with {@code .players} added. Any data in the file named by the constructor,
+ * such as the file of a {@code PersistentPlayerData} that is stored by UUID, is moved into
+ * the per-player files the first time it is loaded. Data that is stored by account name
+ * is left in that file; it can be converted with
+ * {@link PersistentPlayerData#migrateToUUIDs(SimplePlugin, String, Map)} first.
+ *
+ * @param <D> the data object that is generated for any player.
+ * @see PersistentPlayerData
+ * @author Zach Ohara
+ */
+public abstract class PersistentPlayerFiles<D extends Serializable> extends PluginDataFile implements Listener {
+
+	/**
+	 * The grace period used until another one is set, in milliseconds.
+	 */
+	public static final long DEFAULT_GRACE_MILLIS = 30000;
+
+	/**
+	 * The data of every player that is held in memory, by UUID.
+	 */
+	private final ConcurrentHashMap<UUID, PlayerRecord<D>> resident =
+			new ConcurrentHashMap<UUID, PlayerRecord<D>>();
+
+	/**
+	 * The directory that holds the file of every player.
+	 */
+	private final File directory;
+
+	/**
+	 * The time that the data of a player is kept in memory after the player quits, in
+	 * milliseconds.
+	 */
+	private volatile long graceMillis = PersistentPlayerFiles.DEFAULT_GRACE_MILLIS;
+
+	/**
+	 * The codec that is used to write the file of each player.
+	 */
+	private volatile PayloadCodec codec = BinaryCodec.INSTANCE;
+
+	/**
+	 * The compression applied to the file of each player, or {@code null} if the files are
+	 * not compressed.
+	 */
+	private volatile PayloadCompression compression;
+
+	/**
+	 * The number of player files that have been read.
+	 */
+	private final AtomicLong loadCount = new AtomicLong();
+
+	/**
+	 * The number of player files that have been written.
+	 */
+	private final AtomicLong writeCount = new AtomicLong();
+
+	/**
+	 * Constructs a new {@code PersistentPlayerFiles} with the given plugin as an owner,
+	 * and the filename to store the data next to. The data of every player who is already
+	 * online is loaded in parallel, and the object is registered to receive the login,
+	 * join, and quit events of the server.
+	 *
+	 * @param owner the plugin that created this object.
+	 * @param filename the filename to store the data next to.
+	 */
+	public PersistentPlayerFiles(SimplePlugin owner, String filename) {
+		super(owner, filename);
+		this.directory = new File(this.getFile().getPath() + ".players");
+		this.directory.mkdirs();
+		try {
+			this.splitSharedFile();
+		} catch (IOException e) {
+			owner.getLogger().log(Level.WARNING,
+					"The data in the file could not be moved to player files: " + this.getFile(), e);
+		}
+		this.loadOnlinePlayers();
+		Bukkit.getPluginManager().registerEvents(this, owner);
+	}
+
+	/**
+	 * Sets the time that the data of a player is kept in memory after the player quits.
+	 * This only affects players who quit after it is set.
+	 *
+	 * @param time the length of the grace period, or {@code 0} to remove the data as soon
+	 * as it has been written.
+	 * @param unit the unit of the time.
+	 */
+	public void setGracePeriod(long time, TimeUnit unit) {
+		if (time < 0) {
+			throw new IllegalArgumentException("The grace period cannot be negative: " + time);
+		}
+		this.graceMillis = unit.toMillis(time);
+	}
+
+	/**
+	 * Gets the time that the data of a player is kept in memory after the player quits.
+	 *
+	 * @param unit the unit to return the time in.
+	 * @return the length of the grace period.
+	 */
+	public long getGracePeriod(TimeUnit unit) {
+		return unit.convert(this.graceMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Returns the codec that is used to write the file of each player.
+	 *
+	 * @return the codec for this object.
+	 * @see #setCodec(PayloadCodec)
+	 */
+	public PayloadCodec getCodec() {
+		return this.codec;
+	}
+
+	/**
+	 * Sets the codec that is used to write the file of each player. The codec that is used
+	 * to read a file is always chosen from the header of the file, so this setting only
+	 * affects how each file is written the next time it is saved. By default, the
+	 * {@code BinaryCodec} is used.
+	 *
+	 * @param codec the codec to use when writing each file.
+	 */
+	public void setCodec(PayloadCodec codec) {
+		PayloadFormat.register(codec);
+		this.codec = codec;
+	}
+
+	/**
+	 * Returns the compression that is applied to the file of each player.
+	 *
+	 * @return the compression for this object, or {@code null} if the files are not
+	 * compressed.
+	 * @see #setCompression(PayloadCompression)
+	 */
+	public PayloadCompression getCompression() {
+		return this.compression;
+	}
+
+	/**
+	 * Sets the compression that is applied to the file of each player when it is written.
+	 * Whether a file is compressed is always detected when it is read. By default, files
+	 * are not compressed.
+	 *
+	 * @param compression the compression to use when writing each file, or {@code null}
+	 * to write the files without compression.
+	 */
+	public void setCompression(PayloadCompression compression) {
+		if (compression != null) {
+			PayloadFormat.register(compression);
+		}
+		this.compression = compression;
+	}
+
+	/**
+	 * Returns the data for the given player. The data of a player who is online is always
+	 * in memory; if it is not, it is read from the disk first.
+	 *
+	 * @param p the player to find the data of.
+	 * @return the data of the player, or {@code null} if there is none.
+	 */
+	public D getKeyData(Player p) {
+		PlayerRecord<D> record = this.resident.get(p.getUniqueId());
+		if (record != null && record.loaded) {
+			return record.data;
+		}
+		try {
+			return this.acquire(p.getUniqueId(), false).data;
+		} catch (IOException e) {
+			this.getOwner().getLogger().log(Level.WARNING,
+					"Error reading the data of " + p.getName() + ": " + this.getPlayerFile(p.getUniqueId()), e);
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the data for the player with the given UUID. If the player is not online,
+	 * the data is read from the disk without being kept in memory, so this method should
+	 * not be called from the main server thread for a player who is offline.
+	 *
+	 * @param id the UUID of the player to find the data of.
+	 * @return the data of the player, or {@code null} if there is none.
+	 * @throws IOException if the file of the player could not be read.
+	 */
+	public D getKeyData(UUID id) throws IOException {
+		PlayerRecord<D> record = this.resident.get(id);
+		if (record != null) {
+			synchronized (record) {
+				if (record.loaded) {
+					return record.data;
+				}
+			}
+		}
+		return this.readPlayerFile(id);
+	}
+
+	/**
+	 * Determines if data exists for the given player.
+	 *
+	 * @param p the player to check.
+	 * @return {@code true} if data exists for the player; {@code false} otherwise.
+	 */
+	public boolean keyDataExists(Player p) {
+		return this.getKeyData(p) != null;
+	}
+
+	/**
+	 * Sets the data for the given player. The file of the player is written the next time
+	 * the data is saved, even if the data is the same object as before, so data that was
+	 * changed in place is saved by putting it again.
+	 *
+	 * @param p the player to set the data of.
+	 * @param data the new data, or {@code null} to remove the data of the player.
+	 * @return the previous data of the player, or {@code null} if there was none.
+	 */
+	public D put(Player p, D data) {
+		return this.put(p, data, false);
+	}
+
+	/**
+	 * Sets the data for the given player, and marks the file of the player to be written
+	 * the next time the data is saved.
+	 *
+	 * @param p the player to set the data of.
+	 * @param data the new data, or {@code null} to remove the data of the player.
+	 * @param onlyIfChanged {@code true} if the file should not be marked when the new data
+	 * is equal to the current data; {@code false} if it should always be marked.
+	 * @return the previous data of the player, or {@code null} if there was none.
+	 */
+	private D put(Player p, D data, boolean onlyIfChanged) {
+		while (true) {
+			PlayerRecord<D> record;
+			try {
+				record = this.acquire(p.getUniqueId(), false);
+			} catch (IOException e) {
+				// Never overwrite data that could not be read
+				throw new IllegalStateException("The data of " + p.getName() + " could not be read", e);
+			}
+			synchronized (record) {
+				if (record.evicted) {
+					continue;
+				}
+				D previous = record.data;
+				if (!onlyIfChanged || !Objects.equals(previous, data)) {
+					record.data = data;
+					record.changeCount++;
+				}
+				return previous;
+			}
+		}
+	}
+
+	/**
+	 * Removes the data for the given player. The file of the player is deleted the next
+	 * time the data is saved.
+	 *
+	 * @param p the player to remove the data of.
+	 * @return the previous data of the player, or {@code null} if there was none.
+	 */
+	public D remove(Player p) {
+		return this.put(p, null);
+	}
+
+	/**
+	 * Saves the relevant value for the given player. If the value is equal to the current
+	 * data of the player, the file of the player is not rewritten.
+	 *
+	 * @param p the player to save information for.
+	 * @see #calculateDataValue(Player)
+	 */
+	public void saveKeyedData(Player p) {
+		this.put(p, this.calculateDataValue(p), true);
+	}
+
+	/**
+	 * Saves relevant data for all players currently connected to the server.
+	 */
+	public void saveAllPlayerData() {
+		for (Player p : Bukkit.getOnlinePlayers()) {
+			this.saveKeyedData(p);
+		}
+	}
+
+	/**
+	 * Writes the file of every player whose data has changed since it was last saved, on
+	 * background threads.
+	 *
+	 * @return the number of files that will be written.
+	 */
+	public int saveInBackground() {
+		int count = 0;
+		for (final PlayerRecord<D> record : this.resident.values()) {
+			if (record.isDirty()) {
+				FileExecutor.submit(new Runnable() {
+
+					@Override
+					public void run() {
+						PersistentPlayerFiles.this.flushAndLog(record);
+					}
+
+				});
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Determines if the data of any player has changed since it was last saved.
+	 *
+	 * @return {@code true} if any file must be written; {@code false} otherwise.
+	 */
+	public boolean isDirty() {
+		for (PlayerRecord<D> record : this.resident.values()) {
+			if (record.isDirty()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the number of players whose data is held in memory, including players who
+	 * have quit within the grace period.
+	 *
+	 * @return the number of players in memory.
+	 */
+	public int getResidentCount() {
+		return this.resident.size();
+	}
+
+	/**
+	 * Returns the number of players whose data is held in memory.
+	 *
+	 * @return the number of players in memory.
+	 * @see #getResidentCount()
+	 */
+	@Override
+	public int getEntryCount() {
+		return this.getResidentCount();
+	}
+
+	/**
+	 * Estimates the memory taken up by the data of every player that is held in memory,
+	 * from a sample of the players.
+	 *
+	 * @return the estimated size of the data in memory, in bytes.
+	 */
+	@Override
+	public long getEstimatedHeapBytes() {
+		return HeapEstimator.estimate(this.resident);
+	}
+
+	/**
+	 * Returns the number of bytes that the file named by the constructor and every player
+	 * file take up on the disk.
+	 *
+	 * @return the size of every file of this object, in bytes.
+	 */
+	@Override
+	public long getStoredBytes() {
+		long bytes = super.getStoredBytes();
+		File[] files = this.directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				bytes += file.length();
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Returns the number of player files that have been read.
+	 *
+	 * @return the number of files read.
+	 */
+	public long getLoadCount() {
+		return this.loadCount.get();
+	}
+
+	/**
+	 * Returns the number of player files that have been written or deleted.
+	 *
+	 * @return the number of files written.
+	 */
+	public long getWriteCount() {
+		return this.writeCount.get();
+	}
+
+	/**
+	 * Loads the data of a player who is logging in. This is called on a background thread
+	 * by the server, so the file is read without delaying the main server thread. If the
+	 * player never joins, the data is removed from memory again after the grace period.
+	 *
+	 * @param event the login event.
+	 */
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onPlayerPreLogin(AsyncPlayerPreLoginEvent event) {
+		if (event.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED) {
+			return;
+		}
+		try {
+			this.acquire(event.getUniqueId(), false);
+		} catch (IOException e) {
+			this.getOwner().getLogger().log(Level.WARNING, "Error reading the data of "
+					+ event.getName() + ": " + this.getPlayerFile(event.getUniqueId()), e);
+		}
+	}
+
+	/**
+	 * Keeps the data of a player who has joined in memory until the player quits.
+	 *
+	 * @param event the join event.
+	 */
+	@EventHandler(priority = EventPriority.LOWEST)
+	public void onPlayerJoin(PlayerJoinEvent event) {
+		try {
+			this.acquire(event.getPlayer().getUniqueId(), true);
+		} catch (IOException e) {
+			this.getOwner().getLogger().log(Level.WARNING, "Error reading the data of "
+					+ event.getPlayer().getName() + ": " + this.getPlayerFile(event.getPlayer().getUniqueId()), e);
+		}
+	}
+
+	/**
+	 * Saves the data of a player who has quit, writes it to the disk on a background
+	 * thread, and removes it from memory after the grace period.
+	 *
+	 * @param event the quit event.
+	 */
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onPlayerQuit(PlayerQuitEvent event) {
+		Player p = event.getPlayer();
+		this.saveKeyedData(p);
+		final PlayerRecord<D> record = this.resident.get(p.getUniqueId());
+		if (record == null) {
+			return;
+		}
+		synchronized (record) {
+			record.online = false;
+			this.scheduleEviction(record);
+		}
+		if (record.isDirty()) {
+			FileExecutor.submit(new Runnable() {
+
+				@Override
+				public void run() {
+					PersistentPlayerFiles.this.flushAndLog(record);
+				}
+
+			});
+		}
+	}
+
+	/**
+	 * Calculates and returns the relavant data value for the given player. Overriding this
+	 * method allows sub-classes to have complete control over what data is stored for
+	 * each player.
+	 *
+	 * @param p the player to calculate a data value for.
+	 * @return the information that is specific to the given player.
+	 */
+	public abstract D calculateDataValue(Player p);
+
+	/**
+	 * Writes the file of every player whose data has changed, in parallel, and stops
+	 * removing the data of players who have quit.
+	 *
+	 * @throws IOException if any file could not be written.
+	 */
+	@Override
+	protected void attemptClose() throws IOException {
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (final PlayerRecord<D> record : this.resident.values()) {
+			synchronized (record) {
+				if (record.eviction != null) {
+					record.eviction.cancel(false);
+					record.eviction = null;
+				}
+			}
+			tasks.add(new Callable<Void>() {
+
+				@Override
+				public Void call() throws IOException {
+					PersistentPlayerFiles.this.flush(record);
+					return null;
+				}
+
+			});
+		}
+		FileExecutor.invokeAll(tasks);
+		super.attemptClose();
+	}
+
+	/**
+	 * Returns the record of the player with the given UUID, and reads the file of the
+	 * player first if the record is not yet in memory. A record that is not for a player
+	 * who is online is removed from memory after the grace period.
+	 *
+	 * @param id the UUID of the player.
+	 * @param joined {@code true} if the player has joined the server, and the record
+	 * should be kept until the player quits.
+	 * @return the record of the player.
+	 * @throws IOException if the file of the player could not be read.
+	 */
+	private PlayerRecord<D> acquire(UUID id, boolean joined) throws IOException {
+		while (true) {
+			PlayerRecord<D> record = this.resident.get(id);
+			if (record == null) {
+				PlayerRecord<D> created = new PlayerRecord<D>(id);
+				record = this.resident.putIfAbsent(id, created);
+				if (record == null) {
+					record = created;
+				}
+			}
+			synchronized (record) {
+				if (record.evicted) {
+					// Removed just before it could be used; the file is already up to date
+					continue;
+				}
+				if (!record.loaded) {
+					try {
+						record.data = this.readPlayerFile(id);
+					} catch (IOException e) {
+						record.evicted = true;
+						this.resident.remove(id, record);
+						throw e;
+					}
+					record.loaded = true;
+				}
+				if (joined) {
+					record.online = true;
+					if (record.eviction != null) {
+						record.eviction.cancel(false);
+						record.eviction = null;
+					}
+				} else if (!record.online && record.eviction == null) {
+					this.scheduleEviction(record);
+				}
+				return record;
+			}
+		}
+	}
+
+	/**
+	 * Schedules the given record to be written and removed from memory after the grace
+	 * period, replacing any earlier schedule. This must be called while holding the lock
+	 * of the record.
+	 *
+	 * @param record the record to remove.
+	 */
+	private void scheduleEviction(final PlayerRecord<D> record) {
+		if (record.eviction != null) {
+			record.eviction.cancel(false);
+		}
+		record.eviction = FileExecutor.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				PersistentPlayerFiles.this.evict(record);
+			}
+
+		}, this.graceMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Writes the given record if it has changed, and removes it from memory if its player
+	 * is still offline. If the record could not be written, or changed while it was being
+	 * written, it is kept and scheduled again.
+	 *
+	 * @param record the record to remove.
+	 */
+	private void evict(PlayerRecord<D> record) {
+		boolean saved = this.flushAndLog(record);
+		synchronized (record) {
+			if (record.online || record.evicted) {
+				return;
+			}
+			if (!saved || record.isDirty()) {
+				this.scheduleEviction(record);
+				return;
+			}
+			record.evicted = true;
+			record.eviction = null;
+			this.resident.remove(record.id, record);
+		}
+	}
+
+	/**
+	 * Writes the given record if it has changed, and logs any error.
+	 *
+	 * @param record the record to write.
+	 * @return {@code true} if the file of the record is up to date; {@code false} if it
+	 * could not be written.
+	 */
+	private boolean flushAndLog(PlayerRecord<D> record) {
+		try {
+			this.flush(record);
+			return true;
+		} catch (IOException e) {
+			this.getOwner().getLogger().log(Level.WARNING,
+					"Error saving player file: " + this.getPlayerFile(record.id), e);
+			return false;
+		}
+	}
+
+	/**
+	 * Writes the given record to the file of its player if it has changed since it was
+	 * last written. Writes of the same record never overlap, so a newer version of the
+	 * data is never replaced by an older one.
+	 *
+	 * @param record the record to write.
+	 * @throws IOException if the file could not be written.
+	 */
+	private void flush(PlayerRecord<D> record) throws IOException {
+		synchronized (record.writeLock) {
+			D data;
+			long change;
+			synchronized (record) {
+				if (!record.isDirty()) {
+					return;
+				}
+				data = record.data;
+				change = record.changeCount;
+			}
+			File file = this.getPlayerFile(record.id);
+			long start = System.nanoTime();
+			if (data == null) {
+				Files.deleteIfExists(file.toPath());
+			} else {
+				this.recordWrite(PersistentObject.writeFile(file,
+						PayloadSnapshot.of(data, this.codec), this.compression));
+			}
+			this.recordSave(System.nanoTime() - start);
+			this.writeCount.incrementAndGet();
+			synchronized (record) {
+				record.savedCount = change;
+			}
+		}
+	}
+
+	/**
+	 * Reads the data in the file of the player with the given UUID.
+	 *
+	 * @param id the UUID of the player.
+	 * @return the data of the player, or {@code null} if the player has no file.
+	 * @throws IOException if the file exists, but could not be read.
+	 */
+	@SuppressWarnings("unchecked")
+	private D readPlayerFile(UUID id) throws IOException {
+		File file = this.getPlayerFile(id);
+		if (!file.exists()) {
+			return null;
+		}
+		this.loadCount.incrementAndGet();
+		D data = (D) PersistentObject.readFile(file);
+		this.recordRead(file.length());
+		return data;
+	}
+
+	/**
+	 * Returns the file that holds the data of the player with the given UUID.
+	 *
+	 * @param id the UUID of the player.
+	 * @return the file of the player.
+	 */
+	private File getPlayerFile(UUID id) {
+		return new File(this.directory, id + ".dat");
+	}
+
+	/**
+	 * Reads the data of every player who is already online, such as when the plugin is
+	 * reloaded while the server is running. The files are read in parallel.
+	 */
+	private void loadOnlinePlayers() {
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (final Player p : Bukkit.getOnlinePlayers()) {
+			tasks.add(new Callable<Void>() {
+
+				@Override
+				public Void call() throws IOException {
+					PersistentPlayerFiles.this.acquire(p.getUniqueId(), true);
+					return null;
+				}
+
+			});
+		}
+		try {
+			FileExecutor.invokeAll(tasks);
+		} catch (IOException e) {
+			// The data of each failed player is read again when it is first used
+			this.getOwner().getLogger().log(Level.WARNING,
+					"Error reading the data of online players: " + this.directory, e);
+		}
+	}
+
+	/**
+	 * Moves every entry in the file named by the constructor that is stored by UUID into
+	 * the file of its player, unless the player already has a file. Every other entry is
+	 * left in the file. The player files are written before the entries are removed from
+	 * the file, so the move can safely be repeated if it is interrupted.
+	 *
+	 * @throws IOException if the data could not be moved; the file is then unchanged.
+	 */
+	private void splitSharedFile() throws IOException {
+		if (this.getFile().length() == 0) {
+			return;
+		}
+		Object shared = PersistentObject.readFile(this.getFile());
+		if (!(shared instanceof Map<?, ?>) || ((Map<?, ?>) shared).isEmpty()) {
+			return;
+		}
+		HashMap<Object, Object> leftover = new HashMap<Object, Object>();
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (final Map.Entry<?, ?> entry : ((Map<?, ?>) shared).entrySet()) {
+			UUID id = UUIDKeyedMap.toUUID(entry.getKey());
+			if (id == null || !(entry.getValue() instanceof Serializable)) {
+				leftover.put(entry.getKey(), entry.getValue());
+				continue;
+			}
+			final File file = this.getPlayerFile(id);
+			if (!file.exists()) {
+				tasks.add(new Callable<Void>() {
+
+					@Override
+					public Void call() throws IOException {
+						PersistentObject.writeFile(file, PayloadSnapshot.of(
+								(Serializable) entry.getValue(), PersistentPlayerFiles.this.codec),
+								PersistentPlayerFiles.this.compression);
+						return null;
+					}
+
+				});
+			}
+		}
+		// Each file is forced to the disk, so writing them in parallel overlaps the waits
+		FileExecutor.invokeAll(tasks);
+		int moved = ((Map<?, ?>) shared).size() - leftover.size();
+		if (moved == 0) {
+			return;
+		}
+		PersistentObject.writeFile(this.getFile(), PayloadSnapshot.of(leftover, this.codec),
+				this.compression);
+		this.getOwner().getLogger().info("Moved the data of " + moved + " players to "
+				+ this.directory + "; " + leftover.size() + " entries were not stored by UUID");
+	}
+
+	/**
+	 * A {@code PlayerRecord} holds the data of one player while it is in memory.
+	 *
+	 * @param <D> the data object that is generated for any player.
+	 */
+	private static class PlayerRecord<D> {
+
+		/**
+		 * The UUID of the player.
+		 */
+		public final UUID id;
+
+		/**
+		 * The lock that is held while the file of the player is being written.
+		 */
+		public final Object writeLock = new Object();
+
+		/**
+		 * The data of the player, or {@code null} if there is none.
+		 */
+		public volatile D data;
+
+		/**
+		 * {@code true} once the file of the player has been read.
+		 */
+		public volatile boolean loaded;
+
+		/**
+		 * {@code true} if the player has joined and not yet quit.
+		 */
+		public boolean online;
+
+		/**
+		 * {@code true} once this record has been removed from memory, after which it must
+		 * not be used.
+		 */
+		public boolean evicted;
+
+		/**
+		 * The number of changes that have been made to the data.
+		 */
+		public long changeCount;
+
+		/**
+		 * The number of changes that had been made when the file was last written.
+		 */
+		public long savedCount;
+
+		/**
+		 * The pending removal of this record from memory, or {@code null} if there is none.
+		 */
+		public ScheduledFuture<?> eviction;
+
+		/**
+		 * Constructs a new, unloaded {@code PlayerRecord} for the player with the given
+		 * UUID.
+		 *
+		 * @param id the UUID of the player.
+		 */
+		public PlayerRecord(UUID id) {
+			this.id = id;
+		}
+
+		/**
+		 * Determines if the data has changed since the file was last written.
+		 *
+		 * @return {@code true} if the file must be written; {@code false} otherwise.
+		 */
+		public synchronized boolean isDirty() {
+			return this.changeCount != this.savedCount;
+		}
+
+	}
+
+}
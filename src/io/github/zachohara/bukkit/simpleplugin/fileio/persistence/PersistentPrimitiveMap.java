@@ -0,0 +1,316 @@
+/* Copyright (C) 2017 Zach Ohara
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.zachohara.bukkit.simpleplugin.fileio.persistence;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import io.github.zachohara.bukkit.simpleplugin.plugin.SimplePlugin;
+
+/**
+ * A {@code PersistentPrimitiveMap} is responsible for loading and storing a map from
+ * strings or UUIDs to primitive numbers as an external file, so that it remains persistent
+ * through server restarts. Counters, scores, balances and times are common examples.
+ * <p>
+ * Unlike a {@code PersistentMap}, the numbers are never boxed, and no entry object is
+ * created for each key: the keys and values are kept in flat arrays, and UUID keys are
+ * kept as two {@code long}s. The file is written by the {@code PrimitiveTableCodec}, with
+ * no per-entry type information. A file written by a {@code PersistentMap} whose keys and
+ * values have the right types can also be opened, and is converted when it is next saved.
+ *
+ * @param <K> the key type of the map, which must be {@code String} or {@code UUID}.
+ * @author Zach Ohara
+ * @see PersistentIntMap
+ * @see PersistentLongMap
+ * @see PersistentDoubleMap
+ */
+public abstract class PersistentPrimitiveMap<K> extends PersistentObject {
+
+	/**
+	 * The class of the keys of this map.
+	 */
+	private final Class<K> keyClass;
+
+	/**
+	 * Released once the underlying table is no longer needed by the snapshot that is being
+	 * written from it, or {@code null} if no snapshot is using the underlying table.
+	 */
+	private CountDownLatch frozenData;
+
+	/**
+	 * Constructs a new {@code PersistentPrimitiveMap} with the given plugin as an owner,
+	 * the filename to store the data to, and the types of its keys and values.
+	 *
+	 * @param owner the plugin that created this object.
+	 * @param filename the filename to store the map as.
+	 * @param keyClass the class of the keys, which must be {@code String} or {@code UUID}.
+	 * @param valueType the type of the values, as defined by {@code PrimitiveTable}.
+	 * @throws IllegalArgumentException if the key class is not supported.
+	 * @throws IllegalStateException if the file holds data that cannot be converted to
+	 * this kind of map.
+	 */
+	PersistentPrimitiveMap(SimplePlugin owner, String filename, Class<K> keyClass,
+			byte valueType) {
+		super(owner, filename, PrimitiveTable.create(keyClass, valueType, 0));
+		this.keyClass = keyClass;
+		Serializable loaded = super.getPayload();
+		boolean converted = !(loaded instanceof PrimitiveTable)
+				|| ((PrimitiveTable) loaded).getValueType() != valueType;
+		this.setPayload(PrimitiveTable.adopt(loaded, keyClass, valueType));
+		if (converted) {
+			this.markDirty();
+		}
+	}
+
+	/**
+	 * Gets the table that is stored by this map, for reading only.
+	 *
+	 * @return a reference to the underlying table.
+	 */
+	PrimitiveTable table() {
+		return (PrimitiveTable) super.getPayload();
+	}
+
+	/**
+	 * Gets the table that is stored by this map, so that it can be changed. If a snapshot
+	 * is still being written from the underlying table, the table is first copied, so that
+	 * the snapshot is not disturbed.
+	 *
+	 * @return a reference to the underlying table.
+	 */
+	PrimitiveTable writableTable() {
+		if (this.frozenData != null && this.frozenData.getCount() > 0) {
+			this.setPayload(this.table().copy());
+		}
+		this.frozenData = null;
+		return this.table();
+	}
+
+	/**
+	 * Returns a reference to the table that is stored by this map. If a snapshot is still
+	 * being written from the underlying table, the table is first copied, so that the
+	 * snapshot is not disturbed.
+	 *
+	 * @return a reference to the stored data.
+	 */
+	@Override
+	public Serializable getPayload() {
+		return this.writableTable();
+	}
+
+	/**
+	 * Returns the codec that is used to write this map, which is always the
+	 * {@code PrimitiveTableCodec}.
+	 *
+	 * @return the codec for this map.
+	 */
+	@Override
+	public PayloadCodec getCodec() {
+		return PrimitiveTableCodec.INSTANCE;
+	}
+
+	/**
+	 * Primitive maps are always written by the {@code PrimitiveTableCodec}.
+	 *
+	 * @param codec ignored.
+	 * @throws UnsupportedOperationException always.
+	 */
+	@Override
+	public void setCodec(PayloadCodec codec) {
+		throw new UnsupportedOperationException("Primitive maps always use their own codec");
+	}
+
+	/**
+	 * Returns {@code true}, because the values of a primitive map cannot be changed in
+	 * place, so every change is made through the map and is always tracked.
+	 *
+	 * @return {@code true}.
+	 */
+	@Override
+	protected boolean tracksChanges() {
+		return true;
+	}
+
+	/**
+	 * Captures a snapshot of this map without copying it. The underlying table is frozen
+	 * until the snapshot is released; if the map is changed before then, the table is
+	 * copied first, so the snapshot is not disturbed.
+	 *
+	 * @return a snapshot of this map.
+	 */
+	@Override
+	protected PayloadSnapshot captureSnapshot() {
+		final PrimitiveTable frozen = this.writableTable();
+		final CountDownLatch latch = new CountDownLatch(1);
+		this.frozenData = latch;
+		return new PayloadSnapshot() {
+
+			@Override
+			public void writeTo(OutputStream out) throws IOException {
+				PayloadFormat.write(out, PrimitiveTableCodec.INSTANCE, frozen);
+			}
+
+			@Override
+			public void release() {
+				latch.countDown();
+			}
+
+		};
+	}
+
+	/**
+	 * Returns the number of keys in this map.
+	 *
+	 * @return the number of keys.
+	 * @see #size()
+	 */
+	@Override
+	public int getEntryCount() {
+		return this.size();
+	}
+
+	/**
+	 * Returns the number of keys in this map.
+	 *
+	 * @return the number of keys.
+	 */
+	public int size() {
+		return this.table().size();
+	}
+
+	/**
+	 * Determines if this map has no keys.
+	 *
+	 * @return {@code true} if this map is empty; {@code false} otherwise.
+	 */
+	public boolean isEmpty() {
+		return this.table().size() == 0;
+	}
+
+	/**
+	 * Determines if this map has a value for the given key.
+	 *
+	 * @param key the key to look for.
+	 * @return {@code true} if the key is in this map; {@code false} otherwise.
+	 */
+	public boolean containsKey(K key) {
+		return this.table().find(key) >= 0;
+	}
+
+	/**
+	 * Removes the given key from this map.
+	 *
+	 * @param key the key to remove.
+	 * @return {@code true} if the key was in this map; {@code false} otherwise.
+	 */
+	public boolean remove(K key) {
+		PrimitiveTable table = this.table();
+		int slot = table.find(key);
+		if (slot < 0) {
+			return false;
+		}
+		this.writableTable().removeAt(slot);
+		this.markDirty();
+		return true;
+	}
+
+	/**
+	 * Removes every key from this map.
+	 */
+	public void clear() {
+		if (this.table().size() > 0) {
+			this.writableTable().clear();
+			this.markDirty();
+		}
+	}
+
+	/**
+	 * Returns a list of every key in this map. The list is a copy, so this map may be
+	 * changed while it is being used.
+	 *
+	 * @return the keys of this map.
+	 */
+	public List<K> keys() {
+		PrimitiveTable table = this.table();
+		List<K> keys = new ArrayList<K>(table.size());
+		for (int slot = 0; slot < table.capacity(); slot++) {
+			if (table.isUsed(slot)) {
+				keys.add(this.keyClass.cast(table.keyAt(slot)));
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * Returns the stored bits of the value for the given key.
+	 *
+	 * @param key the key to look up.
+	 * @param defaultBits the bits to return if the key is not in this map.
+	 * @return the stored bits of the value, or {@code defaultBits}.
+	 */
+	long getBits(Object key, long defaultBits) {
+		PrimitiveTable table = this.table();
+		int slot = table.find(key);
+		return (slot < 0) ? defaultBits : table.bitsAt(slot);
+	}
+
+	/**
+	 * Sets the stored bits of the value for the given key, adding the key if needed.
+	 *
+	 * @param key the key to change.
+	 * @param bits the stored bits of the new value.
+	 * @return the stored bits of the previous value, or {@code 0} if there was none.
+	 */
+	long putBits(K key, long bits) {
+		PrimitiveTable table = this.writableTable();
+		int slot = table.insert(key);
+		long previous = table.bitsAt(slot);
+		table.setBitsAt(slot, bits);
+		this.markDirty();
+		return previous;
+	}
+
+	/**
+	 * Finds the slot of the given key in the writable table, adding the key with a value of
+	 * zero if needed, and marks this map as changed. The caller then changes the value in
+	 * the slot directly, so that an update needs only one lookup.
+	 *
+	 * @param key the key to change.
+	 * @return the slot of the key in {@link #writableTable()}.
+	 */
+	int slotForUpdate(K key) {
+		int slot = this.writableTable().insert(key);
+		this.markDirty();
+		return slot;
+	}
+
+	/**
+	 * Returns the key in the given slot of the table, as the key type of this map.
+	 *
+	 * @param table the table to read.
+	 * @param slot the slot of the key.
+	 * @return the key in the slot.
+	 */
+	K keyAt(PrimitiveTable table, int slot) {
+		return this.keyClass.cast(table.keyAt(slot));
+	}
+
+}
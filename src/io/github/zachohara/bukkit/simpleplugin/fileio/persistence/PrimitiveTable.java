@@ -0,0 +1,630 @@
+/* Copyright (C) 2017 Zach Ohara
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.zachohara.bukkit.simpleplugin.fileio.persistence;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A {@code PrimitiveTable} is a hash table that maps keys to primitive numbers, without
+ * boxing the numbers or allocating an entry object for every key. The table uses open
+ * addressing with linear probing: every key is stored directly in an array, and its value
+ * is stored at the same index of a parallel {@code long} array. Integers and longs are
+ * stored as themselves, and doubles are stored as their raw bits.
+ * <p>
+ * The way keys are stored is chosen by each subclass: string keys are stored as
+ * references, and UUID keys are stored as two {@code long}s, so a UUID table holds no
+ * objects at all.
+ *
+ * @author Zach Ohara
+ * @see PersistentPrimitiveMap
+ */
+abstract class PrimitiveTable implements Serializable {
+
+	/**
+	 * The serial version of this class.
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The key type of a table with string keys.
+	 */
+	public static final byte STRING_KEYS = 1;
+
+	/**
+	 * The key type of a table with UUID keys.
+	 */
+	public static final byte UUID_KEYS = 2;
+
+	/**
+	 * The value type of a table with {@code int} values.
+	 */
+	public static final byte INT_VALUES = 1;
+
+	/**
+	 * The value type of a table with {@code long} values.
+	 */
+	public static final byte LONG_VALUES = 2;
+
+	/**
+	 * The value type of a table with {@code double} values.
+	 */
+	public static final byte DOUBLE_VALUES = 3;
+
+	/**
+	 * The smallest number of slots in a table.
+	 */
+	private static final int MIN_CAPACITY = 16;
+
+	/**
+	 * The type of the values in this table.
+	 */
+	private byte valueType;
+
+	/**
+	 * The value stored in every slot of this table.
+	 */
+	protected long[] values;
+
+	/**
+	 * The number of keys in this table.
+	 */
+	private int size;
+
+	/**
+	 * Constructs a new {@code PrimitiveTable} with the given value type, and no arrays.
+	 *
+	 * @param valueType the type of the values in the table.
+	 */
+	protected PrimitiveTable(byte valueType) {
+		this.valueType = valueType;
+	}
+
+	/**
+	 * Constructs a new {@code PrimitiveTable} with the given value type, and enough slots
+	 * for the given number of keys.
+	 *
+	 * @param valueType the type of the values in the table.
+	 * @param expectedSize the number of keys the table should hold without growing.
+	 */
+	protected PrimitiveTable(byte valueType, int expectedSize) {
+		this(valueType);
+		this.allocate(PrimitiveTable.capacityFor(expectedSize));
+	}
+
+	/**
+	 * Creates an empty table for the given key class.
+	 *
+	 * @param keyClass the class of the keys, which must be {@code String} or {@code UUID}.
+	 * @param valueType the type of the values in the table.
+	 * @param expectedSize the number of keys the table should hold without growing.
+	 * @return a new, empty table.
+	 * @throws IllegalArgumentException if the key class is not supported.
+	 */
+	public static PrimitiveTable create(Class<?> keyClass, byte valueType, int expectedSize) {
+		return PrimitiveTable.create(PrimitiveTable.keyTypeOf(keyClass), valueType,
+				expectedSize);
+	}
+
+	/**
+	 * Creates an empty table for the given key type.
+	 *
+	 * @param keyType the type of the keys in the table.
+	 * @param valueType the type of the values in the table.
+	 * @param expectedSize the number of keys the table should hold without growing.
+	 * @return a new, empty table.
+	 * @throws IllegalArgumentException if the key type or value type is not known.
+	 */
+	public static PrimitiveTable create(byte keyType, byte valueType, int expectedSize) {
+		if (valueType < PrimitiveTable.INT_VALUES || valueType > PrimitiveTable.DOUBLE_VALUES) {
+			throw new IllegalArgumentException("Unknown value type: " + valueType);
+		}
+		switch (keyType) {
+			case STRING_KEYS:
+				return new StringKeyTable(valueType, expectedSize);
+			case UUID_KEYS:
+				return new UUIDKeyTable(valueType, expectedSize);
+			default:
+				throw new IllegalArgumentException("Unknown key type: " + keyType);
+		}
+	}
+
+	/**
+	 * Returns the key type that is used for the given key class.
+	 *
+	 * @param keyClass the class of the keys.
+	 * @return the key type for the class.
+	 * @throws IllegalArgumentException if the key class is not supported.
+	 */
+	public static byte keyTypeOf(Class<?> keyClass) {
+		if (keyClass == String.class) {
+			return PrimitiveTable.STRING_KEYS;
+		} else if (keyClass == UUID.class) {
+			return PrimitiveTable.UUID_KEYS;
+		} else {
+			throw new IllegalArgumentException(
+					"Primitive maps only support String and UUID keys, not " + keyClass.getName());
+		}
+	}
+
+	/**
+	 * Converts the given loaded payload to a table with the given key class and value
+	 * type. A table with the same key class is used directly, or has its values converted
+	 * if their type is different. A {@code Map}, such as the payload of a
+	 * {@code PersistentMap}, is copied into a new table, so existing files can be opened
+	 * as primitive maps.
+	 *
+	 * @param payload the payload that was loaded, or {@code null} if there is none.
+	 * @param keyClass the class of the keys.
+	 * @param valueType the type of the values.
+	 * @return a table holding the data of the payload.
+	 * @throws IllegalStateException if the payload cannot be converted.
+	 */
+	public static PrimitiveTable adopt(Object payload, Class<?> keyClass, byte valueType) {
+		byte keyType = PrimitiveTable.keyTypeOf(keyClass);
+		if (payload == null) {
+			return PrimitiveTable.create(keyType, valueType, 0);
+		} else if (payload instanceof PrimitiveTable) {
+			PrimitiveTable table = (PrimitiveTable) payload;
+			if (table.getKeyType() != keyType) {
+				throw new IllegalStateException("The file has keys of a different type");
+			}
+			table.convertValues(valueType);
+			return table;
+		} else if (payload instanceof Map<?, ?>) {
+			Map<?, ?> map = (Map<?, ?>) payload;
+			PrimitiveTable table = PrimitiveTable.create(keyType, valueType, map.size());
+			for (Map.Entry<?, ?> entry : map.entrySet()) {
+				if (!keyClass.isInstance(entry.getKey()) || !(entry.getValue() instanceof Number)) {
+					throw new IllegalStateException("The file has an entry of the wrong type: "
+							+ entry.getKey() + "=" + entry.getValue());
+				}
+				int slot = table.insert(entry.getKey());
+				table.values[slot] = table.toBits((Number) entry.getValue());
+			}
+			return table;
+		} else {
+			throw new IllegalStateException(
+					"The file does not contain a map: " + payload.getClass().getName());
+		}
+	}
+
+	/**
+	 * Returns the type of the keys in this table.
+	 *
+	 * @return the key type of this table.
+	 */
+	public abstract byte getKeyType();
+
+	/**
+	 * Returns the type of the values in this table.
+	 *
+	 * @return the value type of this table.
+	 */
+	public byte getValueType() {
+		return this.valueType;
+	}
+
+	/**
+	 * Returns the number of keys in this table.
+	 *
+	 * @return the number of keys.
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Returns the number of slots in this table.
+	 *
+	 * @return the number of slots.
+	 */
+	public int capacity() {
+		return this.values.length;
+	}
+
+	/**
+	 * Finds the slot that holds the given key.
+	 *
+	 * @param key the key to find.
+	 * @return the slot of the key, or {@code -1} if the key is not in this table.
+	 */
+	public int find(Object key) {
+		if (!this.accepts(key)) {
+			return -1;
+		}
+		int mask = this.values.length - 1;
+		for (int slot = this.hash(key) & mask;; slot = (slot + 1) & mask) {
+			if (!this.isUsed(slot)) {
+				return -1;
+			} else if (this.matches(slot, key)) {
+				return slot;
+			}
+		}
+	}
+
+	/**
+	 * Finds the slot that holds the given key, and adds the key with a value of zero if it
+	 * is not already in this table.
+	 *
+	 * @param key the key to find or add.
+	 * @return the slot of the key.
+	 */
+	public int insert(Object key) {
+		if (key == null) {
+			throw new NullPointerException("Primitive maps do not allow null keys");
+		}
+		int mask = this.values.length - 1;
+		for (int slot = this.hash(key) & mask;; slot = (slot + 1) & mask) {
+			if (!this.isUsed(slot)) {
+				if ((this.size + 1) * 4L > this.values.length * 3L) {
+					this.resize(this.values.length * 2);
+					return this.insert(key);
+				}
+				this.setKey(slot, key);
+				this.values[slot] = 0;
+				this.size++;
+				return slot;
+			} else if (this.matches(slot, key)) {
+				return slot;
+			}
+		}
+	}
+
+	/**
+	 * Removes the key in the given slot. Later keys in the same run of used slots are moved
+	 * back, so that no key is left unreachable.
+	 *
+	 * @param slot the slot of the key to remove.
+	 */
+	public void removeAt(int slot) {
+		int mask = this.values.length - 1;
+		int hole = slot;
+		for (int next = (hole + 1) & mask; this.isUsed(next); next = (next + 1) & mask) {
+			int home = this.hashAt(next) & mask;
+			// Move the key back if its home slot is not between the hole and its slot
+			boolean reachable = (hole <= next) ? (hole < home && home <= next)
+					: (hole < home || home <= next);
+			if (!reachable) {
+				this.moveKey(next, hole);
+				this.values[hole] = this.values[next];
+				hole = next;
+			}
+		}
+		this.clearKey(hole);
+		this.values[hole] = 0;
+		this.size--;
+	}
+
+	/**
+	 * Removes every key from this table.
+	 */
+	public void clear() {
+		this.allocate(PrimitiveTable.MIN_CAPACITY);
+		this.size = 0;
+	}
+
+	/**
+	 * Returns the value in the given slot, as it is stored.
+	 *
+	 * @param slot the slot to read.
+	 * @return the stored bits of the value.
+	 */
+	public long bitsAt(int slot) {
+		return this.values[slot];
+	}
+
+	/**
+	 * Sets the value in the given slot, as it is stored.
+	 *
+	 * @param slot the slot to change.
+	 * @param bits the stored bits of the new value.
+	 */
+	public void setBitsAt(int slot, long bits) {
+		this.values[slot] = bits;
+	}
+
+	/**
+	 * Returns a copy of this table that shares nothing with it, except immutable keys.
+	 *
+	 * @return a copy of this table.
+	 */
+	public PrimitiveTable copy() {
+		PrimitiveTable copy = this.emptyCopy();
+		copy.values = this.values.clone();
+		copy.size = this.size;
+		copy.shareKeysOf(this);
+		copy.cloneKeys();
+		return copy;
+	}
+
+	/**
+	 * Converts a number to the stored bits of a value of this table.
+	 *
+	 * @param value the number to convert.
+	 * @return the stored bits of the number.
+	 */
+	public long toBits(Number value) {
+		if (this.valueType == PrimitiveTable.DOUBLE_VALUES) {
+			return Double.doubleToRawLongBits(value.doubleValue());
+		} else if (this.valueType == PrimitiveTable.INT_VALUES) {
+			return value.intValue();
+		} else {
+			return value.longValue();
+		}
+	}
+
+	/**
+	 * Converts the stored bits of a value of this table to a number.
+	 *
+	 * @param bits the stored bits of the value.
+	 * @return the value, as a boxed number.
+	 */
+	public Number fromBits(long bits) {
+		if (this.valueType == PrimitiveTable.DOUBLE_VALUES) {
+			return Double.longBitsToDouble(bits);
+		} else if (this.valueType == PrimitiveTable.INT_VALUES) {
+			return (int) bits;
+		} else {
+			return bits;
+		}
+	}
+
+	/**
+	 * Converts every value in this table to the given value type.
+	 *
+	 * @param newType the new value type.
+	 */
+	private void convertValues(byte newType) {
+		if (newType == this.valueType) {
+			return;
+		}
+		byte oldType = this.valueType;
+		for (int slot = 0; slot < this.values.length; slot++) {
+			if (this.isUsed(slot)) {
+				this.valueType = oldType;
+				Number value = this.fromBits(this.values[slot]);
+				this.valueType = newType;
+				this.values[slot] = this.toBits(value);
+			}
+		}
+		this.valueType = newType;
+	}
+
+	/**
+	 * Writes the value in the given slot.
+	 *
+	 * @param out the stream to write to.
+	 * @param slot the slot of the value.
+	 * @throws IOException if the value could not be written.
+	 */
+	public void writeValue(DataOutputStream out, int slot) throws IOException {
+		if (this.valueType == PrimitiveTable.DOUBLE_VALUES) {
+			out.writeLong(this.values[slot]);
+		} else {
+			BinaryCodec.writeVarLong(out, BinaryCodec.zigzag(this.values[slot]));
+		}
+	}
+
+	/**
+	 * Reads a value that was written by {@link #writeValue(DataOutputStream, int)} into
+	 * the given slot.
+	 *
+	 * @param in the stream to read from.
+	 * @param slot the slot to store the value in.
+	 * @throws IOException if the value could not be read.
+	 */
+	public void readValue(DataInputStream in, int slot) throws IOException {
+		if (this.valueType == PrimitiveTable.DOUBLE_VALUES) {
+			this.values[slot] = in.readLong();
+		} else {
+			this.values[slot] = BinaryCodec.unzigzag(BinaryCodec.readVarLong(in));
+		}
+	}
+
+	/**
+	 * Creates new, empty arrays for this table with the given number of slots.
+	 *
+	 * @param capacity the number of slots, which must be a power of two.
+	 */
+	private void allocate(int capacity) {
+		this.values = new long[capacity];
+		this.allocateKeys(capacity);
+	}
+
+	/**
+	 * Moves every key into new arrays with the given number of slots.
+	 *
+	 * @param capacity the new number of slots, which must be a power of two.
+	 */
+	private void resize(int capacity) {
+		PrimitiveTable old = this.emptyCopy();
+		old.values = this.values;
+		old.shareKeysOf(this);
+		this.allocate(capacity);
+		int mask = capacity - 1;
+		for (int from = 0; from < old.values.length; from++) {
+			if (old.isUsed(from)) {
+				int slot = old.hashAt(from) & mask;
+				while (this.isUsed(slot)) {
+					slot = (slot + 1) & mask;
+				}
+				this.copyKey(old, from, slot);
+				this.values[slot] = old.values[from];
+			}
+		}
+	}
+
+	/**
+	 * Finds the number of slots needed to hold the given number of keys.
+	 *
+	 * @param size the number of keys.
+	 * @return a power of two that is large enough.
+	 */
+	private static int capacityFor(int size) {
+		long needed = size * 4L / 3 + 1;
+		int capacity = PrimitiveTable.MIN_CAPACITY;
+		while (capacity < needed) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+
+	/**
+	 * Spreads the bits of a hash code, so that similar keys do not land in the same run of
+	 * slots.
+	 *
+	 * @param hash the hash code.
+	 * @return the mixed hash code.
+	 */
+	protected static int mix(int hash) {
+		int h = hash * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Determines if the given object can be a key of this table.
+	 *
+	 * @param key the object to check.
+	 * @return {@code true} if the object has the key type of this table; {@code false}
+	 * otherwise.
+	 */
+	protected abstract boolean accepts(Object key);
+
+	/**
+	 * Returns the hash code of the given key.
+	 *
+	 * @param key the key.
+	 * @return the mixed hash code of the key.
+	 */
+	protected abstract int hash(Object key);
+
+	/**
+	 * Returns the hash code of the key in the given slot.
+	 *
+	 * @param slot the slot of the key.
+	 * @return the mixed hash code of the key.
+	 */
+	protected abstract int hashAt(int slot);
+
+	/**
+	 * Determines if the given slot holds a key.
+	 *
+	 * @param slot the slot to check.
+	 * @return {@code true} if the slot is used; {@code false} otherwise.
+	 */
+	public abstract boolean isUsed(int slot);
+
+	/**
+	 * Determines if the key in the given used slot is equal to the given key.
+	 *
+	 * @param slot the slot to check.
+	 * @param key the key to compare to.
+	 * @return {@code true} if the keys are equal; {@code false} otherwise.
+	 */
+	protected abstract boolean matches(int slot, Object key);
+
+	/**
+	 * Returns the key in the given used slot.
+	 *
+	 * @param slot the slot of the key.
+	 * @return the key in the slot.
+	 */
+	public abstract Object keyAt(int slot);
+
+	/**
+	 * Stores the given key in the given free slot.
+	 *
+	 * @param slot the slot to store the key in.
+	 * @param key the key to store.
+	 */
+	protected abstract void setKey(int slot, Object key);
+
+	/**
+	 * Moves the key in one slot to another slot.
+	 *
+	 * @param from the slot to move the key from.
+	 * @param to the slot to move the key to.
+	 */
+	protected abstract void moveKey(int from, int to);
+
+	/**
+	 * Copies the key in a slot of another table of the same type to a slot of this table.
+	 *
+	 * @param source the table to copy the key from.
+	 * @param from the slot of the key in the other table.
+	 * @param to the slot to store the key in.
+	 */
+	protected abstract void copyKey(PrimitiveTable source, int from, int to);
+
+	/**
+	 * Marks the given slot as free.
+	 *
+	 * @param slot the slot to free.
+	 */
+	protected abstract void clearKey(int slot);
+
+	/**
+	 * Creates new, empty key arrays with the given number of slots.
+	 *
+	 * @param capacity the number of slots.
+	 */
+	protected abstract void allocateKeys(int capacity);
+
+	/**
+	 * Makes this table use the same key arrays as another table of the same type.
+	 *
+	 * @param source the table to share the keys of.
+	 */
+	protected abstract void shareKeysOf(PrimitiveTable source);
+
+	/**
+	 * Replaces the key arrays of this table with copies of themselves.
+	 */
+	protected abstract void cloneKeys();
+
+	/**
+	 * Creates a table of the same type and value type as this table, with no arrays.
+	 *
+	 * @return an empty table of the same type.
+	 */
+	protected abstract PrimitiveTable emptyCopy();
+
+	/**
+	 * Writes the key in the given slot.
+	 *
+	 * @param out the stream to write to.
+	 * @param slot the slot of the key.
+	 * @throws IOException if the key could not be written.
+	 */
+	public abstract void writeKey(DataOutputStream out, int slot) throws IOException;
+
+	/**
+	 * Reads a key that was written by {@link #writeKey(DataOutputStream, int)}, and adds
+	 * it to this table.
+	 *
+	 * @param in the stream to read from.
+	 * @return the slot of the key that was read.
+	 * @throws IOException if the key could not be read.
+	 */
+	public abstract int readKey(DataInputStream in) throws IOException;
+
+}
@@ -0,0 +1,88 @@
+/* Copyright (C) 2017 Zach Ohara
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.zachohara.bukkit.simpleplugin.fileio.persistence;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The {@code PrimitiveTableCodec} stores the payload of a {@code PersistentPrimitiveMap}.
+ * The file holds the key type and value type of the map, the number of entries, and then
+ * every entry as its key followed by its value. String keys are written as UTF-8, UUID
+ * keys as two longs, integer values as variable-length numbers, and double values as
+ * their eight raw bytes, so no type information or object structure is written per entry.
+ *
+ * @author Zach Ohara
+ */
+public class PrimitiveTableCodec implements PayloadCodec {
+
+	/**
+	 * The identifier of this codec.
+	 */
+	public static final byte ID = 3;
+
+	/**
+	 * The shared instance of this codec.
+	 */
+	public static final PrimitiveTableCodec INSTANCE = new PrimitiveTableCodec();
+
+	@Override
+	public byte getId() {
+		return PrimitiveTableCodec.ID;
+	}
+
+	@Override
+	public void encode(Object value, OutputStream out) throws IOException {
+		if (!(value instanceof PrimitiveTable)) {
+			throw new IOException("Only primitive maps can be written by this codec");
+		}
+		PrimitiveTable table = (PrimitiveTable) value;
+		DataOutputStream dataOut = new DataOutputStream(out);
+		dataOut.writeByte(table.getKeyType());
+		dataOut.writeByte(table.getValueType());
+		BinaryCodec.writeVarLong(dataOut, table.size());
+		for (int slot = 0; slot < table.capacity(); slot++) {
+			if (table.isUsed(slot)) {
+				table.writeKey(dataOut, slot);
+				table.writeValue(dataOut, slot);
+			}
+		}
+		dataOut.flush();
+	}
+
+	@Override
+	public Object decode(InputStream in) throws IOException {
+		DataInputStream dataIn = new DataInputStream(in);
+		byte keyType = dataIn.readByte();
+		byte valueType = dataIn.readByte();
+		int size = BinaryCodec.readLength(dataIn);
+		PrimitiveTable table;
+		try {
+			table = PrimitiveTable.create(keyType, valueType, size);
+		} catch (IllegalArgumentException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+		for (int i = 0; i < size; i++) {
+			table.readValue(dataIn, table.readKey(dataIn));
+		}
+		return table;
+	}
+
+}
@@ -0,0 +1,473 @@
+/* Copyright (C) 2017 Zach Ohara
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.zachohara.bukkit.simpleplugin.fileio.persistence;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import io.github.zachohara.bukkit.simpleplugin.fileio.FileExecutor;
+
+/**
+ * A {@code RecordLog} is an append-only file of small records. Records are collected in
+ * memory, and are written and forced to the disk together by a background thread a short
+ * time after the first of them is appended, so that many small appends share a single
+ * disk sync. Every record is stored with a checksum, so a record that was only partially
+ * written before a crash is detected and discarded when the log is opened again.
+ * <p>
+ * Each record consists of an operation code, a key, and a value. The meaning of the
+ * operation code is decided by the user of the log.
+ *
+ * @author Zach Ohara
+ */
+public class RecordLog implements Closeable {
+
+	/**
+	 * The number of bytes that precede the body of every record: the length of the body,
+	 * followed by its checksum.
+	 */
+	public static final int HEADER_SIZE = 8;
+
+	/**
+	 * The default number of milliseconds that appended records may wait in memory before
+	 * they are written to the disk.
+	 */
+	public static final long DEFAULT_COMMIT_INTERVAL = 50;
+
+	/**
+	 * The initial size of the buffer that holds records that are waiting to be written.
+	 */
+	private static final int INITIAL_BUFFER_SIZE = 8192;
+
+	/**
+	 * The file that this log is stored in.
+	 */
+	private final File file;
+
+	/**
+	 * The channel used to read from and write to the file.
+	 */
+	private final FileChannel channel;
+
+	/**
+	 * Guards the pending buffer and the size counters.
+	 */
+	private final Object appendLock;
+
+	/**
+	 * Guards writing to the channel, so only one commit happens at a time.
+	 */
+	private final Object commitLock;
+
+	/**
+	 * The records that have been appended, but not yet written to the file.
+	 */
+	private ByteBuffer pending;
+
+	/**
+	 * The number of bytes that have been written and forced to the file.
+	 */
+	private volatile long durableSize;
+
+	/**
+	 * The size of the log including the records that have not yet been written.
+	 */
+	private long logicalSize;
+
+	/**
+	 * The number of milliseconds that appended records may wait before being committed.
+	 */
+	private long commitInterval;
+
+	/**
+	 * The pending commit task, or {@code null} if no commit is scheduled.
+	 */
+	private ScheduledFuture<?> scheduledCommit;
+
+	/**
+	 * The error from the last background commit if it failed and has not been retried
+	 * successfully, or {@code null} otherwise.
+	 */
+	private volatile IOException commitError;
+
+	/**
+	 * Opens the log stored in the given file, creating the file if it does not exist. Any
+	 * damaged record at the end of the file is discarded.
+	 *
+	 * @param file the file that the log is stored in.
+	 * @throws IOException if the file could not be opened.
+	 */
+	public RecordLog(File file) throws IOException {
+		this.file = file;
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		this.appendLock = new Object();
+		this.commitLock = new Object();
+		this.pending = ByteBuffer.allocate(RecordLog.INITIAL_BUFFER_SIZE);
+		this.commitInterval = RecordLog.DEFAULT_COMMIT_INTERVAL;
+		long validSize = this.findValidSize();
+		if (validSize < this.channel.size()) {
+			this.channel.truncate(validSize);
+		}
+		this.durableSize = validSize;
+		this.logicalSize = validSize;
+	}
+
+	/**
+	 * Returns the file that this log is stored in.
+	 *
+	 * @return the file that this log is stored in.
+	 */
+	public File getFile() {
+		return this.file;
+	}
+
+	/**
+	 * Sets the number of milliseconds that appended records may wait in memory before they
+	 * are written to the disk. A longer interval lets more records share a single disk
+	 * sync, but more records may be lost if the server crashes.
+	 *
+	 * @param millis the commit interval, in milliseconds.
+	 */
+	public void setCommitInterval(long millis) {
+		this.commitInterval = millis;
+	}
+
+	/**
+	 * Returns the size of this log, in bytes, including records that have not yet been
+	 * written to the disk.
+	 *
+	 * @return the size of this log.
+	 */
+	public long size() {
+		synchronized (this.appendLock) {
+			return this.logicalSize;
+		}
+	}
+
+	/**
+	 * Appends a record to the end of this log. The record is written to the disk by a
+	 * background thread shortly afterwards.
+	 *
+	 * @param op the operation code of the record.
+	 * @param key the key of the record.
+	 * @param value the value of the record, which may be empty.
+	 * @return the position of the new record in the log.
+	 * @throws IOException if an earlier background commit failed, and its records still
+	 * cannot be written.
+	 */
+	public long append(byte op, byte[] key, byte[] value) throws IOException {
+		if (this.commitError != null) {
+			// Retry the failed commit first, so no record is appended behind lost ones
+			this.commit();
+		}
+		int bodyLength = 1 + 4 + key.length + value.length;
+		CRC32 crc = new CRC32();
+		crc.update(op);
+		crc.update(RecordLog.intBytes(key.length));
+		crc.update(key);
+		crc.update(value);
+		synchronized (this.appendLock) {
+			this.ensurePendingCapacity(RecordLog.HEADER_SIZE + bodyLength);
+			long position = this.logicalSize;
+			this.pending.putInt(bodyLength);
+			this.pending.putInt((int) crc.getValue());
+			this.pending.put(op);
+			this.pending.putInt(key.length);
+			this.pending.put(key);
+			this.pending.put(value);
+			this.logicalSize += RecordLog.HEADER_SIZE + bodyLength;
+			if (this.scheduledCommit == null) {
+				this.scheduledCommit = FileExecutor.schedule(new Runnable() {
+
+					@Override
+					public void run() {
+						RecordLog.this.backgroundCommit();
+					}
+
+				}, this.commitInterval, TimeUnit.MILLISECONDS);
+			}
+			return position;
+		}
+	}
+
+	/**
+	 * Writes all appended records to the disk, and waits until the disk has confirmed
+	 * that they are stored. If the records cannot be written, they are kept in memory, in
+	 * order, so that a later commit can write them at the positions already given out.
+	 *
+	 * @throws IOException if the records could not be written.
+	 */
+	public void commit() throws IOException {
+		synchronized (this.commitLock) {
+			ByteBuffer toWrite;
+			long position;
+			synchronized (this.appendLock) {
+				if (this.scheduledCommit != null) {
+					this.scheduledCommit.cancel(false);
+					this.scheduledCommit = null;
+				}
+				if (this.pending.position() == 0) {
+					return;
+				}
+				toWrite = this.pending;
+				toWrite.flip();
+				position = this.durableSize;
+				this.pending = ByteBuffer.allocate(Math.max(RecordLog.INITIAL_BUFFER_SIZE,
+						toWrite.capacity() / 2));
+			}
+			int length = toWrite.remaining();
+			try {
+				while (toWrite.hasRemaining()) {
+					position += this.channel.write(toWrite, position);
+				}
+				this.channel.force(false);
+			} catch (IOException e) {
+				this.restorePending(toWrite);
+				throw e;
+			}
+			this.durableSize += length;
+			this.commitError = null;
+		}
+	}
+
+	/**
+	 * Puts records that could not be written back at the front of the pending buffer, ahead
+	 * of any records appended since, so that the positions already given out still match
+	 * the file when the records are written by a later commit.
+	 *
+	 * @param failed the buffer whose write failed.
+	 */
+	private void restorePending(ByteBuffer failed) {
+		synchronized (this.appendLock) {
+			failed.rewind();
+			ByteBuffer restored = ByteBuffer.allocate(Math.max(RecordLog.INITIAL_BUFFER_SIZE,
+					failed.remaining() + this.pending.position()));
+			restored.put(failed);
+			this.pending.flip();
+			restored.put(this.pending);
+			this.pending = restored;
+		}
+	}
+
+	/**
+	 * Reads every record in this log, in order, and passes each of them to the given
+	 * visitor. Records that have been appended but not yet committed are committed first.
+	 *
+	 * @param visitor the visitor to pass each record to.
+	 * @throws IOException if the log could not be read.
+	 */
+	public void replay(Visitor visitor) throws IOException {
+		this.commit();
+		long position = 0;
+		long end = this.durableSize;
+		while (position < end) {
+			ByteBuffer body = this.readRecord(position);
+			RecordLog.visitBody(visitor, position, body);
+			position += RecordLog.HEADER_SIZE + body.limit();
+		}
+	}
+
+	/**
+	 * Reads the single record at the given position, and passes it to the given visitor.
+	 *
+	 * @param position the position of the record, as returned by
+	 * {@link #append(byte, byte[], byte[])}.
+	 * @param visitor the visitor to pass the record to.
+	 * @throws IOException if the record could not be read, or its checksum does not match.
+	 */
+	public void read(long position, Visitor visitor) throws IOException {
+		if (position >= this.durableSize) {
+			this.commit();
+		}
+		RecordLog.visitBody(visitor, position, this.readRecord(position));
+	}
+
+	/**
+	 * Commits all appended records, and closes the file.
+	 *
+	 * @throws IOException if the records could not be written.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			this.commit();
+		} finally {
+			this.channel.close();
+		}
+	}
+
+	/**
+	 * Commits appended records from a background thread, remembering any error so that
+	 * the next call to {@link #append(byte, byte[], byte[])} retries the commit.
+	 */
+	private void backgroundCommit() {
+		try {
+			this.commit();
+		} catch (IOException e) {
+			this.commitError = e;
+		}
+	}
+
+	/**
+	 * Makes sure the pending buffer has room for the given number of additional bytes.
+	 *
+	 * @param bytes the number of bytes that will be added.
+	 */
+	private void ensurePendingCapacity(int bytes) {
+		if (this.pending.remaining() < bytes) {
+			int newSize = Math.max(this.pending.capacity() * 2, this.pending.position() + bytes);
+			ByteBuffer larger = ByteBuffer.allocate(newSize);
+			this.pending.flip();
+			larger.put(this.pending);
+			this.pending = larger;
+		}
+	}
+
+	/**
+	 * Scans the file from the beginning, and finds the end of the last complete record
+	 * whose checksum is correct.
+	 *
+	 * @return the number of bytes at the start of the file that contain valid records.
+	 * @throws IOException if the file could not be read.
+	 */
+	private long findValidSize() throws IOException {
+		long position = 0;
+		long end = this.channel.size();
+		ByteBuffer header = ByteBuffer.allocate(RecordLog.HEADER_SIZE);
+		while (end - position >= RecordLog.HEADER_SIZE) {
+			header.clear();
+			this.readFully(header, position);
+			header.flip();
+			int bodyLength = header.getInt();
+			int checksum = header.getInt();
+			if (bodyLength < 5 || bodyLength > end - position - RecordLog.HEADER_SIZE) {
+				break;
+			}
+			ByteBuffer body = ByteBuffer.allocate(bodyLength);
+			this.readFully(body, position + RecordLog.HEADER_SIZE);
+			CRC32 crc = new CRC32();
+			crc.update(body.array(), 0, bodyLength);
+			if ((int) crc.getValue() != checksum) {
+				break;
+			}
+			position += RecordLog.HEADER_SIZE + bodyLength;
+		}
+		return position;
+	}
+
+	/**
+	 * Reads the body of the record at the given position, and checks it against the
+	 * checksum stored with it.
+	 *
+	 * @param position the position of the record.
+	 * @return the body of the record, ready to be read.
+	 * @throws IOException if the record could not be read, or is damaged.
+	 */
+	private ByteBuffer readRecord(long position) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(RecordLog.HEADER_SIZE);
+		this.readFully(header, position);
+		header.flip();
+		int bodyLength = header.getInt();
+		int checksum = header.getInt();
+		if (bodyLength < 5 || bodyLength > this.durableSize - position - RecordLog.HEADER_SIZE) {
+			throw new IOException("Damaged record at position " + position + " in log file: "
+					+ this.file);
+		}
+		ByteBuffer body = ByteBuffer.allocate(bodyLength);
+		this.readFully(body, position + RecordLog.HEADER_SIZE);
+		CRC32 crc = new CRC32();
+		crc.update(body.array(), 0, bodyLength);
+		if ((int) crc.getValue() != checksum) {
+			throw new IOException("Damaged record at position " + position + " in log file: "
+					+ this.file);
+		}
+		body.flip();
+		return body;
+	}
+
+	/**
+	 * Fills the given buffer with bytes from the file, starting at the given position.
+	 *
+	 * @param buffer the buffer to fill.
+	 * @param position the position in the file to start reading from.
+	 * @throws IOException if the end of the file is reached before the buffer is full.
+	 */
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = this.channel.read(buffer, position);
+			if (read < 0) {
+				throw new IOException("Unexpected end of log file: " + this.file);
+			}
+			position += read;
+		}
+	}
+
+	/**
+	 * Splits a record body into its parts, and passes them to the given visitor.
+	 *
+	 * @param visitor the visitor to pass the record to.
+	 * @param position the position of the record in the log.
+	 * @param body the body of the record.
+	 * @throws IOException if the visitor could not process the record.
+	 */
+	private static void visitBody(Visitor visitor, long position, ByteBuffer body)
+			throws IOException {
+		byte op = body.get();
+		byte[] key = new byte[body.getInt()];
+		body.get(key);
+		byte[] value = new byte[body.remaining()];
+		body.get(value);
+		visitor.visit(position, op, key, value);
+	}
+
+	/**
+	 * Converts the given integer to its four big-endian bytes.
+	 *
+	 * @param value the integer to convert.
+	 * @return the bytes of the integer.
+	 */
+	private static byte[] intBytes(int value) {
+		return new byte[] {(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8),
+				(byte) value};
+	}
+
+	/**
+	 * A {@code Visitor} receives the records that are read from a {@code RecordLog}.
+	 */
+	public interface Visitor {
+
+		/**
+		 * Processes a single record.
+		 *
+		 * @param position the position of the record in the log.
+		 * @param op the operation code of the record.
+		 * @param key the key of the record.
+		 * @param value the value of the record.
+		 * @throws IOException if the record could not be processed.
+		 */
+		void visit(long position, byte op, byte[] key, byte[] value) throws IOException;
+
+	}
+
+}
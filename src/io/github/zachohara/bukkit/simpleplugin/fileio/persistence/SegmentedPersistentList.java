@@ -0,0 +1,1087 @@
+/* Copyright (C) 2017 Zach Ohara
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.zachohara.bukkit.simpleplugin.fileio.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.logging.Level;
+
+import io.github.zachohara.bukkit.simpleplugin.fileio.FileExecutor;
+import io.github.zachohara.bukkit.simpleplugin.plugin.SimplePlugin;
+
+/**
+ * A {@code SegmentedPersistentList} is a {@code PersistentList} that stores its elements
+ * in a series of segment files, and is meant for lists that mostly grow at the end, such
+ * as audit logs and histories. New elements are added to the last segment, the tail; once
+ * the tail holds {@link #getSegmentSize()} elements, it is sealed, and a new tail is
+ * started. A save only writes the segments that have changed, so adding an element never
+ * rewrites the whole list: a save usually writes nothing but the tail.
+ * <p>
+ * Sealed segments are read lazily, the first time one of their elements is used, so
+ * opening a long list only reads the tail. Only a few sealed segments are kept in memory
+ * at once, and the one that was used least recently is dropped to make room for another,
+ * so the memory used by the list grows with recent activity rather than with its length.
+ * An element is found through a small index of the position of the first element of each
+ * segment, so {@link #get(int)} reads at most one segment.
+ * <p>
+ * The file named by the constructor holds the identifier and size of every segment, and
+ * each segment is stored next to it in a file named {@code <filename>.segment-<id>}. If
+ * the file named by the constructor holds the data of an ordinary {@code PersistentList},
+ * that data is split into segments the first time it is loaded. Elements may still be
+ * changed, inserted or removed anywhere in the list; doing so rewrites only the segment
+ * that holds them.
+ * <p>
+ * Because only changed segments are written, change tracking is always on for a
+ * segmented list. An element that is changed in place must be reported with
+ * {@link #markDirty()}, or the change may not be saved.
+ *
+ * @param <E> the element type of the list
+ * @see PersistentList
+ * @author Zach Ohara
+ */
+public class SegmentedPersistentList<E extends Serializable> extends PersistentList<E> {
+
+	/**
+	 * The number of elements in a sealed segment when no number is given to the
+	 * constructor.
+	 */
+	public static final int DEFAULT_SEGMENT_SIZE = 4096;
+
+	/**
+	 * The number of sealed segments that may be kept in memory by default.
+	 */
+	public static final int DEFAULT_LOADED_SEGMENTS = 4;
+
+	/**
+	 * The number of elements in each segment when it is sealed.
+	 */
+	private final int segmentSize;
+
+	/**
+	 * The segments of this list, in order. The last segment is the tail.
+	 */
+	private final List<Segment<E>> segments = new ArrayList<Segment<E>>();
+
+	/**
+	 * Every segment whose elements are in memory, from the least to the most recently
+	 * used.
+	 */
+	private final LinkedHashMap<Segment<E>, Boolean> loadedSegments =
+			new LinkedHashMap<Segment<E>, Boolean>(16, 0.75f, true);
+
+	/**
+	 * The identifiers of the segments that have been removed from this list, whose files
+	 * should be deleted once the main file no longer refers to them.
+	 */
+	private final List<Integer> staleIds = new ArrayList<Integer>();
+
+	/**
+	 * A view of this list, which provides the iterators and the bulk operations.
+	 */
+	private final ListView view = new ListView();
+
+	/**
+	 * The index of the first element of each segment, or {@code null} if the index must
+	 * be rebuilt.
+	 */
+	private int[] starts;
+
+	/**
+	 * The number of elements in this list.
+	 */
+	private int size;
+
+	/**
+	 * The identifier to give to the next new segment.
+	 */
+	private int nextId;
+
+	/**
+	 * The number of sealed segments that may be kept in memory.
+	 */
+	private int maxLoadedSegments;
+
+	/**
+	 * The number of times a segment file has been read.
+	 */
+	private long segmentReads;
+
+	/**
+	 * The number of the most recent change to the list of segments that is not reflected
+	 * by a change to a segment that is still in this list.
+	 */
+	private long manifestChange;
+
+	/**
+	 * The number of the most recent change to the list of segments that has been written
+	 * to the main file.
+	 */
+	private volatile long savedManifestChange;
+
+	/**
+	 * Constructs a new {@code SegmentedPersistentList} with the given plugin as an owner,
+	 * the filename to store the data to, and the number of elements in each segment.
+	 *
+	 * @param owner the plugin that created this object.
+	 * @param filename the filename to store the object as.
+	 * @param segmentSize the number of elements in each segment when it is sealed.
+	 */
+	@SuppressWarnings("unchecked")
+	public SegmentedPersistentList(SimplePlugin owner, String filename, int segmentSize) {
+		super(owner, filename);
+		if (segmentSize < 1) {
+			throw new IllegalArgumentException("Segment size must be positive: " + segmentSize);
+		}
+		this.segmentSize = segmentSize;
+		this.maxLoadedSegments = SegmentedPersistentList.DEFAULT_LOADED_SEGMENTS;
+		super.useChangeTracking(true);
+		this.nextId = this.findUnusedId();
+		Serializable stored = super.getPayload();
+		if (stored instanceof Map<?, ?>) {
+			for (Map.Entry<Integer, Integer> entry : ((Map<Integer, Integer>) stored).entrySet()) {
+				this.segments.add(new Segment<E>(entry.getKey(), entry.getValue()));
+				this.size += entry.getValue();
+				this.nextId = Math.max(this.nextId, entry.getKey() + 1);
+			}
+		} else if (stored instanceof List<?>) {
+			this.splitList((List<E>) stored);
+		}
+		if (this.segments.isEmpty()) {
+			this.startTail();
+		} else {
+			// The tail is always needed, and is the only segment whose file may have grown
+			// after the main file was last written
+			this.dataOf(this.segments.size() - 1);
+		}
+		this.setPayload(new ArrayList<E>());
+	}
+
+	/**
+	 * Constructs a new {@code SegmentedPersistentList} with the given plugin as an owner,
+	 * and the filename to store the data to. Each segment is sealed once it holds
+	 * {@link #DEFAULT_SEGMENT_SIZE} elements.
+	 *
+	 * @param owner the plugin that created this object.
+	 * @param filename the filename to store the object as.
+	 */
+	public SegmentedPersistentList(SimplePlugin owner, String filename) {
+		this(owner, filename, SegmentedPersistentList.DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * Returns the number of elements in each segment when it is sealed.
+	 *
+	 * @return the size of a sealed segment.
+	 */
+	public int getSegmentSize() {
+		return this.segmentSize;
+	}
+
+	/**
+	 * Returns the number of segments that the elements of this list are stored in.
+	 *
+	 * @return the number of segments.
+	 */
+	public int getSegmentCount() {
+		return this.segments.size();
+	}
+
+	/**
+	 * Returns the number of segments whose elements are currently in memory, including
+	 * the tail and any segment with unsaved changes.
+	 *
+	 * @return the number of loaded segments.
+	 */
+	public int getLoadedSegmentCount() {
+		return this.loadedSegments.size();
+	}
+
+	/**
+	 * Returns the number of times a segment file has been read since this list was
+	 * opened.
+	 *
+	 * @return the number of segment reads.
+	 */
+	public long getSegmentReadCount() {
+		return this.segmentReads;
+	}
+
+	/**
+	 * Returns the number of sealed segments that may be kept in memory.
+	 *
+	 * @return the largest number of loaded segments.
+	 * @see #setMaxLoadedSegments(int)
+	 */
+	public int getMaxLoadedSegments() {
+		return this.maxLoadedSegments;
+	}
+
+	/**
+	 * Sets the number of sealed segments that may be kept in memory. Once more segments
+	 * than this have been read, the least recently used segment is dropped, and is read
+	 * again the next time it is needed. Segments with unsaved changes are never dropped.
+	 * By default, {@value #DEFAULT_LOADED_SEGMENTS} segments are kept.
+	 *
+	 * @param maxLoadedSegments the largest number of loaded segments.
+	 */
+	public void setMaxLoadedSegments(int maxLoadedSegments) {
+		if (maxLoadedSegments < 1) {
+			throw new IllegalArgumentException("At least one segment must be kept: "
+					+ maxLoadedSegments);
+		}
+		this.maxLoadedSegments = maxLoadedSegments;
+		this.unloadExcessSegments(null);
+	}
+
+	/**
+	 * Returns a new {@code ArrayList} that holds every element of this list. Every segment
+	 * is read to build the copy. Changes to the returned list are not reflected in this
+	 * list.
+	 *
+	 * @return a copy of the data of this list.
+	 */
+	@Override
+	public Serializable getPayload() {
+		return new ArrayList<E>(this.view);
+	}
+
+	@Override
+	protected boolean requiresSave() {
+		return false;
+	}
+
+	/**
+	 * Returns {@code false}, because the elements of a segmented list are spread over many
+	 * files, which are each saved on their own.
+	 *
+	 * @return {@code false}.
+	 */
+	@Override
+	protected boolean supportsSharedStore() {
+		return false;
+	}
+
+	/**
+	 * Throws an {@code UnsupportedOperationException} if change tracking would be turned
+	 * off, because a segmented list only writes the segments that have changed.
+	 *
+	 * @param useChangeTracking must be {@code true}.
+	 */
+	@Override
+	public void useChangeTracking(boolean useChangeTracking) {
+		if (!useChangeTracking) {
+			throw new UnsupportedOperationException("Segmented lists always track changes");
+		}
+		super.useChangeTracking(true);
+	}
+
+	@Override
+	public boolean isDirty() {
+		if (this.manifestChange > this.savedManifestChange) {
+			return true;
+		}
+		for (Segment<E> segment : this.segments) {
+			if (segment.isDirty()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Records that the payload has changed. Every segment that is in memory is marked as
+	 * dirty, because any of their elements may have been changed; segments that are not in
+	 * memory cannot have been changed since they were last read.
+	 *
+	 * @return a number that identifies this change.
+	 */
+	@Override
+	public long markDirty() {
+		long change = super.markDirty();
+		for (Segment<E> segment : this.loadedSegments.keySet()) {
+			segment.lastChange = change;
+		}
+		return change;
+	}
+
+	/**
+	 * Captures a snapshot of every segment that has changed since it was last saved,
+	 * along with the identifier and size of every segment. Each changed segment is copied,
+	 * so the time taken by this method grows only with the size of the changed segments.
+	 *
+	 * @return a snapshot of the changed segments.
+	 */
+	@Override
+	protected PayloadSnapshot captureSnapshot() {
+		this.unloadExcessSegments(null);
+		List<SegmentCapture<E>> captures = new ArrayList<SegmentCapture<E>>();
+		TreeMap<Integer, Integer> manifest = new TreeMap<Integer, Integer>();
+		for (Segment<E> segment : this.segments) {
+			manifest.put(segment.id, segment.size);
+			if (segment.isDirty()) {
+				captures.add(new SegmentCapture<E>(segment, new ArrayList<E>(segment.data),
+						segment.lastChange));
+			}
+		}
+		List<Integer> stale = new ArrayList<Integer>(this.staleIds);
+		this.staleIds.clear();
+		return new SegmentSnapshot(captures, manifest, stale, this.manifestChange);
+	}
+
+	/**
+	 * Writes the given snapshot. If the snapshot was captured by this list, every segment
+	 * in it is written in parallel before the main file is written, and the files of
+	 * removed segments are deleted afterwards. This method may be called from any thread.
+	 *
+	 * @param snapshot the snapshot to write.
+	 * @throws IOException if any segment, or the main file, could not be written.
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	protected void writeSnapshot(PayloadSnapshot snapshot) throws IOException {
+		if (!(snapshot instanceof SegmentedPersistentList<?>.SegmentSnapshot)) {
+			super.writeSnapshot(snapshot);
+			return;
+		}
+		SegmentSnapshot segmentSnapshot = (SegmentSnapshot) snapshot;
+		segmentSnapshot.writeSegments();
+		super.writeSnapshot(segmentSnapshot);
+		this.markManifestSaved(segmentSnapshot.manifestChange);
+		for (int id : segmentSnapshot.staleIds) {
+			this.getSegmentFile(id).delete();
+		}
+	}
+
+	@Override
+	protected void attemptClose() throws IOException {
+		this.setSnapshotInterval(0);
+		this.awaitBackgroundSave();
+		if (this.isDirty()) {
+			this.writeSnapshot(this.captureSnapshot());
+		}
+		super.attemptClose();
+	}
+
+	/**
+	 * Returns the number of bytes that the main file and every segment file take up on
+	 * the disk.
+	 *
+	 * @return the size of every file of this list, in bytes.
+	 */
+	@Override
+	public long getStoredBytes() {
+		long bytes = super.getStoredBytes();
+		for (Segment<E> segment : this.segments) {
+			bytes += this.getSegmentFile(segment.id).length();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Returns the segments whose elements are in memory first, so that they are measured
+	 * in full, followed by every segment.
+	 *
+	 * @return the objects that hold the data in memory.
+	 */
+	@Override
+	Object[] getHeapRoots() {
+		return new Object[] {this.loadedSegments, this.segments, this.starts};
+	}
+
+	/**
+	 * Records that every change to the list of segments up to and including the given
+	 * change has been written to the main file. This may be called from any thread.
+	 *
+	 * @param change the number of the most recent change included in the save.
+	 */
+	private synchronized void markManifestSaved(long change) {
+		if (change > this.savedManifestChange) {
+			this.savedManifestChange = change;
+		}
+	}
+
+	/**
+	 * Records that the list of segments has changed in a way that no segment that is
+	 * still in this list records, such as the removal of a segment.
+	 */
+	private void recordManifestChange() {
+		this.manifestChange = super.markDirty();
+	}
+
+	/**
+	 * Splits the data of an ordinary {@code PersistentList} into segments, which are all
+	 * written the next time this list is saved.
+	 *
+	 * @param data the elements of the list.
+	 */
+	private void splitList(List<E> data) {
+		for (int from = 0; from < data.size(); from += this.segmentSize) {
+			int to = Math.min(data.size(), from + this.segmentSize);
+			Segment<E> segment = new Segment<E>(this.nextId++, to - from);
+			segment.data = new ArrayList<E>(data.subList(from, to));
+			segment.lastChange = super.markDirty();
+			this.segments.add(segment);
+			this.loadedSegments.put(segment, Boolean.TRUE);
+			this.size += segment.size;
+		}
+		this.recordManifestChange();
+	}
+
+	/**
+	 * Finds an identifier that is larger than that of every segment file next to the main
+	 * file, so that a new segment never overwrites a file that the main file might still
+	 * refer to, even if the main file could not be read.
+	 *
+	 * @return the smallest identifier that is not used by any segment file.
+	 */
+	private int findUnusedId() {
+		String prefix = this.getFile().getName() + ".segment-";
+		File[] files = this.getFile().getParentFile().listFiles();
+		int unused = 0;
+		if (files != null) {
+			for (File file : files) {
+				if (file.getName().startsWith(prefix)) {
+					try {
+						int id = Integer.parseInt(file.getName().substring(prefix.length()));
+						unused = Math.max(unused, id + 1);
+					} catch (NumberFormatException e) {
+						// Not a segment file, such as a temporary file
+					}
+				}
+			}
+		}
+		return unused;
+	}
+
+	/**
+	 * Returns the file that stores the segment with the given identifier.
+	 *
+	 * @param id the identifier of the segment.
+	 * @return the file for the segment.
+	 */
+	private File getSegmentFile(int id) {
+		return new File(this.getFile().getParentFile(), this.getFile().getName() + ".segment-" + id);
+	}
+
+	/**
+	 * Adds a new, empty tail to the end of this list.
+	 *
+	 * @return the new tail.
+	 */
+	private Segment<E> startTail() {
+		Segment<E> tail = new Segment<E>(this.nextId++, 0);
+		tail.data = new ArrayList<E>();
+		tail.lastChange = super.markDirty();
+		this.segments.add(tail);
+		this.loadedSegments.put(tail, Boolean.TRUE);
+		this.starts = null;
+		return tail;
+	}
+
+	/**
+	 * Returns the elements of the segment at the given position, reading its file if the
+	 * segment is not in memory, and dropping the least recently used segments if too many
+	 * are now in memory.
+	 *
+	 * @param position the position of the segment in this list.
+	 * @return the elements of the segment.
+	 * @throws IllegalStateException if the file of the segment could not be read.
+	 */
+	@SuppressWarnings("unchecked")
+	private ArrayList<E> dataOf(int position) {
+		Segment<E> segment = this.segments.get(position);
+		if (segment.data == null) {
+			File file = this.getSegmentFile(segment.id);
+			Object read;
+			try {
+				read = PersistentObject.readFile(file);
+				this.recordRead(file.length());
+			} catch (IOException e) {
+				throw new IllegalStateException("Segment could not be read: " + file, e);
+			}
+			if (!(read instanceof List<?>)) {
+				throw new IllegalStateException("Segment was not of the correct type: " + file);
+			}
+			this.segmentReads++;
+			segment.data = (read instanceof ArrayList<?>) ? (ArrayList<E>) read
+					: new ArrayList<E>((List<E>) read);
+			if (segment.data.size() != segment.size) {
+				this.getOwner().getLogger().log(Level.WARNING, "Segment " + file + " holds "
+						+ segment.data.size() + " elements instead of " + segment.size);
+				this.size += segment.data.size() - segment.size;
+				segment.size = segment.data.size();
+				this.starts = null;
+				this.recordManifestChange();
+			}
+		}
+		this.loadedSegments.put(segment, Boolean.TRUE);
+		this.unloadExcessSegments(segment);
+		return segment.data;
+	}
+
+	/**
+	 * Drops the least recently used sealed segments from memory until no more than the
+	 * allowed number remain. The tail and segments with unsaved changes are kept.
+	 *
+	 * @param keep a segment that must be kept in memory, or {@code null}.
+	 */
+	private void unloadExcessSegments(Segment<E> keep) {
+		Segment<E> tail = this.segments.get(this.segments.size() - 1);
+		int excess = this.loadedSegments.size() - this.maxLoadedSegments - 1;
+		Iterator<Segment<E>> loaded = this.loadedSegments.keySet().iterator();
+		while (excess > 0 && loaded.hasNext()) {
+			Segment<E> segment = loaded.next();
+			if (segment != tail && segment != keep && !segment.isDirty()) {
+				segment.data = null;
+				loaded.remove();
+				excess--;
+			}
+		}
+	}
+
+	/**
+	 * Returns the index of the first element of each segment, rebuilding the index if the
+	 * size of any segment but the tail has changed.
+	 *
+	 * @return the index of the first element of each segment.
+	 */
+	private int[] starts() {
+		if (this.starts == null) {
+			this.starts = new int[this.segments.size()];
+			int start = 0;
+			for (int i = 0; i < this.starts.length; i++) {
+				this.starts[i] = start;
+				start += this.segments.get(i).size;
+			}
+		}
+		return this.starts;
+	}
+
+	/**
+	 * Returns the position of the segment that holds the element at the given index.
+	 *
+	 * @param index the index of the element, which must be in this list.
+	 * @return the position of the segment that holds the element.
+	 */
+	private int segmentFor(int index) {
+		int[] starts = this.starts();
+		// Finds the last segment that starts at or before the index, which always holds it
+		int low = 0;
+		int high = starts.length - 1;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (starts[middle] <= index) {
+				low = middle;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Throws an exception if the given index is not the index of an element.
+	 *
+	 * @param index the index to check.
+	 * @throws IndexOutOfBoundsException if the index is not in this list.
+	 */
+	private void checkIndex(int index) {
+		if (index < 0 || index >= this.size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + this.size);
+		}
+	}
+
+	/**
+	 * Records that the given segment has changed.
+	 *
+	 * @param segment the segment that was changed.
+	 */
+	private void recordChange(Segment<E> segment) {
+		segment.lastChange = super.markDirty();
+	}
+
+	/**
+	 * Adds the given element to the end of this list, sealing the tail first if it is
+	 * full.
+	 *
+	 * @param element the element to add.
+	 */
+	private void append(E element) {
+		Segment<E> tail = this.segments.get(this.segments.size() - 1);
+		if (tail.size >= this.segmentSize) {
+			tail = this.startTail();
+		}
+		tail.data.add(element);
+		tail.size++;
+		this.size++;
+		this.recordChange(tail);
+	}
+
+	/**
+	 * Inserts the given element at the given index. The element is added to the segment
+	 * that holds the element currently at that index, which may grow beyond the size of a
+	 * sealed segment.
+	 *
+	 * @param index the index to insert the element at.
+	 * @param element the element to insert.
+	 */
+	private void insert(int index, E element) {
+		if (index == this.size) {
+			this.append(element);
+			return;
+		}
+		this.checkIndex(index);
+		int position = this.segmentFor(index);
+		Segment<E> segment = this.segments.get(position);
+		ArrayList<E> data = this.dataOf(position);
+		data.add(index - this.starts()[position], element);
+		segment.size++;
+		this.size++;
+		this.starts = null;
+		this.recordChange(segment);
+	}
+
+	/**
+	 * Removes the element at the given index. A sealed segment that becomes empty is
+	 * removed from this list, and its file is deleted after the next save.
+	 *
+	 * @param index the index of the element to remove.
+	 * @return the element that was removed.
+	 */
+	private E delete(int index) {
+		this.checkIndex(index);
+		int position = this.segmentFor(index);
+		Segment<E> segment = this.segments.get(position);
+		ArrayList<E> data = this.dataOf(position);
+		E removed = data.remove(index - this.starts()[position]);
+		segment.size--;
+		this.size--;
+		this.starts = null;
+		if (segment.size == 0 && position < this.segments.size() - 1) {
+			this.segments.remove(position);
+			this.loadedSegments.remove(segment);
+			this.staleIds.add(segment.id);
+			this.recordManifestChange();
+		} else {
+			this.recordChange(segment);
+		}
+		return removed;
+	}
+
+	// @formatter:off
+
+	/*
+	 * +-------------------------------------------------------------------------------------+
+	 * | All methods below this point are delegate methods extending the segments to this    |
+	 * +-------------------------------------------------------------------------------------+
+	 */
+
+	// @formatter:on
+
+	@Override
+	public boolean add(E arg0) {
+		return this.view.add(arg0);
+	}
+
+	@Override
+	public void add(int arg0, E arg1) {
+		this.view.add(arg0, arg1);
+	}
+
+	@Override
+	public boolean addAll(Collection<? extends E> arg0) {
+		return this.view.addAll(arg0);
+	}
+
+	@Override
+	public boolean addAll(int arg0, Collection<? extends E> arg1) {
+		return this.view.addAll(arg0, arg1);
+	}
+
+	@Override
+	public void clear() {
+		this.view.clear();
+	}
+
+	@Override
+	public boolean contains(Object arg0) {
+		return this.view.contains(arg0);
+	}
+
+	@Override
+	public boolean containsAll(Collection<?> arg0) {
+		return this.view.containsAll(arg0);
+	}
+
+	@Override
+	public E get(int arg0) {
+		this.checkIndex(arg0);
+		int position = this.segmentFor(arg0);
+		ArrayList<E> data = this.dataOf(position);
+		return data.get(arg0 - this.starts()[position]);
+	}
+
+	@Override
+	public int indexOf(Object arg0) {
+		return this.view.indexOf(arg0);
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	@Override
+	public Iterator<E> iterator() {
+		return this.view.iterator();
+	}
+
+	@Override
+	public int lastIndexOf(Object arg0) {
+		return this.view.lastIndexOf(arg0);
+	}
+
+	@Override
+	public ListIterator<E> listIterator() {
+		return this.view.listIterator();
+	}
+
+	@Override
+	public ListIterator<E> listIterator(int arg0) {
+		return this.view.listIterator(arg0);
+	}
+
+	@Override
+	public boolean remove(Object arg0) {
+		return this.view.remove(arg0);
+	}
+
+	@Override
+	public E remove(int arg0) {
+		return this.view.remove(arg0);
+	}
+
+	@Override
+	public boolean removeAll(Collection<?> arg0) {
+		return this.view.removeAll(arg0);
+	}
+
+	@Override
+	public boolean retainAll(Collection<?> arg0) {
+		return this.view.retainAll(arg0);
+	}
+
+	@Override
+	public E set(int arg0, E arg1) {
+		return this.view.set(arg0, arg1);
+	}
+
+	@Override
+	public int size() {
+		return this.size;
+	}
+
+	@Override
+	public List<E> subList(int arg0, int arg1) {
+		return this.view.subList(arg0, arg1);
+	}
+
+	@Override
+	public Object[] toArray() {
+		return this.view.toArray();
+	}
+
+	@Override
+	public <T> T[] toArray(T[] arg0) {
+		return this.view.toArray(arg0);
+	}
+
+	// @formatter:off
+
+	/*
+	 * +-------------------------------------------------------------------------------------+
+	 * | The classes below hold the segments, and provide a view of this list across them    |
+	 * +-------------------------------------------------------------------------------------+
+	 */
+
+	// @formatter:on
+
+	/**
+	 * A single segment of the list, with its own dirty state.
+	 *
+	 * @param <E> the element type of the list.
+	 */
+	private static class Segment<E> {
+
+		/**
+		 * The identifier of this segment, which names its file.
+		 */
+		private final int id;
+
+		/**
+		 * The number of elements in this segment, which is known even if the elements are
+		 * not in memory.
+		 */
+		private int size;
+
+		/**
+		 * The elements in this segment, or {@code null} if they are not in memory.
+		 */
+		private ArrayList<E> data;
+
+		/**
+		 * The number of the most recent change made to this segment.
+		 */
+		private long lastChange;
+
+		/**
+		 * The number of the most recent change that has been written to the disk.
+		 */
+		private volatile long savedChange;
+
+		/**
+		 * Constructs a new {@code Segment} whose elements are not in memory.
+		 *
+		 * @param id the identifier of the segment.
+		 * @param size the number of elements in the segment.
+		 */
+		public Segment(int id, int size) {
+			this.id = id;
+			this.size = size;
+		}
+
+		/**
+		 * Determines if this segment has changes that have not been written to the disk.
+		 *
+		 * @return {@code true} if this segment is dirty; {@code false} otherwise.
+		 */
+		public boolean isDirty() {
+			return this.lastChange > this.savedChange;
+		}
+
+		/**
+		 * Records that every change up to and including the given change has been written
+		 * to the disk. This may be called from any thread.
+		 *
+		 * @param change the number of the most recent change included in the save.
+		 */
+		public synchronized void markSaved(long change) {
+			if (change > this.savedChange) {
+				this.savedChange = change;
+			}
+		}
+
+	}
+
+	/**
+	 * A copy of a single changed segment, taken when a snapshot is captured.
+	 *
+	 * @param <E> the element type of the list.
+	 */
+	private static class SegmentCapture<E> {
+
+		/**
+		 * The segment that was copied.
+		 */
+		private final Segment<E> segment;
+
+		/**
+		 * The copy of the elements in the segment.
+		 */
+		private final ArrayList<E> data;
+
+		/**
+		 * The number of the most recent change included in the copy.
+		 */
+		private final long change;
+
+		/**
+		 * Constructs a new {@code SegmentCapture}.
+		 *
+		 * @param segment the segment that was copied.
+		 * @param data the copy of the elements in the segment.
+		 * @param change the number of the most recent change included in the copy.
+		 */
+		public SegmentCapture(Segment<E> segment, ArrayList<E> data, long change) {
+			this.segment = segment;
+			this.data = data;
+			this.change = change;
+		}
+
+	}
+
+	/**
+	 * A snapshot of the changed segments of this list. Writing the snapshot itself only
+	 * writes the identifier and size of every segment to the main file; the segments are
+	 * written separately by {@link #writeSegments()}.
+	 */
+	private class SegmentSnapshot extends PayloadSnapshot {
+
+		/**
+		 * The copies of the changed segments.
+		 */
+		private final List<SegmentCapture<E>> captures;
+
+		/**
+		 * The size of every segment, by identifier.
+		 */
+		private final TreeMap<Integer, Integer> manifest;
+
+		/**
+		 * The identifiers of the removed segments whose files should be deleted after this
+		 * snapshot is written.
+		 */
+		private final List<Integer> staleIds;
+
+		/**
+		 * The number of the most recent change to the list of segments included in this
+		 * snapshot.
+		 */
+		private final long manifestChange;
+
+		/**
+		 * Constructs a new {@code SegmentSnapshot}.
+		 *
+		 * @param captures the copies of the changed segments.
+		 * @param manifest the size of every segment, by identifier.
+		 * @param staleIds the identifiers of the removed segments.
+		 * @param manifestChange the number of the most recent change to the list of
+		 * segments included in the snapshot.
+		 */
+		public SegmentSnapshot(List<SegmentCapture<E>> captures,
+				TreeMap<Integer, Integer> manifest, List<Integer> staleIds,
+				long manifestChange) {
+			this.captures = captures;
+			this.manifest = manifest;
+			this.staleIds = staleIds;
+			this.manifestChange = manifestChange;
+		}
+
+		/**
+		 * Writes every changed segment to its file in parallel, and marks each segment as
+		 * saved once it has been written.
+		 *
+		 * @throws IOException if any segment could not be written.
+		 */
+		public void writeSegments() throws IOException {
+			final PayloadCodec codec = SegmentedPersistentList.this.getCodec();
+			final PayloadCompression compression = SegmentedPersistentList.this.getCompression();
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(this.captures.size());
+			for (final SegmentCapture<E> capture : this.captures) {
+				tasks.add(new Callable<Void>() {
+
+					@Override
+					public Void call() throws IOException {
+						SegmentedPersistentList.this.recordWrite(PersistentObject.writeFile(
+								SegmentedPersistentList.this.getSegmentFile(capture.segment.id),
+								PayloadSnapshot.of(capture.data, codec), compression));
+						capture.segment.markSaved(capture.change);
+						return null;
+					}
+
+				});
+			}
+			FileExecutor.invokeAll(tasks);
+		}
+
+		@Override
+		public void writeTo(OutputStream out) throws IOException {
+			PayloadFormat.write(out, SegmentedPersistentList.this.getCodec(), this.manifest);
+		}
+
+	}
+
+	/**
+	 * A view of this list, which provides the iterators, the sublists and the bulk
+	 * operations on top of the operations on a single element, and records changes made
+	 * through any of them.
+	 */
+	private class ListView extends AbstractList<E> {
+
+		@Override
+		public E get(int index) {
+			return SegmentedPersistentList.this.get(index);
+		}
+
+		@Override
+		public int size() {
+			return SegmentedPersistentList.this.size;
+		}
+
+		@Override
+		public E set(int index, E element) {
+			SegmentedPersistentList<E> list = SegmentedPersistentList.this;
+			list.checkIndex(index);
+			int position = list.segmentFor(index);
+			ArrayList<E> data = list.dataOf(position);
+			E previous = data.set(index - list.starts()[position], element);
+			list.recordChange(list.segments.get(position));
+			return previous;
+		}
+
+		@Override
+		public boolean add(E element) {
+			SegmentedPersistentList.this.append(element);
+			this.modCount++;
+			return true;
+		}
+
+		@Override
+		public void add(int index, E element) {
+			SegmentedPersistentList.this.insert(index, element);
+			this.modCount++;
+		}
+
+		@Override
+		public E remove(int index) {
+			E removed = SegmentedPersistentList.this.delete(index);
+			this.modCount++;
+			return removed;
+		}
+
+		@Override
+		public void clear() {
+			SegmentedPersistentList<E> list = SegmentedPersistentList.this;
+			if (list.size == 0) {
+				return;
+			}
+			for (Segment<E> segment : list.segments) {
+				list.staleIds.add(segment.id);
+			}
+			list.segments.clear();
+			list.loadedSegments.clear();
+			list.size = 0;
+			list.recordManifestChange();
+			list.startTail();
+			this.modCount++;
+		}
+
+	}
+
+}
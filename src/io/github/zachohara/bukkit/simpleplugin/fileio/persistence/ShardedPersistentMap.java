@@ -0,0 +1,1190 @@
+/* Copyright (C) 2017 Zach Ohara
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.zachohara.bukkit.simpleplugin.fileio.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.function.Function;
+import java.util.logging.Level;
+
+import io.github.zachohara.bukkit.simpleplugin.fileio.FileExecutor;
+import io.github.zachohara.bukkit.simpleplugin.fileio.FileUtil;
+import io.github.zachohara.bukkit.simpleplugin.plugin.SimplePlugin;
+
+/**
+ * A {@code ShardedPersistentMap} is a persistent map that partitions its keys by hash into
+ * a fixed number of shards, each stored in its own file. The shards are loaded and saved
+ * in parallel, and are read on a background thread when the plugin loads its files
+ * asynchronously. Each shard keeps its own dirty state, so a save only copies and rewrites
+ * the shards that have changed.
+ * <p>
+ * Because only changed shards are written, change tracking is always on for a sharded
+ * map. A value that is changed in place must be reported with
+ * {@link #markDirty(Serializable)}, or the change may not be saved.
+ * <p>
+ * The file named by the constructor holds only the number of shards, and each shard is
+ * stored next to it in a file named {@code <filename>.shard-<index>-of-<count>}. If the
+ * file named by the constructor holds the data of an ordinary {@code PersistentMap}, that
+ * data is split into shards the first time it is loaded. If the number of shards changes,
+ * the data is split again, and the old shard files are deleted once the new ones have
+ * been written.
+ * <p>
+ * A shard file that cannot be read is moved aside, to a file named
+ * {@code <shard file>.unreadable-<time>}, before the shard is written again. If it cannot
+ * be moved, the shard is never written, so the file is not replaced.
+ * <p>
+ * A sharded map shares the {@code TrackedMap} interface with {@code PersistentMap}, so code
+ * that only reads and writes entries works with either. The features of a
+ * {@code PersistentMap} that are built on its single file, such as journaling, disk
+ * storage, concurrent access, key filters and snapshot views, are not offered by this
+ * class.
+ *
+ * @param <K> the key type of the map
+ * @param <V> the value type of the map
+ * @see PersistentMap
+ * @author Zach Ohara
+ */
+public class ShardedPersistentMap<K extends Serializable, V extends Serializable> extends PersistentObject implements TrackedMap<K, V> {
+
+	/**
+	 * The number of shards used when no number is given to the constructor.
+	 */
+	public static final int DEFAULT_SHARD_COUNT = 16;
+
+	/**
+	 * The shards of this map.
+	 */
+	private final List<Segment<K, V>> segments;
+
+	/**
+	 * The keys that have been changed or removed, each mapped to the number of its most
+	 * recent change.
+	 */
+	private final Map<K, Long> dirtyKeys = new HashMap<K, Long>();
+
+	/**
+	 * The secondary indexes on the values of this map.
+	 */
+	private final List<MapIndex<K, V, ?>> indexes = new ArrayList<MapIndex<K, V, ?>>();
+
+	/**
+	 * A view of this map, which provides the key set and the value collection.
+	 */
+	private final MapView view = new MapView();
+
+	/**
+	 * The contents of the shard files named by the main file, as they were read along
+	 * with it, or {@code null} if they have been added to the shards, or the main file did
+	 * not name any. This is set while the file is being read, so it has no initializer.
+	 */
+	private List<ShardContents<K, V>> storedShards;
+
+	/**
+	 * {@code true} if the file was loaded before the shards were created, so the contents
+	 * that were read must be added to the shards by the constructor. This is set while the
+	 * file is being loaded, so it has no initializer.
+	 */
+	private boolean loadDeferred;
+
+	/**
+	 * The number of shards in an old set of shard files that should be deleted once the
+	 * current shards have been written, or {@code 0} if there are none.
+	 */
+	private volatile int staleShardCount;
+
+	/**
+	 * {@code true} if the main file does not yet hold the current number of shards.
+	 */
+	private volatile boolean manifestDirty;
+
+	/**
+	 * Constructs a new {@code ShardedPersistentMap} with the given plugin as an owner, the
+	 * filename to store the data to, and the number of shards to split the data into.
+	 *
+	 * @param owner the plugin that created this object.
+	 * @param filename the filename to store the object as.
+	 * @param shardCount the number of shards to split the data into.
+	 */
+	public ShardedPersistentMap(SimplePlugin owner, String filename, int shardCount) {
+		super(owner, filename, new HashMap<K, V>());
+		if (shardCount < 1) {
+			throw new IllegalArgumentException("Shard count must be positive: " + shardCount);
+		}
+		this.segments = new ArrayList<Segment<K, V>>(shardCount);
+		for (int i = 0; i < shardCount; i++) {
+			this.segments.add(new Segment<K, V>());
+		}
+		super.useChangeTracking(true);
+		if (this.loadDeferred) {
+			this.loadDeferred = false;
+			this.addStoredShards();
+		}
+	}
+
+	/**
+	 * Constructs a new {@code ShardedPersistentMap} with the given plugin as an owner, and
+	 * the filename to store the data to. The data is split into
+	 * {@link #DEFAULT_SHARD_COUNT} shards.
+	 *
+	 * @param owner the plugin that created this object.
+	 * @param filename the filename to store the object as.
+	 */
+	public ShardedPersistentMap(SimplePlugin owner, String filename) {
+		this(owner, filename, ShardedPersistentMap.DEFAULT_SHARD_COUNT);
+	}
+
+	/**
+	 * Returns the number of shards that the data of this map is split into.
+	 *
+	 * @return the number of shards.
+	 */
+	public int getShardCount() {
+		return this.segments.size();
+	}
+
+	/**
+	 * Returns a new {@code HashMap} that holds every entry of this map. Changes to the
+	 * returned map are not reflected in this map.
+	 *
+	 * @return a copy of the data of this map.
+	 */
+	@Override
+	public Serializable getPayload() {
+		HashMap<K, V> copy = new HashMap<K, V>(this.size());
+		for (Segment<K, V> segment : this.segments()) {
+			copy.putAll(segment.data);
+		}
+		return copy;
+	}
+
+	/**
+	 * Throws an {@code UnsupportedOperationException} if change tracking would be turned
+	 * off, because a sharded map only writes the shards that have changed.
+	 *
+	 * @param useChangeTracking must be {@code true}.
+	 */
+	@Override
+	public void useChangeTracking(boolean useChangeTracking) {
+		if (!useChangeTracking) {
+			throw new UnsupportedOperationException("Sharded maps always track changes");
+		}
+		super.useChangeTracking(true);
+	}
+
+	@Override
+	protected boolean requiresSave() {
+		return false;
+	}
+
+	/**
+	 * Returns {@code false}, because the entries of a sharded map are spread over many
+	 * files, which are each saved on their own.
+	 *
+	 * @return {@code false}.
+	 */
+	@Override
+	protected boolean supportsSharedStore() {
+		return false;
+	}
+
+	/**
+	 * Reads the main file, and then every shard file that it names, in parallel. This may
+	 * run on a background thread before the constructor has finished, so the shards that
+	 * were read are only kept until {@link #attemptLoad()} adds them to this map.
+	 *
+	 * @return the contents of the main file.
+	 * @throws IOException if the main file could not be read.
+	 */
+	@Override
+	protected Object readContents() throws IOException {
+		Object manifest = super.readContents();
+		if (manifest instanceof Integer) {
+			this.storedShards = this.readShards((Integer) manifest);
+		}
+		return manifest;
+	}
+
+	@Override
+	protected void attemptLoad() throws IOException {
+		try {
+			super.attemptLoad();
+		} finally {
+			if (this.segments == null) {
+				// Loaded during construction, before the shards exist
+				this.loadDeferred = true;
+			} else {
+				this.addStoredShards();
+			}
+		}
+	}
+
+	@Override
+	public boolean isDirty() {
+		if (this.manifestDirty) {
+			return true;
+		}
+		for (Segment<K, V> segment : this.segments()) {
+			if (segment.isDirty()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Records that the payload has changed. Every shard is marked as dirty, so the whole
+	 * map will be written the next time it is saved. Use {@link #markDirty(Serializable)}
+	 * instead to only mark the shard that holds a single key.
+	 *
+	 * @return a number that identifies this change.
+	 */
+	@Override
+	public long markDirty() {
+		long change = super.markDirty();
+		for (Segment<K, V> segment : this.segments()) {
+			segment.lastChange = change;
+		}
+		return change;
+	}
+
+	@Override
+	public void markDirty(K key) {
+		this.recordChange(key);
+	}
+
+	@Override
+	public Set<K> getDirtyKeys() {
+		this.pruneDirtyKeys();
+		return new HashSet<K>(this.dirtyKeys.keySet());
+	}
+
+	@Override
+	public <T> MapIndex<K, V, T> addIndex(String name, Function<? super V, ? extends T> extractor) {
+		return this.addIndex(new MapIndex<K, V, T>(name, extractor, null));
+	}
+
+	@Override
+	public <T extends Comparable<? super T>> MapIndex<K, V, T> addSortedIndex(String name,
+			Function<? super V, ? extends T> extractor) {
+		return this.addIndex(new MapIndex<K, V, T>(name, extractor, Comparator.<T>naturalOrder()));
+	}
+
+	@Override
+	public <T> MapIndex<K, V, T> addSortedIndex(String name,
+			Function<? super V, ? extends T> extractor, Comparator<? super T> comparator) {
+		return this.addIndex(new MapIndex<K, V, T>(name, extractor, comparator));
+	}
+
+	@Override
+	public MapIndex<K, V, ?> getIndex(String name) {
+		for (MapIndex<K, V, ?> index : this.indexes) {
+			if (index.getName().equals(name)) {
+				return index;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public boolean removeIndex(String name) {
+		MapIndex<K, V, ?> index = this.getIndex(name);
+		return index != null && this.indexes.remove(index);
+	}
+
+	/**
+	 * Builds the given index from the contents of this map, and starts keeping it up to
+	 * date.
+	 *
+	 * @param <T> the type of the indexed results.
+	 * @param index the index to add.
+	 * @return the given index.
+	 */
+	private <T> MapIndex<K, V, T> addIndex(MapIndex<K, V, T> index) {
+		if (this.getIndex(index.getName()) != null) {
+			throw new IllegalArgumentException("An index named " + index.getName()
+					+ " already exists");
+		}
+		index.rebuild(this);
+		this.indexes.add(index);
+		return index;
+	}
+
+	/**
+	 * Captures a snapshot of every shard that has changed since it was last saved. Each
+	 * captured shard is copied, so the time taken by this method grows only with the size
+	 * of the changed shards, not with the size of the whole map.
+	 *
+	 * @return a snapshot of the changed shards.
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	protected PayloadSnapshot captureSnapshot() {
+		this.pruneDirtyKeys();
+		List<SegmentCapture<K, V>> captures = new ArrayList<SegmentCapture<K, V>>();
+		for (int i = 0; i < this.segments.size(); i++) {
+			Segment<K, V> segment = this.segments.get(i);
+			if (segment.isDirty()) {
+				captures.add(new SegmentCapture<K, V>(segment, i,
+						(HashMap<K, V>) segment.data.clone(), segment.lastChange));
+			}
+		}
+		return new ShardSnapshot(captures, this.staleShardCount);
+	}
+
+	/**
+	 * Writes the given snapshot. If the snapshot was captured by this map, every shard in
+	 * it is written in parallel before the main file is written. This method may be called
+	 * from any thread.
+	 *
+	 * @param snapshot the snapshot to write.
+	 * @throws IOException if any shard, or the main file, could not be written.
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	protected void writeSnapshot(PayloadSnapshot snapshot) throws IOException {
+		if (!(snapshot instanceof ShardedPersistentMap<?, ?>.ShardSnapshot)) {
+			super.writeSnapshot(snapshot);
+			return;
+		}
+		ShardSnapshot shards = (ShardSnapshot) snapshot;
+		shards.writeShards();
+		super.writeSnapshot(shards);
+		this.manifestDirty = false;
+		if (shards.staleCount > 0) {
+			for (int i = 0; i < shards.staleCount; i++) {
+				this.getShardFile(i, shards.staleCount).delete();
+			}
+			if (this.staleShardCount == shards.staleCount) {
+				this.staleShardCount = 0;
+			}
+		}
+	}
+
+	@Override
+	protected void attemptClose() throws IOException {
+		this.setSnapshotInterval(0);
+		this.awaitBackgroundSave();
+		if (this.isDirty()) {
+			this.writeSnapshot(this.captureSnapshot());
+		}
+		super.attemptClose();
+	}
+
+	/**
+	 * Returns the number of entries in this map.
+	 *
+	 * @return the number of entries.
+	 * @see #size()
+	 */
+	@Override
+	public int getEntryCount() {
+		return this.size();
+	}
+
+	/**
+	 * Returns the number of bytes that the main file and every shard file take up on the
+	 * disk.
+	 *
+	 * @return the size of every file of this map, in bytes.
+	 */
+	@Override
+	public long getStoredBytes() {
+		long bytes = super.getStoredBytes();
+		for (int i = 0; i < this.segments.size(); i++) {
+			bytes += this.getShardFile(i, this.segments.size()).length();
+		}
+		return bytes;
+	}
+
+	@Override
+	Object[] getHeapRoots() {
+		return new Object[] {this.segments, this.dirtyKeys, this.indexes};
+	}
+
+	/**
+	 * Returns the shards of this map. If the file is still being read in the background,
+	 * this waits for it first.
+	 *
+	 * @return the shards of this map.
+	 */
+	private List<Segment<K, V>> segments() {
+		this.ensureLoaded();
+		return this.segments;
+	}
+
+	/**
+	 * Adds the contents of the shard files that were read to the shards of this map, using
+	 * the contents of the main file to decide how they are split. If the main file did not
+	 * name a set of shard files, the shard files for the current number of shards are read
+	 * now.
+	 */
+	@SuppressWarnings("unchecked")
+	private void addStoredShards() {
+		Serializable manifest = super.getPayload();
+		List<ShardContents<K, V>> loaded = this.storedShards;
+		this.storedShards = null;
+		this.setPayload(new HashMap<K, V>());
+		int storedCount = this.segments.size();
+		if (manifest instanceof Integer && loaded != null) {
+			storedCount = (Integer) manifest;
+		} else {
+			this.manifestDirty = true;
+			loaded = this.readShards(storedCount);
+		}
+		boolean complete = true;
+		for (int i = 0; i < storedCount; i++) {
+			ShardContents<K, V> contents = loaded.get(i);
+			if (contents == null) {
+				complete = false;
+				if (storedCount == this.segments.size()) {
+					if (this.getShardFile(i, storedCount).length() > 0) {
+						this.segments.get(i).keepFile = true;
+						this.getOwner().getLogger().warning("Changes to shard " + i
+								+ " will not be saved, so that its unreadable file is kept");
+					} else {
+						this.segments.get(i).loadFailed = true;
+					}
+				}
+			} else if (storedCount == this.segments.size()) {
+				this.segments.get(i).data = contents.data;
+				this.putAllLoaded(contents.misplaced);
+			} else {
+				this.putAllLoaded(contents.data);
+				this.putAllLoaded(contents.misplaced);
+			}
+		}
+		if (storedCount != this.segments.size()) {
+			this.manifestDirty = true;
+			this.markDirty();
+			if (complete) {
+				this.staleShardCount = storedCount;
+			}
+		}
+		if (manifest instanceof Map<?, ?>) {
+			this.putAllLoaded((Map<K, V>) manifest);
+		}
+	}
+
+	/**
+	 * Reads every shard file in the given set of shard files in parallel. This may be
+	 * called from any thread, before the constructor has finished.
+	 *
+	 * @param count the number of shards in the set of shard files.
+	 * @return the contents of each shard file, in order, with {@code null} in place of
+	 * each file that could not be read.
+	 */
+	private List<ShardContents<K, V>> readShards(int count) {
+		List<Callable<ShardContents<K, V>>> tasks = new ArrayList<Callable<ShardContents<K, V>>>();
+		for (int i = 0; i < count; i++) {
+			tasks.add(this.newLoadTask(i, count));
+		}
+		try {
+			return FileExecutor.invokeAll(tasks);
+		} catch (IOException e) {
+			// No shard can be trusted, so none of them is written
+			this.getOwner().getLogger().log(Level.WARNING,
+					"Shard data could not be read: " + this.getFile(), e);
+			return Collections.<ShardContents<K, V>>nCopies(count, null);
+		}
+	}
+
+	/**
+	 * Creates a task that reads the given shard file. Entries that belong in a different
+	 * shard of the same set, such as entries whose keys have a different hash code than
+	 * they did when they were saved, are separated so that they can be moved.
+	 *
+	 * @param index the index of the shard.
+	 * @param count the number of shards in the set of shard files.
+	 * @return the new task, which returns {@code null} if the file could not be read.
+	 */
+	private Callable<ShardContents<K, V>> newLoadTask(final int index, final int count) {
+		return new Callable<ShardContents<K, V>>() {
+
+			@Override
+			@SuppressWarnings("unchecked")
+			public ShardContents<K, V> call() {
+				ShardedPersistentMap<K, V> map = ShardedPersistentMap.this;
+				File file = map.getShardFile(index, count);
+				ShardContents<K, V> contents = new ShardContents<K, V>();
+				if (!file.exists()) {
+					return contents;
+				}
+				try {
+					Object data = PersistentObject.readFile(file);
+					map.recordRead(file.length());
+					if (!(data instanceof Map<?, ?>)) {
+						throw new IOException("Object found was not of the correct type");
+					}
+					if (data instanceof HashMap<?, ?>) {
+						contents.data = (HashMap<K, V>) data;
+					} else {
+						contents.data = new HashMap<K, V>((Map<K, V>) data);
+					}
+				} catch (IOException e) {
+					map.getOwner().getLogger().log(Level.WARNING,
+							"Shard data could not be read: " + file, e);
+					map.moveUnreadableShard(file);
+					return null;
+				}
+				Iterator<Map.Entry<K, V>> entries = contents.data.entrySet().iterator();
+				while (entries.hasNext()) {
+					Map.Entry<K, V> entry = entries.next();
+					if (ShardedPersistentMap.indexFor(entry.getKey(), count) != index) {
+						contents.misplaced.put(entry.getKey(), entry.getValue());
+						entries.remove();
+					}
+				}
+				return contents;
+			}
+
+		};
+	}
+
+	/**
+	 * Moves a shard file aside after it could not be read, so that it is not overwritten
+	 * when the shard is saved. An empty file is left where it is, because there is no data
+	 * in it to lose. This may be called from any thread.
+	 *
+	 * @param file the shard file that could not be read.
+	 */
+	private void moveUnreadableShard(File file) {
+		if (file.length() == 0) {
+			return;
+		}
+		File aside = new File(file.getParentFile(),
+				file.getName() + ".unreadable-" + System.currentTimeMillis());
+		try {
+			FileUtil.replaceFile(file, aside);
+			this.getOwner().getLogger().warning("The unreadable file was kept as " + aside);
+		} catch (IOException e) {
+			this.getOwner().getLogger().log(Level.WARNING,
+					"The unreadable file could not be moved aside: " + file, e);
+		}
+	}
+
+	/**
+	 * Adds every given entry that was read from a file to the shard it belongs in, and
+	 * marks it as changed.
+	 *
+	 * @param entries the entries to add.
+	 */
+	private void putAllLoaded(Map<K, V> entries) {
+		for (Map.Entry<K, V> entry : entries.entrySet()) {
+			this.segmentFor(entry.getKey()).data.put(entry.getKey(), entry.getValue());
+			this.recordChange(entry.getKey());
+		}
+	}
+
+	/**
+	 * Returns the file that stores the given shard.
+	 *
+	 * @param index the index of the shard.
+	 * @param count the number of shards in the set of shard files.
+	 * @return the file for the shard.
+	 */
+	private File getShardFile(int index, int count) {
+		return new File(this.getFile().getParentFile(),
+				this.getFile().getName() + ".shard-" + index + "-of-" + count);
+	}
+
+	/**
+	 * Returns the index of the shard that holds the given key, in a set of shards of the
+	 * given size.
+	 *
+	 * @param key the key to find the shard for.
+	 * @param count the number of shards in the set.
+	 * @return the index of the shard for the key.
+	 */
+	private static int indexFor(Object key, int count) {
+		int hash = (key == null) ? 0 : key.hashCode();
+		hash ^= (hash >>> 16);
+		return (hash & Integer.MAX_VALUE) % count;
+	}
+
+	/**
+	 * Returns the shard that holds the given key. If the file is still being read in the
+	 * background, this waits for it first.
+	 *
+	 * @param key the key to find the shard for.
+	 * @return the shard for the key.
+	 */
+	private Segment<K, V> segmentFor(Object key) {
+		List<Segment<K, V>> segments = this.segments();
+		return segments.get(ShardedPersistentMap.indexFor(key, segments.size()));
+	}
+
+	/**
+	 * Records that the given key has been changed or removed, and marks its shard as dirty.
+	 *
+	 * @param key the key that was changed.
+	 */
+	@SuppressWarnings("unchecked")
+	private void recordChange(Object key) {
+		long change = super.markDirty();
+		Segment<K, V> segment = this.segmentFor(key);
+		segment.lastChange = change;
+		this.dirtyKeys.put((K) key, change);
+		for (MapIndex<K, V, ?> index : this.indexes) {
+			index.update((K) key, segment.data.get(key));
+		}
+	}
+
+	/**
+	 * Forgets every dirty key whose most recent change has already been saved.
+	 */
+	private void pruneDirtyKeys() {
+		Iterator<Map.Entry<K, Long>> changes = this.dirtyKeys.entrySet().iterator();
+		while (changes.hasNext()) {
+			Map.Entry<K, Long> change = changes.next();
+			if (change.getValue() <= this.segmentFor(change.getKey()).savedChange) {
+				changes.remove();
+			}
+		}
+	}
+
+
+	// @formatter:off
+
+	/*
+	 * +------------------------------------------------------------------------------------+
+	 * | All methods below this point are delegate methods extending the shards to this map |
+	 * +------------------------------------------------------------------------------------+
+	 */
+
+	// @formatter:on
+
+	@Override
+	public void clear() {
+		for (Segment<K, V> segment : this.segments()) {
+			if (!segment.data.isEmpty()) {
+				long change = super.markDirty();
+				for (K key : segment.data.keySet()) {
+					this.dirtyKeys.put(key, change);
+				}
+				segment.data.clear();
+				segment.lastChange = change;
+			}
+		}
+		for (MapIndex<K, V, ?> index : this.indexes) {
+			index.clear();
+		}
+	}
+
+	@Override
+	public boolean containsKey(Object arg0) {
+		return this.segmentFor(arg0).data.containsKey(arg0);
+	}
+
+	@Override
+	public boolean containsValue(Object arg0) {
+		for (Segment<K, V> segment : this.segments()) {
+			if (segment.data.containsValue(arg0)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public Set<Map.Entry<K, V>> entrySet() {
+		return this.view.entrySet();
+	}
+
+	@Override
+	public V get(Object arg0) {
+		return this.segmentFor(arg0).data.get(arg0);
+	}
+
+	@Override
+	public boolean isEmpty() {
+		for (Segment<K, V> segment : this.segments()) {
+			if (!segment.data.isEmpty()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public Set<K> keySet() {
+		return this.view.keySet();
+	}
+
+	@Override
+	public V put(K arg0, V arg1) {
+		V previous = this.segmentFor(arg0).data.put(arg0, arg1);
+		this.recordChange(arg0);
+		return previous;
+	}
+
+	@Override
+	public void putAll(Map<? extends K, ? extends V> arg0) {
+		for (Map.Entry<? extends K, ? extends V> entry : arg0.entrySet()) {
+			this.put(entry.getKey(), entry.getValue());
+		}
+	}
+
+	@Override
+	public V remove(Object arg0) {
+		Segment<K, V> segment = this.segmentFor(arg0);
+		if (!segment.data.containsKey(arg0)) {
+			return null;
+		}
+		V previous = segment.data.remove(arg0);
+		this.recordChange(arg0);
+		return previous;
+	}
+
+	@Override
+	public int size() {
+		int size = 0;
+		for (Segment<K, V> segment : this.segments()) {
+			size += segment.data.size();
+		}
+		return size;
+	}
+
+	@Override
+	public Collection<V> values() {
+		return this.view.values();
+	}
+
+	// @formatter:off
+
+	/*
+	 * +------------------------------------------------------------------------------------+
+	 * | The classes below hold the shards, and provide views of this map across all shards |
+	 * +------------------------------------------------------------------------------------+
+	 */
+
+	// @formatter:on
+
+	/**
+	 * A single shard of the map, with its own dirty state.
+	 *
+	 * @param <K> the key type of the map.
+	 * @param <V> the value type of the map.
+	 */
+	private static class Segment<K, V> {
+
+		/**
+		 * The entries in this shard.
+		 */
+		private HashMap<K, V> data = new HashMap<K, V>();
+
+		/**
+		 * The number of the most recent change made to this shard.
+		 */
+		private long lastChange;
+
+		/**
+		 * The number of the most recent change that has been written to the disk.
+		 */
+		private volatile long savedChange;
+
+		/**
+		 * {@code true} if the file for this shard could not be loaded, so it must be
+		 * written even if it has not changed.
+		 */
+		private volatile boolean loadFailed;
+
+		/**
+		 * {@code true} if the file for this shard could not be read, and could not be moved
+		 * aside, so it must never be written.
+		 */
+		private volatile boolean keepFile;
+
+		/**
+		 * Determines if this shard has changes that have not been written to the disk.
+		 *
+		 * @return {@code true} if this shard is dirty; {@code false} otherwise.
+		 */
+		public boolean isDirty() {
+			if (this.keepFile) {
+				return false;
+			}
+			return this.loadFailed || this.lastChange > this.savedChange;
+		}
+
+		/**
+		 * Records that every change up to and including the given change has been written
+		 * to the disk. This may be called from any thread.
+		 *
+		 * @param change the number of the most recent change included in the save.
+		 */
+		public synchronized void markSaved(long change) {
+			this.loadFailed = false;
+			if (change > this.savedChange) {
+				this.savedChange = change;
+			}
+		}
+
+	}
+
+	/**
+	 * The contents of a shard file, as read by a load task.
+	 *
+	 * @param <K> the key type of the map.
+	 * @param <V> the value type of the map.
+	 */
+	private static class ShardContents<K, V> {
+
+		/**
+		 * The entries that belong in the shard that was read.
+		 */
+		private HashMap<K, V> data = new HashMap<K, V>();
+
+		/**
+		 * The entries that belong in a different shard.
+		 */
+		private final HashMap<K, V> misplaced = new HashMap<K, V>();
+
+	}
+
+	/**
+	 * A copy of a single changed shard, taken when a snapshot is captured.
+	 *
+	 * @param <K> the key type of the map.
+	 * @param <V> the value type of the map.
+	 */
+	private static class SegmentCapture<K, V> {
+
+		/**
+		 * The shard that was copied.
+		 */
+		private final Segment<K, V> segment;
+
+		/**
+		 * The index of the shard that was copied.
+		 */
+		private final int index;
+
+		/**
+		 * The copy of the entries in the shard.
+		 */
+		private final HashMap<K, V> data;
+
+		/**
+		 * The number of the most recent change included in the copy.
+		 */
+		private final long change;
+
+		/**
+		 * Constructs a new {@code SegmentCapture}.
+		 *
+		 * @param segment the shard that was copied.
+		 * @param index the index of the shard that was copied.
+		 * @param data the copy of the entries in the shard.
+		 * @param change the number of the most recent change included in the copy.
+		 */
+		public SegmentCapture(Segment<K, V> segment, int index, HashMap<K, V> data,
+				long change) {
+			this.segment = segment;
+			this.index = index;
+			this.data = data;
+			this.change = change;
+		}
+
+	}
+
+	/**
+	 * A snapshot of the changed shards of this map. Writing the snapshot itself only writes
+	 * the number of shards to the main file; the shards are written separately by
+	 * {@link #writeShards()}.
+	 */
+	private class ShardSnapshot extends PayloadSnapshot {
+
+		/**
+		 * The copies of the changed shards.
+		 */
+		private final List<SegmentCapture<K, V>> captures;
+
+		/**
+		 * The number of shards in an old set of shard files to delete after this snapshot
+		 * is written, or {@code 0} if there are none.
+		 */
+		private final int staleCount;
+
+		/**
+		 * Constructs a new {@code ShardSnapshot}.
+		 *
+		 * @param captures the copies of the changed shards.
+		 * @param staleCount the number of shards in an old set of shard files to delete.
+		 */
+		public ShardSnapshot(List<SegmentCapture<K, V>> captures, int staleCount) {
+			this.captures = captures;
+			this.staleCount = staleCount;
+		}
+
+		/**
+		 * Writes every changed shard to its file in parallel, and marks each shard as saved
+		 * once it has been written.
+		 *
+		 * @throws IOException if any shard could not be written.
+		 */
+		public void writeShards() throws IOException {
+			final int count = ShardedPersistentMap.this.segments.size();
+			final PayloadCodec codec = ShardedPersistentMap.this.getCodec();
+			final PayloadCompression compression = ShardedPersistentMap.this.getCompression();
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(this.captures.size());
+			for (final SegmentCapture<K, V> capture : this.captures) {
+				tasks.add(new Callable<Void>() {
+
+					@Override
+					public Void call() throws IOException {
+						ShardedPersistentMap.this.recordWrite(PersistentObject.writeFile(
+								ShardedPersistentMap.this.getShardFile(capture.index, count),
+								PayloadSnapshot.of(capture.data, codec), compression));
+						capture.segment.markSaved(capture.change);
+						return null;
+					}
+
+				});
+			}
+			FileExecutor.invokeAll(tasks);
+		}
+
+		@Override
+		public void writeTo(OutputStream out) throws IOException {
+			PayloadFormat.write(out, ShardedPersistentMap.this.getCodec(),
+					ShardedPersistentMap.this.segments.size());
+		}
+
+	}
+
+	/**
+	 * A view of this map, which provides the key set and the value collection on top of
+	 * the entry set.
+	 */
+	private class MapView extends AbstractMap<K, V> {
+
+		/**
+		 * The entry set of this view.
+		 */
+		private final Set<Map.Entry<K, V>> entries = new EntrySetView();
+
+		@Override
+		public Set<Map.Entry<K, V>> entrySet() {
+			return this.entries;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return ShardedPersistentMap.this.containsKey(key);
+		}
+
+		@Override
+		public V get(Object key) {
+			return ShardedPersistentMap.this.get(key);
+		}
+
+		@Override
+		public V remove(Object key) {
+			return ShardedPersistentMap.this.remove(key);
+		}
+
+		@Override
+		public int size() {
+			return ShardedPersistentMap.this.size();
+		}
+
+		@Override
+		public void clear() {
+			ShardedPersistentMap.this.clear();
+		}
+
+	}
+
+	/**
+	 * A view of the entries in every shard.
+	 */
+	private class EntrySetView extends AbstractSet<Map.Entry<K, V>> {
+
+		@Override
+		public Iterator<Map.Entry<K, V>> iterator() {
+			return new EntryIterator();
+		}
+
+		@Override
+		public int size() {
+			return ShardedPersistentMap.this.size();
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			if (!(o instanceof Map.Entry<?, ?>)) {
+				return false;
+			}
+			Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+			Map<K, V> data = ShardedPersistentMap.this.segmentFor(entry.getKey()).data;
+			return data.containsKey(entry.getKey())
+					&& Objects.equals(data.get(entry.getKey()), entry.getValue());
+		}
+
+		@Override
+		public boolean remove(Object o) {
+			if (this.contains(o)) {
+				ShardedPersistentMap.this.remove(((Map.Entry<?, ?>) o).getKey());
+				return true;
+			}
+			return false;
+		}
+
+		@Override
+		public void clear() {
+			ShardedPersistentMap.this.clear();
+		}
+
+	}
+
+	/**
+	 * An iterator over the entries of every shard, that records the removal of an entry
+	 * through {@code remove()}.
+	 */
+	private class EntryIterator implements Iterator<Map.Entry<K, V>> {
+
+		/**
+		 * The index of the shard that is currently being iterated over.
+		 */
+		private int index;
+
+		/**
+		 * The iterator of the shard that is currently being iterated over.
+		 */
+		private Iterator<Map.Entry<K, V>> iterator;
+
+		/**
+		 * The iterator that returned the most recent entry.
+		 */
+		private Iterator<Map.Entry<K, V>> lastIterator;
+
+		/**
+		 * The key of the most recently returned entry.
+		 */
+		private K lastKey;
+
+		/**
+		 * Constructs a new {@code EntryIterator} over every shard.
+		 */
+		public EntryIterator() {
+			this.iterator = ShardedPersistentMap.this.segments().get(0).data.entrySet().iterator();
+		}
+
+		@Override
+		public boolean hasNext() {
+			List<Segment<K, V>> segments = ShardedPersistentMap.this.segments;
+			while (!this.iterator.hasNext() && this.index < segments.size() - 1) {
+				this.index++;
+				this.iterator = segments.get(this.index).data.entrySet().iterator();
+			}
+			return this.iterator.hasNext();
+		}
+
+		@Override
+		public Map.Entry<K, V> next() {
+			if (!this.hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Map.Entry<K, V> entry = this.iterator.next();
+			this.lastIterator = this.iterator;
+			this.lastKey = entry.getKey();
+			return new EntryView(entry);
+		}
+
+		@Override
+		public void remove() {
+			if (this.lastIterator == null) {
+				throw new IllegalStateException();
+			}
+			this.lastIterator.remove();
+			this.lastIterator = null;
+			ShardedPersistentMap.this.recordChange(this.lastKey);
+		}
+
+	}
+
+	/**
+	 * An entry of a shard, that records changes made through {@code setValue()}.
+	 */
+	private class EntryView implements Map.Entry<K, V> {
+
+		/**
+		 * The entry of the shard.
+		 */
+		private final Map.Entry<K, V> entry;
+
+		/**
+		 * Constructs a new {@code EntryView} around the given entry.
+		 *
+		 * @param entry the entry of the shard.
+		 */
+		public EntryView(Map.Entry<K, V> entry) {
+			this.entry = entry;
+		}
+
+		@Override
+		public K getKey() {
+			return this.entry.getKey();
+		}
+
+		@Override
+		public V getValue() {
+			return this.entry.getValue();
+		}
+
+		@Override
+		public V setValue(V value) {
+			V previous = this.entry.setValue(value);
+			ShardedPersistentMap.this.recordChange(this.entry.getKey());
+			return previous;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return this.entry.equals(other);
+		}
+
+		@Override
+		public int hashCode() {
+			return this.entry.hashCode();
+		}
+
+		@Override
+		public String toString() {
+			return this.entry.toString();
+		}
+
+	}
+
+}
@@ -0,0 +1,1951 @@
+/* Copyright (C) 2017 Zach Ohara
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.zachohara.bukkit.simpleplugin.fileio.persistence;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import io.github.zachohara.bukkit.simpleplugin.fileio.FileExecutor;
+import io.github.zachohara.bukkit.simpleplugin.fileio.FileUtil;
+
+/**
+ * A {@code SharedStore} is a log-structured store that holds the data of many
+ * {@code PersistentObject}s, from any number of plugins, in one set of files. The data of
+ * each object is kept in its own namespace, as a set of keys and values. Every change is
+ * appended to a single log, so the changes of every plugin are written to the disk
+ * together, and share a single disk sync, no matter how many objects they belong to.
+ * <p>
+ * The log is split into segment files. When the current segment is full, a new one is
+ * started; when most of the records in an older segment have been replaced, the records
+ * that are still current are copied to the end of the log on a background thread, and
+ * the old segment is deleted. The list of segments is kept in a manifest file, which is
+ * replaced atomically, so the store can always be opened again after a crash: every
+ * record that was committed before the crash is kept, and a partly written record is
+ * discarded.
+ * <p>
+ * Changes to several namespaces can be made atomic with a batch, which is appended to the
+ * log as a single record: after a crash, either every change in the batch is kept, or
+ * none of them is.
+ * <p>
+ * The store is opened by the SimplePlugin plugin, and a plugin places its files in the
+ * store by calling {@code SimplePlugin.useSharedStore(true)} before creating them. This
+ * class is thread safe.
+ *
+ * @author Zach Ohara
+ * @see Namespace
+ */
+public class SharedStore implements Closeable {
+
+	/**
+	 * The size that a segment grows to before a new one is started, until another size is
+	 * set, in bytes.
+	 */
+	public static final long DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * The fraction of a segment that must still be current for it to be kept, until
+	 * another fraction is set. A segment with less current data than this is compacted.
+	 */
+	public static final double DEFAULT_COMPACTION_RATIO = 0.5;
+
+	/**
+	 * The operation code of a record that binds a namespace to a number. The key is the
+	 * number and the value is the name of the namespace.
+	 */
+	private static final byte DEFINE = 1;
+
+	/**
+	 * The operation code of a record that maps a key to a value in a namespace.
+	 */
+	private static final byte PUT = 2;
+
+	/**
+	 * The operation code of a record that removes a key from a namespace.
+	 */
+	private static final byte REMOVE = 3;
+
+	/**
+	 * The operation code of a record that holds a batch of other records, which are all
+	 * written to the disk together, or not at all. The key is empty, and the value is the
+	 * records of the batch, one after another.
+	 */
+	private static final byte BATCH = 4;
+
+	/**
+	 * The size of the header of each record in a batch: the operation code, and the
+	 * lengths of the key and the value.
+	 */
+	private static final int BATCH_HEADER_SIZE = 9;
+
+	/**
+	 * The bytes at the start of the manifest file.
+	 */
+	private static final byte[] MANIFEST_MAGIC = {'S', 'P', 'S', 'M'};
+
+	/**
+	 * The version of the format of the manifest file.
+	 */
+	private static final int MANIFEST_VERSION = 1;
+
+	/**
+	 * The name of the manifest file.
+	 */
+	private static final String MANIFEST_NAME = "store.manifest";
+
+	/**
+	 * The prefix of the name of every segment file.
+	 */
+	private static final String SEGMENT_PREFIX = "segment-";
+
+	/**
+	 * The suffix of the name of every segment file.
+	 */
+	private static final String SEGMENT_SUFFIX = ".log";
+
+	/**
+	 * The store that is shared by every plugin, or {@code null} if it is not open.
+	 */
+	private static volatile SharedStore shared;
+
+	/**
+	 * The directory that holds the files of this store.
+	 */
+	private final File directory;
+
+	/**
+	 * The log to report background errors to.
+	 */
+	private final Logger logger;
+
+	/**
+	 * Guards every field below, and the order of records in the log.
+	 */
+	private final Object lock;
+
+	/**
+	 * Held for reading while records are read from a segment, and for writing while a
+	 * segment is closed, so that no segment is closed while it is being read.
+	 */
+	private final ReadWriteLock segmentLock;
+
+	/**
+	 * Every segment of the log, from the oldest to the newest. The newest segment is the
+	 * one that records are appended to.
+	 */
+	private final List<Segment> segments;
+
+	/**
+	 * The index of every namespace that has been defined, by name.
+	 */
+	private final Map<String, NamespaceIndex> namespaces;
+
+	/**
+	 * The index of every namespace that has been defined, by the number that it is bound
+	 * to.
+	 */
+	private final Map<Integer, NamespaceIndex> namespaceNumbers;
+
+	/**
+	 * The name of every namespace that is currently open.
+	 */
+	private final Set<String> openNamespaces;
+
+	/**
+	 * The changes that each thread has made since it started a batch, or {@code null} for
+	 * a thread that has not started one.
+	 */
+	private final ThreadLocal<List<StagedChange>> batches;
+
+	/**
+	 * The records of the batch that is being appended, or {@code null} if none is. While
+	 * this is set, records are added to the batch instead of being appended to the log.
+	 */
+	private ByteArrayOutputStream batchRecords;
+
+	/**
+	 * The locations of the current records in the batch that is being appended, which
+	 * are given their segment and position once the batch has been appended.
+	 */
+	private List<Location> batchLocations;
+
+	/**
+	 * The number to bind the next new namespace to. Numbers are never reused.
+	 */
+	private int nextNamespaceNumber;
+
+	/**
+	 * The identifier to give to the next new segment.
+	 */
+	private int nextSegmentId;
+
+	/**
+	 * The size that a segment grows to before a new one is started, in bytes.
+	 */
+	private long segmentSize;
+
+	/**
+	 * The fraction of a segment that must still be current for it to be kept.
+	 */
+	private double compactionRatio;
+
+	/**
+	 * The number of milliseconds that appended records may wait before being committed.
+	 */
+	private long commitInterval;
+
+	/**
+	 * The compaction that is running in the background, or {@code null} if there is none.
+	 */
+	private Future<?> compaction;
+
+	/**
+	 * {@code true} once this store has been asked to close, after which it is closed as
+	 * soon as the last namespace is closed.
+	 */
+	private boolean closing;
+
+	/**
+	 * {@code true} once this store has been closed.
+	 */
+	private boolean closed;
+
+	/**
+	 * Opens the store in the given directory, creating it if it does not exist. Every
+	 * segment in the manifest is read to find the current records, and any segment file
+	 * that the manifest does not list is deleted.
+	 *
+	 * @param directory the directory that holds the files of the store.
+	 * @param logger the log to report background errors to.
+	 * @throws IOException if the store could not be opened.
+	 */
+	public SharedStore(File directory, Logger logger) throws IOException {
+		this.directory = directory;
+		this.logger = logger;
+		this.lock = new Object();
+		this.segmentLock = new ReentrantReadWriteLock();
+		this.segments = new ArrayList<Segment>();
+		this.namespaces = new HashMap<String, NamespaceIndex>();
+		this.namespaceNumbers = new HashMap<Integer, NamespaceIndex>();
+		this.openNamespaces = new HashSet<String>();
+		this.batches = new ThreadLocal<List<StagedChange>>();
+		this.segmentSize = SharedStore.DEFAULT_SEGMENT_SIZE;
+		this.compactionRatio = SharedStore.DEFAULT_COMPACTION_RATIO;
+		this.commitInterval = RecordLog.DEFAULT_COMMIT_INTERVAL;
+		directory.mkdirs();
+		int[] ids = this.readManifest();
+		this.deleteUnlistedSegments(ids);
+		try {
+			this.load(ids);
+			if (this.segments.isEmpty()) {
+				this.startSegment();
+			}
+		} catch (IOException e) {
+			for (Segment segment : this.segments) {
+				segment.log.close();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Opens the store that is shared by every plugin, in the given directory. This is
+	 * called by the SimplePlugin plugin when it is enabled.
+	 *
+	 * @param directory the directory that holds the files of the store.
+	 * @param logger the log to report background errors to.
+	 * @return the shared store.
+	 * @throws IOException if the store could not be opened.
+	 * @throws IllegalStateException if the shared store is already open.
+	 */
+	public static SharedStore openShared(File directory, Logger logger) throws IOException {
+		synchronized (SharedStore.class) {
+			if (SharedStore.shared != null) {
+				throw new IllegalStateException("The shared store is already open");
+			}
+			SharedStore.shared = new SharedStore(directory, logger);
+			return SharedStore.shared;
+		}
+	}
+
+	/**
+	 * Returns the store that is shared by every plugin.
+	 *
+	 * @return the shared store, or {@code null} if it is not open.
+	 */
+	public static SharedStore getShared() {
+		return SharedStore.shared;
+	}
+
+	/**
+	 * Closes the store that is shared by every plugin, once every namespace in it has been
+	 * closed. This is called by the SimplePlugin plugin when it is disabled; the files of
+	 * other plugins may still be saving, so the store stays open until they are done.
+	 *
+	 * @throws IOException if the store could not be closed.
+	 */
+	public static void closeShared() throws IOException {
+		SharedStore store;
+		synchronized (SharedStore.class) {
+			store = SharedStore.shared;
+			SharedStore.shared = null;
+		}
+		if (store != null) {
+			store.close();
+		}
+	}
+
+	/**
+	 * Sets the size that a segment grows to before a new one is started. Smaller segments
+	 * are compacted sooner, and with less work each time, but make more files.
+	 *
+	 * @param bytes the segment size, in bytes.
+	 */
+	public void setSegmentSize(long bytes) {
+		synchronized (this.lock) {
+			this.segmentSize = bytes;
+		}
+	}
+
+	/**
+	 * Returns the size that a segment grows to before a new one is started.
+	 *
+	 * @return the segment size, in bytes.
+	 */
+	public long getSegmentSize() {
+		synchronized (this.lock) {
+			return this.segmentSize;
+		}
+	}
+
+	/**
+	 * Sets the fraction of a segment that must still be current for it to be kept. A
+	 * segment with less current data than this is compacted in the background. A higher
+	 * fraction keeps the store smaller, but copies more data.
+	 *
+	 * @param ratio the compaction ratio, between {@code 0} and {@code 1}.
+	 */
+	public void setCompactionRatio(double ratio) {
+		synchronized (this.lock) {
+			this.compactionRatio = ratio;
+		}
+	}
+
+	/**
+	 * Returns the fraction of a segment that must still be current for it to be kept.
+	 *
+	 * @return the compaction ratio.
+	 */
+	public double getCompactionRatio() {
+		synchronized (this.lock) {
+			return this.compactionRatio;
+		}
+	}
+
+	/**
+	 * Sets the number of milliseconds that appended records may wait in memory before
+	 * they are written to the disk. A longer interval lets the changes of more plugins
+	 * share a single disk sync, but more changes may be lost if the server crashes.
+	 *
+	 * @param millis the commit interval, in milliseconds.
+	 * @see RecordLog#setCommitInterval(long)
+	 */
+	public void setCommitInterval(long millis) {
+		synchronized (this.lock) {
+			this.commitInterval = millis;
+			this.activeSegment().log.setCommitInterval(millis);
+		}
+	}
+
+	/**
+	 * Returns the number of milliseconds that appended records may wait in memory before
+	 * they are written to the disk.
+	 *
+	 * @return the commit interval, in milliseconds.
+	 */
+	public long getCommitInterval() {
+		synchronized (this.lock) {
+			return this.commitInterval;
+		}
+	}
+
+	/**
+	 * Returns the number of bytes that every segment of this store takes up on the disk.
+	 *
+	 * @return the size of this store, in bytes.
+	 */
+	public long getStoredBytes() {
+		synchronized (this.lock) {
+			long bytes = 0;
+			for (Segment segment : this.segments) {
+				bytes += segment.log.size();
+			}
+			return bytes;
+		}
+	}
+
+	/**
+	 * Returns the number of bytes of current records in this store, which is the size
+	 * that the store would take up if every segment were compacted.
+	 *
+	 * @return the size of the current records, in bytes.
+	 */
+	public long getLiveBytes() {
+		synchronized (this.lock) {
+			long bytes = 0;
+			for (Segment segment : this.segments) {
+				bytes += segment.liveBytes;
+			}
+			return bytes;
+		}
+	}
+
+	/**
+	 * Returns the number of segment files in this store.
+	 *
+	 * @return the number of segments.
+	 */
+	public int getSegmentCount() {
+		synchronized (this.lock) {
+			return this.segments.size();
+		}
+	}
+
+	/**
+	 * Determines if the namespace with the given name holds any keys.
+	 *
+	 * @param name the name of the namespace.
+	 * @return {@code true} if the namespace exists and is not empty; {@code false}
+	 * otherwise.
+	 */
+	public boolean contains(String name) {
+		synchronized (this.lock) {
+			NamespaceIndex index = this.namespaces.get(name);
+			return index != null && index.size > 0;
+		}
+	}
+
+	/**
+	 * Opens the namespace with the given name, creating it if it does not exist. A
+	 * namespace can only be open once at a time, and must be closed when it is no longer
+	 * used.
+	 *
+	 * @param name the name of the namespace.
+	 * @return the namespace.
+	 * @throws IllegalStateException if the namespace is already open, or if this store has
+	 * been closed.
+	 */
+	public Namespace openNamespace(String name) {
+		synchronized (this.lock) {
+			if (this.closing) {
+				throw new IllegalStateException("The shared store has been closed");
+			}
+			if (!this.openNamespaces.add(name)) {
+				throw new IllegalStateException("The namespace is already open: " + name);
+			}
+			return new Namespace(name);
+		}
+	}
+
+	/**
+	 * Writes every record that has been appended to the disk, and waits until the disk has
+	 * confirmed that they are stored. The records of every namespace are committed
+	 * together.
+	 *
+	 * @throws IOException if the records could not be written.
+	 */
+	public void commit() throws IOException {
+		RecordLog log;
+		synchronized (this.lock) {
+			if (this.closed) {
+				return;
+			}
+			log = this.activeSegment().log;
+		}
+		log.commit();
+	}
+
+	/**
+	 * Starts a batch on the calling thread. Until the batch is committed or aborted, every
+	 * change that the calling thread makes to any namespace of this store is held in
+	 * memory, and is not visible through {@link Namespace#get(byte[])},
+	 * {@link Namespace#read(EntryVisitor)} or {@link Namespace#size()}.
+	 *
+	 * @throws IllegalStateException if the calling thread has already started a batch.
+	 * @see #commitBatch()
+	 */
+	public void beginBatch() {
+		if (this.batches.get() != null) {
+			throw new IllegalStateException("A batch has already been started on this thread");
+		}
+		this.batches.set(new ArrayList<StagedChange>());
+	}
+
+	/**
+	 * Determines if the calling thread has started a batch that has not yet been committed
+	 * or aborted.
+	 *
+	 * @return {@code true} if a batch is in progress on the calling thread.
+	 */
+	public boolean inBatch() {
+		return this.batches.get() != null;
+	}
+
+	/**
+	 * Appends every change in the batch of the calling thread to the log as a single
+	 * record, and waits until the disk has confirmed that it is stored. If the server
+	 * crashes, either every change in the batch is kept, or none of them is. Batches that
+	 * are committed by other threads at the same time share a single disk sync.
+	 *
+	 * @throws IOException if the batch could not be written.
+	 * @throws IllegalStateException if the calling thread has not started a batch.
+	 */
+	public void commitBatch() throws IOException {
+		List<StagedChange> changes = this.batches.get();
+		if (changes == null) {
+			throw new IllegalStateException("No batch has been started on this thread");
+		}
+		this.batches.remove();
+		if (changes.isEmpty()) {
+			return;
+		}
+		RecordLog log;
+		synchronized (this.lock) {
+			this.checkOpen();
+			for (StagedChange change : changes) {
+				change.namespace.checkOpen();
+			}
+			Segment segment = this.makeRoom();
+			this.batchRecords = new ByteArrayOutputStream();
+			this.batchLocations = new ArrayList<Location>();
+			try {
+				for (StagedChange change : changes) {
+					change.apply();
+				}
+				long position = segment.log.append(SharedStore.BATCH, new byte[0],
+						this.batchRecords.toByteArray());
+				for (Location location : this.batchLocations) {
+					location.segment = segment;
+					location.position = position;
+					segment.liveBytes += location.size;
+				}
+			} finally {
+				this.batchRecords = null;
+				this.batchLocations = null;
+			}
+			log = segment.log;
+		}
+		// Committed outside the lock, so that other batches can be appended to the same sync
+		log.commit();
+	}
+
+	/**
+	 * Discards every change in the batch of the calling thread, if it has started one.
+	 */
+	public void abortBatch() {
+		this.batches.remove();
+	}
+
+	/**
+	 * Closes this store once every namespace has been closed. If no namespace is open, the
+	 * store is closed immediately: every record is committed, any compaction that is
+	 * running is finished, and every file is closed.
+	 *
+	 * @throws IOException if the store could not be closed.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (this.lock) {
+			this.closing = true;
+			if (!this.openNamespaces.isEmpty() || this.closed) {
+				return;
+			}
+		}
+		this.closeNow();
+	}
+
+	/**
+	 * Finishes any compaction that is running, commits every record, and closes every
+	 * segment.
+	 *
+	 * @throws IOException if the store could not be closed.
+	 */
+	private void closeNow() throws IOException {
+		this.awaitCompaction();
+		synchronized (this.lock) {
+			if (this.closed) {
+				return;
+			}
+			this.closed = true;
+		}
+		this.segmentLock.writeLock().lock();
+		try {
+			IOException error = null;
+			for (Segment segment : this.segments) {
+				try {
+					segment.log.close();
+				} catch (IOException e) {
+					error = (error == null) ? e : error;
+				}
+			}
+			if (error != null) {
+				throw error;
+			}
+		} finally {
+			this.segmentLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Appends a record to the end of the log, starting a new segment first if the current
+	 * one is full. The caller must hold the lock.
+	 *
+	 * @param op the operation code of the record.
+	 * @param key the key of the record.
+	 * @param value the value of the record.
+	 * @return the location of the new record.
+	 * @throws IOException if the record could not be appended.
+	 */
+	private Location append(byte op, byte[] key, byte[] value) throws IOException {
+		this.checkOpen();
+		if (this.batchRecords != null) {
+			Location location = new Location(null, -1, this.batchRecords.size(),
+					SharedStore.BATCH_HEADER_SIZE + key.length + value.length,
+					op == SharedStore.REMOVE);
+			DataOutputStream out = new DataOutputStream(this.batchRecords);
+			out.writeByte(op);
+			out.writeInt(key.length);
+			out.write(key);
+			out.writeInt(value.length);
+			out.write(value);
+			this.batchLocations.add(location);
+			return location;
+		}
+		Segment segment = this.makeRoom();
+		long position = segment.log.append(op, key, value);
+		Location location = new Location(segment, position, -1,
+				RecordLog.HEADER_SIZE + 5 + key.length + value.length, op == SharedStore.REMOVE);
+		segment.liveBytes += location.size;
+		return location;
+	}
+
+	/**
+	 * Returns the segment to append to, starting a new one first if the current one is
+	 * full. The caller must hold the lock.
+	 *
+	 * @return the segment to append to.
+	 * @throws IOException if a new segment could not be started.
+	 */
+	private Segment makeRoom() throws IOException {
+		Segment segment = this.activeSegment();
+		if (segment.log.size() >= this.segmentSize) {
+			segment.log.commit();
+			segment = this.startSegment();
+			this.startCompaction();
+		}
+		return segment;
+	}
+
+	/**
+	 * Makes sure that this store has not been closed. The caller must hold the lock.
+	 *
+	 * @throws IOException if this store has been closed.
+	 */
+	private void checkOpen() throws IOException {
+		if (this.closed) {
+			throw new IOException("The shared store has been closed");
+		}
+	}
+
+	/**
+	 * Records that the given record is no longer current. The caller must hold the lock.
+	 *
+	 * @param location the location of the record, or {@code null}.
+	 */
+	private void release(Location location) {
+		if (location == null) {
+			return;
+		} else if (location.segment == null) {
+			// Replaced by a later change in the same batch, before it was appended
+			this.batchLocations.remove(location);
+		} else {
+			location.segment.liveBytes -= location.size;
+		}
+	}
+
+	/**
+	 * Binds the namespace with the given name to a new number, so that every record of the
+	 * namespace that was written before is no longer current. The caller must hold the
+	 * lock.
+	 *
+	 * @param name the name of the namespace.
+	 * @return the new index of the namespace.
+	 * @throws IOException if the binding could not be appended.
+	 */
+	private NamespaceIndex define(String name) throws IOException {
+		int number = this.nextNamespaceNumber;
+		Location location = this.append(SharedStore.DEFINE, SharedStore.intBytes(number),
+				name.getBytes(StandardCharsets.UTF_8));
+		this.nextNamespaceNumber++;
+		NamespaceIndex old = this.namespaces.get(name);
+		if (old != null) {
+			this.release(old.definition);
+			for (Location entry : old.entries.values()) {
+				this.release(entry);
+			}
+			this.namespaceNumbers.remove(old.number);
+		}
+		NamespaceIndex index = new NamespaceIndex(name, number);
+		index.definition = location;
+		this.namespaces.put(name, index);
+		this.namespaceNumbers.put(number, index);
+		return index;
+	}
+
+	/**
+	 * Returns the segment that records are appended to. The caller must hold the lock.
+	 *
+	 * @return the newest segment.
+	 */
+	private Segment activeSegment() {
+		return this.segments.get(this.segments.size() - 1);
+	}
+
+	/**
+	 * Creates a new, empty segment, and adds it to the manifest. The caller must hold the
+	 * lock, or be the constructor.
+	 *
+	 * @return the new segment.
+	 * @throws IOException if the segment could not be created.
+	 */
+	private Segment startSegment() throws IOException {
+		int id = this.nextSegmentId;
+		Segment segment = new Segment(id, new RecordLog(this.getSegmentFile(id)));
+		segment.log.setCommitInterval(this.commitInterval);
+		this.nextSegmentId++;
+		this.segments.add(segment);
+		try {
+			this.writeManifest();
+		} catch (IOException e) {
+			this.segments.remove(segment);
+			segment.log.close();
+			throw e;
+		}
+		return segment;
+	}
+
+	/**
+	 * Starts compacting in the background, if there is a segment that needs it and no
+	 * compaction is already running. The caller must hold the lock.
+	 */
+	private void startCompaction() {
+		if (this.closed || (this.compaction != null && !this.compaction.isDone())
+				|| this.findCompactionCandidate() == null) {
+			return;
+		}
+		this.compaction = FileExecutor.submit(new Runnable() {
+
+			@Override
+			public void run() {
+				SharedStore.this.compact();
+			}
+
+		});
+	}
+
+	/**
+	 * Compacts every segment that needs it, one at a time, until none is left.
+	 */
+	private void compact() {
+		while (true) {
+			Segment segment;
+			synchronized (this.lock) {
+				segment = this.closed ? null : this.findCompactionCandidate();
+			}
+			if (segment == null) {
+				return;
+			}
+			try {
+				this.compact(segment);
+			} catch (IOException e) {
+				this.logger.log(Level.WARNING, "Error compacting the shared store: "
+						+ segment.log.getFile(), e);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Finds the segment with the smallest fraction of current records, if it is below the
+	 * compaction ratio. The newest segment is never compacted. The caller must hold the
+	 * lock.
+	 *
+	 * @return the segment to compact, or {@code null} if there is none.
+	 */
+	private Segment findCompactionCandidate() {
+		Segment best = null;
+		double bestRatio = this.compactionRatio;
+		for (int i = 0; i < this.segments.size() - 1; i++) {
+			Segment segment = this.segments.get(i);
+			long size = segment.log.size();
+			double ratio = (size == 0) ? 0 : (double) segment.liveBytes / size;
+			if (ratio < bestRatio) {
+				best = segment;
+				bestRatio = ratio;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Copies every current record in the given segment to the end of the log, and then
+	 * removes the segment from the manifest and deletes it. A record that removes a key is
+	 * only copied if an older segment may still hold a value for the key; if the segment
+	 * is the oldest, such records are simply dropped.
+	 *
+	 * @param segment the segment to compact.
+	 * @throws IOException if the segment could not be compacted.
+	 */
+	private void compact(final Segment segment) throws IOException {
+		final boolean oldest;
+		synchronized (this.lock) {
+			oldest = this.segments.get(0) == segment;
+		}
+		this.segmentLock.readLock().lock();
+		try {
+			segment.log.replay(new RecordLog.Visitor() {
+
+				@Override
+				public void visit(long position, byte op, byte[] key, byte[] value)
+						throws IOException {
+					synchronized (SharedStore.this.lock) {
+						if (op == SharedStore.BATCH) {
+							for (BatchRecord record : SharedStore.unpackBatch(value)) {
+								SharedStore.this.copyIfCurrent(segment, oldest, position,
+										record.offset, record.op, record.key, record.value);
+							}
+						} else {
+							SharedStore.this.copyIfCurrent(segment, oldest, position, -1, op,
+									key, value);
+						}
+					}
+				}
+
+			});
+		} finally {
+			this.segmentLock.readLock().unlock();
+		}
+		// Every copy must be on the disk before the segment that held it is deleted
+		this.commit();
+		synchronized (this.lock) {
+			if (this.closed) {
+				return;
+			}
+			this.segments.remove(segment);
+			this.writeManifest();
+		}
+		this.segmentLock.writeLock().lock();
+		try {
+			segment.log.close();
+		} finally {
+			this.segmentLock.writeLock().unlock();
+		}
+		if (!segment.log.getFile().delete()) {
+			this.logger.warning("Compacted segment could not be deleted: " + segment.log.getFile());
+		}
+	}
+
+	/**
+	 * Copies a record of a segment that is being compacted to the end of the log, if it is
+	 * still current. The caller must hold the lock.
+	 *
+	 * @param segment the segment that is being compacted.
+	 * @param oldest {@code true} if the segment is the oldest in the log.
+	 * @param position the position of the record in the segment.
+	 * @param offset the offset of the record in its batch, or {@code -1} if it is not in a
+	 * batch.
+	 * @param op the operation code of the record.
+	 * @param key the key of the record.
+	 * @param value the value of the record.
+	 * @throws IOException if the record could not be copied.
+	 */
+	private void copyIfCurrent(Segment segment, boolean oldest, long position, int offset,
+			byte op, byte[] key, byte[] value) throws IOException {
+		if (this.closed) {
+			return;
+		}
+		if (op == SharedStore.DEFINE) {
+			NamespaceIndex index = this.namespaces.get(new String(value, StandardCharsets.UTF_8));
+			if (index != null && index.definition.isAt(segment, position, offset)) {
+				this.release(index.definition);
+				index.definition = this.append(op, key, value);
+			}
+			return;
+		}
+		NamespaceIndex index = this.namespaceNumbers.get(SharedStore.readInt(key));
+		if (index == null) {
+			return;
+		}
+		ByteKey entryKey = new ByteKey(Arrays.copyOfRange(key, 4, key.length));
+		Location location = index.entries.get(entryKey);
+		if (location == null || !location.isAt(segment, position, offset)) {
+			return;
+		}
+		this.release(location);
+		if (location.removed && oldest) {
+			index.entries.remove(entryKey);
+		} else {
+			index.entries.put(entryKey, this.append(op, key, value));
+		}
+	}
+
+	/**
+	 * Waits for the compaction that is running, if any, to finish.
+	 */
+	private void awaitCompaction() {
+		Future<?> running;
+		synchronized (this.lock) {
+			running = this.compaction;
+		}
+		if (running == null) {
+			return;
+		}
+		try {
+			running.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			this.logger.log(Level.WARNING, "Error compacting the shared store", e.getCause());
+		}
+	}
+
+	/**
+	 * Reads every segment that is listed in the manifest, in order, and indexes the most
+	 * recent record for every key. A later binding of a namespace replaces an earlier one,
+	 * and the records of a number that is no longer bound to any namespace are ignored.
+	 *
+	 * @param ids the identifiers of the segments, from the oldest to the newest.
+	 * @throws IOException if a segment could not be read.
+	 */
+	private void load(int[] ids) throws IOException {
+		final Map<Integer, NamespaceIndex> numbers = new HashMap<Integer, NamespaceIndex>();
+		for (int id : ids) {
+			final Segment segment = new Segment(id, new RecordLog(this.getSegmentFile(id)));
+			segment.log.setCommitInterval(this.commitInterval);
+			this.segments.add(segment);
+			this.nextSegmentId = Math.max(this.nextSegmentId, id + 1);
+			segment.log.replay(new RecordLog.Visitor() {
+
+				@Override
+				public void visit(long position, byte op, byte[] key, byte[] value)
+						throws IOException {
+					if (op != SharedStore.BATCH) {
+						SharedStore.indexRecord(numbers, new Location(segment, position, -1,
+								RecordLog.HEADER_SIZE + 5 + key.length + value.length,
+								op == SharedStore.REMOVE), op, key, value);
+						return;
+					}
+					for (BatchRecord record : SharedStore.unpackBatch(value)) {
+						SharedStore.indexRecord(numbers, new Location(segment, position,
+								record.offset, record.size, record.op == SharedStore.REMOVE),
+								record.op, record.key, record.value);
+					}
+				}
+
+			});
+		}
+		// Numbers only ever increase, so the largest number bound to a name is current
+		for (NamespaceIndex index : numbers.values()) {
+			this.nextNamespaceNumber = Math.max(this.nextNamespaceNumber, index.number + 1);
+			if (index.name == null) {
+				continue;
+			}
+			NamespaceIndex current = this.namespaces.get(index.name);
+			if (current == null || current.number < index.number) {
+				this.namespaces.put(index.name, index);
+			}
+		}
+		for (NamespaceIndex index : this.namespaces.values()) {
+			this.namespaceNumbers.put(index.number, index);
+			index.definition.segment.liveBytes += index.definition.size;
+			for (Location location : index.entries.values()) {
+				location.segment.liveBytes += location.size;
+				if (!location.removed) {
+					index.size++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Indexes a record that was read while the store was being loaded.
+	 *
+	 * @param numbers the index of every namespace number that has been read so far.
+	 * @param location the location of the record.
+	 * @param op the operation code of the record.
+	 * @param key the key of the record.
+	 * @param value the value of the record.
+	 * @throws IOException if the record is not valid.
+	 */
+	private static void indexRecord(Map<Integer, NamespaceIndex> numbers, Location location,
+			byte op, byte[] key, byte[] value) throws IOException {
+		int number = SharedStore.readInt(key);
+		NamespaceIndex index = numbers.get(number);
+		if (index == null) {
+			index = new NamespaceIndex(null, number);
+			numbers.put(number, index);
+		}
+		if (op == SharedStore.DEFINE) {
+			index.name = new String(value, StandardCharsets.UTF_8);
+			index.definition = location;
+		} else if (op == SharedStore.PUT || op == SharedStore.REMOVE) {
+			index.entries.put(new ByteKey(Arrays.copyOfRange(key, 4, key.length)), location);
+		} else {
+			throw new IOException("Unknown shared store record type: " + op);
+		}
+	}
+
+	/**
+	 * Reads the record at the given location, and passes it to the given visitor. If the
+	 * record is part of a batch, only that record is passed on. The caller must hold the
+	 * read lock.
+	 *
+	 * @param location the location of the record.
+	 * @param visitor the visitor to pass the record to.
+	 * @throws IOException if the record could not be read.
+	 */
+	private static void readRecord(final Location location, final RecordLog.Visitor visitor)
+			throws IOException {
+		if (location.offset < 0) {
+			location.segment.log.read(location.position, visitor);
+			return;
+		}
+		location.segment.log.read(location.position, new RecordLog.Visitor() {
+
+			@Override
+			public void visit(long position, byte op, byte[] key, byte[] value)
+					throws IOException {
+				BatchRecord record = SharedStore.unpackRecord(value, location.offset);
+				visitor.visit(position, record.op, record.key, record.value);
+			}
+
+		});
+	}
+
+	/**
+	 * Splits the value of a batch record into the records that it holds.
+	 *
+	 * @param batch the value of the batch record.
+	 * @return the records in the batch, in order.
+	 * @throws IOException if the batch is not valid.
+	 */
+	private static List<BatchRecord> unpackBatch(byte[] batch) throws IOException {
+		List<BatchRecord> records = new ArrayList<BatchRecord>();
+		int offset = 0;
+		while (offset < batch.length) {
+			BatchRecord record = SharedStore.unpackRecord(batch, offset);
+			records.add(record);
+			offset += record.size;
+		}
+		return records;
+	}
+
+	/**
+	 * Reads one record from the value of a batch record.
+	 *
+	 * @param batch the value of the batch record.
+	 * @param offset the offset of the record in the batch.
+	 * @return the record.
+	 * @throws IOException if the record is not valid.
+	 */
+	private static BatchRecord unpackRecord(byte[] batch, int offset) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(batch);
+		if (offset < 0 || batch.length - offset < SharedStore.BATCH_HEADER_SIZE) {
+			throw new IOException("Shared store batch is damaged");
+		}
+		buffer.position(offset);
+		byte op = buffer.get();
+		int keyLength = buffer.getInt();
+		if (keyLength < 0 || keyLength > buffer.remaining() - 4) {
+			throw new IOException("Shared store batch is damaged");
+		}
+		byte[] key = new byte[keyLength];
+		buffer.get(key);
+		int valueLength = buffer.getInt();
+		if (valueLength < 0 || valueLength > buffer.remaining()) {
+			throw new IOException("Shared store batch is damaged");
+		}
+		byte[] value = new byte[valueLength];
+		buffer.get(value);
+		return new BatchRecord(offset, op, key, value);
+	}
+
+	/**
+	 * Reads the list of segments from the manifest file.
+	 *
+	 * @return the identifiers of the segments, from the oldest to the newest, or an empty
+	 * array if there is no manifest yet.
+	 * @throws IOException if the manifest exists, but could not be read.
+	 */
+	private int[] readManifest() throws IOException {
+		File file = new File(this.directory, SharedStore.MANIFEST_NAME);
+		if (!file.exists()) {
+			return new int[0];
+		}
+		byte[] bytes = new byte[(int) file.length()];
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			in.readFully(bytes);
+		} finally {
+			in.close();
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, Math.max(0, bytes.length - 4));
+		byte[] magic = new byte[SharedStore.MANIFEST_MAGIC.length];
+		if (bytes.length < magic.length + 12) {
+			throw new IOException("The shared store manifest is damaged: " + file);
+		}
+		buffer.get(magic);
+		int version = buffer.getInt();
+		int count = buffer.getInt();
+		if (!Arrays.equals(magic, SharedStore.MANIFEST_MAGIC)
+				|| version != SharedStore.MANIFEST_VERSION || count < 0
+				|| bytes.length != magic.length + 12 + 4 * count
+				|| buffer.getInt(bytes.length - 4) != (int) crc.getValue()) {
+			throw new IOException("The shared store manifest is damaged: " + file);
+		}
+		int[] ids = new int[count];
+		for (int i = 0; i < count; i++) {
+			ids[i] = buffer.getInt();
+		}
+		return ids;
+	}
+
+	/**
+	 * Replaces the manifest file with the current list of segments. The new manifest is
+	 * forced to the disk before it replaces the old one, so that a crash leaves one or the
+	 * other. The caller must hold the lock, or be the constructor.
+	 *
+	 * @throws IOException if the manifest could not be written.
+	 */
+	private void writeManifest() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.write(SharedStore.MANIFEST_MAGIC);
+		out.writeInt(SharedStore.MANIFEST_VERSION);
+		out.writeInt(this.segments.size());
+		for (Segment segment : this.segments) {
+			out.writeInt(segment.id);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(bytes.toByteArray());
+		out.writeInt((int) crc.getValue());
+		out.flush();
+		File file = new File(this.directory, SharedStore.MANIFEST_NAME);
+		File temp = FileUtil.getTempFile(file);
+		FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+		FileUtil.replaceFile(temp, file);
+	}
+
+	/**
+	 * Deletes every segment file that the manifest does not list. Such files are left
+	 * behind if the server stops after a segment is created or compacted, but before the
+	 * manifest is replaced, and never hold any record that is not also elsewhere.
+	 *
+	 * @param ids the identifiers of the segments in the manifest.
+	 */
+	private void deleteUnlistedSegments(int[] ids) {
+		final Set<String> listed = new HashSet<String>();
+		for (int id : ids) {
+			listed.add(this.getSegmentFile(id).getName());
+		}
+		File[] unlisted = this.directory.listFiles(new FilenameFilter() {
+
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(SharedStore.SEGMENT_PREFIX)
+						&& name.endsWith(SharedStore.SEGMENT_SUFFIX) && !listed.contains(name);
+			}
+
+		});
+		if (unlisted != null) {
+			for (File file : unlisted) {
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * Returns the file that holds the segment with the given identifier.
+	 *
+	 * @param id the identifier of the segment.
+	 * @return the file of the segment.
+	 */
+	private File getSegmentFile(int id) {
+		return new File(this.directory, SharedStore.SEGMENT_PREFIX + id + SharedStore.SEGMENT_SUFFIX);
+	}
+
+	/**
+	 * Returns the four bytes of the given number, with the most significant byte first.
+	 *
+	 * @param value the number to convert.
+	 * @return the bytes of the number.
+	 */
+	private static byte[] intBytes(int value) {
+		return ByteBuffer.allocate(4).putInt(value).array();
+	}
+
+	/**
+	 * Reads the number in the first four bytes of the given array.
+	 *
+	 * @param bytes the bytes to read.
+	 * @return the number.
+	 * @throws IOException if the array is too short.
+	 */
+	private static int readInt(byte[] bytes) throws IOException {
+		if (bytes.length < 4) {
+			throw new IOException("Shared store record key is too short");
+		}
+		return ByteBuffer.wrap(bytes).getInt();
+	}
+
+	/**
+	 * A {@code Namespace} is the part of a {@code SharedStore} that holds the data of one
+	 * object, as a set of keys and values. Keys are compared by their bytes, so each key
+	 * must always be converted to the same bytes. Changes are appended to the log at once,
+	 * and are written to the disk together with the changes of every other namespace a
+	 * short time later, or when {@link #commit()} is called.
+	 */
+	public final class Namespace implements Closeable {
+
+		/**
+		 * The name of this namespace.
+		 */
+		private final String name;
+
+		/**
+		 * {@code true} once this namespace has been closed.
+		 */
+		private boolean closed;
+
+		/**
+		 * Constructs a new {@code Namespace} with the given name.
+		 *
+		 * @param name the name of the namespace.
+		 */
+		private Namespace(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Returns the name of this namespace.
+		 *
+		 * @return the name of this namespace.
+		 */
+		public String getName() {
+			return this.name;
+		}
+
+		/**
+		 * Returns the store that holds this namespace.
+		 *
+		 * @return the store of this namespace.
+		 */
+		public SharedStore getStore() {
+			return SharedStore.this;
+		}
+
+		/**
+		 * Returns the number of keys in this namespace.
+		 *
+		 * @return the number of keys.
+		 */
+		public int size() {
+			synchronized (SharedStore.this.lock) {
+				NamespaceIndex index = SharedStore.this.namespaces.get(this.name);
+				return (index == null) ? 0 : index.size;
+			}
+		}
+
+		/**
+		 * Determines if this namespace holds no keys.
+		 *
+		 * @return {@code true} if this namespace is empty; {@code false} otherwise.
+		 */
+		public boolean isEmpty() {
+			return this.size() == 0;
+		}
+
+		/**
+		 * Returns the number of bytes of current records in this namespace.
+		 *
+		 * @return the size of this namespace in the store, in bytes.
+		 */
+		public long getLiveBytes() {
+			synchronized (SharedStore.this.lock) {
+				NamespaceIndex index = SharedStore.this.namespaces.get(this.name);
+				if (index == null) {
+					return 0;
+				}
+				long bytes = index.definition.size;
+				for (Location location : index.entries.values()) {
+					bytes += location.size;
+				}
+				return bytes;
+			}
+		}
+
+		/**
+		 * Maps the given key to the given value. If the calling thread has started a batch,
+		 * the change is added to the batch instead.
+		 *
+		 * @param key the key.
+		 * @param value the value.
+		 * @return the number of bytes appended to the log.
+		 * @throws IOException if the change could not be appended.
+		 */
+		public int put(byte[] key, byte[] value) throws IOException {
+			if (this.stage(SharedStore.PUT, key, value)) {
+				return SharedStore.BATCH_HEADER_SIZE + 4 + key.length + value.length;
+			}
+			synchronized (SharedStore.this.lock) {
+				return this.putNow(key, value);
+			}
+		}
+
+		/**
+		 * Maps the given key to the given value in the log. The caller must hold the lock.
+		 *
+		 * @param key the key.
+		 * @param value the value.
+		 * @return the number of bytes appended to the log.
+		 * @throws IOException if the change could not be appended.
+		 */
+		private int putNow(byte[] key, byte[] value) throws IOException {
+			this.checkOpen();
+			NamespaceIndex index = SharedStore.this.namespaces.get(this.name);
+			if (index == null) {
+				index = SharedStore.this.define(this.name);
+			}
+			Location location = SharedStore.this.append(SharedStore.PUT,
+					this.recordKey(index, key), value);
+			Location old = index.entries.put(new ByteKey(key), location);
+			SharedStore.this.release(old);
+			if (old == null || old.removed) {
+				index.size++;
+			}
+			return location.size;
+		}
+
+		/**
+		 * Removes the given key, if this namespace holds it. If the calling thread has
+		 * started a batch, the change is added to the batch instead.
+		 *
+		 * @param key the key.
+		 * @return the number of bytes appended to the log.
+		 * @throws IOException if the change could not be appended.
+		 */
+		public int remove(byte[] key) throws IOException {
+			if (this.stage(SharedStore.REMOVE, key, new byte[0])) {
+				return SharedStore.BATCH_HEADER_SIZE + 4 + key.length;
+			}
+			synchronized (SharedStore.this.lock) {
+				return this.removeNow(key);
+			}
+		}
+
+		/**
+		 * Removes the given key from the log, if this namespace holds it. The caller must
+		 * hold the lock.
+		 *
+		 * @param key the key.
+		 * @return the number of bytes appended to the log.
+		 * @throws IOException if the change could not be appended.
+		 */
+		private int removeNow(byte[] key) throws IOException {
+			this.checkOpen();
+			NamespaceIndex index = SharedStore.this.namespaces.get(this.name);
+			ByteKey entryKey = new ByteKey(key);
+			Location old = (index == null) ? null : index.entries.get(entryKey);
+			if (old == null || old.removed) {
+				return 0;
+			}
+			Location location = SharedStore.this.append(SharedStore.REMOVE,
+					this.recordKey(index, key), new byte[0]);
+			index.entries.put(entryKey, location);
+			SharedStore.this.release(old);
+			index.size--;
+			return location.size;
+		}
+
+		/**
+		 * Removes every key from this namespace. This appends a single small record, no
+		 * matter how many keys there were. If the calling thread has started a batch, the
+		 * change is added to the batch instead.
+		 *
+		 * @throws IOException if the change could not be appended.
+		 */
+		public void clear() throws IOException {
+			if (this.stage(SharedStore.DEFINE, null, null)) {
+				return;
+			}
+			synchronized (SharedStore.this.lock) {
+				this.clearNow();
+			}
+		}
+
+		/**
+		 * Removes every key from this namespace in the log. The caller must hold the lock.
+		 *
+		 * @throws IOException if the change could not be appended.
+		 */
+		private void clearNow() throws IOException {
+			this.checkOpen();
+			if (SharedStore.this.namespaces.containsKey(this.name)) {
+				SharedStore.this.define(this.name);
+				SharedStore.this.startCompaction();
+			}
+		}
+
+		/**
+		 * Adds the given change to the batch of the calling thread, if it has started one.
+		 *
+		 * @param op the operation code of the change.
+		 * @param key the key that is changed, or {@code null} for a change to every key.
+		 * @param value the new value of the key, or {@code null} for a change to every key.
+		 * @return {@code true} if the change was added to a batch; {@code false} if it must
+		 * be appended to the log now.
+		 * @throws IOException if this namespace has been closed.
+		 */
+		private boolean stage(byte op, byte[] key, byte[] value) throws IOException {
+			List<StagedChange> batch = SharedStore.this.batches.get();
+			if (batch == null) {
+				return false;
+			}
+			synchronized (SharedStore.this.lock) {
+				this.checkOpen();
+			}
+			batch.add(new StagedChange(this, op, key, value));
+			return true;
+		}
+
+		/**
+		 * Returns the value of the given key.
+		 *
+		 * @param key the key.
+		 * @return the value, or {@code null} if this namespace does not hold the key.
+		 * @throws IOException if the value could not be read.
+		 */
+		public byte[] get(byte[] key) throws IOException {
+			final byte[][] value = new byte[1][];
+			// A segment is only closed after every record in it has moved, so holding the
+			// read lock while finding a record keeps its segment open until it is read
+			SharedStore.this.segmentLock.readLock().lock();
+			try {
+				Location location;
+				synchronized (SharedStore.this.lock) {
+					SharedStore.this.checkOpen();
+					NamespaceIndex index = SharedStore.this.namespaces.get(this.name);
+					location = (index == null) ? null : index.entries.get(new ByteKey(key));
+				}
+				if (location == null || location.removed) {
+					return null;
+				}
+				SharedStore.readRecord(location, new RecordLog.Visitor() {
+
+					@Override
+					public void visit(long position, byte op, byte[] k, byte[] v) {
+						value[0] = v;
+					}
+
+				});
+			} finally {
+				SharedStore.this.segmentLock.readLock().unlock();
+			}
+			return value[0];
+		}
+
+		/**
+		 * Reads every key and value in this namespace, in the order that they are stored in
+		 * the log, and passes each of them to the given visitor.
+		 *
+		 * @param visitor the visitor to pass each key and value to.
+		 * @throws IOException if the namespace could not be read.
+		 */
+		public void read(final EntryVisitor visitor) throws IOException {
+			final List<Location> locations = new ArrayList<Location>();
+			final Map<Segment, Integer> order = new HashMap<Segment, Integer>();
+			RecordLog.Visitor reader = new RecordLog.Visitor() {
+
+				@Override
+				public void visit(long position, byte op, byte[] key, byte[] value)
+						throws IOException {
+					visitor.visit(Arrays.copyOfRange(key, 4, key.length), value);
+				}
+
+			};
+			SharedStore.this.segmentLock.readLock().lock();
+			try {
+				synchronized (SharedStore.this.lock) {
+					SharedStore.this.checkOpen();
+					NamespaceIndex index = SharedStore.this.namespaces.get(this.name);
+					if (index == null) {
+						return;
+					}
+					for (Location location : index.entries.values()) {
+						if (!location.removed) {
+							locations.add(location);
+						}
+					}
+					for (int i = 0; i < SharedStore.this.segments.size(); i++) {
+						order.put(SharedStore.this.segments.get(i), i);
+					}
+				}
+				// Reading in the order of the log keeps the reads sequential
+				Collections.sort(locations, new Comparator<Location>() {
+
+					@Override
+					public int compare(Location first, Location second) {
+						int bySegment = Integer.compare(order.get(first.segment),
+								order.get(second.segment));
+						if (bySegment != 0) {
+							return bySegment;
+						} else if (first.position != second.position) {
+							return Long.compare(first.position, second.position);
+						}
+						return Integer.compare(first.offset, second.offset);
+					}
+
+				});
+				for (Location location : locations) {
+					SharedStore.readRecord(location, reader);
+				}
+			} finally {
+				SharedStore.this.segmentLock.readLock().unlock();
+			}
+		}
+
+		/**
+		 * Writes every change in the store to the disk, and waits until the disk has
+		 * confirmed that they are stored.
+		 *
+		 * @throws IOException if the changes could not be written.
+		 * @see SharedStore#commit()
+		 */
+		public void commit() throws IOException {
+			SharedStore.this.commit();
+		}
+
+		/**
+		 * Commits every change, and closes this namespace. If the store has been asked to
+		 * close and this was the last namespace that was open, the store is closed as well.
+		 *
+		 * @throws IOException if the changes could not be written.
+		 */
+		@Override
+		public void close() throws IOException {
+			boolean last;
+			synchronized (SharedStore.this.lock) {
+				if (this.closed) {
+					return;
+				}
+				this.closed = true;
+				SharedStore.this.openNamespaces.remove(this.name);
+				last = SharedStore.this.closing && SharedStore.this.openNamespaces.isEmpty();
+				if (!last) {
+					SharedStore.this.startCompaction();
+				}
+			}
+			try {
+				this.commit();
+			} finally {
+				if (last) {
+					SharedStore.this.closeNow();
+				}
+			}
+		}
+
+		/**
+		 * Makes sure that this namespace is still open. The caller must hold the lock.
+		 *
+		 * @throws IOException if this namespace has been closed.
+		 */
+		private void checkOpen() throws IOException {
+			if (this.closed) {
+				throw new IOException("The namespace has been closed: " + this.name);
+			}
+		}
+
+		/**
+		 * Returns the key of the record for the given key of this namespace, which starts
+		 * with the number that this namespace is bound to.
+		 *
+		 * @param index the index of this namespace.
+		 * @param key the key in this namespace.
+		 * @return the key of the record.
+		 */
+		private byte[] recordKey(NamespaceIndex index, byte[] key) {
+			byte[] recordKey = new byte[4 + key.length];
+			ByteBuffer.wrap(recordKey).putInt(index.number).put(key);
+			return recordKey;
+		}
+
+	}
+
+	/**
+	 * An {@code EntryVisitor} receives the keys and values of a namespace as they are read.
+	 */
+	public static interface EntryVisitor {
+
+		/**
+		 * Receives one key and its value.
+		 *
+		 * @param key the key.
+		 * @param value the value.
+		 * @throws IOException if the entry could not be processed.
+		 */
+		public void visit(byte[] key, byte[] value) throws IOException;
+
+	}
+
+	/**
+	 * A {@code Segment} is one file of the log.
+	 */
+	private static class Segment {
+
+		/**
+		 * The identifier of this segment, which is part of the name of its file.
+		 */
+		private final int id;
+
+		/**
+		 * The log that is stored in the file of this segment.
+		 */
+		private final RecordLog log;
+
+		/**
+		 * The number of bytes of records in this segment that are still current.
+		 */
+		private long liveBytes;
+
+		/**
+		 * Constructs a new {@code Segment}.
+		 *
+		 * @param id the identifier of the segment.
+		 * @param log the log that is stored in the file of the segment.
+		 */
+		private Segment(int id, RecordLog log) {
+			this.id = id;
+			this.log = log;
+		}
+
+	}
+
+	/**
+	 * A {@code Location} is the place of a record in the log.
+	 */
+	private static class Location {
+
+		/**
+		 * The segment that holds the record, or {@code null} until the batch that holds the
+		 * record has been appended.
+		 */
+		private Segment segment;
+
+		/**
+		 * The position of the record in its segment, or of the batch that holds it.
+		 */
+		private long position;
+
+		/**
+		 * The offset of the record in the batch that holds it, or {@code -1} if it is not
+		 * part of a batch.
+		 */
+		private final int offset;
+
+		/**
+		 * The size of the record, in bytes, including its header.
+		 */
+		private final int size;
+
+		/**
+		 * {@code true} if the record removes its key.
+		 */
+		private final boolean removed;
+
+		/**
+		 * Constructs a new {@code Location}.
+		 *
+		 * @param segment the segment that holds the record.
+		 * @param position the position of the record in its segment.
+		 * @param offset the offset of the record in its batch, or {@code -1}.
+		 * @param size the size of the record, in bytes.
+		 * @param removed {@code true} if the record removes its key.
+		 */
+		private Location(Segment segment, long position, int offset, int size,
+				boolean removed) {
+			this.segment = segment;
+			this.position = position;
+			this.offset = offset;
+			this.size = size;
+			this.removed = removed;
+		}
+
+		/**
+		 * Determines if this is the location of the record at the given position of the
+		 * given segment.
+		 *
+		 * @param segment the segment.
+		 * @param position the position in the segment.
+		 * @param offset the offset in the batch at that position, or {@code -1}.
+		 * @return {@code true} if this location is the same place.
+		 */
+		private boolean isAt(Segment segment, long position, int offset) {
+			return this.segment == segment && this.position == position && this.offset == offset;
+		}
+
+	}
+
+	/**
+	 * A {@code StagedChange} is a change that a thread has made to a namespace while it has
+	 * a batch in progress.
+	 */
+	private static class StagedChange {
+
+		/**
+		 * The namespace that is changed.
+		 */
+		private final Namespace namespace;
+
+		/**
+		 * The operation code of the change; {@code DEFINE} clears the namespace.
+		 */
+		private final byte op;
+
+		/**
+		 * The key that is changed, or {@code null} if the namespace is cleared.
+		 */
+		private final byte[] key;
+
+		/**
+		 * The new value of the key, or {@code null} if the key is removed or the namespace
+		 * is cleared.
+		 */
+		private final byte[] value;
+
+		/**
+		 * Constructs a new {@code StagedChange}.
+		 *
+		 * @param namespace the namespace that is changed.
+		 * @param op the operation code of the change.
+		 * @param key the key that is changed.
+		 * @param value the new value of the key.
+		 */
+		private StagedChange(Namespace namespace, byte op, byte[] key, byte[] value) {
+			this.namespace = namespace;
+			this.op = op;
+			this.key = key;
+			this.value = value;
+		}
+
+		/**
+		 * Makes this change to the index of the namespace, and adds its record to the batch
+		 * that is being appended. The caller must hold the lock.
+		 *
+		 * @throws IOException if the change could not be made.
+		 */
+		private void apply() throws IOException {
+			if (this.op == SharedStore.PUT) {
+				this.namespace.putNow(this.key, this.value);
+			} else if (this.op == SharedStore.REMOVE) {
+				this.namespace.removeNow(this.key);
+			} else {
+				this.namespace.clearNow();
+			}
+		}
+
+	}
+
+	/**
+	 * A {@code BatchRecord} is one record in the value of a batch record.
+	 */
+	private static class BatchRecord {
+
+		/**
+		 * The offset of the record in the batch.
+		 */
+		private final int offset;
+
+		/**
+		 * The size of the record in the batch, in bytes.
+		 */
+		private final int size;
+
+		/**
+		 * The operation code of the record.
+		 */
+		private final byte op;
+
+		/**
+		 * The key of the record.
+		 */
+		private final byte[] key;
+
+		/**
+		 * The value of the record.
+		 */
+		private final byte[] value;
+
+		/**
+		 * Constructs a new {@code BatchRecord}.
+		 *
+		 * @param offset the offset of the record in the batch.
+		 * @param op the operation code of the record.
+		 * @param key the key of the record.
+		 * @param value the value of the record.
+		 */
+		private BatchRecord(int offset, byte op, byte[] key, byte[] value) {
+			this.offset = offset;
+			this.size = SharedStore.BATCH_HEADER_SIZE + key.length + value.length;
+			this.op = op;
+			this.key = key;
+			this.value = value;
+		}
+
+	}
+
+	/**
+	 * A {@code NamespaceIndex} holds the location of the most recent record for every key
+	 * of one binding of a namespace.
+	 */
+	private static class NamespaceIndex {
+
+		/**
+		 * The name of the namespace, or {@code null} while the store is being loaded and
+		 * the binding has not been read yet.
+		 */
+		private String name;
+
+		/**
+		 * The number that the namespace is bound to.
+		 */
+		private final int number;
+
+		/**
+		 * The location of the record that binds the namespace to its number.
+		 */
+		private Location definition;
+
+		/**
+		 * The location of the most recent record for every key, including keys that have
+		 * been removed while an older segment may still hold a value for them.
+		 */
+		private final Map<ByteKey, Location> entries;
+
+		/**
+		 * The number of keys that have not been removed.
+		 */
+		private int size;
+
+		/**
+		 * Constructs a new, empty {@code NamespaceIndex}.
+		 *
+		 * @param name the name of the namespace.
+		 * @param number the number that the namespace is bound to.
+		 */
+		private NamespaceIndex(String name, int number) {
+			this.name = name;
+			this.number = number;
+			this.entries = new HashMap<ByteKey, Location>();
+		}
+
+	}
+
+	/**
+	 * A {@code ByteKey} is an array of bytes that can be used as the key of a map.
+	 */
+	private static class ByteKey {
+
+		/**
+		 * The bytes of the key.
+		 */
+		private final byte[] bytes;
+
+		/**
+		 * The hash code of the bytes.
+		 */
+		private final int hash;
+
+		/**
+		 * Constructs a new {@code ByteKey} for the given bytes.
+		 *
+		 * @param bytes the bytes of the key.
+		 */
+		private ByteKey(byte[] bytes) {
+			this.bytes = bytes;
+			this.hash = Arrays.hashCode(bytes);
+		}
+
+		@Override
+		public int hashCode() {
+			return this.hash;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof ByteKey && Arrays.equals(this.bytes, ((ByteKey) other).bytes);
+		}
+
+	}
+
+}
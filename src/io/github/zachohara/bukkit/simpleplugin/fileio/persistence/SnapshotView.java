@@ -0,0 +1,499 @@
+/* Copyright (C) 2017 Zach Ohara
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.zachohara.bukkit.simpleplugin.fileio.persistence;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A {@code SnapshotView} is a read-only view of the entries of a {@code PersistentMap}, as
+ * they were when the map was last saved to its file. The file is mapped into memory
+ * instead of being read onto the heap, and each entry is decoded only when it is visited,
+ * so a view of a large map can be queried on background threads without touching the live
+ * map, and without keeping a second copy of it in memory. The entries can be streamed in
+ * parallel: the first time a view is split, it scans the file once to find where each
+ * block of entries starts.
+ * <p>
+ * The view does not change when the map is saved again, because each save replaces the
+ * file instead of writing over it. Only files written by the {@code BinaryCodec} can be
+ * viewed. A compressed file is decompressed onto the heap when the view is opened, and on
+ * Windows, where a mapped file cannot be replaced, the file is always read onto the heap.
+ *
+ * @param <K> the type of the keys of the map.
+ * @param <V> the type of the values of the map.
+ * @author Zach Ohara
+ * @see PersistentMap#openSnapshotView()
+ */
+public class SnapshotView<K extends Serializable, V extends Serializable> implements Closeable {
+
+	/**
+	 * The number of entries between the positions that are recorded when the file is
+	 * scanned for splitting.
+	 */
+	private static final int BLOCK_SIZE = 1024;
+
+	/**
+	 * Whether files must be read onto the heap instead of mapped, because the platform
+	 * does not allow a mapped file to be replaced.
+	 */
+	private static final boolean AVOID_MAPPING = File.separatorChar == '\\';
+
+	/**
+	 * The file that is viewed.
+	 */
+	private final File file;
+
+	/**
+	 * The codec that decodes the entries.
+	 */
+	private final BinaryCodec codec;
+
+	/**
+	 * The number of entries in the file.
+	 */
+	private final int size;
+
+	/**
+	 * The type of the keys, as written by the codec.
+	 */
+	private final int keyType;
+
+	/**
+	 * The type of the values, as written by the codec.
+	 */
+	private final int valueType;
+
+	/**
+	 * The position of the first entry in the data.
+	 */
+	private final int start;
+
+	/**
+	 * Whether the data is mapped from the file, rather than stored on the heap.
+	 */
+	private final boolean mapped;
+
+	/**
+	 * The contents of the file, or {@code null} if this view is closed.
+	 */
+	private volatile ByteBuffer data;
+
+	/**
+	 * The position of every {@link #BLOCK_SIZE}th entry, or {@code null} if the file has
+	 * not been scanned yet.
+	 */
+	private int[] blocks;
+
+	/**
+	 * Opens a view of the map stored in the given file.
+	 *
+	 * @param file the file to view.
+	 * @throws IOException if the file could not be read, or does not hold a map written by
+	 * the {@code BinaryCodec}.
+	 */
+	SnapshotView(File file) throws IOException {
+		this.file = file;
+		ByteBuffer buffer = SnapshotView.load(file);
+		boolean fromFile = !buffer.hasArray();
+		InputStream in = new BufferInputStream(buffer);
+		InputStream decompressed = PayloadFormat.decompress(in);
+		if (decompressed != in) {
+			buffer = SnapshotView.readAll(decompressed);
+			fromFile = false;
+			in = new BufferInputStream(buffer);
+		}
+		PayloadCodec fileCodec = PayloadFormat.readCodec(in);
+		if (!(fileCodec instanceof BinaryCodec)) {
+			throw new IOException("Only files written by the binary codec can be viewed: " + file);
+		}
+		this.codec = (BinaryCodec) fileCodec;
+		int[] layout = this.codec.readMapStart(new DataInputStream(in));
+		this.size = layout[0];
+		this.keyType = layout[1];
+		this.valueType = layout[2];
+		this.start = buffer.position();
+		this.mapped = fromFile;
+		this.data = buffer;
+	}
+
+	/**
+	 * Maps the given file into memory, or reads it onto the heap if files should not be
+	 * mapped on this platform.
+	 *
+	 * @param file the file to load.
+	 * @return the contents of the file.
+	 * @throws IOException if the file could not be read.
+	 */
+	private static ByteBuffer load(File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			long length = channel.size();
+			if (length > Integer.MAX_VALUE) {
+				throw new IOException("The file is too large to be viewed: " + file);
+			}
+			if (SnapshotView.AVOID_MAPPING) {
+				ByteBuffer buffer = ByteBuffer.allocate((int) length);
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer) < 0) {
+						throw new IOException("The file ended unexpectedly: " + file);
+					}
+				}
+				buffer.flip();
+				return buffer;
+			}
+			// The mapping stays valid after the channel is closed
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Reads every remaining byte of the given stream onto the heap, and closes the stream.
+	 *
+	 * @param in the stream to read.
+	 * @return the bytes that were read.
+	 * @throws IOException if the stream could not be read.
+	 */
+	private static ByteBuffer readAll(InputStream in) throws IOException {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] chunk = new byte[64 * 1024];
+			int read;
+			while ((read = in.read(chunk)) >= 0) {
+				bytes.write(chunk, 0, read);
+			}
+			return ByteBuffer.wrap(bytes.toByteArray());
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Returns the file that is viewed.
+	 *
+	 * @return the file that is viewed.
+	 */
+	public File getFile() {
+		return this.file;
+	}
+
+	/**
+	 * Returns the number of entries in this view.
+	 *
+	 * @return the number of entries.
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Determines if this view reads the entries directly from the mapped file. If it does
+	 * not, the contents of the file were copied onto the heap when the view was opened.
+	 *
+	 * @return {@code true} if the file is mapped; {@code false} otherwise.
+	 */
+	public boolean isMapped() {
+		return this.mapped;
+	}
+
+	/**
+	 * Visits every entry in this view, in the order they are stored in the file.
+	 *
+	 * @param action receives the key and value of every entry.
+	 * @throws UncheckedIOException if an entry could not be decoded.
+	 */
+	public void forEach(final BiConsumer<? super K, ? super V> action) {
+		this.spliterator().forEachRemaining(new Consumer<Map.Entry<K, V>>() {
+
+			@Override
+			public void accept(Map.Entry<K, V> entry) {
+				action.accept(entry.getKey(), entry.getValue());
+			}
+
+		});
+	}
+
+	/**
+	 * Returns a sequential stream of the entries in this view.
+	 *
+	 * @return a stream of the entries.
+	 */
+	public Stream<Map.Entry<K, V>> stream() {
+		return StreamSupport.stream(this.spliterator(), false);
+	}
+
+	/**
+	 * Returns a parallel stream of the entries in this view. The first time a view is
+	 * split, the calling thread scans the file to find where each block of entries starts.
+	 *
+	 * @return a parallel stream of the entries.
+	 */
+	public Stream<Map.Entry<K, V>> parallelStream() {
+		return StreamSupport.stream(this.spliterator(), true);
+	}
+
+	/**
+	 * Returns a spliterator over the entries in this view. Every entry is decoded when it
+	 * is visited, and a decoding error is thrown as an {@code UncheckedIOException}.
+	 *
+	 * @return a spliterator over the entries.
+	 */
+	public Spliterator<Map.Entry<K, V>> spliterator() {
+		ByteBuffer buffer = this.buffer().duplicate();
+		buffer.position(this.start);
+		return new EntrySpliterator(buffer, 0, this.size);
+	}
+
+	/**
+	 * Closes this view. Entries can no longer be read afterwards. A mapped file is
+	 * released once nothing refers to the mapping any more.
+	 */
+	@Override
+	public void close() {
+		this.data = null;
+	}
+
+	/**
+	 * Returns the contents of the file.
+	 *
+	 * @return the contents of the file.
+	 * @throws IllegalStateException if this view is closed.
+	 */
+	private ByteBuffer buffer() {
+		ByteBuffer buffer = this.data;
+		if (buffer == null) {
+			throw new IllegalStateException("The snapshot view is closed: " + this.file);
+		}
+		return buffer;
+	}
+
+	/**
+	 * Returns the position of every {@link #BLOCK_SIZE}th entry, scanning the file the
+	 * first time this is called.
+	 *
+	 * @return the position of every {@link #BLOCK_SIZE}th entry.
+	 * @throws UncheckedIOException if the file could not be scanned.
+	 */
+	private synchronized int[] blocks() {
+		if (this.blocks == null) {
+			ByteBuffer buffer = this.buffer().duplicate();
+			buffer.position(this.start);
+			DataInputStream in = new DataInputStream(new BufferInputStream(buffer));
+			int[] positions = new int[(this.size + SnapshotView.BLOCK_SIZE - 1)
+					/ SnapshotView.BLOCK_SIZE];
+			try {
+				for (int i = 0; i < this.size; i++) {
+					if (i % SnapshotView.BLOCK_SIZE == 0) {
+						positions[i / SnapshotView.BLOCK_SIZE] = buffer.position();
+					}
+					this.codec.skipElement(in, this.keyType);
+					this.codec.skipElement(in, this.valueType);
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException("Error scanning: " + this.file, e);
+			}
+			this.blocks = positions;
+		}
+		return this.blocks;
+	}
+
+	/**
+	 * An {@code EntrySpliterator} decodes a range of the entries in the file.
+	 */
+	private class EntrySpliterator implements Spliterator<Map.Entry<K, V>> {
+
+		/**
+		 * The contents of the file, positioned at the next entry.
+		 */
+		private final ByteBuffer buffer;
+
+		/**
+		 * The stream that reads from the buffer.
+		 */
+		private final DataInputStream in;
+
+		/**
+		 * The index of the next entry.
+		 */
+		private int index;
+
+		/**
+		 * The index after the last entry in the range.
+		 */
+		private final int end;
+
+		/**
+		 * Constructs a new {@code EntrySpliterator}.
+		 *
+		 * @param buffer the contents of the file, positioned at the first entry in the
+		 * range.
+		 * @param index the index of the first entry in the range.
+		 * @param end the index after the last entry in the range.
+		 */
+		public EntrySpliterator(ByteBuffer buffer, int index, int end) {
+			this.buffer = buffer;
+			this.in = new DataInputStream(new BufferInputStream(buffer));
+			this.index = index;
+			this.end = end;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public boolean tryAdvance(Consumer<? super Map.Entry<K, V>> action) {
+			if (this.index >= this.end) {
+				return false;
+			}
+			SnapshotView.this.buffer();
+			K key;
+			V value;
+			try {
+				key = (K) SnapshotView.this.codec.readElement(this.in, SnapshotView.this.keyType);
+				value = (V) SnapshotView.this.codec.readElement(this.in,
+						SnapshotView.this.valueType);
+			} catch (IOException e) {
+				throw new UncheckedIOException("Error reading entry from: " + SnapshotView.this.file,
+						e);
+			}
+			this.index++;
+			action.accept(new AbstractMap.SimpleImmutableEntry<K, V>(key, value));
+			return true;
+		}
+
+		@Override
+		public Spliterator<Map.Entry<K, V>> trySplit() {
+			int firstBlock = (this.index + SnapshotView.BLOCK_SIZE - 1) / SnapshotView.BLOCK_SIZE;
+			int lastBlock = (this.end - 1) / SnapshotView.BLOCK_SIZE;
+			if (lastBlock <= firstBlock) {
+				return null;
+			}
+			int middle = (firstBlock + lastBlock + 1) / 2;
+			int[] blocks = SnapshotView.this.blocks();
+			EntrySpliterator prefix = new EntrySpliterator(this.buffer.duplicate(), this.index,
+					middle * SnapshotView.BLOCK_SIZE);
+			this.index = middle * SnapshotView.BLOCK_SIZE;
+			this.buffer.position(blocks[middle]);
+			return prefix;
+		}
+
+		@Override
+		public long estimateSize() {
+			return this.end - this.index;
+		}
+
+		@Override
+		public int characteristics() {
+			return Spliterator.SIZED | Spliterator.SUBSIZED | Spliterator.DISTINCT
+					| Spliterator.NONNULL | Spliterator.IMMUTABLE;
+		}
+
+	}
+
+	/**
+	 * A {@code BufferInputStream} reads from a {@code ByteBuffer}, and moves the position
+	 * of the buffer as it reads.
+	 */
+	private static class BufferInputStream extends InputStream {
+
+		/**
+		 * The buffer to read from.
+		 */
+		private final ByteBuffer buffer;
+
+		/**
+		 * The position that {@link #reset()} returns to.
+		 */
+		private int mark;
+
+		/**
+		 * Constructs a new {@code BufferInputStream}.
+		 *
+		 * @param buffer the buffer to read from, starting at its position.
+		 */
+		public BufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+			this.mark = buffer.position();
+		}
+
+		@Override
+		public int read() {
+			if (!this.buffer.hasRemaining()) {
+				return -1;
+			}
+			return this.buffer.get() & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			int remaining = this.buffer.remaining();
+			if (remaining == 0) {
+				return -1;
+			}
+			int count = Math.min(len, remaining);
+			this.buffer.get(b, off, count);
+			return count;
+		}
+
+		@Override
+		public long skip(long n) {
+			int count = (int) Math.max(0, Math.min(n, this.buffer.remaining()));
+			this.buffer.position(this.buffer.position() + count);
+			return count;
+		}
+
+		@Override
+		public int available() {
+			return this.buffer.remaining();
+		}
+
+		@Override
+		public boolean markSupported() {
+			return true;
+		}
+
+		@Override
+		public synchronized void mark(int readlimit) {
+			this.mark = this.buffer.position();
+		}
+
+		@Override
+		public synchronized void reset() {
+			this.buffer.position(this.mark);
+		}
+
+	}
+
+}
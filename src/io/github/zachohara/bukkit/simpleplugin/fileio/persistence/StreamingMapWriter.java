@@ -0,0 +1,184 @@
+/* Copyright (C) 2017 Zach Ohara
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.zachohara.bukkit.simpleplugin.fileio.persistence;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import io.github.zachohara.bukkit.simpleplugin.fileio.FileUtil;
+
+/**
+ * A {@code StreamingMapWriter} writes a map to a persistent data file one entry at a
+ * time, so that a map can be converted from one file to another without ever being held
+ * in memory. The file is written with the {@code BinaryCodec}, and can be read by any
+ * {@code PersistentMap}. The entries are written to a temporary file, which replaces the
+ * real file only when {@link #finish()} is called.
+ *
+ * @author Zach Ohara
+ */
+class StreamingMapWriter {
+
+	/**
+	 * The size of the buffer used when writing the file.
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * The file that will be replaced once the map is finished.
+	 */
+	private final File target;
+
+	/**
+	 * The temporary file that the map is written to.
+	 */
+	private final File temp;
+
+	/**
+	 * The channel of the temporary file.
+	 */
+	private final FileChannel channel;
+
+	/**
+	 * The stream that the entries are written to.
+	 */
+	private final DataOutputStream out;
+
+	/**
+	 * {@code true} if the keys of the map are {@code UUID}s; {@code false} if they are
+	 * strings.
+	 */
+	private final boolean uuidKeys;
+
+	/**
+	 * The position in the file of the placeholder for the size of the map.
+	 */
+	private final long sizePosition;
+
+	/**
+	 * The number of entries that have been written.
+	 */
+	private int size;
+
+	/**
+	 * Starts writing a new map that will replace the given file.
+	 *
+	 * @param target the file to replace.
+	 * @param uuidKeys {@code true} if the keys of the map are {@code UUID}s;
+	 * {@code false} if they are strings.
+	 * @throws IOException if the temporary file could not be created.
+	 */
+	public StreamingMapWriter(File target, boolean uuidKeys) throws IOException {
+		this(target, uuidKeys, 0);
+	}
+
+	/**
+	 * Starts writing a new map that will replace the given file, with the given schema
+	 * version in its header.
+	 *
+	 * @param target the file to replace.
+	 * @param uuidKeys {@code true} if the keys of the map are {@code UUID}s;
+	 * {@code false} if they are strings.
+	 * @param schemaVersion the schema version of the map.
+	 * @throws IOException if the temporary file could not be created.
+	 */
+	public StreamingMapWriter(File target, boolean uuidKeys, int schemaVersion)
+			throws IOException {
+		this.target = target;
+		this.temp = FileUtil.getTempFile(target);
+		this.uuidKeys = uuidKeys;
+		this.channel = FileChannel.open(this.temp.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		this.out = new DataOutputStream(new BufferedOutputStream(
+				Channels.newOutputStream(this.channel), StreamingMapWriter.BUFFER_SIZE));
+		PayloadFormat.writeSchemaVersion(this.out, schemaVersion);
+		PayloadFormat.writeHeader(this.out, BinaryCodec.INSTANCE);
+		this.out.flush();
+		this.sizePosition = this.channel.position() + 1;
+		BinaryCodec.INSTANCE.writeMapStart(this.out, uuidKeys);
+	}
+
+	/**
+	 * Writes a single entry of the map.
+	 *
+	 * @param key the key of the entry, which must be a {@code UUID} or a string, as given
+	 * to the constructor.
+	 * @param value the value of the entry.
+	 * @throws IOException if the entry could not be written.
+	 */
+	public void write(Object key, Object value) throws IOException {
+		BinaryCodec.INSTANCE.writeMapEntry(this.out, this.uuidKeys, key, value);
+		this.size++;
+	}
+
+	/**
+	 * Determines if the keys of the map are {@code UUID}s.
+	 *
+	 * @return {@code true} if the keys are {@code UUID}s; {@code false} if they are
+	 * strings.
+	 */
+	public boolean hasUUIDKeys() {
+		return this.uuidKeys;
+	}
+
+	/**
+	 * Returns the number of entries that have been written.
+	 *
+	 * @return the number of entries.
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Fills in the size of the map, forces the temporary file to the disk, and replaces
+	 * the real file with it.
+	 *
+	 * @throws IOException if the file could not be finished.
+	 */
+	public void finish() throws IOException {
+		try {
+			this.out.flush();
+			ByteBuffer size = ByteBuffer.wrap(BinaryCodec.encodeStreamedSize(this.size));
+			while (size.hasRemaining()) {
+				this.channel.write(size, this.sizePosition + size.position());
+			}
+			this.channel.force(true);
+		} finally {
+			this.channel.close();
+		}
+		FileUtil.replaceFile(this.temp, this.target);
+	}
+
+	/**
+	 * Closes and deletes the temporary file, leaving the real file as it was.
+	 */
+	public void abort() {
+		try {
+			this.channel.close();
+		} catch (IOException e) {
+			// The file is deleted anyway
+		}
+		this.temp.delete();
+	}
+
+}
@@ -0,0 +1,146 @@
+/* Copyright (C) 2017 Zach Ohara
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.zachohara.bukkit.simpleplugin.fileio.persistence;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A {@code StringKeyTable} is a {@code PrimitiveTable} whose keys are strings. Each key is
+ * stored as a reference in an array, so the only object kept for an entry is the key
+ * itself.
+ *
+ * @author Zach Ohara
+ */
+class StringKeyTable extends PrimitiveTable {
+
+	/**
+	 * The serial version of this class.
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The key in every slot, or {@code null} for a free slot.
+	 */
+	private String[] keys;
+
+	/**
+	 * Constructs a new {@code StringKeyTable} with no arrays.
+	 *
+	 * @param valueType the type of the values in the table.
+	 */
+	private StringKeyTable(byte valueType) {
+		super(valueType);
+	}
+
+	/**
+	 * Constructs a new, empty {@code StringKeyTable}.
+	 *
+	 * @param valueType the type of the values in the table.
+	 * @param expectedSize the number of keys the table should hold without growing.
+	 */
+	StringKeyTable(byte valueType, int expectedSize) {
+		super(valueType, expectedSize);
+	}
+
+	@Override
+	public byte getKeyType() {
+		return PrimitiveTable.STRING_KEYS;
+	}
+
+	@Override
+	protected boolean accepts(Object key) {
+		return key instanceof String;
+	}
+
+	@Override
+	protected int hash(Object key) {
+		return PrimitiveTable.mix(key.hashCode());
+	}
+
+	@Override
+	protected int hashAt(int slot) {
+		return PrimitiveTable.mix(this.keys[slot].hashCode());
+	}
+
+	@Override
+	public boolean isUsed(int slot) {
+		return this.keys[slot] != null;
+	}
+
+	@Override
+	protected boolean matches(int slot, Object key) {
+		return this.keys[slot].equals(key);
+	}
+
+	@Override
+	public String keyAt(int slot) {
+		return this.keys[slot];
+	}
+
+	@Override
+	protected void setKey(int slot, Object key) {
+		this.keys[slot] = (String) key;
+	}
+
+	@Override
+	protected void moveKey(int from, int to) {
+		this.keys[to] = this.keys[from];
+	}
+
+	@Override
+	protected void copyKey(PrimitiveTable source, int from, int to) {
+		this.keys[to] = ((StringKeyTable) source).keys[from];
+	}
+
+	@Override
+	protected void clearKey(int slot) {
+		this.keys[slot] = null;
+	}
+
+	@Override
+	protected void allocateKeys(int capacity) {
+		this.keys = new String[capacity];
+	}
+
+	@Override
+	protected void shareKeysOf(PrimitiveTable source) {
+		this.keys = ((StringKeyTable) source).keys;
+	}
+
+	@Override
+	protected void cloneKeys() {
+		this.keys = this.keys.clone();
+	}
+
+	@Override
+	protected PrimitiveTable emptyCopy() {
+		return new StringKeyTable(this.getValueType());
+	}
+
+	@Override
+	public void writeKey(DataOutputStream out, int slot) throws IOException {
+		BinaryCodec.writeString(out, this.keys[slot]);
+	}
+
+	@Override
+	public int readKey(DataInputStream in) throws IOException {
+		return this.insert(BinaryCodec.readString(in));
+	}
+
+}
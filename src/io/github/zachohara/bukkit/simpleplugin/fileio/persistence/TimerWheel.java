@@ -0,0 +1,324 @@
+/* Copyright (C) 2017 Zach Ohara
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.zachohara.bukkit.simpleplugin.fileio.persistence;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@code TimerWheel} is a hierarchical timing wheel, which keeps track of when each of
+ * a set of keys expires. Time is measured in whole ticks. The first level of the wheel has
+ * one slot for each of the next few ticks; each higher level has one slot for each of a
+ * few spans of the level below it. A key is put in the lowest level whose slots reach far
+ * enough, and is moved down a level each time the wheel reaches its slot, until it
+ * expires.
+ * <p>
+ * Scheduling, rescheduling and cancelling a key takes constant time, and advancing the
+ * wheel by one tick takes time in proportion to the number of keys that expire or are
+ * moved down a level, no matter how many keys are scheduled. This class is not thread
+ * safe.
+ *
+ * @param <K> the type of the keys.
+ * @author Zach Ohara
+ */
+class TimerWheel<K> {
+
+	/**
+	 * The number of bits of a tick that are used to find a slot in each level.
+	 */
+	private static final int SLOT_BITS = 6;
+
+	/**
+	 * The number of slots in each level.
+	 */
+	private static final int SLOTS = 1 << TimerWheel.SLOT_BITS;
+
+	/**
+	 * The number of levels. Keys that expire after the last level reaches are kept in a
+	 * separate list until it does.
+	 */
+	private static final int LEVELS = 4;
+
+	/**
+	 * The slots of every level, each of which is the first node in a list of the keys in
+	 * that slot.
+	 */
+	private final Node<K>[][] slots;
+
+	/**
+	 * The first node in the list of keys that expire after every level of the wheel.
+	 */
+	private Node<K> overflow;
+
+	/**
+	 * The node of every scheduled key.
+	 */
+	private final Map<K, Node<K>> nodes;
+
+	/**
+	 * The tick that the wheel has advanced to.
+	 */
+	private long currentTick;
+
+	/**
+	 * Constructs a new, empty {@code TimerWheel} that starts at the given tick.
+	 *
+	 * @param tick the tick to start at.
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public TimerWheel(long tick) {
+		this.slots = new Node[TimerWheel.LEVELS][TimerWheel.SLOTS];
+		this.nodes = new HashMap<K, Node<K>>();
+		this.currentTick = tick;
+	}
+
+	/**
+	 * Returns the tick that this wheel has advanced to.
+	 *
+	 * @return the current tick.
+	 */
+	public long getCurrentTick() {
+		return this.currentTick;
+	}
+
+	/**
+	 * Returns the number of keys that are scheduled.
+	 *
+	 * @return the number of keys that are scheduled.
+	 */
+	public int size() {
+		return this.nodes.size();
+	}
+
+	/**
+	 * Schedules the given key to expire at the given tick, replacing any earlier schedule
+	 * for it. A key scheduled for a tick that has already been reached expires the next
+	 * time the wheel is advanced.
+	 *
+	 * @param key the key to schedule.
+	 * @param tick the tick that the key expires at.
+	 */
+	public void schedule(K key, long tick) {
+		Node<K> node = this.nodes.get(key);
+		if (node == null) {
+			node = new Node<K>(key);
+			this.nodes.put(key, node);
+		} else {
+			this.unlink(node);
+		}
+		node.tick = Math.max(tick, this.currentTick + 1);
+		this.insert(node);
+	}
+
+	/**
+	 * Cancels the schedule for the given key, if there is one.
+	 *
+	 * @param key the key to cancel.
+	 * @return {@code true} if the key was scheduled.
+	 */
+	public boolean cancel(Object key) {
+		Node<K> node = this.nodes.remove(key);
+		if (node == null) {
+			return false;
+		}
+		this.unlink(node);
+		return true;
+	}
+
+	/**
+	 * Removes every key from this wheel.
+	 */
+	public void clear() {
+		for (Node<K>[] level : this.slots) {
+			for (int i = 0; i < level.length; i++) {
+				level[i] = null;
+			}
+		}
+		this.overflow = null;
+		this.nodes.clear();
+	}
+
+	/**
+	 * Advances this wheel to the given tick, and returns every key that expired on the
+	 * way, in the order that they expired. The expired keys are no longer scheduled.
+	 *
+	 * @param tick the tick to advance to.
+	 * @return the keys that expired.
+	 */
+	public List<K> advance(long tick) {
+		List<K> expired = new ArrayList<K>();
+		while (this.currentTick < tick) {
+			this.currentTick++;
+			// Move keys down from the higher levels first, as some may expire on this tick
+			if (this.index(0) == 0) {
+				this.cascade(1);
+			}
+			int slot = this.index(0);
+			Node<K> node = this.slots[0][slot];
+			this.slots[0][slot] = null;
+			while (node != null) {
+				Node<K> next = node.next;
+				node.previous = null;
+				node.next = null;
+				this.nodes.remove(node.key);
+				expired.add(node.key);
+				node = next;
+			}
+		}
+		return expired;
+	}
+
+	/**
+	 * Moves the keys in the current slot of the given level down to the levels below it,
+	 * after first doing the same for the level above, if the given level has finished a
+	 * full turn.
+	 *
+	 * @param level the level to move keys down from.
+	 */
+	private void cascade(int level) {
+		Node<K> node;
+		if (level == TimerWheel.LEVELS) {
+			node = this.overflow;
+			this.overflow = null;
+		} else {
+			if (this.index(level) == 0) {
+				this.cascade(level + 1);
+			}
+			int slot = this.index(level);
+			node = this.slots[level][slot];
+			this.slots[level][slot] = null;
+		}
+		while (node != null) {
+			Node<K> next = node.next;
+			node.previous = null;
+			node.next = null;
+			this.insert(node);
+			node = next;
+		}
+	}
+
+	/**
+	 * Returns the index of the current slot of the given level.
+	 *
+	 * @param level the level to find the current slot of.
+	 * @return the index of the current slot.
+	 */
+	private int index(int level) {
+		return (int) (this.currentTick >>> (level * TimerWheel.SLOT_BITS)) & (TimerWheel.SLOTS - 1);
+	}
+
+	/**
+	 * Puts the given node in the slot for the tick that it expires at.
+	 *
+	 * @param node the node to insert.
+	 */
+	private void insert(Node<K> node) {
+		long delay = Math.max(node.tick - this.currentTick, 0);
+		long tick = this.currentTick + delay;
+		for (int level = 0; level < TimerWheel.LEVELS; level++) {
+			if (delay < 1L << ((level + 1) * TimerWheel.SLOT_BITS)) {
+				int slot = (int) (tick >>> (level * TimerWheel.SLOT_BITS)) & (TimerWheel.SLOTS - 1);
+				node.level = level;
+				node.slot = slot;
+				node.next = this.slots[level][slot];
+				if (node.next != null) {
+					node.next.previous = node;
+				}
+				this.slots[level][slot] = node;
+				return;
+			}
+		}
+		node.level = TimerWheel.LEVELS;
+		node.next = this.overflow;
+		if (node.next != null) {
+			node.next.previous = node;
+		}
+		this.overflow = node;
+	}
+
+	/**
+	 * Removes the given node from the list that it is in.
+	 *
+	 * @param node the node to remove.
+	 */
+	private void unlink(Node<K> node) {
+		if (node.previous != null) {
+			node.previous.next = node.next;
+		} else if (node.level == TimerWheel.LEVELS) {
+			this.overflow = node.next;
+		} else {
+			this.slots[node.level][node.slot] = node.next;
+		}
+		if (node.next != null) {
+			node.next.previous = node.previous;
+		}
+		node.previous = null;
+		node.next = null;
+	}
+
+	/**
+	 * A {@code Node} is a key that is scheduled in a {@code TimerWheel}, and a link in the
+	 * list of keys in its slot.
+	 *
+	 * @param <K> the type of the key.
+	 */
+	private static class Node<K> {
+
+		/**
+		 * The key that is scheduled.
+		 */
+		private final K key;
+
+		/**
+		 * The tick that the key expires at.
+		 */
+		private long tick;
+
+		/**
+		 * The level of the slot that the key is in.
+		 */
+		private int level;
+
+		/**
+		 * The index of the slot that the key is in.
+		 */
+		private int slot;
+
+		/**
+		 * The previous node in the same slot, or {@code null} if this is the first.
+		 */
+		private Node<K> previous;
+
+		/**
+		 * The next node in the same slot, or {@code null} if this is the last.
+		 */
+		private Node<K> next;
+
+		/**
+		 * Constructs a new {@code Node} for the given key.
+		 *
+		 * @param key the key that is scheduled.
+		 */
+		private Node(K key) {
+			this.key = key;
+		}
+
+	}
+
+}
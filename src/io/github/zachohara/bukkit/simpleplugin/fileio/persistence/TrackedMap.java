@@ -0,0 +1,128 @@
+/* Copyright (C) 2017 Zach Ohara
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.zachohara.bukkit.simpleplugin.fileio.persistence;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * A {@code TrackedMap} is a map that is saved to the disk, and that records which of its
+ * keys have changed since it was last saved. It is the part of a {@code PersistentMap}
+ * that is shared by every kind of persistent map, including a
+ * {@code ShardedPersistentMap}, so code that only reads and writes entries can be written
+ * once for both.
+ * <p>
+ * A map sees every change made through its own methods, but not a change made to a value
+ * stored inside it, such as {@code map.get(key).add(x)}. Such a change must be reported
+ * with {@link #markDirty(Object)}, which also updates every secondary index of the map.
+ *
+ * @param <K> the key type of the map
+ * @param <V> the value type of the map
+ * @see PersistentMap
+ * @see ShardedPersistentMap
+ * @author Zach Ohara
+ */
+public interface TrackedMap<K, V> extends Map<K, V> {
+
+	/**
+	 * Records that the value for the given key has changed, so that it will be written the
+	 * next time this map is saved. This should be called after changing an object that is
+	 * stored in this map, because those changes cannot be detected automatically.
+	 *
+	 * @param key the key whose value has changed.
+	 */
+	void markDirty(K key);
+
+	/**
+	 * Returns the keys whose values have been changed or removed since this map was last
+	 * saved. A key that is in the returned set, but not in this map, has been removed.
+	 *
+	 * @return a copy of the set of changed keys.
+	 */
+	Set<K> getDirtyKeys();
+
+	/**
+	 * Adds a secondary index on the values of this map. The given function extracts the
+	 * result to index from each value, and the index can then find every key whose value
+	 * has a given result without a scan of the whole map. The index is built from the
+	 * current contents of the map, and is kept up to date on every change after that.
+	 *
+	 * @param <T> the type of the indexed results.
+	 * @param name the name of the index, which must be unique in this map.
+	 * @param extractor the function that extracts the indexed result from each value; a
+	 * result of {@code null} leaves the entry out of the index.
+	 * @return the new index.
+	 * @throws IllegalArgumentException if this map already has an index with the given
+	 * name.
+	 * @see MapIndex
+	 */
+	<T> MapIndex<K, V, T> addIndex(String name, Function<? super V, ? extends T> extractor);
+
+	/**
+	 * Adds a secondary index on the values of this map, which keeps its results in their
+	 * natural order, so that it also supports range lookups.
+	 *
+	 * @param <T> the type of the indexed results.
+	 * @param name the name of the index, which must be unique in this map.
+	 * @param extractor the function that extracts the indexed result from each value; a
+	 * result of {@code null} leaves the entry out of the index.
+	 * @return the new index.
+	 * @throws IllegalArgumentException if this map already has an index with the given
+	 * name.
+	 * @see #addIndex(String, Function)
+	 */
+	<T extends Comparable<? super T>> MapIndex<K, V, T> addSortedIndex(String name,
+			Function<? super V, ? extends T> extractor);
+
+	/**
+	 * Adds a secondary index on the values of this map, which keeps its results in the
+	 * order of the given comparator, so that it also supports range lookups.
+	 *
+	 * @param <T> the type of the indexed results.
+	 * @param name the name of the index, which must be unique in this map.
+	 * @param extractor the function that extracts the indexed result from each value; a
+	 * result of {@code null} leaves the entry out of the index.
+	 * @param comparator the order of the indexed results.
+	 * @return the new index.
+	 * @throws IllegalArgumentException if this map already has an index with the given
+	 * name.
+	 * @see #addIndex(String, Function)
+	 */
+	<T> MapIndex<K, V, T> addSortedIndex(String name, Function<? super V, ? extends T> extractor,
+			Comparator<? super T> comparator);
+
+	/**
+	 * Returns the secondary index with the given name.
+	 *
+	 * @param name the name of the index.
+	 * @return the index with the given name, or {@code null} if there is none.
+	 */
+	MapIndex<K, V, ?> getIndex(String name);
+
+	/**
+	 * Removes the secondary index with the given name, so that it is no longer kept up to
+	 * date.
+	 *
+	 * @param name the name of the index.
+	 * @return {@code true} if the index was removed; {@code false} if there was no index
+	 * with the given name.
+	 */
+	boolean removeIndex(String name);
+
+}
@@ -0,0 +1,229 @@
+/* Copyright (C) 2017 Zach Ohara
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.zachohara.bukkit.simpleplugin.fileio.persistence;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * A {@code UUIDKeyTable} is a {@code PrimitiveTable} whose keys are UUIDs. Each key is
+ * stored as its two halves in two {@code long} arrays, so the table holds no objects at
+ * all, and a key can be looked up by its halves without creating a {@code UUID}.
+ *
+ * @author Zach Ohara
+ */
+class UUIDKeyTable extends PrimitiveTable {
+
+	/**
+	 * The serial version of this class.
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The most significant half of the key in every slot.
+	 */
+	private long[] mostBits;
+
+	/**
+	 * The least significant half of the key in every slot.
+	 */
+	private long[] leastBits;
+
+	/**
+	 * {@code true} for every slot that holds a key. Any two halves make a valid UUID, so a
+	 * free slot cannot be recognized by its key alone.
+	 */
+	private boolean[] used;
+
+	/**
+	 * Constructs a new {@code UUIDKeyTable} with no arrays.
+	 *
+	 * @param valueType the type of the values in the table.
+	 */
+	private UUIDKeyTable(byte valueType) {
+		super(valueType);
+	}
+
+	/**
+	 * Constructs a new, empty {@code UUIDKeyTable}.
+	 *
+	 * @param valueType the type of the values in the table.
+	 * @param expectedSize the number of keys the table should hold without growing.
+	 */
+	UUIDKeyTable(byte valueType, int expectedSize) {
+		super(valueType, expectedSize);
+	}
+
+	/**
+	 * Finds the slot that holds the UUID with the given halves.
+	 *
+	 * @param most the most significant half of the UUID.
+	 * @param least the least significant half of the UUID.
+	 * @return the slot of the key, or {@code -1} if the key is not in this table.
+	 */
+	public int find(long most, long least) {
+		int mask = this.values.length - 1;
+		for (int slot = UUIDKeyTable.hash(most, least) & mask;; slot = (slot + 1) & mask) {
+			if (!this.used[slot]) {
+				return -1;
+			} else if (this.mostBits[slot] == most && this.leastBits[slot] == least) {
+				return slot;
+			}
+		}
+	}
+
+	/**
+	 * Returns the most significant half of the key in the given slot.
+	 *
+	 * @param slot the slot of the key.
+	 * @return the most significant half of the key.
+	 */
+	public long mostBitsAt(int slot) {
+		return this.mostBits[slot];
+	}
+
+	/**
+	 * Returns the least significant half of the key in the given slot.
+	 *
+	 * @param slot the slot of the key.
+	 * @return the least significant half of the key.
+	 */
+	public long leastBitsAt(int slot) {
+		return this.leastBits[slot];
+	}
+
+	@Override
+	public byte getKeyType() {
+		return PrimitiveTable.UUID_KEYS;
+	}
+
+	@Override
+	protected boolean accepts(Object key) {
+		return key instanceof UUID;
+	}
+
+	@Override
+	protected int hash(Object key) {
+		UUID uuid = (UUID) key;
+		return UUIDKeyTable.hash(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+	}
+
+	@Override
+	protected int hashAt(int slot) {
+		return UUIDKeyTable.hash(this.mostBits[slot], this.leastBits[slot]);
+	}
+
+	@Override
+	public boolean isUsed(int slot) {
+		return this.used[slot];
+	}
+
+	@Override
+	protected boolean matches(int slot, Object key) {
+		UUID uuid = (UUID) key;
+		return this.mostBits[slot] == uuid.getMostSignificantBits()
+				&& this.leastBits[slot] == uuid.getLeastSignificantBits();
+	}
+
+	@Override
+	public UUID keyAt(int slot) {
+		return new UUID(this.mostBits[slot], this.leastBits[slot]);
+	}
+
+	@Override
+	protected void setKey(int slot, Object key) {
+		UUID uuid = (UUID) key;
+		this.mostBits[slot] = uuid.getMostSignificantBits();
+		this.leastBits[slot] = uuid.getLeastSignificantBits();
+		this.used[slot] = true;
+	}
+
+	@Override
+	protected void moveKey(int from, int to) {
+		this.mostBits[to] = this.mostBits[from];
+		this.leastBits[to] = this.leastBits[from];
+		this.used[to] = true;
+	}
+
+	@Override
+	protected void copyKey(PrimitiveTable source, int from, int to) {
+		UUIDKeyTable table = (UUIDKeyTable) source;
+		this.mostBits[to] = table.mostBits[from];
+		this.leastBits[to] = table.leastBits[from];
+		this.used[to] = true;
+	}
+
+	@Override
+	protected void clearKey(int slot) {
+		this.mostBits[slot] = 0;
+		this.leastBits[slot] = 0;
+		this.used[slot] = false;
+	}
+
+	@Override
+	protected void allocateKeys(int capacity) {
+		this.mostBits = new long[capacity];
+		this.leastBits = new long[capacity];
+		this.used = new boolean[capacity];
+	}
+
+	@Override
+	protected void shareKeysOf(PrimitiveTable source) {
+		UUIDKeyTable table = (UUIDKeyTable) source;
+		this.mostBits = table.mostBits;
+		this.leastBits = table.leastBits;
+		this.used = table.used;
+	}
+
+	@Override
+	protected void cloneKeys() {
+		this.mostBits = this.mostBits.clone();
+		this.leastBits = this.leastBits.clone();
+		this.used = this.used.clone();
+	}
+
+	@Override
+	protected PrimitiveTable emptyCopy() {
+		return new UUIDKeyTable(this.getValueType());
+	}
+
+	@Override
+	public void writeKey(DataOutputStream out, int slot) throws IOException {
+		out.writeLong(this.mostBits[slot]);
+		out.writeLong(this.leastBits[slot]);
+	}
+
+	@Override
+	public int readKey(DataInputStream in) throws IOException {
+		return this.insert(new UUID(in.readLong(), in.readLong()));
+	}
+
+	/**
+	 * Returns the hash code of the UUID with the given halves.
+	 *
+	 * @param most the most significant half of the UUID.
+	 * @param least the least significant half of the UUID.
+	 * @return the mixed hash code of the UUID.
+	 */
+	private static int hash(long most, long least) {
+		long bits = most ^ least;
+		return PrimitiveTable.mix((int) (bits ^ (bits >>> 32)));
+	}
+
+}
@@ -0,0 +1,590 @@
+/* Copyright (C) 2017 Zach Ohara
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.zachohara.bukkit.simpleplugin.fileio.persistence;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * A {@code UUIDKeyedMap} is a map whose keys are UUIDs, stored as two {@code long}s
+ * instead of as objects. The map uses open addressing with linear probing, so a lookup by
+ * the two halves of a UUID reads only arrays, and creates no objects at all.
+ * <p>
+ * So that it can be stored by a {@code PersistentMap<String, V>}, this class presents
+ * its keys as the standard string form of each UUID. Looking up a key by its string
+ * form parses the string first; a string that is not the standard form of a UUID is
+ * never a key of this map.
+ *
+ * @param <V> the value type of the map.
+ * @author Zach Ohara
+ */
+class UUIDKeyedMap<V> extends AbstractMap<String, V> implements Serializable {
+
+	/**
+	 * The serial version of this class.
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The smallest number of slots in a map.
+	 */
+	private static final int MIN_CAPACITY = 16;
+
+	/**
+	 * The most significant half of the key in every slot.
+	 */
+	private long[] mostBits;
+
+	/**
+	 * The least significant half of the key in every slot.
+	 */
+	private long[] leastBits;
+
+	/**
+	 * The value in every slot.
+	 */
+	private Object[] values;
+
+	/**
+	 * {@code true} for every slot that holds a key.
+	 */
+	private boolean[] used;
+
+	/**
+	 * The number of keys in this map.
+	 */
+	private int size;
+
+	/**
+	 * Constructs a new, empty {@code UUIDKeyedMap}.
+	 */
+	public UUIDKeyedMap() {
+		this(0);
+	}
+
+	/**
+	 * Constructs a new, empty {@code UUIDKeyedMap} with enough slots for the given number
+	 * of keys.
+	 *
+	 * @param expectedSize the number of keys the map should hold without growing.
+	 */
+	public UUIDKeyedMap(int expectedSize) {
+		long needed = expectedSize * 4L / 3 + 1;
+		int capacity = UUIDKeyedMap.MIN_CAPACITY;
+		while (capacity < needed) {
+			capacity <<= 1;
+		}
+		this.allocate(capacity);
+	}
+
+	/**
+	 * Constructs a new {@code UUIDKeyedMap} with the entries of the given map.
+	 *
+	 * @param map the map to copy.
+	 * @throws IllegalArgumentException if a key of the given map is not the standard
+	 * string form of a UUID.
+	 */
+	public UUIDKeyedMap(Map<? extends String, ? extends V> map) {
+		this(map.size());
+		this.putAll(map);
+	}
+
+	/**
+	 * Returns the value for the UUID with the given halves.
+	 *
+	 * @param most the most significant half of the UUID.
+	 * @param least the least significant half of the UUID.
+	 * @return the value for the UUID, or {@code null} if there is none.
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(long most, long least) {
+		int slot = this.find(most, least);
+		return (slot < 0) ? null : (V) this.values[slot];
+	}
+
+	/**
+	 * Determines if the UUID with the given halves is a key of this map.
+	 *
+	 * @param most the most significant half of the UUID.
+	 * @param least the least significant half of the UUID.
+	 * @return {@code true} if the UUID is a key; {@code false} otherwise.
+	 */
+	public boolean containsKey(long most, long least) {
+		return this.find(most, least) >= 0;
+	}
+
+	/**
+	 * Maps the UUID with the given halves to the given value.
+	 *
+	 * @param most the most significant half of the UUID.
+	 * @param least the least significant half of the UUID.
+	 * @param value the new value for the UUID.
+	 * @return the previous value for the UUID, or {@code null} if there was none.
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long most, long least, V value) {
+		int mask = this.values.length - 1;
+		for (int slot = UUIDKeyedMap.hash(most, least) & mask;; slot = (slot + 1) & mask) {
+			if (!this.used[slot]) {
+				if ((this.size + 1) * 4L > this.values.length * 3L) {
+					this.resize(this.values.length * 2);
+					return this.put(most, least, value);
+				}
+				this.mostBits[slot] = most;
+				this.leastBits[slot] = least;
+				this.values[slot] = value;
+				this.used[slot] = true;
+				this.size++;
+				return null;
+			} else if (this.mostBits[slot] == most && this.leastBits[slot] == least) {
+				V previous = (V) this.values[slot];
+				this.values[slot] = value;
+				return previous;
+			}
+		}
+	}
+
+	/**
+	 * Removes the UUID with the given halves from this map.
+	 *
+	 * @param most the most significant half of the UUID.
+	 * @param least the least significant half of the UUID.
+	 * @return the previous value for the UUID, or {@code null} if there was none.
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(long most, long least) {
+		int slot = this.find(most, least);
+		if (slot < 0) {
+			return null;
+		}
+		V previous = (V) this.values[slot];
+		this.removeAt(slot);
+		return previous;
+	}
+
+	/**
+	 * Returns a copy of this map that shares no arrays with it.
+	 *
+	 * @return a copy of this map.
+	 */
+	public UUIDKeyedMap<V> copy() {
+		UUIDKeyedMap<V> copy = new UUIDKeyedMap<V>(0);
+		copy.mostBits = this.mostBits.clone();
+		copy.leastBits = this.leastBits.clone();
+		copy.values = this.values.clone();
+		copy.used = this.used.clone();
+		copy.size = this.size;
+		return copy;
+	}
+
+	/**
+	 * Returns the number of slots in this map.
+	 *
+	 * @return the number of slots.
+	 */
+	int capacity() {
+		return this.values.length;
+	}
+
+	/**
+	 * Determines if the given slot holds a key.
+	 *
+	 * @param slot the slot to check.
+	 * @return {@code true} if the slot is used; {@code false} otherwise.
+	 */
+	boolean isUsed(int slot) {
+		return this.used[slot];
+	}
+
+	/**
+	 * Returns the most significant half of the key in the given slot.
+	 *
+	 * @param slot the slot of the key.
+	 * @return the most significant half of the key.
+	 */
+	long mostBitsAt(int slot) {
+		return this.mostBits[slot];
+	}
+
+	/**
+	 * Returns the least significant half of the key in the given slot.
+	 *
+	 * @param slot the slot of the key.
+	 * @return the least significant half of the key.
+	 */
+	long leastBitsAt(int slot) {
+		return this.leastBits[slot];
+	}
+
+	/**
+	 * Returns the value in the given slot.
+	 *
+	 * @param slot the slot of the value.
+	 * @return the value in the slot.
+	 */
+	Object valueAt(int slot) {
+		return this.values[slot];
+	}
+
+	/**
+	 * Converts a key of the {@code Map} interface to a UUID.
+	 *
+	 * @param key the key to convert.
+	 * @return the UUID, or {@code null} if the key is not the standard string form of a
+	 * UUID.
+	 */
+	static UUID toUUID(Object key) {
+		if (!(key instanceof String) || ((String) key).length() != 36) {
+			return null;
+		}
+		try {
+			UUID uuid = UUID.fromString((String) key);
+			return uuid.toString().equals(key) ? uuid : null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public int size() {
+		return this.size;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		UUID uuid = UUIDKeyedMap.toUUID(key);
+		return uuid != null
+				&& this.containsKey(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+	}
+
+	@Override
+	public V get(Object key) {
+		UUID uuid = UUIDKeyedMap.toUUID(key);
+		if (uuid == null) {
+			return null;
+		}
+		return this.get(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+	}
+
+	/**
+	 * Maps the given key to the given value.
+	 *
+	 * @param key the standard string form of a UUID.
+	 * @param value the new value for the key.
+	 * @return the previous value for the key, or {@code null} if there was none.
+	 * @throws IllegalArgumentException if the key is not the standard string form of a
+	 * UUID.
+	 */
+	@Override
+	public V put(String key, V value) {
+		UUID uuid = UUIDKeyedMap.toUUID(key);
+		if (uuid == null) {
+			throw new IllegalArgumentException("Not a UUID: " + key);
+		}
+		return this.put(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), value);
+	}
+
+	@Override
+	public V remove(Object key) {
+		UUID uuid = UUIDKeyedMap.toUUID(key);
+		if (uuid == null) {
+			return null;
+		}
+		return this.remove(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+	}
+
+	@Override
+	public void clear() {
+		this.allocate(UUIDKeyedMap.MIN_CAPACITY);
+		this.size = 0;
+	}
+
+	@Override
+	public Set<Map.Entry<String, V>> entrySet() {
+		return new AbstractSet<Map.Entry<String, V>>() {
+
+			@Override
+			public Iterator<Map.Entry<String, V>> iterator() {
+				return new EntryIterator();
+			}
+
+			@Override
+			public int size() {
+				return UUIDKeyedMap.this.size;
+			}
+
+			@Override
+			public void clear() {
+				UUIDKeyedMap.this.clear();
+			}
+
+		};
+	}
+
+	/**
+	 * Finds the slot that holds the UUID with the given halves.
+	 *
+	 * @param most the most significant half of the UUID.
+	 * @param least the least significant half of the UUID.
+	 * @return the slot of the key, or {@code -1} if the key is not in this map.
+	 */
+	private int find(long most, long least) {
+		int mask = this.values.length - 1;
+		for (int slot = UUIDKeyedMap.hash(most, least) & mask;; slot = (slot + 1) & mask) {
+			if (!this.used[slot]) {
+				return -1;
+			} else if (this.mostBits[slot] == most && this.leastBits[slot] == least) {
+				return slot;
+			}
+		}
+	}
+
+	/**
+	 * Removes the key in the given slot. Later keys in the same run of used slots are moved
+	 * back, so that no key is left unreachable.
+	 *
+	 * @param slot the slot of the key to remove.
+	 * @return the slot that a key was moved to from the start of the arrays to the end, or
+	 * {@code -1} if no key wrapped around like this. At most one key can.
+	 */
+	private int removeAt(int slot) {
+		int mask = this.values.length - 1;
+		int hole = slot;
+		int wrapped = -1;
+		for (int next = (hole + 1) & mask; this.used[next]; next = (next + 1) & mask) {
+			int home = UUIDKeyedMap.hash(this.mostBits[next], this.leastBits[next]) & mask;
+			// Move the key back if its home slot is not between the hole and its slot
+			boolean reachable = (hole <= next) ? (hole < home && home <= next)
+					: (hole < home || home <= next);
+			if (!reachable) {
+				if (hole > next) {
+					wrapped = hole;
+				}
+				this.mostBits[hole] = this.mostBits[next];
+				this.leastBits[hole] = this.leastBits[next];
+				this.values[hole] = this.values[next];
+				hole = next;
+			}
+		}
+		this.mostBits[hole] = 0;
+		this.leastBits[hole] = 0;
+		this.values[hole] = null;
+		this.used[hole] = false;
+		this.size--;
+		return wrapped;
+	}
+
+	/**
+	 * Creates new, empty arrays with the given number of slots.
+	 *
+	 * @param capacity the number of slots, which must be a power of two.
+	 */
+	private void allocate(int capacity) {
+		this.mostBits = new long[capacity];
+		this.leastBits = new long[capacity];
+		this.values = new Object[capacity];
+		this.used = new boolean[capacity];
+	}
+
+	/**
+	 * Moves every key into new arrays with the given number of slots.
+	 *
+	 * @param capacity the new number of slots, which must be a power of two.
+	 */
+	private void resize(int capacity) {
+		long[] oldMost = this.mostBits;
+		long[] oldLeast = this.leastBits;
+		Object[] oldValues = this.values;
+		boolean[] oldUsed = this.used;
+		this.allocate(capacity);
+		int mask = capacity - 1;
+		for (int from = 0; from < oldUsed.length; from++) {
+			if (oldUsed[from]) {
+				int slot = UUIDKeyedMap.hash(oldMost[from], oldLeast[from]) & mask;
+				while (this.used[slot]) {
+					slot = (slot + 1) & mask;
+				}
+				this.mostBits[slot] = oldMost[from];
+				this.leastBits[slot] = oldLeast[from];
+				this.values[slot] = oldValues[from];
+				this.used[slot] = true;
+			}
+		}
+	}
+
+	/**
+	 * Returns the hash code of the UUID with the given halves.
+	 *
+	 * @param most the most significant half of the UUID.
+	 * @param least the least significant half of the UUID.
+	 * @return the mixed hash code of the UUID.
+	 */
+	private static int hash(long most, long least) {
+		long bits = most ^ least;
+		int h = (int) (bits ^ (bits >>> 32)) * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * An entry of this map. Changing the value of an entry changes this map.
+	 */
+	private class Entry implements Map.Entry<String, V> {
+
+		/**
+		 * The most significant half of the key.
+		 */
+		private final long most;
+
+		/**
+		 * The least significant half of the key.
+		 */
+		private final long least;
+
+		/**
+		 * The value of the entry.
+		 */
+		private V value;
+
+		/**
+		 * Constructs a new {@code Entry} from the given slot.
+		 *
+		 * @param slot the slot of the entry.
+		 */
+		@SuppressWarnings("unchecked")
+		private Entry(int slot) {
+			this.most = UUIDKeyedMap.this.mostBits[slot];
+			this.least = UUIDKeyedMap.this.leastBits[slot];
+			this.value = (V) UUIDKeyedMap.this.values[slot];
+		}
+
+		@Override
+		public String getKey() {
+			return new UUID(this.most, this.least).toString();
+		}
+
+		@Override
+		public V getValue() {
+			return this.value;
+		}
+
+		@Override
+		public V setValue(V value) {
+			V previous = this.value;
+			UUIDKeyedMap.this.put(this.most, this.least, value);
+			this.value = value;
+			return previous;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Map.Entry<?, ?>)) {
+				return false;
+			}
+			Map.Entry<?, ?> other = (Map.Entry<?, ?>) o;
+			return this.getKey().equals(other.getKey()) && (this.value == null
+					? other.getValue() == null : this.value.equals(other.getValue()));
+		}
+
+		@Override
+		public int hashCode() {
+			return this.getKey().hashCode() ^ (this.value == null ? 0 : this.value.hashCode());
+		}
+
+		@Override
+		public String toString() {
+			return this.getKey() + "=" + this.value;
+		}
+
+	}
+
+	/**
+	 * An iterator over the entries of this map. Slots are visited from the end of the
+	 * arrays to the start, because removing a key only ever moves other keys back towards
+	 * slots that have already been visited. The one exception is a key that wraps around
+	 * from the start of the arrays to the end; such a key is remembered, and visited last.
+	 */
+	private class EntryIterator implements Iterator<Map.Entry<String, V>> {
+
+		/**
+		 * The slot below which the next entry is searched for.
+		 */
+		private int index = UUIDKeyedMap.this.values.length;
+
+		/**
+		 * The slot of the most recently returned entry, or {@code -1} if it was removed.
+		 */
+		private int current = -1;
+
+		/**
+		 * The halves of every key that wrapped around into the visited slots, in pairs.
+		 */
+		private long[] pending = new long[0];
+
+		/**
+		 * The number of halves in {@link #pending} that have been visited.
+		 */
+		private int pendingIndex;
+
+		@Override
+		public boolean hasNext() {
+			while (this.index > 0 && !UUIDKeyedMap.this.used[this.index - 1]) {
+				this.index--;
+			}
+			return this.index > 0 || this.pendingIndex < this.pending.length;
+		}
+
+		@Override
+		public Map.Entry<String, V> next() {
+			if (!this.hasNext()) {
+				throw new NoSuchElementException();
+			}
+			if (this.index > 0) {
+				this.current = --this.index;
+			} else {
+				long most = this.pending[this.pendingIndex++];
+				long least = this.pending[this.pendingIndex++];
+				this.current = UUIDKeyedMap.this.find(most, least);
+			}
+			return new Entry(this.current);
+		}
+
+		@Override
+		public void remove() {
+			if (this.current < 0) {
+				throw new IllegalStateException();
+			}
+			int wrapped = UUIDKeyedMap.this.removeAt(this.current);
+			// Once only remembered keys are left, every slot has already been visited
+			if (wrapped >= 0 && this.index > 0) {
+				long[] grown = new long[this.pending.length + 2];
+				System.arraycopy(this.pending, 0, grown, 0, this.pending.length);
+				grown[this.pending.length] = UUIDKeyedMap.this.mostBits[wrapped];
+				grown[this.pending.length + 1] = UUIDKeyedMap.this.leastBits[wrapped];
+				this.pending = grown;
+			}
+			this.current = -1;
+		}
+
+	}
+
+}
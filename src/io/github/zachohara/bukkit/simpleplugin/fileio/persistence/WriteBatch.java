@@ -0,0 +1,222 @@
+/* Copyright (C) 2017 Zach Ohara
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.zachohara.bukkit.simpleplugin.fileio.persistence;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.github.zachohara.bukkit.simpleplugin.plugin.SimplePlugin;
+
+/**
+ * A {@code WriteBatch} groups changes to several {@code PersistentObject}s, so that they
+ * are stored together: the changes are staged in the batch, made to every object in
+ * memory when the batch is committed, and then written to the shared store as a single
+ * record. If the server crashes, either every change in the batch is kept, or none of
+ * them is. Batches that are committed by several threads at the same time share a single
+ * disk sync.
+ * <p>
+ * For example, a transfer between two players can update a map of balances and a list
+ * of transactions at once:
+ *
+ * <pre>
+ * new WriteBatch()
+ * 		.put(balances, sender, senderBalance - amount)
+ * 		.put(balances, receiver, receiverBalance + amount)
+ * 		.add(transactions, transaction)
+ * 		.commit();
+ * </pre>
+ *
+ * Every object in a batch must be kept in the shared store, and may not be used by
+ * another thread while the batch is being committed. A {@code PersistentMap} writes only
+ * the entries that the batch changed; any other object writes its whole payload.
+ *
+ * @author Zach Ohara
+ * @see SimplePlugin#useSharedStore(boolean)
+ */
+public class WriteBatch {
+
+	/**
+	 * Every object that is changed by this batch, in the order that they were first
+	 * changed.
+	 */
+	private final List<PersistentObject> objects;
+
+	/**
+	 * The objects that are changed by this batch, for finding them quickly.
+	 */
+	private final Map<PersistentObject, Boolean> included;
+
+	/**
+	 * The changes staged in this batch, in the order that they are made.
+	 */
+	private final List<Runnable> changes;
+
+	/**
+	 * Constructs a new, empty {@code WriteBatch}.
+	 */
+	public WriteBatch() {
+		this.objects = new ArrayList<PersistentObject>();
+		this.included = new IdentityHashMap<PersistentObject, Boolean>();
+		this.changes = new ArrayList<Runnable>();
+	}
+
+	/**
+	 * Stages a change that maps the given key to the given value in the given map.
+	 *
+	 * @param <K> the type of the keys of the map.
+	 * @param <V> the type of the values of the map.
+	 * @param map the map to change.
+	 * @param key the key.
+	 * @param value the value.
+	 * @return this batch.
+	 */
+	public <K extends Serializable, V extends Serializable> WriteBatch put(
+			final PersistentMap<K, V> map, final K key, final V value) {
+		return this.update(map, new Runnable() {
+
+			@Override
+			public void run() {
+				map.put(key, value);
+			}
+
+		});
+	}
+
+	/**
+	 * Stages a change that removes the given key from the given map.
+	 *
+	 * @param map the map to change.
+	 * @param key the key to remove.
+	 * @return this batch.
+	 */
+	public WriteBatch remove(final PersistentMap<?, ?> map, final Object key) {
+		return this.update(map, new Runnable() {
+
+			@Override
+			public void run() {
+				map.remove(key);
+			}
+
+		});
+	}
+
+	/**
+	 * Stages a change that adds the given element to the end of the given list.
+	 *
+	 * @param <E> the type of the elements of the list.
+	 * @param list the list to change.
+	 * @param element the element to add.
+	 * @return this batch.
+	 */
+	public <E extends Serializable> WriteBatch add(final PersistentList<E> list,
+			final E element) {
+		return this.update(list, new Runnable() {
+
+			@Override
+			public void run() {
+				list.add(element);
+			}
+
+		});
+	}
+
+	/**
+	 * Stages any other change to the given object. The change is run when the batch is
+	 * committed, on the thread that commits it, and must only change the given object.
+	 *
+	 * @param object the object to change.
+	 * @param change the change to make.
+	 * @return this batch.
+	 */
+	public WriteBatch update(PersistentObject object, Runnable change) {
+		if (this.included.put(object, Boolean.TRUE) == null) {
+			this.objects.add(object);
+		}
+		this.changes.add(change);
+		return this;
+	}
+
+	/**
+	 * Returns the number of changes staged in this batch.
+	 *
+	 * @return the number of changes.
+	 */
+	public int size() {
+		return this.changes.size();
+	}
+
+	/**
+	 * Makes every staged change, in order, and writes them to the shared store as a single
+	 * record, waiting until the disk has confirmed that they are stored. If a change
+	 * throws an exception, or the batch could not be written, nothing is written, but the
+	 * changes made in memory are kept, and are written the next time each object is saved;
+	 * a map whose entries are stored separately then writes every entry again. Once the
+	 * batch has been written, it is empty again, and can be reused.
+	 *
+	 * @throws IOException if the batch could not be written.
+	 * @throws IllegalStateException if an object in this batch is not kept in the shared
+	 * store.
+	 */
+	public void commit() throws IOException {
+		if (this.changes.isEmpty()) {
+			return;
+		}
+		SharedStore store = null;
+		for (PersistentObject object : this.objects) {
+			SharedStore.Namespace ns = object.getNamespace();
+			if (ns == null) {
+				throw new IllegalStateException("Every object in a batch must be kept in the"
+						+ " shared store: " + object);
+			}
+			store = ns.getStore();
+		}
+		long start = System.nanoTime();
+		long[] changeCounts = new long[this.objects.size()];
+		store.beginBatch();
+		boolean committed = false;
+		try {
+			for (Runnable change : this.changes) {
+				change.run();
+			}
+			for (int i = 0; i < changeCounts.length; i++) {
+				changeCounts[i] = this.objects.get(i).stageInBatch();
+			}
+			store.commitBatch();
+			committed = true;
+		} finally {
+			store.abortBatch();
+			if (!committed) {
+				// The staged entries are gone, but the changes in memory are not
+				for (PersistentObject object : this.objects) {
+					object.batchAborted();
+				}
+			}
+		}
+		long nanos = System.nanoTime() - start;
+		for (int i = 0; i < changeCounts.length; i++) {
+			this.objects.get(i).batchCommitted(changeCounts[i], nanos);
+		}
+		this.objects.clear();
+		this.included.clear();
+		this.changes.clear();
+	}
+
+}
@@ -16,18 +16,32 @@
 
 package io.github.zachohara.bukkit.simpleplugin.plugin;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import org.bukkit.Bukkit;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
 import org.bukkit.plugin.java.JavaPlugin;
 
 import io.github.zachohara.bukkit.simpleplugin.command.CommandInstance;
 import io.github.zachohara.bukkit.simpleplugin.command.CommandSet;
+import io.github.zachohara.bukkit.simpleplugin.fileio.FileExecutor;
+import io.github.zachohara.bukkit.simpleplugin.fileio.FileMetrics;
 import io.github.zachohara.bukkit.simpleplugin.fileio.PluginDataFile;
+import io.github.zachohara.bukkit.simpleplugin.fileio.persistence.SharedStore;
 
 /**
  * The {@code SimplePlugin} class acts as a supertype for the main class of any plugin that
@@ -43,8 +57,34 @@ public abstract class SimplePlugin extends JavaPlugin {
 	 */
 	private static Map<Class<? extends SimplePlugin>, SimplePlugin> pluginList;
 
+	/**
+	 * The time that the server waits for files to be saved while it shuts down, until
+	 * another time is set, in milliseconds.
+	 */
+	public static final long DEFAULT_SHUTDOWN_DEADLINE_MILLIS = 60000;
+
+	/**
+	 * The time that the server waits for files to be saved while it shuts down, in
+	 * milliseconds.
+	 */
+	private static volatile long shutdownDeadlineMillis;
+
+	/**
+	 * Every file of a disabled plugin that is being saved in the background, and that no
+	 * plugin has waited for yet.
+	 */
+	private static List<PendingClose> pendingCloses;
+
+	/**
+	 * The value of {@code System.nanoTime()} when the first file in the list of pending
+	 * closes began to be saved.
+	 */
+	private static long shutdownStartTime;
+
 	static {
 		SimplePlugin.pluginList = new HashMap<Class<? extends SimplePlugin>, SimplePlugin>();
+		SimplePlugin.shutdownDeadlineMillis = SimplePlugin.DEFAULT_SHUTDOWN_DEADLINE_MILLIS;
+		SimplePlugin.pendingCloses = new ArrayList<PendingClose>();
 	}
 
 	/**
@@ -52,6 +92,25 @@ public abstract class SimplePlugin extends JavaPlugin {
 	 */
 	private List<PluginDataFile> ownedFilesList;
 
+	/**
+	 * {@code true} if the files of this plugin are loaded in the background, or
+	 * {@code false} if each file is loaded by its constructor. By default, this value is
+	 * {@code false}.
+	 */
+	private boolean asyncFileLoading;
+
+	/**
+	 * {@code true} if the files of this plugin are kept in the shared store, or
+	 * {@code false} if each file is kept in its own file. By default, this value is
+	 * {@code false}.
+	 */
+	private boolean sharedStore;
+
+	/**
+	 * The value of {@code System.nanoTime()} when this plugin started to be enabled.
+	 */
+	private long enableStartTime;
+
 	/**
 	 * Starts the plugin and initializes functionality. This method is called anytime
 	 * before the plugin is enabled on the server, including during server startup
@@ -59,9 +118,21 @@ public abstract class SimplePlugin extends JavaPlugin {
 	 */
 	@Override
 	public void onEnable() {
+		this.enableStartTime = System.nanoTime();
+		// A plugin that is enabled again must not read files that are still being saved
+		SimplePlugin.awaitPendingCloses(this.getLogger());
 		super.onEnable();
 		SimplePlugin.pluginList.put(this.getClass(), this);
 		this.ownedFilesList = new LinkedList<PluginDataFile>();
+		// The first tick only runs once every plugin has been enabled
+		Bukkit.getScheduler().runTask(this, new Runnable() {
+
+			@Override
+			public void run() {
+				SimplePlugin.this.awaitFileLoads();
+			}
+
+		});
 	}
 
 	/**
@@ -69,13 +140,35 @@ public abstract class SimplePlugin extends JavaPlugin {
 	 * disabled on the server, including during the server shutdown procedure. This method
 	 * will close and save all of the registered {@code PluginDataFile} objects registered
 	 * to this plugin.
+	 * <p>
+	 * The files are saved in parallel on background threads, together with the files of
+	 * every other {@code SimplePlugin}. The last {@code SimplePlugin} to be disabled waits
+	 * for every file to be saved, up to the deadline set by
+	 * {@link #setShutdownDeadline(long, TimeUnit)}, and logs how long each file took.
 	 */
 	@Override
 	public void onDisable() {
 		super.onDisable();
 		SimplePlugin.pluginList.remove(this.getClass());
-		for (PluginDataFile file : this.ownedFilesList) {
-			file.closeFile(this.getLogger());
+		synchronized (SimplePlugin.pendingCloses) {
+			if (SimplePlugin.pendingCloses.isEmpty()) {
+				SimplePlugin.shutdownStartTime = System.nanoTime();
+			}
+			final Logger log = this.getLogger();
+			for (final PluginDataFile file : this.ownedFilesList) {
+				Future<?> close = FileExecutor.submitClose(new Runnable() {
+
+					@Override
+					public void run() {
+						file.closeFile(log);
+					}
+
+				});
+				SimplePlugin.pendingCloses.add(new PendingClose(this.getName(), file, close));
+			}
+		}
+		if (SimplePlugin.pluginList.isEmpty()) {
+			SimplePlugin.awaitPendingCloses(this.getLogger());
 		}
 	}
 
@@ -105,6 +198,201 @@ public abstract class SimplePlugin extends JavaPlugin {
 		this.ownedFilesList.add(data);
 	}
 
+	/**
+	 * Gets every {@code PluginDataFile} that has been registered with this plugin.
+	 *
+	 * @return an unmodifiable list of the files of this plugin.
+	 */
+	public List<PluginDataFile> getPluginFiles() {
+		return Collections.unmodifiableList(this.ownedFilesList);
+	}
+
+	/**
+	 * Gets the metrics of every file of every {@code SimplePlugin} that is currently
+	 * running, sorted from the most to the least costly file by the given measure. The
+	 * memory used by each file is estimated from a sample of its data, which takes time in
+	 * proportion to the number of files, so this should not be called often.
+	 *
+	 * @param cost the measure of cost to sort by.
+	 * @return the metrics of every file.
+	 * @see PluginDataFile#getMetrics()
+	 */
+	public static List<FileMetrics> getFileMetrics(FileMetrics.Cost cost) {
+		List<FileMetrics> metrics = new ArrayList<FileMetrics>();
+		for (SimplePlugin plugin : SimplePlugin.pluginList.values()) {
+			for (PluginDataFile file : plugin.ownedFilesList) {
+				metrics.add(file.getMetrics());
+			}
+		}
+		FileMetrics.sortByCost(metrics, cost);
+		return metrics;
+	}
+
+	/**
+	 * Sets whether the files of this plugin are loaded in the background. When this is
+	 * {@code true}, the constructor of each file that supports it returns immediately,
+	 * and the file is read on a bounded pool of threads that is shared by every plugin, so
+	 * the files of all plugins are loaded in parallel while the server starts. The first
+	 * use of the data of a file waits for the file to be read. This should be set at the
+	 * start of {@link #onEnable()}, before any files are created; it only affects files
+	 * that are created after it is set.
+	 *
+	 * @param asyncFileLoading {@code true} if files should be loaded in the background;
+	 * {@code false} if they should be loaded by their constructors.
+	 * @see PluginDataFile#awaitLoad()
+	 */
+	public void useAsyncFileLoading(boolean asyncFileLoading) {
+		this.asyncFileLoading = asyncFileLoading;
+	}
+
+	/**
+	 * Gets whether the files of this plugin are loaded in the background.
+	 *
+	 * @return {@code true} if files are loaded in the background; {@code false} if they
+	 * are loaded by their constructors.
+	 * @see #useAsyncFileLoading(boolean)
+	 */
+	public boolean getUseAsyncFileLoading() {
+		return this.asyncFileLoading;
+	}
+
+	/**
+	 * Sets whether the files of this plugin are kept in the store that is shared by every
+	 * plugin, instead of each in its own file. The changes of every plugin that uses the
+	 * shared store are written to the disk together, so many small changes to many files
+	 * share a single disk sync, and a map only writes the entries that changed. A file
+	 * that already exists is moved into the shared store the first time it is loaded, and
+	 * is kept beside it with the suffix {@code .migrated}. This should be set at the
+	 * start of {@link #onEnable()}, before any files are created; it only affects files
+	 * that are created after it is set.
+	 *
+	 * @param sharedStore {@code true} if files should be kept in the shared store;
+	 * {@code false} if each should be kept in its own file.
+	 * @throws IllegalStateException if the shared store is not open.
+	 * @see SharedStore
+	 */
+	public void useSharedStore(boolean sharedStore) {
+		if (sharedStore && SharedStore.getShared() == null) {
+			throw new IllegalStateException("The shared store is not open");
+		}
+		this.sharedStore = sharedStore;
+	}
+
+	/**
+	 * Gets whether the files of this plugin are kept in the store that is shared by every
+	 * plugin.
+	 *
+	 * @return {@code true} if files are kept in the shared store; {@code false} if each is
+	 * kept in its own file.
+	 * @see #useSharedStore(boolean)
+	 */
+	public boolean getUseSharedStore() {
+		return this.sharedStore;
+	}
+
+	/**
+	 * Waits for every file of this plugin to be loaded, and logs how long loading took.
+	 * This is called on the first server tick after the plugin is enabled, so the data of
+	 * every file is ready before players can join.
+	 */
+	public void awaitFileLoads() {
+		if (this.ownedFilesList.isEmpty()) {
+			return;
+		}
+		long fileNanos = 0;
+		long lastReadTime = this.enableStartTime;
+		for (PluginDataFile file : this.ownedFilesList) {
+			file.awaitLoad();
+			fileNanos += file.getLoadNanos();
+			lastReadTime = Math.max(lastReadTime, file.getReadFinishTime());
+		}
+		this.getLogger().info("Loaded " + this.ownedFilesList.size() + " files in "
+				+ TimeUnit.NANOSECONDS.toMillis(lastReadTime - this.enableStartTime) + " ms ("
+				+ TimeUnit.NANOSECONDS.toMillis(fileNanos) + " ms spent on the files in total)");
+	}
+
+	/**
+	 * Sets the longest time that the server waits for the files of every
+	 * {@code SimplePlugin} to be saved while it shuts down. The time is counted from when
+	 * the first plugin is disabled. A file that is still being saved when the deadline
+	 * passes is logged as an error, and the server is allowed to finish shutting down;
+	 * because every file is saved to a temporary file first, the previous contents of the
+	 * file are kept. By default, the deadline is {@value #DEFAULT_SHUTDOWN_DEADLINE_MILLIS}
+	 * milliseconds.
+	 *
+	 * @param time the longest time to wait.
+	 * @param unit the unit of the time.
+	 */
+	public static void setShutdownDeadline(long time, TimeUnit unit) {
+		SimplePlugin.shutdownDeadlineMillis = unit.toMillis(time);
+	}
+
+	/**
+	 * Gets the longest time that the server waits for files to be saved while it shuts
+	 * down.
+	 *
+	 * @param unit the unit to return the time in.
+	 * @return the shutdown deadline.
+	 * @see #setShutdownDeadline(long, TimeUnit)
+	 */
+	public static long getShutdownDeadline(TimeUnit unit) {
+		return unit.convert(SimplePlugin.shutdownDeadlineMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Waits for every file that is being saved in the background to finish, up to the
+	 * shutdown deadline, and logs a summary of the time and space taken by each file.
+	 *
+	 * @param log the log to write the summary to.
+	 */
+	private static void awaitPendingCloses(Logger log) {
+		List<PendingClose> closes;
+		long start;
+		synchronized (SimplePlugin.pendingCloses) {
+			if (SimplePlugin.pendingCloses.isEmpty()) {
+				return;
+			}
+			closes = new ArrayList<PendingClose>(SimplePlugin.pendingCloses);
+			SimplePlugin.pendingCloses.clear();
+			start = SimplePlugin.shutdownStartTime;
+		}
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(SimplePlugin.shutdownDeadlineMillis);
+		List<PendingClose> missed = new ArrayList<PendingClose>();
+		Set<String> plugins = new HashSet<String>();
+		StringBuilder summary = new StringBuilder();
+		for (PendingClose close : closes) {
+			plugins.add(close.pluginName);
+			try {
+				close.future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				missed.add(close);
+				continue;
+			} catch (TimeoutException e) {
+				missed.add(close);
+				continue;
+			} catch (ExecutionException e) {
+				log.log(Level.SEVERE, "Unexpected error saving file: " + close.file, e.getCause());
+			}
+			summary.append("\n  [").append(close.pluginName).append("] ").append(close.file)
+					.append(": ").append(close.file.getStoredBytes()).append(" bytes, ")
+					.append(TimeUnit.NANOSECONDS.toMillis(close.file.getCloseNanos())).append(" ms")
+					.append(close.file.isCloseSucceeded() ? "" : " (failed)");
+		}
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		log.info("Saved " + (closes.size() - missed.size()) + " files from " + plugins.size()
+				+ " plugins in " + elapsed + " ms:" + summary);
+		for (PendingClose close : missed) {
+			log.severe("FILE NOT SAVED: [" + close.pluginName + "] " + close.file
+					+ " was still being saved after the shutdown deadline of "
+					+ SimplePlugin.shutdownDeadlineMillis + " ms");
+		}
+		if (!missed.isEmpty()) {
+			log.severe(missed.size() + " files missed the shutdown deadline; recent changes to"
+					+ " them may be lost, but their previous contents were kept");
+		}
+	}
+
 	/**
 	 * Gets the active instance of a given plugin.
 	 *
@@ -142,4 +430,40 @@ public abstract class SimplePlugin extends JavaPlugin {
 		//@formatter:on
 	}
 
+	/**
+	 * A {@code PendingClose} is a file of a disabled plugin that is being saved in the
+	 * background.
+	 */
+	private static class PendingClose {
+
+		/**
+		 * The name of the plugin that owns the file.
+		 */
+		public final String pluginName;
+
+		/**
+		 * The file that is being saved.
+		 */
+		public final PluginDataFile file;
+
+		/**
+		 * The pending completion of the save.
+		 */
+		public final Future<?> future;
+
+		/**
+		 * Constructs a new {@code PendingClose} for the given file.
+		 *
+		 * @param pluginName the name of the plugin that owns the file.
+		 * @param file the file that is being saved.
+		 * @param future the pending completion of the save.
+		 */
+		public PendingClose(String pluginName, PluginDataFile file, Future<?> future) {
+			this.pluginName = pluginName;
+			this.file = file;
+			this.future = future;
+		}
+
+	}
+
 }
@@ -16,13 +16,18 @@
 
 package io.github.zachohara.bukkit.simpleplugin.plugin.main;
 
+import java.util.List;
+import java.util.Locale;
+
 import io.github.zachohara.bukkit.simpleplugin.command.CommandInstance;
 import io.github.zachohara.bukkit.simpleplugin.command.CommandSet;
 import io.github.zachohara.bukkit.simpleplugin.command.Implementation;
 import io.github.zachohara.bukkit.simpleplugin.command.Properties;
 import io.github.zachohara.bukkit.simpleplugin.command.Properties.Source;
 import io.github.zachohara.bukkit.simpleplugin.command.Properties.Target;
+import io.github.zachohara.bukkit.simpleplugin.fileio.FileMetrics;
 import io.github.zachohara.bukkit.simpleplugin.plugin.SimplePlugin;
+import io.github.zachohara.bukkit.simpleplugin.util.StandardString;
 
 /**
  * The {@code Commands} interface represents the set of commands supported by this plugin,
@@ -33,7 +38,7 @@ import io.github.zachohara.bukkit.simpleplugin.plugin.SimplePlugin;
  */
 public enum Commands implements CommandSet {
 	
-	SIMPLEPLUGIN(new Properties(0, 0, Source.ALL, Target.NONE, new SimplePluginCommand()));
+	SIMPLEPLUGIN(new Properties(0, 2, Source.ALL, Target.NONE, new SimplePluginCommand()));
 	
 	/**
 	 * The {@code Properties} object specific to a single command.
@@ -56,12 +61,22 @@ public enum Commands implements CommandSet {
 	}
 
 	/**
-	 * The implementation for the 'simpleplugin' command.
+	 * The implementation for the 'simpleplugin' command. With the argument
+	 * {@code storage}, and optionally a measure of cost, the command lists the cost of
+	 * every file of every plugin instead.
 	 */
 	private static final class SimplePluginCommand extends Implementation {
 
 		@Override
 		protected boolean doPlayerCommand(CommandInstance instance) {
+			String[] args = instance.getArguments();
+			if (args.length > 0) {
+				if (args[0].equalsIgnoreCase("storage")) {
+					return this.showStorage(instance);
+				}
+				instance.sendError("Unknown option! Try using /%c storage [load|save|disk|heap]");
+				return false;
+			}
 			instance.sendMessage("This server is currently running the @nameSimplePlugin@text library.\n@nameSimplePlugin@text is used by the following plugins:");
 			String message = "";
 			for (String pluginName : SimplePlugin.getActivePluginList()) {
@@ -71,6 +86,62 @@ public enum Commands implements CommandSet {
 			instance.sendMessage(message);
 			return true;
 		}
+
+		/**
+		 * Lists the load time, save time, disk usage and memory usage of every file of every
+		 * plugin, from the most to the least costly file. Only operators and the console
+		 * may see this.
+		 *
+		 * @param instance the context of the command that is being executed.
+		 * @return {@code true} if the files were listed; {@code false} otherwise.
+		 */
+		private boolean showStorage(CommandInstance instance) {
+			if (instance.isFromPlayer() && !instance.getSenderPlayer().isOp()) {
+				instance.sendError(StandardString.ERROR_NOT_OP_MESSAGE);
+				return false;
+			}
+			FileMetrics.Cost cost = FileMetrics.Cost.LOAD;
+			String[] args = instance.getArguments();
+			if (args.length > 1) {
+				try {
+					cost = FileMetrics.Cost.valueOf(args[1].toUpperCase(Locale.ROOT));
+				} catch (IllegalArgumentException e) {
+					instance.sendError("Unknown measure! Try @nameload@text, @namesave@text, "
+							+ "@namedisk@text or @nameheap@text");
+					return false;
+				}
+			}
+			List<FileMetrics> metrics = SimplePlugin.getFileMetrics(cost);
+			long loadNanos = 0;
+			long saveNanos = 0;
+			long storedBytes = 0;
+			long heapBytes = 0;
+			for (FileMetrics file : metrics) {
+				loadNanos += file.getLoadNanos();
+				saveNanos += file.getSaveNanos();
+				storedBytes += file.getStoredBytes();
+				heapBytes += Math.max(file.getEstimatedHeapBytes(), 0);
+			}
+			instance.sendMessage("@name" + metrics.size() + "@text files, sorted by @name"
+					+ cost.name().toLowerCase(Locale.ROOT) + "@text: load @name"
+					+ FileMetrics.formatNanos(loadNanos) + "@text, save @name"
+					+ FileMetrics.formatNanos(saveNanos) + "@text, @name"
+					+ FileMetrics.formatBytes(storedBytes) + "@text on disk, @name~"
+					+ FileMetrics.formatBytes(heapBytes) + "@text in memory");
+			for (FileMetrics file : metrics) {
+				String entries = (file.getEntryCount() < 0) ? "" : ", @name" + file.getEntryCount()
+						+ "@text entries";
+				String heap = (file.getEstimatedHeapBytes() < 0) ? "unknown"
+						: "~" + FileMetrics.formatBytes(file.getEstimatedHeapBytes());
+				instance.sendMessage("[" + file.getPluginName() + "] @name" + file.getFileName()
+						+ "@text: load @name" + FileMetrics.formatNanos(file.getLoadNanos())
+						+ "@text, @name" + file.getSaveCount() + "@text saves in @name"
+						+ FileMetrics.formatNanos(file.getSaveNanos()) + "@text, @name"
+						+ FileMetrics.formatBytes(file.getStoredBytes()) + "@text on disk" + entries
+						+ ", @name" + heap + "@text in memory");
+			}
+			return true;
+		}
 		
 	}
 	
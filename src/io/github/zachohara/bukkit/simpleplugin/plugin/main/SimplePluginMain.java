@@ -16,7 +16,15 @@
 
 package io.github.zachohara.bukkit.simpleplugin.plugin.main;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+
+import org.bukkit.configuration.file.FileConfiguration;
+
 import io.github.zachohara.bukkit.simpleplugin.command.CommandSet;
+import io.github.zachohara.bukkit.simpleplugin.fileio.persistence.RecordLog;
+import io.github.zachohara.bukkit.simpleplugin.fileio.persistence.SharedStore;
 import io.github.zachohara.bukkit.simpleplugin.plugin.SimplePlugin;
 
 /**
@@ -32,6 +40,40 @@ public final class SimplePluginMain extends SimplePlugin {
 	public void onEnable() {
 		super.onEnable();
 		this.saveDefaultConfig();
+		this.openSharedStore();
+	}
+
+	/**
+	 * Closes the shared store once every other plugin has finished saving its files.
+	 */
+	@Override
+	public void onDisable() {
+		super.onDisable();
+		try {
+			SharedStore.closeShared();
+		} catch (IOException e) {
+			this.getLogger().log(Level.WARNING, "Error closing the shared store", e);
+		}
+	}
+
+	/**
+	 * Opens the store that is shared by every plugin, with the settings in the
+	 * {@code storage} section of the config.
+	 */
+	private void openSharedStore() {
+		FileConfiguration config = this.getConfig();
+		try {
+			SharedStore store = SharedStore.openShared(new File(this.getDataFolder(), "store"),
+					this.getLogger());
+			store.setCommitInterval(config.getLong("storage.commit-interval-ms",
+					RecordLog.DEFAULT_COMMIT_INTERVAL));
+			store.setSegmentSize(config.getLong("storage.segment-size-mb",
+					SharedStore.DEFAULT_SEGMENT_SIZE / (1024 * 1024)) * 1024 * 1024);
+			store.setCompactionRatio(config.getDouble("storage.compaction-ratio",
+					SharedStore.DEFAULT_COMPACTION_RATIO));
+		} catch (IOException e) {
+			this.getLogger().log(Level.WARNING, "The shared store could not be opened", e);
+		}
 	}
 
 	@Override
@@ -0,0 +1,144 @@
+/* Copyright (C) 2017 Zach Ohara
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.zachohara.bukkit.simpleplugin.fileio.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * The {@code CodecBenchmark} compares the codecs that a {@code PersistentObject} can write
+ * its file with. For each codec, a map of player identifiers to numbers is written to a
+ * file and read back, the same way a {@code PersistentMap} of that type saves and loads its
+ * file, and the size of the file and the best time out of several runs are printed.
+ * <p>
+ * This benchmark does not need a running server. It is run with the library and the
+ * Bukkit API on the class path, with an optional argument that names the directory to
+ * write the files to.
+ *
+ * @author Zach Ohara
+ */
+public class CodecBenchmark {
+
+	/**
+	 * The numbers of entries that the map is measured at.
+	 */
+	private static final int[] ENTRY_COUNTS = {10000, 1000000};
+
+	/**
+	 * The number of times that each measurement is repeated; the best time is reported.
+	 */
+	private static final int RUNS = 5;
+
+	/**
+	 * Runs the benchmark.
+	 *
+	 * @param args the directory to write the files to, or no arguments to use the
+	 * temporary directory of the system.
+	 * @throws IOException if a file could not be written or read.
+	 */
+	public static void main(String[] args) throws IOException {
+		File directory = new File(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"));
+		PayloadCodec[] codecs = {JavaSerializationCodec.INSTANCE, BinaryCodec.INSTANCE};
+		for (int entries : CodecBenchmark.ENTRY_COUNTS) {
+			HashMap<UUID, Integer> payload = CodecBenchmark.createPayload(entries);
+			for (PayloadCodec codec : codecs) {
+				File file = new File(directory, "codec-benchmark-" + codec.getId() + ".dat");
+				try {
+					long bestSave = Long.MAX_VALUE;
+					long bestLoad = Long.MAX_VALUE;
+					for (int i = 0; i < CodecBenchmark.RUNS; i++) {
+						long start = System.nanoTime();
+						CodecBenchmark.save(file, codec, payload);
+						bestSave = Math.min(bestSave, System.nanoTime() - start);
+						start = System.nanoTime();
+						Object loaded = CodecBenchmark.load(file);
+						bestLoad = Math.min(bestLoad, System.nanoTime() - start);
+						if (!payload.equals(loaded)) {
+							throw new IllegalStateException("The " + codec.getClass().getSimpleName()
+									+ " did not read back the map that it wrote");
+						}
+					}
+					System.out.printf("%-22s %,9d entries: %,12d bytes, save %8.1f ms, load %8.1f ms%n",
+							codec.getClass().getSimpleName(), entries, file.length(), bestSave / 1e6,
+							bestLoad / 1e6);
+				} finally {
+					file.delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Creates a map with the given number of random player identifiers.
+	 *
+	 * @param entries the number of entries in the map.
+	 * @return the new map.
+	 */
+	private static HashMap<UUID, Integer> createPayload(int entries) {
+		Random random = new Random(entries);
+		HashMap<UUID, Integer> payload = new HashMap<UUID, Integer>();
+		while (payload.size() < entries) {
+			payload.put(new UUID(random.nextLong(), random.nextLong()), random.nextInt(1000));
+		}
+		return payload;
+	}
+
+	/**
+	 * Writes the given payload to the given file with the given codec.
+	 *
+	 * @param file the file to write.
+	 * @param codec the codec to write the payload with.
+	 * @param payload the payload to write.
+	 * @throws IOException if the file could not be written.
+	 */
+	private static void save(File file, PayloadCodec codec, Map<UUID, Integer> payload)
+			throws IOException {
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+		try {
+			PayloadFormat.write(out, codec, payload);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads the payload from the given file.
+	 *
+	 * @param file the file to read.
+	 * @return the payload that was read.
+	 * @throws IOException if the file could not be read.
+	 */
+	private static Object load(File file) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+		try {
+			return PayloadFormat.read(in);
+		} finally {
+			in.close();
+		}
+	}
+
+}
@@ -0,0 +1,174 @@
+/* Copyright (C) 2017 Zach Ohara
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.zachohara.bukkit.simpleplugin.fileio.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * The {@code CompressionBenchmark} compares the compressions that a
+ * {@code PersistentObject} can apply to its file. For each compression, a map of player
+ * identifiers to player records is written to a file and read back, the same way a
+ * {@code PersistentMap} with that compression saves and loads its file, and the size of
+ * the file, its size against the uncompressed file, and the best time out of several
+ * runs are printed.
+ * <p>
+ * The records are short strings with the same field names in each, like the data that
+ * plugins usually keep for each player, so they compress about as well as real files do.
+ * <p>
+ * This benchmark does not need a running server. It is run with the library and the
+ * Bukkit API on the class path, with an optional argument that names the directory to
+ * write the files to.
+ *
+ * @author Zach Ohara
+ */
+public class CompressionBenchmark {
+
+	/**
+	 * The number of entries in the map.
+	 */
+	private static final int ENTRIES = 200000;
+
+	/**
+	 * The number of times that each measurement is repeated; the best time is reported.
+	 */
+	private static final int RUNS = 5;
+
+	/**
+	 * The ranks that a player record may hold.
+	 */
+	private static final String[] RANKS = {"member", "vip", "moderator", "admin"};
+
+	/**
+	 * The worlds that a player record may hold.
+	 */
+	private static final String[] WORLDS = {"world", "world_nether", "world_the_end"};
+
+	/**
+	 * Runs the benchmark.
+	 *
+	 * @param args the directory to write the files to, or no arguments to use the
+	 * temporary directory of the system.
+	 * @throws IOException if a file could not be written or read.
+	 */
+	public static void main(String[] args) throws IOException {
+		File directory = new File(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"));
+		String[] names = {"none", "DeflateCompression (fastest)", "DeflateCompression",
+				"LZCompression"};
+		PayloadCompression[] compressions = {null, DeflateCompression.FASTEST,
+				DeflateCompression.INSTANCE, LZCompression.INSTANCE};
+		HashMap<UUID, String> payload = CompressionBenchmark.createPayload();
+		long uncompressed = 0;
+		System.out.printf("%,d entries%n", CompressionBenchmark.ENTRIES);
+		for (int c = 0; c < compressions.length; c++) {
+			File file = new File(directory, "compression-benchmark-" + c + ".dat");
+			try {
+				long bestSave = Long.MAX_VALUE;
+				long bestLoad = Long.MAX_VALUE;
+				for (int i = 0; i < CompressionBenchmark.RUNS; i++) {
+					long start = System.nanoTime();
+					CompressionBenchmark.save(file, compressions[c], payload);
+					bestSave = Math.min(bestSave, System.nanoTime() - start);
+					start = System.nanoTime();
+					Object loaded = CompressionBenchmark.load(file);
+					bestLoad = Math.min(bestLoad, System.nanoTime() - start);
+					if (!payload.equals(loaded)) {
+						throw new IllegalStateException("The compression " + names[c]
+								+ " did not read back the map that it wrote");
+					}
+				}
+				if (compressions[c] == null) {
+					uncompressed = file.length();
+				}
+				System.out.printf("%-28s %,12d bytes (%5.1f%%), save %8.1f ms, load %8.1f ms%n",
+						names[c], file.length(), 100.0 * file.length() / uncompressed,
+						bestSave / 1e6, bestLoad / 1e6);
+			} finally {
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * Creates a map of random player identifiers to player records.
+	 *
+	 * @return the new map.
+	 */
+	private static HashMap<UUID, String> createPayload() {
+		Random random = new Random(CompressionBenchmark.ENTRIES);
+		HashMap<UUID, String> payload = new HashMap<UUID, String>();
+		while (payload.size() < CompressionBenchmark.ENTRIES) {
+			String record = "rank=" + CompressionBenchmark.RANKS[random.nextInt(4)]
+					+ ";kills=" + random.nextInt(5000)
+					+ ";home=" + CompressionBenchmark.WORLDS[random.nextInt(3)]
+					+ "," + (random.nextInt(20000) - 10000) + "," + random.nextInt(256)
+					+ "," + (random.nextInt(20000) - 10000)
+					+ ";joined=" + (1480000000000L + random.nextInt(1000000000));
+			payload.put(new UUID(random.nextLong(), random.nextLong()), record);
+		}
+		return payload;
+	}
+
+	/**
+	 * Writes the given payload to the given file with the given compression.
+	 *
+	 * @param file the file to write.
+	 * @param compression the compression to apply, or {@code null} to write the file
+	 * without compression.
+	 * @param payload the payload to write.
+	 * @throws IOException if the file could not be written.
+	 */
+	private static void save(File file, PayloadCompression compression,
+			Map<UUID, String> payload) throws IOException {
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+		try {
+			OutputStream data = PayloadFormat.compress(out, compression);
+			PayloadFormat.write(data, BinaryCodec.INSTANCE, payload);
+			data.close();
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads the payload from the given file.
+	 *
+	 * @param file the file to read.
+	 * @return the payload that was read.
+	 * @throws IOException if the file could not be read.
+	 */
+	private static Object load(File file) throws IOException {
+		InputStream in = PayloadFormat.decompress(
+				new BufferedInputStream(new FileInputStream(file)));
+		try {
+			return PayloadFormat.read(in);
+		} finally {
+			in.close();
+		}
+	}
+
+}
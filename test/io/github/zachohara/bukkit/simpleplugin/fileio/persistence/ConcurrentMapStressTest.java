@@ -0,0 +1,299 @@
+/* Copyright (C) 2017 Zach Ohara
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.zachohara.bukkit.simpleplugin.fileio.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.BiFunction;
+
+import io.github.zachohara.bukkit.simpleplugin.plugin.SimplePlugin;
+
+/**
+ * The {@code ConcurrentMapStressTest} checks a {@code PersistentMap} that allows
+ * concurrent access while many threads read and write it at once, and measures its
+ * throughput against a synchronized {@code HashMap} running the same work.
+ * <p>
+ * Each thread mixes reads, writes, removals, and atomic updates. While the threads run,
+ * the map is saved in the background over and over, and every saved file is read back
+ * and checked for a consistent state. Once the threads finish, the counters in the map
+ * are checked for lost updates, and the map is closed, loaded again, and checked once
+ * more.
+ * <p>
+ * The map needs an enabled {@code SimplePlugin} to own its file, so this test is started
+ * with {@link #run(SimplePlugin, PrintStream)} from a plugin on a test server. It writes
+ * the file {@code stress-test.dat} in the data folder of that plugin, which must keep
+ * each file in its own file rather than in the shared store.
+ *
+ * @author Zach Ohara
+ */
+public class ConcurrentMapStressTest {
+
+	/**
+	 * The name of the file that the map is stored in.
+	 */
+	private static final String FILENAME = "stress-test.dat";
+
+	/**
+	 * The number of rounds of work done by each thread. Each round makes
+	 * {@link #OPERATIONS_PER_ROUND} operations on the map.
+	 */
+	private static final int ROUNDS = 50000;
+
+	/**
+	 * The number of operations made on the map in each round.
+	 */
+	private static final int OPERATIONS_PER_ROUND = 7;
+
+	/**
+	 * The number of entries that each thread keeps in the map at once, under keys of its
+	 * own.
+	 */
+	private static final int WINDOW = 10;
+
+	/**
+	 * The number of counters that every thread adds to.
+	 */
+	private static final int COUNTERS = 16;
+
+	/**
+	 * The number of counters that every thread updates with {@code compute}.
+	 */
+	private static final int COMPUTED_COUNTERS = 4;
+
+	/**
+	 * Runs the test, and prints the results.
+	 *
+	 * @param owner the enabled plugin that owns the file of the map.
+	 * @param out the stream to print the results to.
+	 * @throws IOException if a saved file could not be read.
+	 * @throws InterruptedException if this thread is interrupted while it waits.
+	 * @throws IllegalStateException if the map lost an update, or saved an inconsistent
+	 * state, or if the plugin keeps its files in the shared store.
+	 */
+	public static void run(SimplePlugin owner, PrintStream out)
+			throws IOException, InterruptedException {
+		int threads = Math.max(8, Runtime.getRuntime().availableProcessors());
+		PersistentMap<String, Long> map = new PersistentMap<String, Long>(owner,
+				ConcurrentMapStressTest.FILENAME);
+		if (!map.usesOwnFile()) {
+			throw new IllegalStateException("The plugin must keep each file in its own file");
+		}
+		map.useConcurrentAccess(true);
+		map.clear();
+		File file = new File(owner.getDataFolder(), ConcurrentMapStressTest.FILENAME);
+		Thread[] workers = ConcurrentMapStressTest.startWorkers(map, threads);
+		long start = System.nanoTime();
+		int snapshots = 0;
+		while (ConcurrentMapStressTest.isAlive(workers)) {
+			if (map.saveInBackground()) {
+				map.awaitBackgroundSave();
+				ConcurrentMapStressTest.checkState(
+						(Map<?, ?>) PersistentObject.readFile(file), threads, "snapshot");
+				snapshots++;
+			}
+			Thread.sleep(5);
+		}
+		long mapNanos = System.nanoTime() - start;
+		ConcurrentMapStressTest.checkCounters(map, threads, "the map");
+		ConcurrentMapStressTest.checkState(map, threads, "the map");
+		map.closeFile(owner.getLogger());
+		PersistentMap<String, Long> reloaded = new PersistentMap<String, Long>(owner,
+				ConcurrentMapStressTest.FILENAME);
+		ConcurrentMapStressTest.checkCounters(reloaded, threads, "the reloaded map");
+		ConcurrentMapStressTest.checkState(reloaded, threads, "the reloaded map");
+		reloaded.closeFile(owner.getLogger());
+
+		Map<String, Long> baseline = Collections.synchronizedMap(new HashMap<String, Long>());
+		start = System.nanoTime();
+		for (Thread worker : ConcurrentMapStressTest.startWorkers(baseline, threads)) {
+			worker.join();
+		}
+		long baselineNanos = System.nanoTime() - start;
+		ConcurrentMapStressTest.checkCounters(baseline, threads, "the baseline map");
+
+		long operations = (long) threads * ConcurrentMapStressTest.ROUNDS
+				* ConcurrentMapStressTest.OPERATIONS_PER_ROUND;
+		out.printf("%d threads, %,d operations, %d consistent snapshots%n", threads, operations,
+				snapshots);
+		out.printf("PersistentMap:          %,12.0f operations per second%n",
+				operations * 1e9 / mapNanos);
+		out.printf("synchronized HashMap:   %,12.0f operations per second%n",
+				operations * 1e9 / baselineNanos);
+	}
+
+	/**
+	 * Starts the given number of threads, each of which runs the mixed work on the given
+	 * map.
+	 *
+	 * @param map the map to work on.
+	 * @param threads the number of threads to start.
+	 * @return the threads that were started.
+	 */
+	private static Thread[] startWorkers(final Map<String, Long> map, int threads) {
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			final int id = i;
+			workers[i] = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					ConcurrentMapStressTest.work(map, id);
+				}
+
+			}, "Stress Test Worker " + i);
+			workers[i].start();
+		}
+		return workers;
+	}
+
+	/**
+	 * Runs the mixed work of a single thread on the given map. In each round, the thread
+	 * adds to a shared counter, writes a new entry and records it as its latest, removes
+	 * its oldest entry, updates a computed counter, adds an entry that may already exist,
+	 * and reads an existing entry.
+	 *
+	 * @param map the map to work on.
+	 * @param id the number of the thread.
+	 */
+	private static void work(Map<String, Long> map, int id) {
+		Random random = new Random(id);
+		BiFunction<Long, Long, Long> sum = new BiFunction<Long, Long, Long>() {
+
+			@Override
+			public Long apply(Long a, Long b) {
+				return a + b;
+			}
+
+		};
+		BiFunction<String, Long, Long> increment = new BiFunction<String, Long, Long>() {
+
+			@Override
+			public Long apply(String key, Long value) {
+				return (value == null) ? 1L : value + 1;
+			}
+
+		};
+		for (long n = 0; n < ConcurrentMapStressTest.ROUNDS; n++) {
+			map.merge("counter-" + random.nextInt(ConcurrentMapStressTest.COUNTERS), 1L, sum);
+			map.put(ConcurrentMapStressTest.entryKey(id, n), n);
+			map.put("latest-" + id, n);
+			if (n >= ConcurrentMapStressTest.WINDOW) {
+				map.remove(ConcurrentMapStressTest.entryKey(id, n - ConcurrentMapStressTest.WINDOW));
+			}
+			map.compute("computed-" + (n % ConcurrentMapStressTest.COMPUTED_COUNTERS), increment);
+			map.putIfAbsent("first-" + random.nextInt(100), (long) id);
+			map.get(ConcurrentMapStressTest.entryKey(id, n / 2));
+		}
+	}
+
+	/**
+	 * Checks that the counters in the given map add up to the number of updates that every
+	 * thread made.
+	 *
+	 * @param map the map to check.
+	 * @param threads the number of threads that worked on the map.
+	 * @param name the name of the map, for the error message.
+	 * @throws IllegalStateException if an update was lost.
+	 */
+	private static void checkCounters(Map<String, Long> map, int threads, String name) {
+		long expected = (long) threads * ConcurrentMapStressTest.ROUNDS;
+		long counted = 0;
+		for (int i = 0; i < ConcurrentMapStressTest.COUNTERS; i++) {
+			Long value = map.get("counter-" + i);
+			counted += (value == null) ? 0 : value;
+		}
+		long computed = 0;
+		for (int i = 0; i < ConcurrentMapStressTest.COMPUTED_COUNTERS; i++) {
+			Long value = map.get("computed-" + i);
+			computed += (value == null) ? 0 : value;
+		}
+		if (counted != expected || computed != expected) {
+			throw new IllegalStateException("Updates were lost in " + name + ": merged " + counted
+					+ " and computed " + computed + " of " + expected);
+		}
+	}
+
+	/**
+	 * Checks that the entries of each thread in the given map are consistent with the
+	 * latest entry that the thread recorded. A thread always writes an entry before it
+	 * records it as its latest, and removes its oldest entry afterwards, so every state of
+	 * the map holds the entries just before the latest one, and no entries far from it.
+	 *
+	 * @param map the map, or saved state of the map, to check.
+	 * @param threads the number of threads that worked on the map.
+	 * @param name the name of the map, for the error message.
+	 * @throws IllegalStateException if the map is not consistent.
+	 */
+	private static void checkState(Map<?, ?> map, int threads, String name) {
+		for (int id = 0; id < threads; id++) {
+			Long latest = (Long) map.get("latest-" + id);
+			if (latest == null) {
+				continue;
+			}
+			long oldest = Math.max(0, latest - ConcurrentMapStressTest.WINDOW + 1);
+			for (long n = oldest; n <= latest; n++) {
+				if (!map.containsKey(ConcurrentMapStressTest.entryKey(id, n))) {
+					throw new IllegalStateException("Entry " + n + " of thread " + id
+							+ " is missing from " + name + ", whose latest entry is " + latest);
+				}
+			}
+			String prefix = "entry-" + id + "-";
+			for (Object key : map.keySet()) {
+				String entry = (String) key;
+				if (entry.startsWith(prefix)) {
+					long n = Long.parseLong(entry.substring(prefix.length()));
+					if (n > latest + 1 || n < latest - ConcurrentMapStressTest.WINDOW) {
+						throw new IllegalStateException("Entry " + n + " of thread " + id
+								+ " is in " + name + ", whose latest entry is " + latest);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the key of the given entry of the given thread.
+	 *
+	 * @param id the number of the thread.
+	 * @param n the number of the entry.
+	 * @return the key of the entry.
+	 */
+	private static String entryKey(int id, long n) {
+		return "entry-" + id + "-" + n;
+	}
+
+	/**
+	 * Determines if any of the given threads is still running.
+	 *
+	 * @param threads the threads to check.
+	 * @return {@code true} if any thread is alive; {@code false} otherwise.
+	 */
+	private static boolean isAlive(Thread[] threads) {
+		for (Thread thread : threads) {
+			if (thread.isAlive()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
@@ -0,0 +1,150 @@
+/* Copyright (C) 2017 Zach Ohara
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.zachohara.bukkit.simpleplugin.fileio.persistence;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import io.github.zachohara.bukkit.simpleplugin.plugin.SimplePlugin;
+
+/**
+ * The {@code KeyedDataBenchmark} measures the time that the calling thread spends saving
+ * the data of many keys in a {@code PersistentKeyedMap}. The data of 500 keys is saved
+ * one key at a time with {@code saveKeyedData}, all at once with
+ * {@code saveAllKeyedData}, and all at once with parallel calculation turned on, and the
+ * best time out of several rounds is printed for each.
+ * <p>
+ * The calculation of each value stands in for gathering the statistics of a player, and
+ * takes a few microseconds. Parallel calculation can only save time on a server with more
+ * than one processor, so the number of processors is printed with the results.
+ * <p>
+ * The maps need an enabled {@code SimplePlugin} to own their files, so this benchmark is
+ * started with {@link #run(SimplePlugin, PrintStream)} from a plugin on a test server. It
+ * writes the files {@code keyed-benchmark-*.dat} in the data folder of that plugin.
+ *
+ * @author Zach Ohara
+ */
+public class KeyedDataBenchmark {
+
+	/**
+	 * The number of keys whose data is saved in each round.
+	 */
+	private static final int KEY_COUNT = 500;
+
+	/**
+	 * The number of rounds that each way of saving is measured over; the best time is
+	 * reported.
+	 */
+	private static final int ROUNDS = 200;
+
+	/**
+	 * The number of steps taken to calculate each value.
+	 */
+	private static final int CALCULATION_STEPS = 20000;
+
+	/**
+	 * Runs the benchmark, and prints the results.
+	 *
+	 * @param owner the enabled plugin that owns the files of the maps.
+	 * @param out the stream to print the results to.
+	 * @throws IllegalStateException if the three ways of saving did not store the same data.
+	 */
+	public static void run(SimplePlugin owner, PrintStream out) {
+		Random random = new Random(KeyedDataBenchmark.KEY_COUNT);
+		List<UUID> keys = new ArrayList<UUID>(KeyedDataBenchmark.KEY_COUNT);
+		for (int i = 0; i < KeyedDataBenchmark.KEY_COUNT; i++) {
+			keys.add(new UUID(random.nextLong(), random.nextLong()));
+		}
+		StatsMap single = new StatsMap(owner, "keyed-benchmark-single.dat");
+		StatsMap batch = new StatsMap(owner, "keyed-benchmark-batch.dat");
+		StatsMap parallel = new StatsMap(owner, "keyed-benchmark-parallel.dat");
+		parallel.useParallelCalculation(true);
+		long bestSingle = Long.MAX_VALUE;
+		long bestBatch = Long.MAX_VALUE;
+		long bestParallel = Long.MAX_VALUE;
+		for (int round = 0; round < KeyedDataBenchmark.ROUNDS; round++) {
+			long start = System.nanoTime();
+			for (UUID key : keys) {
+				single.saveKeyedData(key);
+			}
+			bestSingle = Math.min(bestSingle, System.nanoTime() - start);
+			start = System.nanoTime();
+			batch.saveAllKeyedData(keys);
+			bestBatch = Math.min(bestBatch, System.nanoTime() - start);
+			start = System.nanoTime();
+			parallel.saveAllKeyedData(keys);
+			bestParallel = Math.min(bestParallel, System.nanoTime() - start);
+		}
+		HashMap<String, String> expected = new HashMap<String, String>(single);
+		if (!expected.equals(new HashMap<String, String>(batch))
+				|| !expected.equals(new HashMap<String, String>(parallel))) {
+			throw new IllegalStateException("The three ways of saving did not store the same data");
+		}
+		single.closeFile(owner.getLogger());
+		batch.closeFile(owner.getLogger());
+		parallel.closeFile(owner.getLogger());
+
+		out.printf("%d keys, %d processors%n", KeyedDataBenchmark.KEY_COUNT,
+				Runtime.getRuntime().availableProcessors());
+		out.printf("saveKeyedData, one key at a time:   %8.2f ms%n", bestSingle / 1e6);
+		out.printf("saveAllKeyedData:                   %8.2f ms%n", bestBatch / 1e6);
+		out.printf("saveAllKeyedData, in parallel:      %8.2f ms%n", bestParallel / 1e6);
+	}
+
+	/**
+	 * A {@code PersistentKeyedMap} whose data for each player takes a fixed amount of work
+	 * to calculate.
+	 */
+	private static class StatsMap extends PersistentKeyedMap<UUID, String> {
+
+		/**
+		 * Constructs a new {@code StatsMap}.
+		 *
+		 * @param owner the plugin that owns the file of the map.
+		 * @param filename the name of the file of the map.
+		 */
+		public StatsMap(SimplePlugin owner, String filename) {
+			super(owner, filename);
+		}
+
+		/**
+		 * Calculates a string from the given key, with a fixed number of steps of a
+		 * random number generator.
+		 *
+		 * @param key the key to calculate a value for.
+		 * @return the calculated value.
+		 */
+		@Override
+		public String calculateDataValue(UUID key) {
+			long state = key.getLeastSignificantBits();
+			StringBuilder value = new StringBuilder();
+			for (int i = 0; i < KeyedDataBenchmark.CALCULATION_STEPS; i++) {
+				state = state * 6364136223846793005L + 1442695040888963407L;
+				if (i % 2000 == 0) {
+					value.append(Long.toHexString(state)).append(',');
+				}
+			}
+			return value.toString();
+		}
+
+	}
+
+}
@@ -0,0 +1,153 @@
+/* Copyright (C) 2017 Zach Ohara
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.zachohara.bukkit.simpleplugin.fileio.persistence;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.Random;
+import java.util.UUID;
+
+import io.github.zachohara.bukkit.simpleplugin.plugin.SimplePlugin;
+
+/**
+ * The {@code PrimitiveMapHeapBenchmark} measures the memory taken up by each entry of a
+ * primitive map, against a {@code PersistentMap} of boxed numbers with the same entries,
+ * and prints the size of the file of each.
+ * <p>
+ * Two kinds of map are measured. A map of names to {@code int} values is filled with
+ * names that are also held by the caller, so the names themselves are not counted. A map
+ * of player identifiers to {@code long} values is saved and loaded again, so that each
+ * map holds its own keys, which are counted. Memory is measured as the growth of the heap
+ * after several garbage collections, so the results are only accurate on an otherwise
+ * idle server.
+ * <p>
+ * The maps need an enabled {@code SimplePlugin} to own their files, so this benchmark is
+ * started with {@link #run(SimplePlugin, PrintStream)} from a plugin on a test server. It
+ * writes the files {@code heap-benchmark-*.dat} in the data folder of that plugin.
+ *
+ * @author Zach Ohara
+ */
+public class PrimitiveMapHeapBenchmark {
+
+	/**
+	 * The number of entries in each map.
+	 */
+	private static final int ENTRIES = 1000000;
+
+	/**
+	 * The number of garbage collections that are requested before the heap is measured.
+	 */
+	private static final int COLLECTIONS = 4;
+
+	/**
+	 * Runs the benchmark, and prints the results.
+	 *
+	 * @param owner the enabled plugin that owns the files of the maps.
+	 * @param out the stream to print the results to.
+	 */
+	public static void run(SimplePlugin owner, PrintStream out) {
+		int entries = PrimitiveMapHeapBenchmark.ENTRIES;
+		String[] names = new String[entries];
+		for (int i = 0; i < entries; i++) {
+			names[i] = "player_" + i;
+		}
+		long base = PrimitiveMapHeapBenchmark.usedHeap();
+		PersistentMap<String, Integer> boxedInts = new PersistentMap<String, Integer>(owner,
+				"heap-benchmark-boxed-int.dat");
+		for (int i = 0; i < entries; i++) {
+			boxedInts.put(names[i], i * 7);
+		}
+		long boxedIntHeap = PrimitiveMapHeapBenchmark.usedHeap() - base;
+		boxedInts.closeFile(owner.getLogger());
+		boxedInts = null;
+		base = PrimitiveMapHeapBenchmark.usedHeap();
+		PersistentIntMap<String> ints = new PersistentIntMap<String>(owner,
+				"heap-benchmark-int.dat", String.class);
+		for (int i = 0; i < entries; i++) {
+			ints.put(names[i], i * 7);
+		}
+		long intHeap = PrimitiveMapHeapBenchmark.usedHeap() - base;
+		ints.closeFile(owner.getLogger());
+		ints = null;
+		names = null;
+
+		Random random = new Random(entries);
+		PersistentMap<UUID, Long> boxedLongs = new PersistentMap<UUID, Long>(owner,
+				"heap-benchmark-boxed-long.dat");
+		PersistentLongMap<UUID> longs = new PersistentLongMap<UUID>(owner,
+				"heap-benchmark-long.dat", UUID.class);
+		for (int i = 0; i < entries; i++) {
+			UUID key = new UUID(random.nextLong(), random.nextLong());
+			boxedLongs.put(key, 1000L + i);
+			longs.put(key, 1000L + i);
+		}
+		boxedLongs.closeFile(owner.getLogger());
+		longs.closeFile(owner.getLogger());
+		boxedLongs = null;
+		longs = null;
+		base = PrimitiveMapHeapBenchmark.usedHeap();
+		boxedLongs = new PersistentMap<UUID, Long>(owner, "heap-benchmark-boxed-long.dat");
+		boxedLongs.awaitLoad();
+		long boxedLongHeap = PrimitiveMapHeapBenchmark.usedHeap() - base;
+		boxedLongs.closeFile(owner.getLogger());
+		boxedLongs = null;
+		base = PrimitiveMapHeapBenchmark.usedHeap();
+		longs = new PersistentLongMap<UUID>(owner, "heap-benchmark-long.dat", UUID.class);
+		longs.awaitLoad();
+		long longHeap = PrimitiveMapHeapBenchmark.usedHeap() - base;
+		longs.closeFile(owner.getLogger());
+
+		File folder = owner.getDataFolder();
+		out.printf("%,d entries%n", entries);
+		PrimitiveMapHeapBenchmark.print(out, "String -> Integer", boxedIntHeap,
+				new File(folder, "heap-benchmark-boxed-int.dat"));
+		PrimitiveMapHeapBenchmark.print(out, "String -> int", intHeap,
+				new File(folder, "heap-benchmark-int.dat"));
+		PrimitiveMapHeapBenchmark.print(out, "UUID -> Long", boxedLongHeap,
+				new File(folder, "heap-benchmark-boxed-long.dat"));
+		PrimitiveMapHeapBenchmark.print(out, "UUID -> long", longHeap,
+				new File(folder, "heap-benchmark-long.dat"));
+	}
+
+	/**
+	 * Prints the memory taken up by each entry of a map, and the size of its file.
+	 *
+	 * @param out the stream to print to.
+	 * @param name the name of the map.
+	 * @param heap the memory taken up by the map, in bytes.
+	 * @param file the file of the map.
+	 */
+	private static void print(PrintStream out, String name, long heap, File file) {
+		out.printf("%-18s %6.1f bytes per entry in memory, file %,12d bytes%n", name,
+				heap / (double) PrimitiveMapHeapBenchmark.ENTRIES, file.length());
+	}
+
+	/**
+	 * Returns the number of bytes of the heap that are in use, after requesting several
+	 * garbage collections.
+	 *
+	 * @return the used size of the heap, in bytes.
+	 */
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < PrimitiveMapHeapBenchmark.COLLECTIONS; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+}